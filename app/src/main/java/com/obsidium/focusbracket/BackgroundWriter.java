@@ -0,0 +1,121 @@
+package com.obsidium.focusbracket;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.LinkedList;
+
+/*
+    Replaces a file with the latest contents handed to it on a background thread. The contents go to a temporary
+    file first, which is then renamed over the target, so a crash mid-write leaves the previous file intact; a
+    reader that finds no file should fall back to the temporary one. Contents that haven't been written yet are
+    replaced by newer ones. Other card work can be posted to the same thread.
+ */
+public class BackgroundWriter {
+
+    private final String m_name;
+    private final File m_file;
+    private final File m_tempFile;
+
+    private final Object m_lock = new Object();
+    // Latest contents not written yet, null if the file is up to date
+    private String m_pendingWrite;
+    private final LinkedList<Runnable> m_tasks = new LinkedList<Runnable>();
+    private Thread m_thread;
+
+    public BackgroundWriter(String name, File file, File tempFile) {
+        m_name = name;
+        m_file = file;
+        m_tempFile = tempFile;
+    }
+
+    /*
+        Writes the contents in the background, replacing any still pending
+     */
+    public void write(String contents) {
+        synchronized (m_lock) {
+            m_pendingWrite = contents;
+            startThread();
+            m_lock.notify();
+        }
+    }
+
+    /*
+        Runs the task on the writer thread, before the pending contents are written
+     */
+    public void post(Runnable task) {
+        synchronized (m_lock) {
+            m_tasks.add(task);
+            startThread();
+            m_lock.notify();
+        }
+    }
+
+    // Must be called with m_lock held
+    private void startThread() {
+        if(m_thread != null) {
+            return;
+        }
+        m_thread = new Thread(m_name) {
+            @Override
+            public void run() {
+                while(true) {
+                    Runnable task;
+                    try {
+                        synchronized (m_lock) {
+                            while(m_pendingWrite == null && m_tasks.isEmpty()) {
+                                m_lock.wait();
+                            }
+                            task = m_tasks.poll();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if(task != null) {
+                        task.run();
+                    }
+                    flush();
+                }
+            }
+        };
+        m_thread.setDaemon(true);
+        m_thread.setPriority(Thread.MIN_PRIORITY);
+        m_thread.start();
+    }
+
+    private void writeFile(String contents) throws Exception {
+        m_file.getParentFile().mkdirs();
+        BufferedWriter writer = new BufferedWriter(new FileWriter(m_tempFile, false));
+        writer.write(contents);
+        writer.flush();
+        writer.close();
+        if(!m_tempFile.renameTo(m_file)) {
+            // Some file systems won't rename over an existing file
+            m_file.delete();
+            if(!m_tempFile.renameTo(m_file)) {
+                throw new Exception("Renaming " + m_tempFile.getName() + " failed");
+            }
+        }
+    }
+
+    /*
+        Writes pending contents now, on the calling thread
+     */
+    public void flush() {
+        synchronized (this) {
+            String contents;
+            synchronized (m_lock) {
+                contents = m_pendingWrite;
+                m_pendingWrite = null;
+            }
+            if(contents == null) {
+                return;
+            }
+            try {
+                writeFile(contents);
+            } catch (Exception e) {
+                Logger.error("Saving " + m_file.getName() + " failed: " + e);
+            }
+        }
+    }
+}
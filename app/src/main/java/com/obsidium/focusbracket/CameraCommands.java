@@ -0,0 +1,245 @@
+package com.obsidium.focusbracket;
+
+import android.hardware.Camera;
+
+import com.sony.scalar.hardware.CameraEx;
+
+/*
+    Parameter writes are slow and sit on the shot-to-shot critical path. This layer remembers what was
+    last applied, drops setters that would not change anything and sends the remaining ones in a single
+    setParameters call when apply() is called.
+ */
+public class CameraCommands
+{
+    private static final int DRIVE_SINGLE = 0;
+    private static final int DRIVE_BRACKET = 1;
+
+    private final CameraEx m_camera;
+
+    // Last applied values; null = unknown
+    private String m_focusMode;
+    private Integer m_exposureCompensation;
+    private Integer m_driveMode;
+    private int m_bracketPeriod;
+    private Integer m_previewFrameRate;
+
+    // Values waiting for the next apply(); null = nothing to write
+    private String m_pendingFocusMode;
+    private Integer m_pendingExposureCompensation;
+    private Integer m_pendingDriveMode;
+    private int m_pendingBracketPeriod;
+    private Integer m_pendingPreviewFrameRate;
+
+    private int m_writes;
+    private int m_skipped;
+    private long m_totalWriteNanos;
+    private long m_maxWriteNanos;
+    private long m_lastWriteNanos;
+
+    public CameraCommands(CameraEx camera)
+    {
+        m_camera = camera;
+    }
+
+    public void setFocusMode(String focusMode)
+    {
+        if (focusMode.equals(m_focusMode))
+        {
+            m_pendingFocusMode = null;
+            ++m_skipped;
+        }
+        else
+            m_pendingFocusMode = focusMode;
+    }
+
+    public void setExposureCompensation(int steps)
+    {
+        if (m_exposureCompensation != null && m_exposureCompensation == steps)
+        {
+            m_pendingExposureCompensation = null;
+            ++m_skipped;
+        }
+        else
+            m_pendingExposureCompensation = steps;
+    }
+
+    public void setSingleDrive()
+    {
+        if (m_driveMode != null && m_driveMode == DRIVE_SINGLE)
+        {
+            m_pendingDriveMode = null;
+            ++m_skipped;
+        }
+        else
+            m_pendingDriveMode = DRIVE_SINGLE;
+    }
+
+    /*
+        Continuous exposure bracket, period in tenths of an EV
+     */
+    public void setExposureBracket(int period)
+    {
+        if (m_driveMode != null && m_driveMode == DRIVE_BRACKET && m_bracketPeriod == period)
+        {
+            m_pendingDriveMode = null;
+            ++m_skipped;
+        }
+        else
+        {
+            m_pendingDriveMode = DRIVE_BRACKET;
+            m_pendingBracketPeriod = period;
+        }
+    }
+
+    /*
+        Live view frames per second
+     */
+    public void setPreviewFrameRate(int fps)
+    {
+        if (m_previewFrameRate != null && m_previewFrameRate == fps)
+        {
+            m_pendingPreviewFrameRate = null;
+            ++m_skipped;
+        }
+        else
+            m_pendingPreviewFrameRate = fps;
+    }
+
+    public boolean hasPending()
+    {
+        return m_pendingFocusMode != null || m_pendingExposureCompensation != null || m_pendingDriveMode != null ||
+            m_pendingPreviewFrameRate != null;
+    }
+
+    /*
+        Writes all pending changes in one setParameters call. If the camera rejects them, the pending
+        values are dropped and the affected cached values are forgotten, then the exception is rethrown.
+     */
+    public void apply()
+    {
+        if (!hasPending())
+            return;
+
+        final long start = System.nanoTime();
+        try
+        {
+            final Camera.Parameters params = m_camera.createEmptyParameters();
+            if (m_pendingFocusMode != null)
+                params.setFocusMode(m_pendingFocusMode);
+            if (m_pendingExposureCompensation != null)
+                params.setExposureCompensation(m_pendingExposureCompensation);
+            if (m_pendingPreviewFrameRate != null)
+                params.setPreviewFrameRate(m_pendingPreviewFrameRate);
+            if (m_pendingDriveMode != null)
+            {
+                final CameraEx.ParametersModifier modifier = m_camera.createParametersModifier(params);
+                if (m_pendingDriveMode == DRIVE_BRACKET)
+                {
+                    modifier.setDriveMode(CameraEx.ParametersModifier.DRIVE_MODE_BRACKET);
+                    modifier.setBracketMode(CameraEx.ParametersModifier.BRACKET_MODE_EXPOSURE);
+                    modifier.setExposureBracketMode(CameraEx.ParametersModifier.EXPOSURE_BRACKET_MODE_CONTINUE);
+                    modifier.setExposureBracketPeriod(m_pendingBracketPeriod);
+                }
+                else
+                    modifier.setDriveMode(CameraEx.ParametersModifier.DRIVE_MODE_SINGLE);
+            }
+            m_camera.getNormalCamera().setParameters(params);
+
+            if (m_pendingFocusMode != null)
+                m_focusMode = m_pendingFocusMode;
+            if (m_pendingExposureCompensation != null)
+                m_exposureCompensation = m_pendingExposureCompensation;
+            if (m_pendingPreviewFrameRate != null)
+                m_previewFrameRate = m_pendingPreviewFrameRate;
+            if (m_pendingDriveMode != null)
+            {
+                m_driveMode = m_pendingDriveMode;
+                m_bracketPeriod = m_pendingBracketPeriod;
+            }
+        }
+        catch (RuntimeException e)
+        {
+            forgetPending();
+            throw e;
+        }
+        catch (NoSuchMethodError e)
+        {
+            forgetPending();
+            throw e;
+        }
+        finally
+        {
+            m_pendingFocusMode = null;
+            m_pendingExposureCompensation = null;
+            m_pendingDriveMode = null;
+            m_pendingPreviewFrameRate = null;
+
+            m_lastWriteNanos = System.nanoTime() - start;
+            m_totalWriteNanos += m_lastWriteNanos;
+            m_maxWriteNanos = Math.max(m_maxWriteNanos, m_lastWriteNanos);
+            ++m_writes;
+        }
+    }
+
+    private void forgetPending()
+    {
+        if (m_pendingFocusMode != null)
+            m_focusMode = null;
+        if (m_pendingExposureCompensation != null)
+            m_exposureCompensation = null;
+        if (m_pendingDriveMode != null)
+            m_driveMode = null;
+        if (m_pendingPreviewFrameRate != null)
+            m_previewFrameRate = null;
+    }
+
+    /*
+        Forgets all cached values, e.g. when the user may have changed settings outside the app
+     */
+    public void invalidate()
+    {
+        m_focusMode = null;
+        m_exposureCompensation = null;
+        m_driveMode = null;
+        m_previewFrameRate = null;
+    }
+
+    public int getWriteCount()
+    {
+        return m_writes;
+    }
+
+    public int getSkippedCount()
+    {
+        return m_skipped;
+    }
+
+    public long getLastWriteNanos()
+    {
+        return m_lastWriteNanos;
+    }
+
+    public long getMaxWriteNanos()
+    {
+        return m_maxWriteNanos;
+    }
+
+    public long getAverageWriteNanos()
+    {
+        return m_writes > 0 ? m_totalWriteNanos / m_writes : 0;
+    }
+
+    public void resetCounters()
+    {
+        m_writes = 0;
+        m_skipped = 0;
+        m_totalWriteNanos = 0;
+        m_maxWriteNanos = 0;
+    }
+
+    public String getSummary()
+    {
+        return "Parameter writes: " + m_writes + " applied, " + m_skipped + " skipped, avg " +
+            getAverageWriteNanos() / 1000 + " us, max " + m_maxWriteNanos / 1000 + " us";
+    }
+}
@@ -0,0 +1,154 @@
+package com.obsidium.focusbracket;
+
+import com.obsidium.focusbracket.core.CameraDriver;
+import com.obsidium.focusbracket.core.EventBus;
+import com.sony.scalar.hardware.CameraEx;
+
+/*
+    CameraDriver on top of CameraEx, with parameter writes coalesced by CameraCommands. Focus and shutter
+    callbacks are posted to the EventBus, the engine's listener being its first subscriber.
+ */
+public class CameraExDriver implements CameraDriver, CameraEx.ShutterListener, CameraEx.FocusDriveListener, EventBus.Listener
+{
+    private final CameraEx m_camera;
+    private final CameraCommands m_commands;
+    private final EventBus m_events;
+    private Listener m_listener;
+    private int m_maxFocusPosition;
+    private long m_lastApplyMicros;
+
+    public CameraExDriver(CameraEx camera, EventBus events)
+    {
+        m_camera = camera;
+        m_commands = new CameraCommands(camera);
+        m_events = events;
+        m_events.subscribe(EventBus.FOCUS_CHANGED, this);
+        m_events.subscribe(EventBus.SHUTTER, this);
+        m_camera.setShutterListener(this);
+        m_camera.setFocusDriveListener(this);
+    }
+
+    public CameraCommands getCommands()
+    {
+        return m_commands;
+    }
+
+    /*
+        Infinity end of the focus range, 0 until the first focus callback
+     */
+    public int getMaxFocusPosition()
+    {
+        return m_maxFocusPosition;
+    }
+
+    // CameraEx.FocusDriveListener
+    @Override
+    public void onChanged(CameraEx.FocusPosition focusPosition, CameraEx cameraEx)
+    {
+        m_maxFocusPosition = focusPosition.maxPosition;
+        m_events.post(EventBus.FOCUS_CHANGED, focusPosition.currentPosition, focusPosition.maxPosition);
+    }
+
+    // CameraEx.ShutterListener
+    @Override
+    public void onShutter(int i, CameraEx cameraEx)
+    {
+        // i: 0 = success, 1 = canceled, 2 = error
+        m_events.post(EventBus.SHUTTER, i, 0);
+    }
+
+    // EventBus.Listener
+    @Override
+    public void onEvent(int event, int arg1, int arg2)
+    {
+        if (m_listener == null)
+            return;
+        if (event == EventBus.FOCUS_CHANGED)
+            m_listener.onFocusChanged(arg1);
+        else if (event == EventBus.SHUTTER)
+            m_listener.onShutter(arg1);
+    }
+
+    @Override
+    public void setListener(Listener listener)
+    {
+        m_listener = listener;
+    }
+
+    @Override
+    public void startFocusDrive(boolean far, int speed)
+    {
+        if (Logger.DEBUG)
+            Logger.debug("Starting focus drive (speed " + speed + ")");
+        m_camera.startOneShotFocusDrive(far ? CameraEx.FOCUS_DRIVE_DIRECTION_FAR : CameraEx.FOCUS_DRIVE_DIRECTION_NEAR, speed);
+    }
+
+    @Override
+    public void setExposureCompensation(int steps)
+    {
+        m_commands.setExposureCompensation(steps);
+    }
+
+    @Override
+    public void setSingleDrive()
+    {
+        m_commands.setSingleDrive();
+    }
+
+    @Override
+    public void setExposureBracket(int period)
+    {
+        m_commands.setExposureBracket(period);
+    }
+
+    @Override
+    public boolean hasPendingParameters()
+    {
+        return m_commands.hasPending();
+    }
+
+    @Override
+    public boolean applyParameters()
+    {
+        final long start = System.nanoTime();
+        try {
+            m_commands.apply();
+            return true;
+        } catch (RuntimeException e) {
+            Logger.error("Setting parameters failed: " + e);
+        } catch (NoSuchMethodError e) {
+            Logger.error("Parameters not available: " + e);
+        } finally {
+            m_lastApplyMicros = (System.nanoTime() - start) / 1000;
+        }
+        return false;
+    }
+
+    @Override
+    public long getLastApplyMicros()
+    {
+        return m_lastApplyMicros;
+    }
+
+    @Override
+    public void takePicture()
+    {
+        if (Logger.DEBUG)
+            Logger.debug("Taking picture");
+        m_camera.burstableTakePicture();
+    }
+
+    @Override
+    public void cancelTakePicture()
+    {
+        m_camera.cancelTakePicture();
+    }
+
+    public void release()
+    {
+        m_camera.setShutterListener(null);
+        m_camera.setFocusDriveListener(null);
+        m_events.unsubscribeAll(this);
+        m_listener = null;
+    }
+}
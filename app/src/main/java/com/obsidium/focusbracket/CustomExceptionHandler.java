@@ -19,7 +19,8 @@ public class CustomExceptionHandler implements Thread.UncaughtExceptionHandler
         e.printStackTrace(printWriter);
         String stacktrace = result.toString();
         printWriter.close();
-        Logger.error(stacktrace);
+        // Straight to the card, the log buffer could drop a long trace
+        Logger.fatal(stacktrace);
         defaultUEH.uncaughtException(t, e);
     }
 }
\ No newline at end of file
@@ -0,0 +1,12 @@
+package com.obsidium.focusbracket;
+
+import com.obsidium.focusbracket.core.EngineLog;
+
+public class EngineLogger implements EngineLog
+{
+    @Override
+    public void info(String msg) { Logger.info(msg); }
+
+    @Override
+    public void error(String msg) { Logger.error(msg); }
+}
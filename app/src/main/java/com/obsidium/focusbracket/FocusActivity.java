@@ -3,85 +3,172 @@ package com.obsidium.focusbracket;
 import android.hardware.Camera;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
-import android.view.View;
 import android.widget.TextView;
 
 import com.github.ma1co.pmcademo.app.BaseActivity;
+import com.obsidium.focusbracket.core.CoveragePruner;
+import com.obsidium.focusbracket.core.EventBus;
+import com.obsidium.focusbracket.core.FocusDistanceModel;
+import com.obsidium.focusbracket.core.FocusPointSet;
+import com.obsidium.focusbracket.core.FocusPointPlanner;
+import com.obsidium.focusbracket.core.FocusDriveController;
+import com.obsidium.focusbracket.core.Intervalometer;
+import com.obsidium.focusbracket.core.LensCalibration;
+import com.obsidium.focusbracket.core.RangeFinder;
+import com.obsidium.focusbracket.core.SequenceEngine;
+import com.obsidium.focusbracket.core.SharpnessGrid;
+import com.obsidium.focusbracket.core.SharpnessSeries;
+import com.obsidium.focusbracket.core.ShootSettings;
+import com.obsidium.focusbracket.core.ShotJournal;
+import com.obsidium.focusbracket.core.ShotScheduler;
+import com.obsidium.focusbracket.core.ShotTrace;
 import com.sony.scalar.hardware.CameraEx;
 import com.sony.scalar.sysutil.ScalarProperties;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
 
-public class FocusActivity extends BaseActivity implements SurfaceHolder.Callback, CameraEx.ShutterListener
+public class FocusActivity extends BaseActivity implements SurfaceHolder.Callback, SequenceEngine.Listener, Intervalometer.Listener,
+    EventBus.Listener, SettingSaver.LoadListener, LensCalibrationStore.LoadListener
 {
     private static final int COUNTDOWN_TICKS = 3;
     private static final int COUNTDOWN_DELAY_MS = 250;
-
-    private class ExposureRequest {
-        public int targetFocus;
-        public int targetExposure;
-        public ExposureRequest(int targetFocus, int targetExposure) {
-            this.targetFocus = targetFocus;
-            this.targetExposure = targetExposure;
-        }
-    }
+    private static final int FRAME_INTERVAL_MS = 16;
+    private static final int MAX_FOCUS_TOLERANCE = 10;
+    private static final int MAX_DOF_OVERLAP = 50;
+    private static final int DOF_OVERLAP_STEP = 5;
+    private static final int MIN_FOCUS_DISTANCE_STEP = 10;
+    private static final int MAX_MIN_FOCUS_DISTANCE = 2000;
+    private static final int MAX_ANCHOR_DISTANCE = 100000;
+    // Drive speed of the auto range scan, slow enough for several live view frames per focus step
+    private static final int RANGE_SCAN_SPEED = 3;
+    // About 20s of live view at 30 fps
+    private static final int MAX_RANGE_FRAMES = 600;
+    private static final int MAX_PRUNE_THRESHOLD = 20;
+    // Used when the camera doesn't report the aperture
+    private static final float DEFAULT_APERTURE = 8.0f;
+    // Time-lapse intervals the dial steps through, 0 is off
+    private static final int[] INTERVAL_STEPS_S = { 0, 10, 15, 20, 30, 45, 60, 90, 120, 180, 300, 600, 900, 1200, 1800, 3600 };
+    // Refresh of the countdown to the next time-lapse stack
+    private static final int INTERVAL_TICK_MS = 1000;
+    // Redraws of the progress line during a headless shoot
+    private static final int HEADLESS_RENDER_INTERVAL_MS = 1000;
 
     private SurfaceHolder       m_surfaceHolder;
     private CameraEx            m_camera;
+    private CameraExDriver      m_driver;
+    // Lens and display events are posted here, the camera driver adds its own
+    private final EventBus      m_events = new EventBus();
+    private SequenceEngine      m_engine;
     private CameraEx.AutoPictureReviewControl m_autoReviewControl;
     private int                 m_pictureReviewTime;
 
     private Handler             m_handler = new Handler();
 
-    private TextView            m_tvMsg;
-    private TextView            m_tvStatus;
+    private StatusText          m_msgText;
+    private StatusText          m_statusText;
+    // At most one redraw per frame
+    private boolean             m_displayDirty;
+    private long                m_lastRenderTime;
+    private final Runnable      m_renderRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            m_displayDirty = false;
+            m_lastRenderTime = SystemClock.uptimeMillis();
+            renderDisplay();
+        }
+    };
 
     private ShootSettings       m_shootSettings = new ShootSettings();
+    // The settings are read off the UI thread; until they arrive the config controls do nothing and nothing is saved
+    private boolean             m_settingsLoaded;
+    // Preset names for the display, refreshed after every preset change so rendering never touches SettingSaver's lock
+    private SettingSaver.Library m_library;
 
-    enum State { error, config, shoot }
+    enum State { error, config, shoot, calibrate, autorange, prune }
     private State               m_state = State.config;
 
-    enum SelectedControl { Shoot, AddFocusPoint, RemoveFocusPoint, SetExposureBracket }
+    enum SelectedControl { Shoot, SetInterval, ResumeSequence, SelectPreset, SavePreset, AddFocusPoint, RemoveFocusPoint, MarkNear, MarkFar, AutoRange, SetDofOverlap, SetMinFocusDistance, SetFocusDistance, PlanFocusPoints, PrunePoints, SetPruneThreshold, SetExposureBracket, SetShotOrder, SetFocusTolerance, SetOneWayApproach, CalibrateFocusDrive, SetNativeBracket, SetPipelined, SetHeadlessShoot }
     private SelectedControl     m_selectedControl = SelectedControl.Shoot;
 
 
-    private int                 m_curFocus;
-    private int                 m_focusBeforeDrive;
+    // Null while no lens is attached
+    private String              m_lensKey;
+    // Calibration of the mounted lens, null while no lens is attached or the calibrations haven't been read
+    private LensCalibration     m_lens;
+    // Subject distance entered for SetFocusDistance, in mm
+    private int                 m_anchorDistance = 1000;
+    private String              m_lastRunSummary;
+    // Journal of an interrupted sequence that can be continued
+    private ShotJournal         m_resumeJournal;
 
-    private LinkedList<ExposureRequest> m_focusQueue;
-    private boolean             m_waitingForFocus;
+    // Live view contrast: every frame of the auto range sweep on a coarse grid, one frame per focus point on a
+    // finer one for pruning
+    private PreviewSampler      m_rangeSampler;
+    private PreviewSampler      m_probeSampler;
+    // Auto range: true while the lens travels to the near end, before the scan
+    private boolean             m_seekingNearEnd;
+    // Subject tiles found by the last auto range scan, -1 if none was run
+    private int                 m_autoRangeTiles = -1;
+    // Points removed by the last pruning, -1 if none was run
+    private int                 m_prunedPoints = -1;
+    private final Runnable      m_probeDoneRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            m_engine.probeDone();
+        }
+    };
 
-    private int                 m_countdown;
-    private final Runnable      m_countDownRunnable = new Runnable()
+    // Repeats the sequence when intervalSeconds is set
+    private Intervalometer      m_intervalometer;
+    private final Runnable      m_intervalTickRunnable = new Runnable()
     {
         @Override
         public void run()
         {
-            if (--m_countdown > 0)
-            {
-                m_tvMsg.setText(String.format("Starting in %d...", m_countdown));
-                m_handler.postDelayed(this, COUNTDOWN_DELAY_MS);
-            }
-            else
-            {
-                m_tvMsg.setVisibility(View.GONE);
-                startShooting();
-            }
+            updateDisplay();
+        }
+    };
+
+    // Debug log of camera events, run on the handler after the callback rather than inside it
+    private final EventBus.Listener m_eventLogger = new EventBus.Listener()
+    {
+        @Override
+        public void onEvent(int event, int arg1, int arg2)
+        {
+            if (event == EventBus.FOCUS_CHANGED)
+                Logger.debug("FocusDriveListener: currentPosition " + arg1);
+            else if (event == EventBus.SHUTTER)
+                Logger.debug("onShutter (i " + arg1 + ")");
         }
     };
 
-    private final Runnable      m_checkFocusRunnable = new Runnable()
+    // True while a sequence runs with live view throttled and the overlay reduced to the progress line
+    private boolean             m_headless;
+    // Live view frame rate to restore after a headless sequence, 0 if it wasn't changed
+    private int                 m_liveViewFrameRate;
+
+    private int                 m_countdown;
+    private final Runnable      m_countDownRunnable = new Runnable()
     {
         @Override
         public void run()
         {
-            if (m_waitingForFocus && m_focusBeforeDrive == m_curFocus)
-                focus();
+            if (--m_countdown > 0)
+                m_handler.postDelayed(this, COUNTDOWN_DELAY_MS);
+            else if (m_shootSettings.intervalSeconds > 0)
+                m_intervalometer.start(m_shootSettings.intervalSeconds * 1000L);
+            else
+                startShooting();
+            updateDisplay();
         }
     };
 
@@ -98,8 +185,8 @@ public class FocusActivity extends BaseActivity implements SurfaceHolder.Callbac
         m_surfaceHolder = surfaceView.getHolder();
         m_surfaceHolder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
 
-        m_tvMsg = (TextView)findViewById(R.id.tvMsg);
-        m_tvStatus = (TextView)findViewById(R.id.tvStatus);
+        m_msgText = new StatusText((TextView)findViewById(R.id.tvMsg));
+        m_statusText = new StatusText((TextView)findViewById(R.id.tvStatus));
     }
 
     @Override
@@ -107,176 +194,603 @@ public class FocusActivity extends BaseActivity implements SurfaceHolder.Callbac
     {
         super.onResume();
         m_camera = CameraEx.open(0, null);
+        m_driver = new CameraExDriver(m_camera, m_events);
+        final HandlerEventLoop loop = new HandlerEventLoop(m_handler);
+        if (Logger.DEBUG)
+        {
+            m_events.subscribe(EventBus.FOCUS_CHANGED, m_eventLogger, loop);
+            m_events.subscribe(EventBus.SHUTTER, m_eventLogger, loop);
+        }
+        m_events.subscribe(EventBus.LENS_ATTACHED, this);
+        m_events.subscribe(EventBus.LENS_DETACHED, this);
+        m_events.subscribe(EventBus.DISPLAY_CHANGED, this);
+        m_engine = new SequenceEngine(m_driver, loop, new EngineLogger());
+        m_engine.setListener(this);
+        m_intervalometer = new Intervalometer(loop);
+        m_intervalometer.setListener(this);
+        m_rangeSampler = new PreviewSampler(m_engine, new SharpnessSeries(new SharpnessGrid(8, 6), MAX_RANGE_FRAMES), true);
+        m_probeSampler = new PreviewSampler(m_engine, new SharpnessSeries(new SharpnessGrid(16, 12), FocusPointPlanner.MAX_POINTS), false);
         m_surfaceHolder.addCallback(this);
         m_autoReviewControl = new CameraEx.AutoPictureReviewControl();
         m_camera.setAutoPictureReviewControl(m_autoReviewControl);
 
-        m_camera.setShutterListener(this);
+        setDefaults();
+        m_settingsLoaded = false;
+        m_engine.setSettings(m_shootSettings);
+        loadLens();
+        LensCalibrationStore.loadAsync(m_handler, this);
+        SettingSaver.loadAsync(m_handler, this);
+        setState(State.config);
+    }
+
+    // SettingSaver.LoadListener
+    @Override
+    public void onSettingsLoaded(ShootSettings settings, SettingSaver.Library library)
+    {
+        // Paused before the settings arrived
+        if (m_engine == null)
+            return;
+        m_shootSettings = settings;
+        m_library = library;
+        m_settingsLoaded = true;
+        m_engine.setSettings(m_shootSettings);
+        loadResumeJournal();
+        updateDisplay();
+    }
+
+    // LensCalibrationStore.LoadListener
+    @Override
+    public void onLensCalibrationsLoaded()
+    {
+        // Paused or lens detached before the calibrations arrived
+        if (m_engine == null || m_lensKey == null)
+            return;
+        loadLens();
+        updateDisplay();
+    }
+
+    /*
+        Offers to resume the sequence the journal shows as interrupted, if it was shot with the current settings
+     */
+    private void loadResumeJournal()
+    {
+        m_resumeJournal = JournalSaver.load();
+        if (m_resumeJournal != null && m_resumeJournal.matches(m_shootSettings))
+        {
+            Logger.info("Interrupted sequence: " + m_resumeJournal.getCompletedShots() + " of " + m_resumeJournal.getPlannedShots() +
+                " shots taken, last at " + m_resumeJournal.getLastTime());
+            m_selectedControl = SelectedControl.ResumeSequence;
+        }
+        else
+            m_resumeJournal = null;
+    }
+
+    // SequenceEngine.Listener
+    @Override
+    public void onEngineChanged()
+    {
+        updateDisplay();
+    }
 
-        m_camera.setFocusDriveListener(new CameraEx.FocusDriveListener()
+    // SequenceEngine.Listener
+    @Override
+    public void onSequenceFinished(ShotTrace trace, boolean completed)
+    {
+        // Shot-to-shot times of headless and live view runs are told apart in the log
+        final boolean headless = m_headless;
+        resumeLiveView();
+        Logger.info(m_driver.getCommands().getSummary());
+        m_driver.getCommands().resetCounters();
+        m_lastRunSummary = trace.getSummary();
+        Logger.info((headless ? "Headless " : "Live view ") + m_lastRunSummary.replace('\n', ' '));
+        TraceSaver.saveAsync(trace);
+        if (completed)
+            JournalSaver.delete();
+        else
+            JournalSaver.close();
+        if (m_intervalometer.isActive())
         {
-            @Override
-            public void onChanged(CameraEx.FocusPosition focusPosition, CameraEx cameraEx)
+            // Stays in the shoot state until the next stack unless this one was aborted
+            m_intervalometer.onStackFinished(completed);
+            if (m_intervalometer.isActive())
             {
-                Logger.info("FocusDriveListener: currentPosition " + focusPosition.currentPosition);
-                m_handler.removeCallbacks(m_checkFocusRunnable);
-                m_curFocus = focusPosition.currentPosition;
-                if (m_waitingForFocus)
-                {
-                    ExposureRequest currentExposureRequest = m_focusQueue.getFirst();
-                    if (m_curFocus == currentExposureRequest.targetFocus)
-                    {
-                        // Focused, take picture
-                        Logger.info("Taking picture (FocusDriveListener)");
-                        takePicture();
-                    }
-                    else
-                        focus();
-                }
                 updateDisplay();
+                return;
             }
-        });
+        }
+        // An aborted sequence can be resumed right away, not only after a restart
+        if (!completed)
+            loadResumeJournal();
+        if (m_state == State.shoot)
+            setState(State.config);
+    }
 
-        setDefaults();
-        m_shootSettings = SettingSaver.load();
+    // Intervalometer.Listener
+    @Override
+    public void onStackDue(int stack)
+    {
+        Logger.info("Time-lapse stack " + (stack + 1));
+        startShooting();
+    }
+
+    // Intervalometer.Listener
+    @Override
+    public void onDeadlineMissed(int stack, long lateMs)
+    {
+        Logger.error("Time-lapse stack " + (stack + 1) + " missed its deadline by " + lateMs + " ms");
+        updateDisplay();
+    }
+
+    // SequenceEngine.Listener
+    @Override
+    public void onShot(int focus, int exposure, int result)
+    {
+        JournalSaver.append(focus, exposure, result);
+    }
+
+    // SequenceEngine.Listener
+    @Override
+    public void onCalibrationFinished()
+    {
+        saveLens();
         setState(State.config);
     }
 
-    // CameraEx.ShutterListener
+    // SequenceEngine.Listener
     @Override
-    public void onShutter(int i, CameraEx cameraEx)
+    public void onRangeSweepFinished(boolean completed)
     {
-        // i: 0 = success, 1 = canceled, 2 = error
-        Logger.info("onShutter (i " + i + ")");
-        m_camera.cancelTakePicture();
-        if (i == 0)
+        if (!completed)
         {
-            m_focusQueue.removeFirst();
-            if (m_focusQueue.isEmpty())
-            {
-                setState(State.shoot);
-            }
-            else
-            {
-                // Move to next focus position
-                startFocusing();
-            }
+            m_rangeSampler.stop();
+            return;
         }
-        updateDisplay();
+        if (m_seekingNearEnd)
+        {
+            // At the near end, scan towards infinity
+            m_seekingNearEnd = false;
+            m_rangeSampler.start(m_camera.getNormalCamera());
+            m_engine.startRangeSweep(true, RANGE_SCAN_SPEED);
+            return;
+        }
+        m_rangeSampler.stop();
+        final SharpnessSeries series = m_rangeSampler.getSeries();
+        final RangeFinder finder = new RangeFinder();
+        if (finder.findRange(series))
+        {
+            m_autoRangeTiles = finder.getSubjectTiles();
+            m_shootSettings.planNear = finder.getNear();
+            m_shootSettings.planFar = finder.getFar();
+            SettingSaver.save(m_shootSettings);
+            Logger.info("Auto range " + finder.getNear() + " - " + finder.getFar() + " from " + m_autoRangeTiles +
+                " tiles in " + series.getFrameCount() + " frames");
+        }
+        else
+        {
+            m_autoRangeTiles = 0;
+            Logger.info("Auto range found no subject in " + series.getFrameCount() + " frames");
+        }
+        setState(State.config);
     }
 
-    private void setExposureCompensation(int exposureCompensationSteps) {
-        final Camera.Parameters params = m_camera.createEmptyParameters();
-        params.setExposureCompensation(exposureCompensationSteps);
-        m_camera.getNormalCamera().setParameters(params);
+    // SequenceEngine.Listener
+    @Override
+    public void onProbePoint(int focus)
+    {
+        m_probeSampler.capture(focus, m_probeDoneRunnable);
     }
 
-    private void setFocusMode(String value) {
-        final Camera.Parameters params = m_camera.createEmptyParameters();
-        params.setFocusMode(value);
-        m_camera.getNormalCamera().setParameters(params);
+    // SequenceEngine.Listener
+    @Override
+    public void onProbeFinished(boolean completed)
+    {
+        m_probeSampler.stop();
+        if (!completed)
+            return;
+        final SharpnessSeries series = m_probeSampler.getSeries();
+        final CoveragePruner pruner = new CoveragePruner();
+        final FocusPointSet kept = pruner.prune(series, m_shootSettings.pruneThreshold);
+        m_prunedPoints = pruner.getPrunedCount();
+        Logger.info("Pruned " + m_prunedPoints + " of " + series.getFrameCount() + " focus points at " +
+            m_shootSettings.pruneThreshold + "% loss, " + pruner.getUncoveredTiles() + " of " + pruner.getSubjectTiles() +
+            " tiles uncovered");
+        if (m_prunedPoints > 0)
+        {
+            m_shootSettings.focusPoints = kept;
+            SettingSaver.save(m_shootSettings);
+        }
+        setState(State.config);
+    }
 
+    /*
+        Calibration is stored per focal length, the closest thing to a lens identity the camera parameters offer:
+        they report no lens name or ID, so lenses of the same focal length share a calibration
+     */
+    private String getLensKey()
+    {
+        final Camera.Parameters params = m_camera.getNormalCamera().getParameters();
+        return "FL" + Math.round(params.getFocalLength() * 10);
     }
 
-    private void takePicture()
+    /*
+        The key follows the focal length, so zooming switches to another calibration. Returns true if it did; what
+        the drive controller learned since the last check is dropped then, rather than filed under the wrong key.
+     */
+    private boolean checkZoom()
     {
-        ExposureRequest currentExposureRequest = m_focusQueue.getFirst();
-        setExposureCompensation(currentExposureRequest.targetExposure);
+        if (m_lens == null)
+            return false;
+        final String lensKey = getLensKey();
+        if (lensKey.equals(m_lensKey))
+            return false;
+        Logger.info("Focal length changed, lens calibration " + m_lensKey + " replaced by " + lensKey);
+        loadLens();
+        return true;
+    }
 
-        m_waitingForFocus = false;
-        m_camera.burstableTakePicture();
+    private void loadLens()
+    {
+        m_lensKey = getLensKey();
+        // Until the file has been read this stays null, onLensCalibrationsLoaded() comes back here then
+        m_lens = LensCalibrationStore.getLoaded(m_lensKey);
+        if (m_lens != null && !m_lens.applyTo(m_engine.getDriveController()))
+            Logger.info("Focus drive not calibrated for lens " + m_lensKey);
+    }
+
+    /*
+        Stores what was learned about the current lens: drive steps, backlash and the focus range
+     */
+    private void saveLens()
+    {
+        if (m_lens == null || checkZoom())
+            return;
+        m_lens.captureFrom(m_engine.getDriveController());
+        if (m_driver.getMaxFocusPosition() > 0)
+            m_lens.setMaxPosition(m_driver.getMaxFocusPosition());
+        LensCalibrationStore.save(m_lensKey, m_lens);
+    }
+
+    // EventBus.Listener
+    @Override
+    public void onEvent(int event, int arg1, int arg2)
+    {
+        if (event == EventBus.LENS_ATTACHED)
+            loadLens();
+        else if (event == EventBus.LENS_DETACHED)
+        {
+            if (m_state == State.shoot || m_state == State.calibrate || m_state == State.autorange || m_state == State.prune)
+            {
+                abortShooting();
+                setState(State.config);
+            }
+            saveLens();
+            m_lens = null;
+            m_lensKey = null;
+            m_engine.getDriveController().reset();
+        }
         updateDisplay();
     }
 
-    private void focus()
+    /*
+        Replaces the focus points with the fewest points covering the near/far marks at the current aperture,
+        using the lens' position to distance mapping
+     */
+    private void planFocusPoints()
     {
-        final ExposureRequest nextExposureRequest = m_focusQueue.getFirst();
-        final int nextFocus = nextExposureRequest.targetFocus;
-        m_focusBeforeDrive = m_curFocus;
-        if (m_curFocus == nextFocus)
+        if (m_lens == null || m_shootSettings.planNear < 0 || m_shootSettings.planFar < 0)
+            return;
+        checkZoom();
+        if (m_driver.getMaxFocusPosition() > 0)
+            m_lens.setMaxPosition(m_driver.getMaxFocusPosition());
+        final FocusDistanceModel model = m_lens.getDistanceModel();
+        if (model == null)
+            return;
+        final Camera.Parameters params = m_camera.getNormalCamera().getParameters();
+        float aperture = DEFAULT_APERTURE;
+        try
         {
-            Logger.info("Taking picture (focus)");
-            takePicture();
+            final int value = m_camera.createParametersModifier(params).getAperture();
+            if (value > 0)
+                aperture = value / 100.0f;
+        }
+        catch (NoSuchMethodError e)
+        {
+        }
+
+        final FocusPointPlanner planner = new FocusPointPlanner(model);
+        planner.setOptics(params.getFocalLength(), aperture);
+        planner.setOverlap(m_shootSettings.dofOverlap / 100.0f);
+        m_shootSettings.focusPoints = planner.plan(m_shootSettings.planNear, m_shootSettings.planFar);
+        Logger.info(String.format("Planned %d focus points at %.0fmm f/%.1f", m_shootSettings.focusPoints.size(), params.getFocalLength(), aperture));
+        SettingSaver.save(m_shootSettings);
+    }
+
+    private void startShooting()
+    {
+        m_driver.getCommands().resetCounters();
+        m_engine.setSettings(m_shootSettings);
+        final ShotJournal journal = m_resumeJournal;
+        m_resumeJournal = null;
+        if (!m_engine.start(journal))
+        {
+            if (journal != null)
+                JournalSaver.delete();
+            m_intervalometer.stop();
+            setState(State.config);
         }
         else
         {
-            final int absDiff = Math.abs(m_curFocus - nextFocus);
-            final int speed;
-            if (absDiff > 4) {
-                speed = 7;
-            } else {
-                speed = 4;
+            if (journal != null)
+                JournalSaver.resume(journal);
+            else
+                JournalSaver.begin(m_shootSettings, m_engine.getShotsRemaining());
+            if (m_shootSettings.headlessShoot)
+                suspendLiveView();
+        }
+    }
+
+    /*
+        Headless shoot: drops live view to the slowest frame rate the camera offers, leaving the image processor
+        and CPU to capture and card writes, and reduces the overlay to a progress line redrawn once a second
+     */
+    private void suspendLiveView()
+    {
+        if (m_headless)
+            return;
+        m_headless = true;
+        m_liveViewFrameRate = 0;
+        try
+        {
+            final Camera.Parameters params = m_camera.getNormalCamera().getParameters();
+            final List<Integer> frameRates = params.getSupportedPreviewFrameRates();
+            if (frameRates != null && !frameRates.isEmpty())
+            {
+                int slowest = frameRates.get(0);
+                for (int frameRate : frameRates)
+                    slowest = Math.min(slowest, frameRate);
+                if (slowest < params.getPreviewFrameRate())
+                {
+                    final CameraCommands commands = m_driver.getCommands();
+                    commands.setPreviewFrameRate(slowest);
+                    commands.apply();
+                    m_liveViewFrameRate = params.getPreviewFrameRate();
+                }
             }
-            Logger.info("Starting focus drive (speed " + speed + ")");
-            m_camera.startOneShotFocusDrive(m_curFocus < nextFocus ? CameraEx.FOCUS_DRIVE_DIRECTION_FAR : CameraEx.FOCUS_DRIVE_DIRECTION_NEAR, speed);
-            // startOneShotFocusDrive won't always trigger our FocusDriveListener
-            m_handler.postDelayed(m_checkFocusRunnable, 50);
+        }
+        catch (RuntimeException e)
+        {
+            Logger.error("Throttling live view failed: " + e);
         }
         updateDisplay();
     }
 
-    private void startFocusing()
+    private void resumeLiveView()
     {
-        m_waitingForFocus = true;
-        focus();
+        if (!m_headless)
+            return;
+        m_headless = false;
+        if (m_liveViewFrameRate > 0)
+        {
+            try
+            {
+                final CameraCommands commands = m_driver.getCommands();
+                commands.setPreviewFrameRate(m_liveViewFrameRate);
+                commands.apply();
+            }
+            catch (RuntimeException e)
+            {
+                Logger.error("Restoring live view failed: " + e);
+            }
+            m_liveViewFrameRate = 0;
+        }
+        // Catch up on the frames the throttled redraw skipped
+        m_handler.removeCallbacks(m_renderRunnable);
+        m_displayDirty = false;
         updateDisplay();
     }
 
-    private void startShooting()
+    /*
+        Schedules a redraw; any number of calls within a frame result in one renderDisplay()
+     */
+    private void updateDisplay()
     {
-        m_tvMsg.setVisibility(View.GONE);
-        startFocusing();
+        if (m_displayDirty)
+            return;
+        m_displayDirty = true;
+        final int interval = m_headless ? HEADLESS_RENDER_INTERVAL_MS : FRAME_INTERVAL_MS;
+        m_handler.postAtTime(m_renderRunnable, Math.max(SystemClock.uptimeMillis(), m_lastRenderTime + interval));
     }
 
-    private void initFocusQueue()
+    private static void appendDuration(StatusText text, int seconds)
     {
-        m_focusQueue = new LinkedList<ExposureRequest>();
-        for(int focusPoint : m_shootSettings.focusPoints) {
-            m_focusQueue.addFirst(new ExposureRequest(focusPoint, 0));
-            if(m_shootSettings.exposureBracket > 0) {
-                m_focusQueue.addFirst(new ExposureRequest(focusPoint, m_shootSettings.exposureBracket));
-                m_focusQueue.addFirst(new ExposureRequest(focusPoint, -1*m_shootSettings.exposureBracket));
-            }
+        if (seconds >= 60 && seconds % 60 == 0)
+            text.append(seconds / 60).append(" min");
+        else
+            text.append(seconds).append(" s");
+    }
+
+    private void appendFocusPoints(StatusText text)
+    {
+        text.append("Focus points:");
+        final FocusPointSet focusPoints = m_shootSettings.focusPoints;
+        for(int i = 0; i < focusPoints.size(); i++) {
+            text.append(' ').append(focusPoints.get(i));
         }
     }
 
-    private void updateDisplay()
+    private void renderDisplay()
     {
+        final StatusText status = m_statusText.clear();
+        final StatusText msg = m_msgText.clear();
         if(m_state == State.config) {
-            StringBuilder focusPointSummary = new StringBuilder();
-            focusPointSummary.append("Focus points:");
-            for(Integer focusPoint: m_shootSettings.focusPoints) {
-                focusPointSummary.append(" ");
-                focusPointSummary.append(focusPoint);
+            if(m_selectedControl == SelectedControl.SetExposureBracket || m_selectedControl == SelectedControl.SetShotOrder ||
+                    m_selectedControl == SelectedControl.SetFocusTolerance || m_selectedControl == SelectedControl.SetNativeBracket ||
+                    m_selectedControl == SelectedControl.SelectPreset || m_selectedControl == SelectedControl.SetDofOverlap ||
+                    m_selectedControl == SelectedControl.SetMinFocusDistance || m_selectedControl == SelectedControl.SetPipelined ||
+                    m_selectedControl == SelectedControl.SetPruneThreshold || m_selectedControl == SelectedControl.SetInterval ||
+                    m_selectedControl == SelectedControl.SetOneWayApproach || m_selectedControl == SelectedControl.SetHeadlessShoot) {
+                status.append("Scroll wheel to ");
+            } else if(m_selectedControl == SelectedControl.SetFocusDistance) {
+                status.append("Scroll wheel and press control button to ");
+            } else {
+                status.append("Press control button to ");
             }
+            status.append(m_selectedControl.name());
 
-            double exposureComp = new Integer(m_shootSettings.exposureBracket).doubleValue() / 3.0;
-            String exposureBracketSummary = String.format("Exposure bracket steps: %.1f EV",exposureComp);
-
-            m_tvStatus.setVisibility(View.VISIBLE);
-            m_tvMsg.setVisibility(View.VISIBLE);
             if(m_selectedControl == SelectedControl.SetExposureBracket) {
-                m_tvStatus.setText("Scroll wheel to "+m_selectedControl.name());
-                m_tvMsg.setText(exposureBracketSummary);
+                // exposureBracket is in thirds of an EV
+                msg.append("Exposure bracket steps: ").appendTenths((m_shootSettings.exposureBracket * 10 + 1) / 3).append(" EV");
+                if(m_shootSettings.nativeBracket && m_shootSettings.exposureBracket > 0 &&
+                        ShotScheduler.getBracketPeriod(m_shootSettings.exposureBracket) == 0) {
+                    msg.append("\nNo native bracket for this step, bracketing in software");
+                }
+            } else if(m_selectedControl == SelectedControl.SetShotOrder) {
+                msg.append("Shot order: ").append(m_shootSettings.shotOrder.name());
+            } else if(m_selectedControl == SelectedControl.SetFocusTolerance) {
+                msg.append("Focus tolerance: ").append(m_shootSettings.focusTolerance);
+            } else if(m_selectedControl == SelectedControl.SetOneWayApproach) {
+                msg.append("One-way approach: ").append(m_shootSettings.oneWayApproach ? "on" : "off");
+                msg.append("\nSlower, for repeatable focus: overshot points are backed off and approached again");
+                msg.append("\nFocus backlash: ").appendTenths(Math.round(m_engine.getDriveController().getBacklash() * 10));
+            } else if(m_selectedControl == SelectedControl.SetNativeBracket) {
+                msg.append("Native bracket: ").append(m_shootSettings.nativeBracket ? (m_engine.isNativeBracketAvailable() ? "on" : "not supported") : "off");
+                if(m_shootSettings.nativeBracket && m_shootSettings.exposureBracket > 0 &&
+                        ShotScheduler.getBracketPeriod(m_shootSettings.exposureBracket) == 0) {
+                    msg.append("\nNot available for the current bracket step, only 1/3, 2/3, 1, 2 and 3 EV");
+                }
+            } else if(m_selectedControl == SelectedControl.ResumeSequence) {
+                if(m_resumeJournal != null && m_resumeJournal.matches(m_shootSettings)) {
+                    msg.append("Interrupted sequence: ").append(m_resumeJournal.getCompletedShots()).append(" of ").append(m_resumeJournal.getPlannedShots()).append(" shots taken");
+                } else {
+                    msg.append("No interrupted sequence");
+                }
+            } else if(m_selectedControl == SelectedControl.SelectPreset) {
+                msg.append("Preset: ").append(m_library != null ? m_library.current : "loading").append("\n\n");
+                appendFocusPoints(msg);
+            } else if(m_selectedControl == SelectedControl.SavePreset) {
+                if(m_library != null) {
+                    msg.append("Save current settings as ").append(m_library.nextName);
+                }
+            } else if(m_selectedControl == SelectedControl.MarkNear || m_selectedControl == SelectedControl.MarkFar) {
+                msg.append("Near: ").append(m_shootSettings.planNear).append(" Far: ").append(m_shootSettings.planFar);
+                msg.append("\n\nCurrent point: ").append(m_engine.getCurrentFocus());
+            } else if(m_selectedControl == SelectedControl.AutoRange) {
+                msg.append("Find near and far from live view contrast\n\n");
+                if(m_autoRangeTiles == 0) {
+                    msg.append("No subject found\n\n");
+                }
+                msg.append("Near: ").append(m_shootSettings.planNear).append(" Far: ").append(m_shootSettings.planFar);
+            } else if(m_selectedControl == SelectedControl.SetDofOverlap) {
+                msg.append("Depth of field overlap: ").append(m_shootSettings.dofOverlap).append('%');
+            } else if(m_selectedControl == SelectedControl.SetMinFocusDistance) {
+                if(m_lens != null) {
+                    msg.append("Lens minimum focus distance: ").append(m_lens.getMinFocusDistance()).append(" mm");
+                } else {
+                    msg.append("No lens");
+                }
+            } else if(m_selectedControl == SelectedControl.SetFocusDistance) {
+                msg.append("Subject distance at current point: ").append(m_anchorDistance).append(" mm\n\n");
+                msg.append("Current point: ").append(m_engine.getCurrentFocus());
+                msg.append(" (distance scale ").append(m_lens != null && m_lens.hasMeasuredDistanceModel() ? "measured" : "estimated").append(')');
+            } else if(m_selectedControl == SelectedControl.PlanFocusPoints) {
+                if(m_shootSettings.planNear < 0 || m_shootSettings.planFar < 0) {
+                    msg.append("Mark near and far first");
+                } else {
+                    msg.append("Near: ").append(m_shootSettings.planNear).append(" Far: ").append(m_shootSettings.planFar);
+                }
+                msg.append("\n\n");
+                appendFocusPoints(msg);
+            } else if(m_selectedControl == SelectedControl.PrunePoints) {
+                msg.append("Remove points losing at most ").append(m_shootSettings.pruneThreshold).append("% in-focus area in total\n\n");
+                appendFocusPoints(msg);
+                if(m_prunedPoints >= 0) {
+                    msg.append("\n\nLast pruning removed ").append(m_prunedPoints).append(" points");
+                }
+            } else if(m_selectedControl == SelectedControl.SetPruneThreshold) {
+                msg.append("Maximum in-focus area lost: ").append(m_shootSettings.pruneThreshold).append('%');
+            } else if(m_selectedControl == SelectedControl.SetInterval) {
+                msg.append("Time-lapse: ");
+                if(m_shootSettings.intervalSeconds > 0) {
+                    appendDuration(msg.append("one stack every "), m_shootSettings.intervalSeconds);
+                } else {
+                    msg.append("off");
+                }
+            } else if(m_selectedControl == SelectedControl.SetPipelined) {
+                msg.append("Pipelined capture: ").append(m_shootSettings.pipelined ? "on" : "off");
+            } else if(m_selectedControl == SelectedControl.SetHeadlessShoot) {
+                msg.append("Headless shoot: ").append(m_shootSettings.headlessShoot ? "on" : "off");
+                msg.append("\n\nSlows live view and shows only the shots remaining while shooting");
+            } else if(m_selectedControl == SelectedControl.CalibrateFocusDrive) {
+                final FocusDriveController controller = m_engine.getDriveController();
+                if(controller.isCalibrated()) {
+                    msg.append("Focus drive calibrated");
+                } else {
+                    msg.append("Focus drive not calibrated, ").append(controller.getMeasuredSpeeds()).append(" of ")
+                        .append(FocusDriveController.MAX_SPEED).append(" speeds learned from focusing");
+                }
+                msg.append("\n\nStored per focal length, lenses of the same focal length share it");
             } else if(m_selectedControl == SelectedControl.AddFocusPoint || m_selectedControl == SelectedControl.RemoveFocusPoint) {
-                m_tvStatus.setText("Press control button to "+m_selectedControl.name());
-                m_tvMsg.setText(focusPointSummary.toString()+"\n\n"+"Current point: "+m_curFocus);
+                appendFocusPoints(msg);
+                msg.append("\n\nCurrent point: ").append(m_engine.getCurrentFocus());
             } else if(m_selectedControl == SelectedControl.Shoot) {
-                m_tvStatus.setText("Press control button to "+m_selectedControl.name());
-                m_tvMsg.setText(focusPointSummary.toString()+"\n\n"+"Exposure bracket steps: "+m_shootSettings.exposureBracket);
+                appendFocusPoints(msg);
+                msg.append("\n\nExposure bracket steps: ").append(m_shootSettings.exposureBracket);
+                if(m_shootSettings.intervalSeconds > 0) {
+                    appendDuration(msg.append("\n\nTime-lapse every "), m_shootSettings.intervalSeconds);
+                }
+                if(m_prunedPoints > 0) {
+                    msg.append("\n\n").append(m_prunedPoints).append(" redundant points pruned");
+                }
+                if(m_lastRunSummary != null) {
+                    msg.append("\n\nLast run: ").append(m_lastRunSummary);
+                }
             }
+            status.show();
+            msg.show();
 
         } else if(m_state == State.shoot) {
             int shotsLeft = m_shootSettings.focusPoints.size();
-            if(m_focusQueue != null) {
-                shotsLeft = m_focusQueue.size();
+            if(m_engine.isShooting()) {
+                shotsLeft = m_engine.getShotsRemaining();
+            }
+            if(m_headless) {
+                status.append("Shots Remaining: ").append(shotsLeft).show();
+                msg.hide();
+                return;
             }
 
-            m_tvStatus.setVisibility(View.VISIBLE);
-            m_tvStatus.setText("Focus: "+m_curFocus+" Shots Remaining: "+shotsLeft);
+            status.append("Focus: ").append(m_engine.getCurrentFocus()).append(" Shots Remaining: ").append(shotsLeft).show();
+            if(m_countdown > 0) {
+                msg.append("Starting in ").append(m_countdown).append("...").show();
+            } else if(m_intervalometer.isActive()) {
+                msg.append("Time-lapse: ").append(m_intervalometer.getCompletedCount()).append(" stacks, ");
+                msg.append(m_intervalometer.getMissedCount()).append(" deadlines missed");
+                if(m_intervalometer.isWaiting()) {
+                    appendDuration(msg.append("\n\nNext stack in "), (int)((m_intervalometer.getMsUntilNextStart() + 999) / 1000));
+                    m_handler.removeCallbacks(m_intervalTickRunnable);
+                    m_handler.postDelayed(m_intervalTickRunnable, INTERVAL_TICK_MS);
+                }
+                msg.show();
+            } else {
+                msg.hide();
+            }
+
+        } else if(m_state == State.calibrate) {
+            status.append("Calibrating focus drive (speed ").append(m_engine.getCalibrationSpeed()).append(')').show();
+            msg.hide();
 
-            m_tvMsg.setVisibility(View.GONE);
+        } else if(m_state == State.prune) {
+            status.append("Measuring focus point coverage, points remaining: ").append(m_engine.getShotsRemaining()).show();
+            msg.hide();
 
+        } else if(m_state == State.autorange) {
+            status.append(m_seekingNearEnd ? "Auto range: moving to near end" : "Auto range: scanning");
+            status.append(" Focus: ").append(m_engine.getCurrentFocus()).show();
+            msg.hide();
+
+        } else if(m_state == State.error) {
+            status.hide();
+            msg.append("ERROR: Focus drive not supported").show();
         }
     }
 
@@ -286,7 +800,10 @@ public class FocusActivity extends BaseActivity implements SurfaceHolder.Callbac
      */
     private void setDefaults()
     {
-        setFocusMode(CameraEx.ParametersModifier.FOCUS_MODE_MANUAL);
+        final CameraCommands commands = m_driver.getCommands();
+        commands.invalidate();
+        commands.setFocusMode(CameraEx.ParametersModifier.FOCUS_MODE_MANUAL);
+        commands.apply();
 
         /*
             modifier.isFocusDriveSupported() returns false on ILCE-5100, focus drive is working anyway...
@@ -301,8 +818,6 @@ public class FocusActivity extends BaseActivity implements SurfaceHolder.Callbac
                 if (Integer.parseInt(split[1]) < 3)
                 {
                     m_state = State.error;
-                    m_tvMsg.setVisibility(View.VISIBLE);
-                    m_tvMsg.setText("ERROR: Focus drive not supported");
                 }
             }
         }
@@ -314,21 +829,37 @@ public class FocusActivity extends BaseActivity implements SurfaceHolder.Callbac
 
     private void abortShooting()
     {
-        m_waitingForFocus = false;
-        m_handler.removeCallbacks(m_checkFocusRunnable);
         m_handler.removeCallbacks(m_countDownRunnable);
-        m_focusQueue = null;
+        m_handler.removeCallbacks(m_intervalTickRunnable);
+        m_countdown = 0;
+        m_intervalometer.stop();
+        m_engine.abort();
+        resumeLiveView();
     }
 
     private void setState(State state)
     {
         m_state = state;
+        if(m_state != State.config) {
+            // The sequence uses the drive calibration of the focal length it starts at
+            checkZoom();
+        }
         if(m_state == State.config) {
         } else if(m_state == State.shoot) {
             SettingSaver.save(m_shootSettings);
-            initFocusQueue();
             m_countdown = COUNTDOWN_TICKS;
             m_handler.postDelayed(m_countDownRunnable, COUNTDOWN_DELAY_MS);
+        } else if(m_state == State.calibrate) {
+            m_engine.startCalibration();
+        } else if(m_state == State.autorange) {
+            m_seekingNearEnd = true;
+            m_engine.startRangeSweep(false, FocusDriveController.MAX_SPEED);
+        } else if(m_state == State.prune) {
+            m_probeSampler.start(m_camera.getNormalCamera());
+            if(!m_engine.startProbe(m_shootSettings.focusPoints)) {
+                m_probeSampler.stop();
+                m_state = State.config;
+            }
         }
         updateDisplay();
     }
@@ -336,13 +867,76 @@ public class FocusActivity extends BaseActivity implements SurfaceHolder.Callbac
     @Override
     protected boolean onUpperDialChanged(int value)
     {
-        if(m_state == State.config) {
+        if(m_state == State.config && m_settingsLoaded) {
             if(m_selectedControl == SelectedControl.SetExposureBracket) {
                 if(value < 0) {
                     m_shootSettings.exposureBracket = Math.max(m_shootSettings.exposureBracket - 1, 0);
                 } else {
                     m_shootSettings.exposureBracket = Math.min(9, m_shootSettings.exposureBracket + 1);
                 }
+            } else if(m_selectedControl == SelectedControl.SetShotOrder) {
+                ShootSettings.ShotOrder[] allShotOrders = ShootSettings.ShotOrder.values();
+                int shotOrderIndex = m_shootSettings.shotOrder.ordinal() + (value < 0 ? allShotOrders.length - 1 : 1);
+                m_shootSettings.shotOrder = allShotOrders[shotOrderIndex % allShotOrders.length];
+            } else if(m_selectedControl == SelectedControl.SetFocusTolerance) {
+                if(value < 0) {
+                    m_shootSettings.focusTolerance = Math.max(m_shootSettings.focusTolerance - 1, 0);
+                } else {
+                    m_shootSettings.focusTolerance = Math.min(MAX_FOCUS_TOLERANCE, m_shootSettings.focusTolerance + 1);
+                }
+                m_engine.setSettings(m_shootSettings);
+            } else if(m_selectedControl == SelectedControl.SetOneWayApproach) {
+                m_shootSettings.oneWayApproach = !m_shootSettings.oneWayApproach;
+            } else if(m_selectedControl == SelectedControl.SetNativeBracket) {
+                m_shootSettings.nativeBracket = !m_shootSettings.nativeBracket;
+            } else if(m_selectedControl == SelectedControl.SetPipelined) {
+                m_shootSettings.pipelined = !m_shootSettings.pipelined;
+            } else if(m_selectedControl == SelectedControl.SetHeadlessShoot) {
+                m_shootSettings.headlessShoot = !m_shootSettings.headlessShoot;
+            } else if(m_selectedControl == SelectedControl.SelectPreset) {
+                List<String> presets = m_library.names;
+                if(!presets.isEmpty()) {
+                    int presetIndex = presets.indexOf(m_library.current) + (value < 0 ? presets.size() - 1 : 1);
+                    // Keep edits to the preset we're leaving
+                    SettingSaver.save(m_shootSettings);
+                    m_shootSettings = SettingSaver.selectPreset(presets.get(presetIndex % presets.size()));
+                    m_library = SettingSaver.getLibrary();
+                    m_engine.setSettings(m_shootSettings);
+                }
+            } else if(m_selectedControl == SelectedControl.SetInterval) {
+                int step = 0;
+                while(step < INTERVAL_STEPS_S.length - 1 && INTERVAL_STEPS_S[step] < m_shootSettings.intervalSeconds) {
+                    step++;
+                }
+                step = value < 0 ? Math.max(step - 1, 0) : Math.min(step + 1, INTERVAL_STEPS_S.length - 1);
+                m_shootSettings.intervalSeconds = INTERVAL_STEPS_S[step];
+            } else if(m_selectedControl == SelectedControl.SetPruneThreshold) {
+                if(value < 0) {
+                    m_shootSettings.pruneThreshold = Math.max(m_shootSettings.pruneThreshold - 1, 0);
+                } else {
+                    m_shootSettings.pruneThreshold = Math.min(MAX_PRUNE_THRESHOLD, m_shootSettings.pruneThreshold + 1);
+                }
+            } else if(m_selectedControl == SelectedControl.SetDofOverlap) {
+                if(value < 0) {
+                    m_shootSettings.dofOverlap = Math.max(m_shootSettings.dofOverlap - DOF_OVERLAP_STEP, 0);
+                } else {
+                    m_shootSettings.dofOverlap = Math.min(MAX_DOF_OVERLAP, m_shootSettings.dofOverlap + DOF_OVERLAP_STEP);
+                }
+            } else if(m_selectedControl == SelectedControl.SetMinFocusDistance) {
+                if(m_lens != null) {
+                    if(value < 0) {
+                        m_lens.setMinFocusDistance(Math.max(m_lens.getMinFocusDistance() - MIN_FOCUS_DISTANCE_STEP, MIN_FOCUS_DISTANCE_STEP));
+                    } else {
+                        m_lens.setMinFocusDistance(Math.min(MAX_MIN_FOCUS_DISTANCE, m_lens.getMinFocusDistance() + MIN_FOCUS_DISTANCE_STEP));
+                    }
+                }
+            } else if(m_selectedControl == SelectedControl.SetFocusDistance) {
+                // About 10% per click
+                if(value < 0) {
+                    m_anchorDistance = Math.max(MIN_FOCUS_DISTANCE_STEP, m_anchorDistance * 10 / 11);
+                } else {
+                    m_anchorDistance = Math.min(MAX_ANCHOR_DISTANCE, Math.max(m_anchorDistance + 1, m_anchorDistance * 11 / 10));
+                }
             }
         }
         updateDisplay();
@@ -388,15 +982,50 @@ public class FocusActivity extends BaseActivity implements SurfaceHolder.Callbac
     @Override
     protected boolean onEnterKeyDown()
     {
-        if(m_state == State.config) {
+        if(m_state == State.config && m_settingsLoaded) {
             if(m_selectedControl == SelectedControl.AddFocusPoint) {
-                m_shootSettings.focusPoints.add(m_curFocus);
+                m_shootSettings.focusPoints.add(m_engine.getCurrentFocus());
             } else if(m_selectedControl == SelectedControl.RemoveFocusPoint && m_shootSettings.focusPoints.size() > 0) {
-                m_shootSettings.focusPoints.remove(m_shootSettings.focusPoints.size() - 1);
+                // Points are kept sorted, remove the one the lens is closest to
+                m_shootSettings.focusPoints.remove(m_shootSettings.focusPoints.nearest(m_engine.getCurrentFocus()));
+            } else if(m_selectedControl == SelectedControl.SavePreset) {
+                SettingSaver.savePreset(m_library.nextName, m_shootSettings);
+                m_library = SettingSaver.getLibrary();
+            } else if(m_selectedControl == SelectedControl.MarkNear) {
+                m_shootSettings.planNear = m_engine.getCurrentFocus();
+            } else if(m_selectedControl == SelectedControl.MarkFar) {
+                m_shootSettings.planFar = m_engine.getCurrentFocus();
+            } else if(m_selectedControl == SelectedControl.SetFocusDistance) {
+                if(m_lens != null) {
+                    if(m_driver.getMaxFocusPosition() > 0) {
+                        m_lens.setMaxPosition(m_driver.getMaxFocusPosition());
+                    }
+                    if(m_lens.addDistanceAnchor(m_engine.getCurrentFocus(), m_anchorDistance)) {
+                        saveLens();
+                    } else {
+                        Logger.info("Distance anchor rejected: "+m_anchorDistance+" mm at "+m_engine.getCurrentFocus());
+                    }
+                }
+            } else if(m_selectedControl == SelectedControl.PlanFocusPoints) {
+                planFocusPoints();
+            } else if(m_selectedControl == SelectedControl.ResumeSequence) {
+                if(m_resumeJournal != null && m_resumeJournal.matches(m_shootSettings)) {
+                    setState(State.shoot);
+                }
             } else if(m_selectedControl == SelectedControl.Shoot) {
+                m_resumeJournal = null;
                 setState(State.shoot);
+            } else if(m_selectedControl == SelectedControl.CalibrateFocusDrive) {
+                setState(State.calibrate);
+            } else if(m_selectedControl == SelectedControl.AutoRange) {
+                setState(State.autorange);
+            } else if(m_selectedControl == SelectedControl.PrunePoints) {
+                // One preview frame is kept per point
+                if(m_shootSettings.focusPoints.size() > 1 && m_shootSettings.focusPoints.size() <= FocusPointPlanner.MAX_POINTS) {
+                    setState(State.prune);
+                }
             }
-        } else if(m_state == State.shoot) {
+        } else if(m_state == State.shoot || m_state == State.calibrate || m_state == State.autorange || m_state == State.prune) {
             abortShooting();
             setState(State.config);
         }
@@ -411,22 +1040,62 @@ public class FocusActivity extends BaseActivity implements SurfaceHolder.Callbac
         return true;
     }
 
+    @Override
+    protected boolean onLensAttached()
+    {
+        m_events.post(EventBus.LENS_ATTACHED);
+        return super.onLensAttached();
+    }
+
+    @Override
+    protected boolean onLensDetached()
+    {
+        m_events.post(EventBus.LENS_DETACHED);
+        return super.onLensDetached();
+    }
+
+    @Override
+    public void onDisplayChanged(String device)
+    {
+        super.onDisplayChanged(device);
+        m_events.post(EventBus.DISPLAY_CHANGED);
+    }
+
     @Override
     protected void onPause()
     {
         super.onPause();
 
         abortShooting();
-        setFocusMode(CameraEx.ParametersModifier.AUTO_FOCUS_MODE_AF_S);
-        setExposureCompensation(0);
+        m_handler.removeCallbacks(m_renderRunnable);
+        m_displayDirty = false;
+        saveLens();
+        final CameraCommands commands = m_driver.getCommands();
+        commands.setFocusMode(CameraEx.ParametersModifier.AUTO_FOCUS_MODE_AF_S);
+        commands.setExposureCompensation(0);
+        commands.apply();
 
         m_surfaceHolder.removeCallback(this);
         m_autoReviewControl.setPictureReviewTime(m_pictureReviewTime);
         m_camera.setAutoPictureReviewControl(null);
         m_autoReviewControl = null;
         m_camera.getNormalCamera().stopPreview();
+        m_events.unsubscribeAll(this);
+        m_events.unsubscribeAll(m_eventLogger);
+        m_driver.release();
+        m_driver = null;
+        m_engine = null;
+        m_intervalometer = null;
+        m_rangeSampler = null;
+        m_probeSampler = null;
         m_camera.release();
         m_camera = null;
+
+        if (m_settingsLoaded)
+            SettingSaver.save(m_shootSettings);
+        SettingSaver.flush();
+        LensCalibrationStore.flush();
+        Logger.flush();
     }
 
     @Override
@@ -0,0 +1,40 @@
+package com.obsidium.focusbracket;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.obsidium.focusbracket.core.EventLoop;
+
+public class HandlerEventLoop implements EventLoop
+{
+    private final Handler m_handler;
+
+    public HandlerEventLoop(Handler handler)
+    {
+        m_handler = handler;
+    }
+
+    @Override
+    public long now()
+    {
+        return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delayMs)
+    {
+        m_handler.postDelayed(runnable, delayMs);
+    }
+
+    @Override
+    public void postAtTime(Runnable runnable, long time)
+    {
+        m_handler.postAtTime(runnable, time);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable runnable)
+    {
+        m_handler.removeCallbacks(runnable);
+    }
+}
@@ -0,0 +1,249 @@
+package com.obsidium.focusbracket;
+
+import android.os.Environment;
+
+import com.obsidium.focusbracket.core.ShootSettings;
+import com.obsidium.focusbracket.core.ShotJournal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+/*
+    Keeps the shot journal of the running sequence in ULTRABRK/JOURNAL.BIN. Shutter callbacks only copy their
+    record into a preallocated queue; a background thread wakes up for each one and writes it through to the
+    file, and syncs the file to the card every SYNC_RECORDS records. Opening, closing and deleting the journal
+    write out the queue and sync first.
+
+    What a crash can still lose: if the app dies, the records still queued, normally only the shot whose callback
+    just ran, since the writer runs well within the next focus drive; if the camera loses power, also up to
+    SYNC_RECORDS - 1 written records the card hadn't been synced with. Either way those shots are taken again
+    on resume.
+ */
+public class JournalSaver {
+
+    private static final int QUEUE_SIZE = 256;
+    private static final int SYNC_RECORDS = 8;
+
+    private static final Object s_queueLock = new Object();
+    private static final int[] s_focus = new int[QUEUE_SIZE];
+    private static final int[] s_exposure = new int[QUEUE_SIZE];
+    private static final long[] s_time = new long[QUEUE_SIZE];
+    private static final int[] s_result = new int[QUEUE_SIZE];
+    private static int s_head;
+    private static int s_count;
+    private static int s_dropped;
+    private static Thread s_writerThread;
+
+    // Only touched while holding s_writeLock
+    private static final Object s_writeLock = new Object();
+    private static FileOutputStream s_file;
+    private static DataOutputStream s_out;
+    // Records written since the last sync
+    private static int s_unsynced;
+
+    public static File getFile() {
+        return new File(Environment.getExternalStorageDirectory(), "ULTRABRK/JOURNAL.BIN");
+    }
+
+    /*
+        Starts a new journal for a sequence of plannedShots shots
+     */
+    public static void begin(ShootSettings settings, int plannedShots) {
+        synchronized (s_writeLock) {
+            close();
+            try {
+                getFile().getParentFile().mkdirs();
+                s_file = new FileOutputStream(getFile(), false);
+                s_out = new DataOutputStream(new BufferedOutputStream(s_file));
+                new ShotJournal(ShotJournal.signature(settings), plannedShots).writeHeader(s_out);
+                s_out.flush();
+                s_file.getFD().sync();
+            } catch (Exception e) {
+                Logger.error("Opening shot journal failed: " + e);
+                close();
+            }
+        }
+    }
+
+    /*
+        Continues appending to the existing journal, dropping a partial record left by a crash
+     */
+    public static void resume(ShotJournal journal) {
+        synchronized (s_writeLock) {
+            close();
+            try {
+                RandomAccessFile file = new RandomAccessFile(getFile(), "rw");
+                file.setLength(journal.getByteLength());
+                file.close();
+                s_file = new FileOutputStream(getFile(), true);
+                s_out = new DataOutputStream(new BufferedOutputStream(s_file));
+            } catch (Exception e) {
+                Logger.error("Opening shot journal failed: " + e);
+            }
+        }
+    }
+
+    /*
+        Queues a record for the writer thread. Doesn't allocate or touch the card.
+     */
+    public static void append(int focus, int exposure, int result) {
+        synchronized (s_queueLock) {
+            if(s_writerThread == null) {
+                startWriterThread();
+            }
+            if(s_count == QUEUE_SIZE) {
+                ++s_dropped;
+                return;
+            }
+            int tail = (s_head + s_count++) % QUEUE_SIZE;
+            s_focus[tail] = focus;
+            s_exposure[tail] = exposure;
+            s_time[tail] = System.currentTimeMillis();
+            s_result[tail] = result;
+            s_queueLock.notify();
+        }
+    }
+
+    private static void startWriterThread() {
+        s_writerThread = new Thread("JournalSaver") {
+            @Override
+            public void run() {
+                while(true) {
+                    synchronized (s_queueLock) {
+                        try {
+                            while(s_count == 0) {
+                                s_queueLock.wait();
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    drain();
+                }
+            }
+        };
+        s_writerThread.setDaemon(true);
+        s_writerThread.start();
+    }
+
+    /*
+        Writes the queued records to the open journal, or discards them if none is open
+     */
+    private static void drain() {
+        synchronized (s_writeLock) {
+            int dropped;
+            synchronized (s_queueLock) {
+                dropped = s_dropped;
+                s_dropped = 0;
+            }
+            if(dropped > 0) {
+                Logger.error(dropped + " shot journal records dropped");
+            }
+            while(true) {
+                int focus, exposure, result;
+                long time;
+                synchronized (s_queueLock) {
+                    if(s_count == 0) {
+                        break;
+                    }
+                    focus = s_focus[s_head];
+                    exposure = s_exposure[s_head];
+                    time = s_time[s_head];
+                    result = s_result[s_head];
+                    s_head = (s_head + 1) % QUEUE_SIZE;
+                    --s_count;
+                }
+                if(s_out == null) {
+                    continue;
+                }
+                try {
+                    ShotJournal.writeRecord(s_out, focus, exposure, time, result);
+                    ++s_unsynced;
+                } catch (Exception e) {
+                    Logger.error("Writing shot journal failed: " + e);
+                    closeStream();
+                }
+            }
+            if(s_out == null) {
+                return;
+            }
+            try {
+                s_out.flush();
+                if(s_unsynced >= SYNC_RECORDS) {
+                    s_file.getFD().sync();
+                    s_unsynced = 0;
+                }
+            } catch (Exception e) {
+                Logger.error("Writing shot journal failed: " + e);
+                closeStream();
+            }
+        }
+    }
+
+    // Must be called with s_writeLock held
+    private static void closeStream() {
+        if(s_out == null) {
+            return;
+        }
+        try {
+            s_out.flush();
+            s_file.getFD().sync();
+        } catch (Exception e) {
+            Logger.error("Writing shot journal failed: " + e);
+        }
+        try {
+            s_out.close();
+        } catch (Exception e) {}
+        s_out = null;
+        s_file = null;
+        s_unsynced = 0;
+    }
+
+    /*
+        Writes out the queued records and closes the journal
+     */
+    public static void close() {
+        synchronized (s_writeLock) {
+            drain();
+            closeStream();
+        }
+    }
+
+    /*
+        Sequence completed, nothing to resume
+     */
+    public static void delete() {
+        synchronized (s_writeLock) {
+            close();
+            getFile().delete();
+        }
+    }
+
+    /*
+        Returns the journal of an interrupted sequence, null if there is none
+     */
+    public static ShotJournal load() {
+        File file = getFile();
+        if(!file.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                ShotJournal journal = ShotJournal.read(in);
+                return journal != null && !journal.isFinished() ? journal : null;
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            Logger.error("Reading shot journal failed: " + e);
+            return null;
+        }
+    }
+}
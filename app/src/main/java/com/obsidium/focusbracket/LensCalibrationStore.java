@@ -0,0 +1,217 @@
+package com.obsidium.focusbracket;
+
+import android.os.Environment;
+import android.os.Handler;
+
+import com.obsidium.focusbracket.core.FocusDistanceModel;
+import com.obsidium.focusbracket.core.FocusDriveController;
+import com.obsidium.focusbracket.core.LensCalibration;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.HashMap;
+
+/*
+    Persists a LensCalibration per lens key. The file is read once, by loadAsync() on the writer thread, and
+    calibrations are kept in memory, so switching lenses or focal lengths doesn't touch the card. Saves are written
+    by a BackgroundWriter to DRIVECAL.TMP, which then replaces DRIVECAL.TXT, so a crash mid-write can't lose the
+    other lenses.
+ */
+public class LensCalibrationStore {
+
+    public interface LoadListener {
+        void onLensCalibrationsLoaded();
+    }
+
+    private static JSONObject s_all;
+    private static final HashMap<String, LensCalibration> s_cache = new HashMap<String, LensCalibration>();
+    private static BackgroundWriter s_writer;
+
+    public static File getFile() {
+        return new File(Environment.getExternalStorageDirectory(), "ULTRABRK/DRIVECAL.TXT");
+    }
+
+    private static File getTempFile() {
+        return new File(Environment.getExternalStorageDirectory(), "ULTRABRK/DRIVECAL.TMP");
+    }
+
+    /*
+        Must be called with the class lock held
+     */
+    private static BackgroundWriter getWriter() {
+        if(s_writer == null) {
+            s_writer = new BackgroundWriter("LensCalibrationStore", getFile(), getTempFile());
+        }
+        return s_writer;
+    }
+
+    private static JSONObject readFile() {
+        JSONObject all = new JSONObject();
+        try {
+            File calibrationFile = getFile();
+            if(!calibrationFile.exists()) {
+                // Interrupted while replacing the file
+                calibrationFile = getTempFile();
+            }
+            if(calibrationFile.exists()) {
+                BufferedReader reader = new BufferedReader(new FileReader(calibrationFile));
+                StringBuilder builder = new StringBuilder();
+                String line = reader.readLine();
+                while(line != null) {
+                    builder.append(line);
+                    line = reader.readLine();
+                }
+                reader.close();
+                all = new JSONObject(builder.toString());
+            }
+        } catch (Exception e) {
+            Logger.error("Loading lens calibration failed: " + e);
+        }
+        return all;
+    }
+
+    /*
+        Must be called with the class lock held
+     */
+    private static JSONObject readAll() {
+        if(s_all == null) {
+            s_all = readFile();
+        }
+        return s_all;
+    }
+
+    private static JSONObject toJson(LensCalibration calibration) throws Exception {
+        JSONArray steps = new JSONArray();
+        for(int speed = FocusDriveController.MIN_SPEED; speed <= FocusDriveController.MAX_SPEED; speed++) {
+            steps.put((double)calibration.getStepsPerDrive(speed));
+        }
+        JSONObject obj = new JSONObject();
+        obj.put("stepsPerDrive", steps);
+        obj.put("backlash", (double)calibration.getBacklash());
+        obj.put("maxPosition", calibration.getMaxPosition());
+        obj.put("minFocusDistance", calibration.getMinFocusDistance());
+        if(calibration.hasMeasuredDistanceModel()) {
+            FocusDistanceModel model = calibration.getDistanceModel();
+            JSONArray positions = new JSONArray();
+            JSONArray diopters = new JSONArray();
+            for(int i = 0; i < model.getAnchorCount(); i++) {
+                positions.put(model.getAnchorPosition(i));
+                diopters.put((double)model.getAnchorDiopters(i));
+            }
+            JSONObject anchors = new JSONObject();
+            anchors.put("positions", positions);
+            anchors.put("diopters", diopters);
+            obj.put("distanceModel", anchors);
+        }
+        return obj;
+    }
+
+    private static LensCalibration fromJson(JSONObject obj) {
+        LensCalibration calibration = new LensCalibration();
+        if(obj == null) {
+            return calibration;
+        }
+        JSONArray steps = obj.optJSONArray("stepsPerDrive");
+        if(steps != null) {
+            for(int i = 0; i < steps.length() && FocusDriveController.MIN_SPEED + i <= FocusDriveController.MAX_SPEED; i++) {
+                calibration.setStepsPerDrive(FocusDriveController.MIN_SPEED + i, (float)steps.optDouble(i, 0));
+            }
+        }
+        calibration.setBacklash((float)obj.optDouble("backlash", 0));
+        calibration.setMaxPosition(obj.optInt("maxPosition", 0));
+        calibration.setMinFocusDistance(obj.optInt("minFocusDistance", LensCalibration.DEFAULT_MIN_FOCUS_DISTANCE_MM));
+        JSONObject anchors = obj.optJSONObject("distanceModel");
+        if(anchors != null) {
+            JSONArray positions = anchors.optJSONArray("positions");
+            JSONArray diopters = anchors.optJSONArray("diopters");
+            if(positions != null && diopters != null && positions.length() == diopters.length()) {
+                int[] p = new int[positions.length()];
+                float[] d = new float[diopters.length()];
+                for(int i = 0; i < p.length; i++) {
+                    p[i] = positions.optInt(i, 0);
+                    d[i] = (float)diopters.optDouble(i, 0);
+                }
+                try {
+                    calibration.setDistanceModel(new FocusDistanceModel(p, d));
+                } catch (IllegalArgumentException e) {
+                    Logger.error("Ignoring invalid distance model: " + e.getMessage());
+                }
+            }
+        }
+        return calibration;
+    }
+
+    /*
+        Reads the file on the writer thread if it hasn't been yet, then notifies the listener on the handler's thread
+     */
+    public static synchronized void loadAsync(final Handler handler, final LoadListener listener) {
+        getWriter().post(new Runnable() {
+            @Override
+            public void run() {
+                boolean loaded;
+                synchronized (LensCalibrationStore.class) {
+                    loaded = s_all != null;
+                }
+                if(!loaded) {
+                    // Read without the lock, so the UI thread never waits for the card
+                    JSONObject all = readFile();
+                    synchronized (LensCalibrationStore.class) {
+                        if(s_all == null) {
+                            s_all = all;
+                        }
+                    }
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onLensCalibrationsLoaded();
+                    }
+                });
+            }
+        });
+    }
+
+    /*
+        Calibration for the given lens, empty if the lens hasn't been seen before, or null if the file hasn't
+        been read yet. Never touches the card, so it is safe to call on the UI thread.
+     */
+    public static synchronized LensCalibration getLoaded(String lensKey) {
+        if(s_all == null) {
+            return null;
+        }
+        LensCalibration calibration = s_cache.get(lensKey);
+        if(calibration == null) {
+            calibration = fromJson(readAll().optJSONObject(lensKey));
+            s_cache.put(lensKey, calibration);
+        }
+        return calibration;
+    }
+
+    public static synchronized void save(String lensKey, LensCalibration calibration) {
+        s_cache.put(lensKey, calibration);
+        try {
+            JSONObject all = readAll();
+            all.put(lensKey, toJson(calibration));
+            getWriter().write(all.toString(2));
+        } catch (Exception e) {
+            Logger.error("Serializing lens calibration failed: " + e);
+        }
+    }
+
+    /*
+        Writes a pending save now, on the calling thread
+     */
+    public static void flush() {
+        BackgroundWriter writer;
+        synchronized (LensCalibrationStore.class) {
+            writer = s_writer;
+        }
+        if(writer != null) {
+            writer.flush();
+        }
+    }
+}
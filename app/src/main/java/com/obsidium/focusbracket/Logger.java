@@ -1,29 +1,179 @@
 package com.obsidium.focusbracket;
 
 import android.os.Environment;
+import android.os.SystemClock;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 
+/*
+    Log lines are copied into a preallocated ring buffer and written to the card in batches by a background
+    thread, so logging never blocks the UI thread on card I/O. flush() writes everything still buffered
+    synchronously, for shutdown; fatal() also bypasses the buffer, so a crash report is never dropped.
+ */
 public class Logger
 {
+    // Guard debug logging with "if (Logger.DEBUG)" so release builds drop the call and its string building
+    public static final boolean DEBUG = BuildConfig.DEBUG;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FLUSH_INTERVAL_MS = 250;
+
+    private static final Object s_bufferLock = new Object();
+    private static final char[] s_buffer = new char[BUFFER_SIZE];
+    private static int s_start;
+    private static int s_length;
+    private static int s_dropped;
+
+    // Only touched while holding s_writeLock
+    private static final Object s_writeLock = new Object();
+    private static final char[] s_batch = new char[BUFFER_SIZE];
+    private static Writer s_writer;
+
+    private static Thread s_writerThread;
+
     public static File getFile() {
         return new File(Environment.getExternalStorageDirectory(), "ULTRABRK/LOG.TXT");
     }
 
-    protected static void log(String msg) {
-        try {
+    private static void put(char c) {
+        s_buffer[(s_start + s_length) % BUFFER_SIZE] = c;
+        ++s_length;
+    }
+
+    private static void put(String s) {
+        final int len = s.length();
+        final int end = (s_start + s_length) % BUFFER_SIZE;
+        final int firstPart = Math.min(len, BUFFER_SIZE - end);
+        s.getChars(0, firstPart, s_buffer, end);
+        if (firstPart < len)
+            s.getChars(firstPart, len, s_buffer, 0);
+        s_length += len;
+    }
+
+    private static void put(long value) {
+        long divisor = 1;
+        while (divisor <= value / 10)
+            divisor *= 10;
+        for (; divisor > 0; divisor /= 10)
+            put((char)('0' + (value / divisor) % 10));
+    }
+
+    private static void startWriterThread() {
+        s_writerThread = new Thread("Logger") {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (s_bufferLock) {
+                        try {
+                            s_bufferLock.wait(FLUSH_INTERVAL_MS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    flush();
+                }
+            }
+        };
+        s_writerThread.setDaemon(true);
+        s_writerThread.setPriority(Thread.MIN_PRIORITY);
+        s_writerThread.start();
+    }
+
+    protected static void log(String type, String msg) {
+        final long time = SystemClock.uptimeMillis();
+        synchronized (s_bufferLock) {
+            if (s_writerThread == null)
+                startWriterThread();
+            // Timestamp, type, two spaces, two brackets and a newline
+            final int len = 20 + type.length() + msg.length() + 5;
+            if (len > BUFFER_SIZE - s_length) {
+                ++s_dropped;
+                s_bufferLock.notify();
+                return;
+            }
+            put(time);
+            put(' ');
+            put('[');
+            put(type);
+            put(']');
+            put(' ');
+            put(msg);
+            put('\n');
+            if (s_length > BUFFER_SIZE / 2)
+                s_bufferLock.notify();
+        }
+    }
+
+    /*
+        Writes all buffered lines to the card. Safe to call from any thread.
+     */
+    public static void flush() {
+        synchronized (s_writeLock) {
+            final int length;
+            final int dropped;
+            synchronized (s_bufferLock) {
+                length = s_length;
+                dropped = s_dropped;
+                final int firstPart = Math.min(length, BUFFER_SIZE - s_start);
+                System.arraycopy(s_buffer, s_start, s_batch, 0, firstPart);
+                System.arraycopy(s_buffer, 0, s_batch, firstPart, length - firstPart);
+                s_start = (s_start + length) % BUFFER_SIZE;
+                s_length = 0;
+                s_dropped = 0;
+            }
+            if (length == 0 && dropped == 0)
+                return;
+
+            try {
+                openWriter();
+                s_writer.write(s_batch, 0, length);
+                if (dropped > 0)
+                    s_writer.write("[ERROR] " + dropped + " log lines dropped\n");
+                s_writer.flush();
+            } catch (IOException e) {
+                closeWriter();
+            }
+        }
+    }
+
+    /*
+        Writes everything buffered and then msg straight to the card, however long it is. For crash handlers.
+     */
+    public static void fatal(String msg) {
+        final long time = SystemClock.uptimeMillis();
+        synchronized (s_writeLock) {
+            flush();
+            try {
+                openWriter();
+                s_writer.write(time + " [ERROR] " + msg + "\n");
+                s_writer.flush();
+            } catch (IOException e) {
+                closeWriter();
+            }
+        }
+    }
+
+    // Must be called with s_writeLock held
+    private static void openWriter() throws IOException {
+        if (s_writer == null) {
             getFile().getParentFile().mkdirs();
-            BufferedWriter writer = new BufferedWriter(new FileWriter(getFile(), true));
-            writer.append(msg);
-            writer.newLine();
-            writer.close();
+            s_writer = new FileWriter(getFile(), true);
+        }
+    }
+
+    // Must be called with s_writeLock held
+    private static void closeWriter() {
+        try {
+            if (s_writer != null)
+                s_writer.close();
         } catch (IOException e) {}
+        s_writer = null;
     }
-    protected static void log(String type, String msg) { log("[" + type + "] " + msg); }
 
+    public static void debug(String msg) { log("DEBUG", msg); }
     public static void info(String msg) { log("INFO", msg); }
     public static void error(String msg) { log("ERROR", msg); }
 }
@@ -0,0 +1,123 @@
+package com.obsidium.focusbracket;
+
+import android.hardware.Camera;
+
+import com.obsidium.focusbracket.core.SequenceEngine;
+import com.obsidium.focusbracket.core.SharpnessSeries;
+
+/*
+    Measures live view frames into a SharpnessSeries, either every frame while the engine sweeps the focus or
+    one settled frame per capture() request. Frames come back in one preallocated buffer which is handed
+    straight back to the camera, so sampling allocates nothing per frame. Callbacks arrive on the thread that
+    opened the camera, the same one the engine runs on.
+ */
+public class PreviewSampler implements Camera.PreviewCallback
+{
+    // Frames to let pass after the lens stopped, live view lags behind the lens by a few frames
+    private static final int SETTLE_FRAMES = 3;
+
+    private final SequenceEngine    m_engine;
+    private final SharpnessSeries   m_series;
+    private final boolean           m_continuous;
+    private Camera                  m_camera;
+    private byte[]                  m_buffer;
+    private int                     m_width;
+    private int                     m_height;
+
+    // Single frame mode: position the requested frame is tagged with (-1 = none), frames left to skip and
+    // what to run once it has been measured
+    private int                     m_capturePosition = -1;
+    private int                     m_skipFrames;
+    private Runnable                m_onCaptured;
+
+    /*
+        continuous: measure every frame, tagged with the engine's current focus position
+     */
+    public PreviewSampler(SequenceEngine engine, SharpnessSeries series, boolean continuous)
+    {
+        m_engine = engine;
+        m_series = series;
+        m_continuous = continuous;
+    }
+
+    public SharpnessSeries getSeries()
+    {
+        return m_series;
+    }
+
+    public boolean isSampling()
+    {
+        return m_camera != null;
+    }
+
+    /*
+        Starts receiving frames, dropping those of an earlier run
+     */
+    public void start(Camera camera)
+    {
+        stop();
+        final Camera.Size size = camera.getParameters().getPreviewSize();
+        m_width = size.width;
+        m_height = size.height;
+        // NV21: full resolution Y plane followed by interleaved V/U at quarter resolution
+        final int length = m_width * m_height * 3 / 2;
+        if (m_buffer == null || m_buffer.length != length)
+            m_buffer = new byte[length];
+        m_series.reset();
+        m_camera = camera;
+        camera.setPreviewCallbackWithBuffer(this);
+        camera.addCallbackBuffer(m_buffer);
+    }
+
+    public void stop()
+    {
+        m_capturePosition = -1;
+        m_onCaptured = null;
+        if (m_camera == null)
+            return;
+        m_camera.setPreviewCallbackWithBuffer(null);
+        m_camera = null;
+    }
+
+    /*
+        Single frame mode: measures the next settled frame as taken at position, then runs onCaptured
+     */
+    public void capture(int position, Runnable onCaptured)
+    {
+        m_capturePosition = position;
+        m_skipFrames = SETTLE_FRAMES;
+        m_onCaptured = onCaptured;
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera)
+    {
+        if (m_camera == null || data == null)
+            return;
+        if (m_continuous)
+        {
+            // The frame shows the lens somewhere between the last reported position and the next one
+            if (!m_series.add(m_engine.getCurrentFocus(), data, m_width, m_height))
+            {
+                stop();
+                return;
+            }
+        }
+        else if (m_capturePosition >= 0 && --m_skipFrames < 0)
+        {
+            final boolean added = m_series.add(m_capturePosition, data, m_width, m_height);
+            final Runnable onCaptured = m_onCaptured;
+            m_capturePosition = -1;
+            m_onCaptured = null;
+            if (!added)
+            {
+                stop();
+                return;
+            }
+            camera.addCallbackBuffer(data);
+            onCaptured.run();
+            return;
+        }
+        camera.addCallbackBuffer(data);
+    }
+}
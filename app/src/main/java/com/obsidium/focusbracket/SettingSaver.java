@@ -1,86 +1,327 @@
 package com.obsidium.focusbracket;
 
 import android.os.Environment;
+import android.os.Handler;
+
+import com.obsidium.focusbracket.core.FocusPointSet;
+import com.obsidium.focusbracket.core.ShootSettings;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 
+/*
+    Library of named ShootSettings presets. The file is read once, by loadAsync() on the writer thread or on first
+    use, and kept in memory; saves update the cache and are written by a BackgroundWriter to SETTINGS.TMP, which
+    then replaces SETTINGS.TXT. The UI thread reads preset names from a Library snapshot, which never waits for
+    the file or the lock.
+ */
 public class SettingSaver {
 
+    public interface LoadListener {
+        void onSettingsLoaded(ShootSettings settings, Library library);
+    }
+
+    /*
+        Preset names as of the last change to the library
+     */
+    public static class Library {
+        public final String current;
+        public final List<String> names;
+        // Name for a new preset that doesn't clash with existing ones
+        public final String nextName;
+
+        Library(String current, List<String> names, String nextName) {
+            this.current = current;
+            this.names = Collections.unmodifiableList(names);
+            this.nextName = nextName;
+        }
+    }
+
+    public static final String DEFAULT_PRESET = "Default";
+
+    private static final Object s_lock = new Object();
+    // Preset name -> serialized settings
+    private static LinkedHashMap<String, JSONObject> s_presets;
+    private static String s_current = DEFAULT_PRESET;
+    private static BackgroundWriter s_writer;
+    // Rebuilt with s_lock held whenever the library changes, read without it
+    private static volatile Library s_library;
+
     public static File getFile() {
         return new File(Environment.getExternalStorageDirectory(), "ULTRABRK/SETTINGS.TXT");
     }
 
-    private static JSONArray toJsonIntArray(List<Integer> ints) {
+    private static File getTempFile() {
+        return new File(Environment.getExternalStorageDirectory(), "ULTRABRK/SETTINGS.TMP");
+    }
+
+    private static JSONArray toJsonIntArray(FocusPointSet points) {
         JSONArray arr = new JSONArray();
-        for(Integer item: ints) {
-            arr.put(item);
+        for(int i=0; i<points.size(); i++) {
+            arr.put(points.get(i));
         }
         return arr;
     }
 
-    private static ArrayList<Integer> fromJsonIntArray(JSONArray arr) {
-        ArrayList<Integer> ints = new ArrayList<Integer>();
+    /*
+        Older versions kept points in recording order and allowed duplicates, both go away here
+     */
+    private static FocusPointSet fromJsonIntArray(JSONArray arr) {
+        FocusPointSet points = new FocusPointSet();
         for(int i=0; i<arr.length(); i++) {
-            ints.add(arr.optInt(i, -1));
+            points.add(arr.optInt(i, -1));
         }
-        return ints;
+        return points;
     }
 
-    public static void save(ShootSettings shootSettings) {
-        try {
-            JSONObject obj = new JSONObject();
+    private static JSONObject toJson(ShootSettings shootSettings) throws Exception {
+        JSONObject obj = new JSONObject();
+
+        obj.put("exposureBracket", shootSettings.exposureBracket);
+        obj.put("focusPoints", toJsonIntArray(shootSettings.focusPoints));
+        obj.put("shotOrder", shootSettings.shotOrder.name());
+        obj.put("focusTolerance", shootSettings.focusTolerance);
+        obj.put("nativeBracket", shootSettings.nativeBracket);
+        obj.put("pipelined", shootSettings.pipelined);
+        obj.put("oneWayApproach", shootSettings.oneWayApproach);
+        obj.put("headlessShoot", shootSettings.headlessShoot);
+        obj.put("planNear", shootSettings.planNear);
+        obj.put("planFar", shootSettings.planFar);
+        obj.put("dofOverlap", shootSettings.dofOverlap);
+        obj.put("pruneThreshold", shootSettings.pruneThreshold);
+        obj.put("intervalSeconds", shootSettings.intervalSeconds);
+        return obj;
+    }
+
+    private static ShootSettings fromJson(JSONObject obj) {
+        ShootSettings settings = new ShootSettings();
+        if(obj == null) {
+            return settings;
+        }
 
-            obj.put("exposureBracket", shootSettings.exposureBracket);
-            obj.put("focusPoints", toJsonIntArray(shootSettings.focusPoints));
+        settings.exposureBracket = obj.optInt("exposureBracket", settings.exposureBracket);
+        settings.focusTolerance = obj.optInt("focusTolerance", settings.focusTolerance);
+        settings.nativeBracket = obj.optBoolean("nativeBracket", settings.nativeBracket);
+        settings.pipelined = obj.optBoolean("pipelined", settings.pipelined);
+        settings.oneWayApproach = obj.optBoolean("oneWayApproach", settings.oneWayApproach);
+        settings.headlessShoot = obj.optBoolean("headlessShoot", settings.headlessShoot);
+        settings.planNear = obj.optInt("planNear", settings.planNear);
+        settings.planFar = obj.optInt("planFar", settings.planFar);
+        settings.dofOverlap = obj.optInt("dofOverlap", settings.dofOverlap);
+        settings.pruneThreshold = obj.optInt("pruneThreshold", settings.pruneThreshold);
+        settings.intervalSeconds = obj.optInt("intervalSeconds", settings.intervalSeconds);
 
-            String settingString = obj.toString(2);
+        JSONArray focusPointsArray = obj.optJSONArray("focusPoints");
+        if(focusPointsArray != null) {
+            settings.focusPoints = fromJsonIntArray(focusPointsArray);
+        }
 
-            getFile().getParentFile().mkdirs();
-            BufferedWriter writer = new BufferedWriter(new FileWriter(getFile(), false));
-            writer.write(settingString);
-            writer.flush();
-            writer.close();
-        } catch (Exception e) {}
+        // Orders that no longer exist, such as the old "recorded" far to near order, fall back to the default sweep
+        try {
+            settings.shotOrder = ShootSettings.ShotOrder.valueOf(obj.optString("shotOrder", settings.shotOrder.name()));
+        } catch (IllegalArgumentException e) {}
+        return settings;
     }
 
-    public static ShootSettings load() {
-        ShootSettings settings = new ShootSettings();
+    private static String readFile(File file) throws Exception {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        StringBuilder builder = new StringBuilder();
+        String line = reader.readLine();
+        while(line != null) {
+            builder.append(line);
+            line = reader.readLine();
+        }
+        reader.close();
+        return builder.toString();
+    }
 
+    /*
+        Reads the library on first use. Must be called with s_lock held.
+     */
+    private static void ensureLoaded() {
+        if(s_presets != null) {
+            return;
+        }
+        s_presets = new LinkedHashMap<String, JSONObject>();
         try {
             File settingFile = getFile();
+            if(!settingFile.exists()) {
+                // Interrupted while replacing the file
+                settingFile = getTempFile();
+            }
             if(settingFile.exists()) {
-                BufferedReader reader = new BufferedReader(new FileReader(settingFile));
-                StringBuilder builder = new StringBuilder();
-                String line = reader.readLine();
-                while(line != null) {
-                    builder.append(line);
-                    line = reader.readLine();
+                JSONObject obj = new JSONObject(readFile(settingFile));
+                JSONObject presets = obj.optJSONObject("presets");
+                if(presets == null) {
+                    // Single settings object written by older versions
+                    s_presets.put(DEFAULT_PRESET, obj);
+                } else {
+                    Iterator<?> names = presets.keys();
+                    while(names.hasNext()) {
+                        String name = (String)names.next();
+                        JSONObject preset = presets.optJSONObject(name);
+                        if(preset != null) {
+                            s_presets.put(name, preset);
+                        }
+                    }
+                    s_current = obj.optString("current", s_current);
                 }
-                reader.close();
+            }
+        } catch (Exception e) {
+            Logger.error("Loading settings failed: " + e);
+        }
+        if(!s_presets.containsKey(s_current)) {
+            s_current = s_presets.isEmpty() ? DEFAULT_PRESET : s_presets.keySet().iterator().next();
+        }
+        updateLibrary();
+    }
+
+    /*
+        Must be called with s_lock held
+     */
+    private static void updateLibrary() {
+        String nextName = null;
+        for(int i = 1; nextName == null; i++) {
+            String name = "Preset " + i;
+            if(!s_presets.containsKey(name)) {
+                nextName = name;
+            }
+        }
+        s_library = new Library(s_current, new ArrayList<String>(s_presets.keySet()), nextName);
+    }
 
-                String settingString = builder.toString();
-                JSONObject obj = new JSONObject(settingString);
+    /*
+        Must be called with s_lock held
+     */
+    private static BackgroundWriter getWriter() {
+        if(s_writer == null) {
+            s_writer = new BackgroundWriter("SettingSaver", getFile(), getTempFile());
+        }
+        return s_writer;
+    }
 
-                settings.exposureBracket = obj.optInt("exposureBracket", settings.exposureBracket);
+    /*
+        Serializes the cache and hands it to the writer thread. Must be called with s_lock held.
+     */
+    private static void scheduleWrite() {
+        try {
+            JSONObject presets = new JSONObject();
+            for(String name: s_presets.keySet()) {
+                presets.put(name, s_presets.get(name));
+            }
+            JSONObject obj = new JSONObject();
+            obj.put("current", s_current);
+            obj.put("presets", presets);
+            getWriter().write(obj.toString());
+        } catch (Exception e) {
+            Logger.error("Serializing settings failed: " + e);
+        }
+    }
+
+    /*
+        Writes pending changes now, on the calling thread
+     */
+    public static void flush() {
+        BackgroundWriter writer;
+        synchronized (s_lock) {
+            writer = s_writer;
+        }
+        if(writer != null) {
+            writer.flush();
+        }
+    }
+
+    /*
+        Stores the settings as the current preset
+     */
+    public static void save(ShootSettings shootSettings) {
+        synchronized (s_lock) {
+            ensureLoaded();
+            savePreset(s_current, shootSettings);
+        }
+    }
 
-                JSONArray focusPointsArray = obj.optJSONArray("focusPoints");
-                if(focusPointsArray != null) {
-                    settings.focusPoints = fromJsonIntArray(focusPointsArray);
+    /*
+        Reads the library off the calling thread if it hasn't been yet, then passes the current preset's settings
+        and the library snapshot to the listener on the handler's thread
+     */
+    public static void loadAsync(final Handler handler, final LoadListener listener) {
+        synchronized (s_lock) {
+            getWriter().post(new Runnable() {
+                @Override
+                public void run() {
+                    final ShootSettings settings = load();
+                    final Library library = s_library;
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onSettingsLoaded(settings, library);
+                        }
+                    });
                 }
+            });
+        }
+    }
+
+    /*
+        Returns the settings of the current preset
+     */
+    public static ShootSettings load() {
+        synchronized (s_lock) {
+            ensureLoaded();
+            return fromJson(s_presets.get(s_current));
+        }
+    }
+
+    public static void savePreset(String name, ShootSettings shootSettings) {
+        synchronized (s_lock) {
+            ensureLoaded();
+            try {
+                s_presets.put(name, toJson(shootSettings));
+            } catch (Exception e) {
+                Logger.error("Serializing settings failed: " + e);
+                return;
             }
-        } catch (Exception e) {}
+            s_current = name;
+            updateLibrary();
+            scheduleWrite();
+        }
+    }
 
-        return settings;
+    /*
+        Makes the named preset current and returns its settings, null if there is no such preset
+     */
+    public static ShootSettings selectPreset(String name) {
+        synchronized (s_lock) {
+            ensureLoaded();
+            JSONObject obj = s_presets.get(name);
+            if(obj == null) {
+                return null;
+            }
+            if(!name.equals(s_current)) {
+                s_current = name;
+                updateLibrary();
+                scheduleWrite();
+            }
+            return fromJson(obj);
+        }
+    }
+
+    /*
+        Preset names as of the last change, null until the library has been read. Doesn't lock or read the file,
+        so it is safe to call while rendering.
+     */
+    public static Library getLibrary() {
+        return s_library;
     }
 
 }
@@ -1,8 +0,0 @@
-package com.obsidium.focusbracket;
-
-import java.util.ArrayList;
-
-public class ShootSettings {
-    public ArrayList<Integer> focusPoints = new ArrayList<Integer>();
-    public int exposureBracket = 9;
-}
@@ -0,0 +1,118 @@
+package com.obsidium.focusbracket;
+
+import android.view.View;
+import android.widget.TextView;
+
+/*
+    Text of one TextView, formatted into reused char buffers. TextView.setText(char[], int, int) keeps a
+    reference to the array, so the buffer on screen is never written to: text is built in the other buffer
+    and swapped in only if it differs. Nothing is allocated once the buffers exist.
+ */
+public class StatusText
+{
+    private static final int CAPACITY = 2048;
+
+    private final TextView  m_view;
+    private char[]          m_shown = new char[CAPACITY];
+    private int             m_shownLength = -1;
+    private char[]          m_next = new char[CAPACITY];
+    private int             m_length;
+    private int             m_visibility = -1;
+
+    public StatusText(TextView view)
+    {
+        m_view = view;
+    }
+
+    public StatusText clear()
+    {
+        m_length = 0;
+        return this;
+    }
+
+    public StatusText append(char c)
+    {
+        if (m_length < CAPACITY)
+            m_next[m_length++] = c;
+        return this;
+    }
+
+    public StatusText append(String s)
+    {
+        final int count = Math.min(s.length(), CAPACITY - m_length);
+        s.getChars(0, count, m_next, m_length);
+        m_length += count;
+        return this;
+    }
+
+    public StatusText append(int value)
+    {
+        if (value < 0)
+        {
+            append('-');
+            // Negating MIN_VALUE overflows, print it digit by digit from the negative side
+            return appendDigits(value);
+        }
+        return appendDigits(-value);
+    }
+
+    // value <= 0
+    private StatusText appendDigits(int value)
+    {
+        if (value <= -10)
+            appendDigits(value / 10);
+        return append((char)('0' - value % 10));
+    }
+
+    /*
+        Appends value / 10 with one decimal
+     */
+    public StatusText appendTenths(int value)
+    {
+        if (value < 0)
+        {
+            append('-');
+            value = -value;
+        }
+        return append(value / 10).append('.').append((char)('0' + value % 10));
+    }
+
+    /*
+        Makes the view visible and puts the text on screen if it changed
+     */
+    public void show()
+    {
+        setVisibility(View.VISIBLE);
+        if (m_length == m_shownLength && regionEquals())
+            return;
+        final char[] shown = m_next;
+        m_next = m_shown;
+        m_shown = shown;
+        m_shownLength = m_length;
+        m_view.setText(m_shown, 0, m_shownLength);
+    }
+
+    public void hide()
+    {
+        setVisibility(View.GONE);
+    }
+
+    private boolean regionEquals()
+    {
+        for (int i = 0; i < m_length; ++i)
+        {
+            if (m_next[i] != m_shown[i])
+                return false;
+        }
+        return true;
+    }
+
+    private void setVisibility(int visibility)
+    {
+        if (visibility != m_visibility)
+        {
+            m_visibility = visibility;
+            m_view.setVisibility(visibility);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.obsidium.focusbracket;
+
+import android.os.Environment;
+
+import com.obsidium.focusbracket.core.ShotTrace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+
+/*
+    Writes sequence traces to ULTRABRK/TRACE/SEQnnnnn.CSV in the background
+ */
+public class TraceSaver {
+
+    public static File getDirectory() {
+        return new File(Environment.getExternalStorageDirectory(), "ULTRABRK/TRACE");
+    }
+
+    private static File nextFile() {
+        File dir = getDirectory();
+        dir.mkdirs();
+        for(int i = 1; i < 100000; i++) {
+            File file = new File(dir, String.format("SEQ%05d.CSV", i));
+            if(!file.exists()) {
+                return file;
+            }
+        }
+        return new File(dir, "SEQ00000.CSV");
+    }
+
+    public static void saveAsync(final ShotTrace trace) {
+        final ShotTrace snapshot = trace.copy();
+        Thread thread = new Thread("TraceSaver") {
+            @Override
+            public void run() {
+                try {
+                    File file = nextFile();
+                    BufferedWriter writer = new BufferedWriter(new FileWriter(file, false));
+                    snapshot.writeCsv(writer);
+                    writer.flush();
+                    writer.close();
+                    Logger.info("Trace saved to " + file.getName());
+                } catch (Exception e) {
+                    Logger.error("Saving trace failed: " + e);
+                }
+            }
+        };
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+}
@@ -0,0 +1,104 @@
+package com.obsidium.focusbracket.core.bench;
+
+import com.obsidium.focusbracket.core.ShootSettings;
+import com.obsidium.focusbracket.core.sim.LogReplay;
+import com.obsidium.focusbracket.core.sim.Simulation;
+import com.obsidium.focusbracket.core.sim.SimulationConfig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+    CPU time and allocations of the sequencing engine against the simulated camera. Run with "-prof gc" for
+    allocations; simulated seconds per stack are printed at the end of each trial. Set the system property
+    focusbracket.replay to a LOG.TXT to use timing recorded on a real camera.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SequenceBenchmark
+{
+    private static final int SHOTS_PER_STACK = 100;
+
+    @Param({ "60", "120" })
+    public int points;
+
+    @Param({ "0", "3" })
+    public int exposureBracket;
+
+    @Param({ "sweep", "monotonic" })
+    public String shotOrder;
+
+    @Param({ "false", "true" })
+    public boolean pipelined;
+
+    private Simulation m_simulation;
+    private ShootSettings m_settings;
+    private ShootSettings m_fixedSettings;
+    private Simulation.Result m_lastResult;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        final SimulationConfig config = new SimulationConfig();
+        final String replay = System.getProperty("focusbracket.replay");
+        if (replay != null)
+            LogReplay.read(replay).apply(config);
+
+        m_simulation = new Simulation(config);
+        m_simulation.calibrate();
+
+        m_settings = Simulation.createStack(config, points, exposureBracket);
+        m_settings.shotOrder = ShootSettings.ShotOrder.valueOf(shotOrder);
+        m_settings.pipelined = pipelined;
+
+        m_fixedSettings = Simulation.createStack(config, SHOTS_PER_STACK, 0);
+        m_fixedSettings.shotOrder = m_settings.shotOrder;
+        m_fixedSettings.pipelined = pipelined;
+    }
+
+    @TearDown(Level.Trial)
+    public void report()
+    {
+        if (m_lastResult != null)
+            System.out.println("\nSimulated stack: " + m_simulation.run(m_settings));
+    }
+
+    /*
+        One whole stack per operation
+     */
+    @Benchmark
+    public long stack()
+    {
+        m_lastResult = m_simulation.run(m_settings);
+        return m_lastResult.durationMs;
+    }
+
+    /*
+        Same as stack() on a fixed single-exposure stack, normalized to one shot per operation
+     */
+    @Benchmark
+    @OperationsPerInvocation(SHOTS_PER_STACK)
+    public long shot()
+    {
+        return m_simulation.run(m_fixedSettings).durationMs;
+    }
+}
@@ -0,0 +1,39 @@
+package com.obsidium.focusbracket.core;
+
+/*
+    Everything SequenceEngine needs from a camera. Parameter setters only record the change, which is sent
+    to the camera by applyParameters().
+ */
+public interface CameraDriver
+{
+    interface Listener
+    {
+        void onFocusChanged(int position);
+
+        // result: 0 = success, 1 = canceled, 2 = error
+        void onShutter(int result);
+    }
+
+    void setListener(Listener listener);
+
+    void startFocusDrive(boolean far, int speed);
+
+    void setExposureCompensation(int steps);
+
+    void setSingleDrive();
+
+    // Continuous exposure bracket, period in tenths of an EV
+    void setExposureBracket(int period);
+
+    boolean hasPendingParameters();
+
+    // Returns false if the camera rejected the pending changes
+    boolean applyParameters();
+
+    // Time the last applyParameters() took, in microseconds
+    long getLastApplyMicros();
+
+    void takePicture();
+
+    void cancelTakePicture();
+}
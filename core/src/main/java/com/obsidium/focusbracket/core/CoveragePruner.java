@@ -0,0 +1,112 @@
+package com.obsidium.focusbracket.core;
+
+/*
+    Drops focus points whose in-focus area is already covered by other points. Works on one preview frame per
+    planned point: a point covers a tile if it is nearly as sharp there as the sharpest point. The point adding
+    the least, counted in tiles only it covers, is removed first and coverage is recounted after each removal,
+    so two points covering the same tiles never both go. Removal stops before the tiles left uncovered by all
+    removals together would exceed the given share of the subject.
+ */
+public class CoveragePruner
+{
+    // A point covers a tile if its score there is at least this percentage of the tile's best score
+    private static final int COVERAGE_PERCENT = 70;
+
+    private int m_subjectTiles;
+    private int m_uncoveredTiles;
+    private int m_pruned;
+
+    /*
+        series: one frame per focus point. Returns the points worth shooting; all of them if no tile is sharp
+        in any frame, since then there is nothing to go by.
+     */
+    public FocusPointSet prune(SharpnessSeries series, int minNewCoveragePercent)
+    {
+        final int frames = series.getFrameCount();
+        final int tiles = series.getTileCount();
+        final boolean[] covers = new boolean[frames * tiles];
+        final int[] coverCount = new int[tiles];
+        final boolean[] removed = new boolean[frames];
+
+        m_subjectTiles = 0;
+        m_uncoveredTiles = 0;
+        m_pruned = 0;
+        for (int tile = 0; tile < tiles; ++tile)
+        {
+            int best = 0;
+            for (int frame = 0; frame < frames; ++frame)
+                best = Math.max(best, series.getScore(frame, tile));
+            // Tiles never in focus (sky, blank background) don't count for anything
+            if (best < RangeFinder.MIN_PEAK_SCORE)
+                continue;
+            ++m_subjectTiles;
+            for (int frame = 0; frame < frames; ++frame)
+            {
+                if (series.getScore(frame, tile) * 100L >= (long)best * COVERAGE_PERCENT)
+                {
+                    covers[frame * tiles + tile] = true;
+                    ++coverCount[tile];
+                }
+            }
+        }
+
+        int remaining = frames;
+        while (m_subjectTiles > 0 && remaining > 1)
+        {
+            int weakest = -1;
+            int weakestUnique = Integer.MAX_VALUE;
+            for (int frame = 0; frame < frames; ++frame)
+            {
+                if (removed[frame])
+                    continue;
+                int unique = 0;
+                for (int tile = 0; tile < tiles; ++tile)
+                {
+                    if (covers[frame * tiles + tile] && coverCount[tile] == 1)
+                        ++unique;
+                }
+                if (unique < weakestUnique)
+                {
+                    weakest = frame;
+                    weakestUnique = unique;
+                }
+            }
+            if ((m_uncoveredTiles + weakestUnique) * 100L > (long)minNewCoveragePercent * m_subjectTiles)
+                break;
+            removed[weakest] = true;
+            m_uncoveredTiles += weakestUnique;
+            --remaining;
+            ++m_pruned;
+            for (int tile = 0; tile < tiles; ++tile)
+            {
+                if (covers[weakest * tiles + tile])
+                    --coverCount[tile];
+            }
+        }
+
+        final FocusPointSet kept = new FocusPointSet();
+        for (int frame = 0; frame < frames; ++frame)
+        {
+            if (!removed[frame])
+                kept.add(series.getPosition(frame));
+        }
+        return kept;
+    }
+
+    // Results of the last prune()
+    public int getSubjectTiles()
+    {
+        return m_subjectTiles;
+    }
+
+    // Subject tiles no kept point covers
+    public int getUncoveredTiles()
+    {
+        return m_uncoveredTiles;
+    }
+
+    public int getPrunedCount()
+    {
+        return m_pruned;
+    }
+}
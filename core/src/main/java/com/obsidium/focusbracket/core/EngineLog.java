@@ -0,0 +1,7 @@
+package com.obsidium.focusbracket.core;
+
+public interface EngineLog
+{
+    void info(String msg);
+    void error(String msg);
+}
@@ -0,0 +1,225 @@
+package com.obsidium.focusbracket.core;
+
+/*
+    Camera, lens and display events with primitive payloads. Listeners are kept in copy-on-write arrays per
+    event, so posting walks a snapshot that listeners may change while it runs, and neither posting nor
+    dispatching allocates.
+
+    A listener subscribed with an EventLoop gets its events on that loop instead of the posting thread,
+    through a preallocated queue per subscription: a slow consumer such as the UI or a trace then costs the
+    camera callback one copy of the payload. When that queue is full the oldest event is dropped.
+ */
+public class EventBus
+{
+    public interface Listener
+    {
+        void onEvent(int event, int arg1, int arg2);
+    }
+
+    public static final int FOCUS_CHANGED = 0;      // arg1: focus position, arg2: end of the focus range
+    public static final int SHUTTER = 1;            // arg1: 0 = success, 1 = canceled, 2 = error
+    public static final int LENS_ATTACHED = 2;
+    public static final int LENS_DETACHED = 3;
+    public static final int DISPLAY_CHANGED = 4;
+    public static final int EVENT_COUNT = 5;
+
+    // Events a subscription on a loop holds before it drops the oldest
+    private static final int QUEUE_CAPACITY = 64;
+
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+
+    private static class Subscription implements Runnable
+    {
+        final Listener listener;
+        // null to dispatch on the posting thread
+        final EventLoop loop;
+        final int[] events;
+        final int[] args1;
+        final int[] args2;
+        int head;
+        int count;
+        boolean scheduled;
+        int dropped;
+
+        Subscription(Listener listener, EventLoop loop)
+        {
+            this.listener = listener;
+            this.loop = loop;
+            final int capacity = loop != null ? QUEUE_CAPACITY : 0;
+            events = new int[capacity];
+            args1 = new int[capacity];
+            args2 = new int[capacity];
+        }
+
+        void deliver(int event, int arg1, int arg2)
+        {
+            if (loop == null)
+            {
+                listener.onEvent(event, arg1, arg2);
+                return;
+            }
+            final boolean schedule;
+            synchronized (this)
+            {
+                if (count == QUEUE_CAPACITY)
+                {
+                    head = (head + 1) % QUEUE_CAPACITY;
+                    --count;
+                    ++dropped;
+                }
+                final int tail = (head + count++) % QUEUE_CAPACITY;
+                events[tail] = event;
+                args1[tail] = arg1;
+                args2[tail] = arg2;
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            if (schedule)
+                loop.postDelayed(this, 0);
+        }
+
+        // Drains the queue on the loop
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                final int event, arg1, arg2;
+                synchronized (this)
+                {
+                    if (count == 0)
+                    {
+                        scheduled = false;
+                        return;
+                    }
+                    event = events[head];
+                    arg1 = args1[head];
+                    arg2 = args2[head];
+                    head = (head + 1) % QUEUE_CAPACITY;
+                    --count;
+                }
+                listener.onEvent(event, arg1, arg2);
+            }
+        }
+
+        synchronized void cancel()
+        {
+            count = 0;
+        }
+    }
+
+    // Replaced as a whole on every change, indexed by event
+    private volatile Subscription[][] m_subscriptions;
+
+    public EventBus()
+    {
+        final Subscription[][] subscriptions = new Subscription[EVENT_COUNT][];
+        for (int event = 0; event < EVENT_COUNT; ++event)
+            subscriptions[event] = NO_SUBSCRIPTIONS;
+        m_subscriptions = subscriptions;
+    }
+
+    /*
+        Listeners of an event are called in the order they subscribed
+     */
+    public void subscribe(int event, Listener listener)
+    {
+        subscribe(event, listener, null);
+    }
+
+    public synchronized void subscribe(int event, Listener listener, EventLoop loop)
+    {
+        checkEvent(event);
+        final Subscription[][] subscriptions = m_subscriptions.clone();
+        final Subscription[] previous = subscriptions[event];
+        final Subscription[] current = new Subscription[previous.length + 1];
+        System.arraycopy(previous, 0, current, 0, previous.length);
+        current[previous.length] = new Subscription(listener, loop);
+        subscriptions[event] = current;
+        m_subscriptions = subscriptions;
+    }
+
+    /*
+        Removes every subscription of the listener to the event; queued events are not delivered any more
+     */
+    public synchronized void unsubscribe(int event, Listener listener)
+    {
+        checkEvent(event);
+        final Subscription[] previous = m_subscriptions[event];
+        int kept = 0;
+        for (Subscription subscription : previous)
+        {
+            if (subscription.listener != listener)
+                ++kept;
+        }
+        if (kept == previous.length)
+            return;
+        final Subscription[] current = kept > 0 ? new Subscription[kept] : NO_SUBSCRIPTIONS;
+        int i = 0;
+        for (Subscription subscription : previous)
+        {
+            if (subscription.listener != listener)
+                current[i++] = subscription;
+            else if (subscription.loop != null)
+            {
+                subscription.cancel();
+                subscription.loop.removeCallbacks(subscription);
+            }
+        }
+        final Subscription[][] subscriptions = m_subscriptions.clone();
+        subscriptions[event] = current;
+        m_subscriptions = subscriptions;
+    }
+
+    public void unsubscribeAll(Listener listener)
+    {
+        for (int event = 0; event < EVENT_COUNT; ++event)
+            unsubscribe(event, listener);
+    }
+
+    public void post(int event)
+    {
+        post(event, 0, 0);
+    }
+
+    public void post(int event, int arg1, int arg2)
+    {
+        checkEvent(event);
+        for (Subscription subscription : m_subscriptions[event])
+            subscription.deliver(event, arg1, arg2);
+    }
+
+    public boolean hasListeners(int event)
+    {
+        checkEvent(event);
+        return m_subscriptions[event].length > 0;
+    }
+
+    /*
+        Events dropped by full queues of the listener's subscriptions since they were made
+     */
+    public int getDroppedCount(Listener listener)
+    {
+        int dropped = 0;
+        for (Subscription[] subscriptions : m_subscriptions)
+        {
+            for (Subscription subscription : subscriptions)
+            {
+                if (subscription.listener == listener)
+                {
+                    synchronized (subscription)
+                    {
+                        dropped += subscription.dropped;
+                    }
+                }
+            }
+        }
+        return dropped;
+    }
+
+    private static void checkEvent(int event)
+    {
+        if (event < 0 || event >= EVENT_COUNT)
+            throw new IllegalArgumentException("Unknown event " + event);
+    }
+}
@@ -0,0 +1,16 @@
+package com.obsidium.focusbracket.core;
+
+/*
+    Monotonic clock and delayed callbacks on the thread the engine runs on
+ */
+public interface EventLoop
+{
+    long now();
+
+    void postDelayed(Runnable runnable, long delayMs);
+
+    // Runs at an absolute time on the now() clock, so repeated callbacks don't drift by their own latency
+    void postAtTime(Runnable runnable, long time);
+
+    void removeCallbacks(Runnable runnable);
+}
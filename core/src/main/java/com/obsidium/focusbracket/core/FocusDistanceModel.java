@@ -0,0 +1,94 @@
+package com.obsidium.focusbracket.core;
+
+/*
+    Maps focus motor positions to focus distances. Distances are kept in diopters (1/m, 0 = infinity) and
+    interpolated linearly between anchor positions, which is close to how the focus group of most lenses moves.
+ */
+public class FocusDistanceModel
+{
+    private final int[]     m_positions;
+    private final float[]   m_diopters;
+
+    /*
+        positions must be ascending, diopters the matching focus distances in 1/m
+     */
+    public FocusDistanceModel(int[] positions, float[] diopters)
+    {
+        if (positions.length < 2 || positions.length != diopters.length)
+            throw new IllegalArgumentException("At least two matching anchors needed");
+        for (int i = 1; i < positions.length; ++i)
+        {
+            if (positions[i] <= positions[i - 1])
+                throw new IllegalArgumentException("Anchor positions must be ascending");
+            if ((diopters[i] - diopters[i - 1]) * (diopters[1] - diopters[0]) <= 0)
+                throw new IllegalArgumentException("Anchor distances must be monotonic");
+        }
+        m_positions = positions.clone();
+        m_diopters = diopters.clone();
+    }
+
+    /*
+        Two anchors: the minimum focus distance at nearPosition and infinity at infinityPosition
+     */
+    public static FocusDistanceModel linear(int nearPosition, float minFocusDistanceMm, int infinityPosition)
+    {
+        final float nearDiopters = 1000.0f / minFocusDistanceMm;
+        if (nearPosition < infinityPosition)
+            return new FocusDistanceModel(new int[] { nearPosition, infinityPosition }, new float[] { nearDiopters, 0 });
+        else
+            return new FocusDistanceModel(new int[] { infinityPosition, nearPosition }, new float[] { 0, nearDiopters });
+    }
+
+    public int getAnchorCount()
+    {
+        return m_positions.length;
+    }
+
+    public int getAnchorPosition(int index)
+    {
+        return m_positions[index];
+    }
+
+    public float getAnchorDiopters(int index)
+    {
+        return m_diopters[index];
+    }
+
+    public int getMinPosition()
+    {
+        return m_positions[0];
+    }
+
+    public int getMaxPosition()
+    {
+        return m_positions[m_positions.length - 1];
+    }
+
+    /*
+        Focus distance in diopters at a motor position, extrapolated past the outer anchors but never beyond infinity
+     */
+    public float toDiopters(float position)
+    {
+        int i = 1;
+        while (i < m_positions.length - 1 && position > m_positions[i])
+            ++i;
+        final float t = (position - m_positions[i - 1]) / (m_positions[i] - m_positions[i - 1]);
+        return Math.max(0, m_diopters[i - 1] + t * (m_diopters[i] - m_diopters[i - 1]));
+    }
+
+    public float toPosition(float diopters)
+    {
+        final boolean ascending = m_diopters[1] > m_diopters[0];
+        int i = 1;
+        while (i < m_diopters.length - 1 && (ascending ? diopters > m_diopters[i] : diopters < m_diopters[i]))
+            ++i;
+        final float t = (diopters - m_diopters[i - 1]) / (m_diopters[i] - m_diopters[i - 1]);
+        return m_positions[i - 1] + t * (m_positions[i] - m_positions[i - 1]);
+    }
+
+    public float toDistanceMm(int position)
+    {
+        final float diopters = toDiopters(position);
+        return diopters > 0 ? 1000.0f / diopters : Float.POSITIVE_INFINITY;
+    }
+}
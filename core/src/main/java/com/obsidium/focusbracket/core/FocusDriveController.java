@@ -0,0 +1,348 @@
+package com.obsidium.focusbracket.core;
+
+/*
+    Picks focus drive speeds from the measured distance each speed moves the lens per one-shot drive,
+    so a target is reached in as few drives as possible without overshooting. Steps are learned from every
+    drive, so the calibration sweep only speeds this up: speeds not measured yet are estimated from the
+    measured ones around them until they have been driven.
+
+    Also learns the gear backlash: after the motor reverses, its first drives spend part of their travel
+    taking up slack before the lens follows, which shows as drives moving the lens less than their speed
+    normally does. Those drives feed the backlash estimate instead of the step averages.
+ */
+public class FocusDriveController
+{
+    public static final int MIN_SPEED = 1;
+    public static final int MAX_SPEED = 7;
+
+    // Weight of a new observation in the running average of a speed's step
+    private static final float LEARNING_RATE = 0.2f;
+
+    // Focus position units moved per drive, indexed by speed. 0 = not measured yet.
+    private final float[] m_stepsPerDrive = new float[MAX_SPEED + 1];
+    // Running mean absolute deviation of each speed's step from its average
+    private final float[] m_stepDeviation = new float[MAX_SPEED + 1];
+    private int m_tolerance;
+
+    // Position units of motor travel lost on a reversal, 0 = not measured yet
+    private float m_backlash;
+    // Direction of the last drive: 1 far, -1 near, 0 unknown
+    private int m_direction;
+    // After a reversal, until the lens moves again: travel the slack swallowed so far
+    private boolean m_takingUpSlack;
+    private float m_slackLoss;
+
+    public void setTolerance(int tolerance)
+    {
+        m_tolerance = Math.max(0, tolerance);
+    }
+
+    public int getTolerance()
+    {
+        return m_tolerance;
+    }
+
+    public boolean isOnTarget(int currentFocus, int targetFocus)
+    {
+        return Math.abs(targetFocus - currentFocus) <= m_tolerance;
+    }
+
+    public boolean isCalibrated()
+    {
+        return getMeasuredSpeeds() == MAX_SPEED - MIN_SPEED + 1;
+    }
+
+    // Speeds whose step has been measured, by calibration or by driving them
+    public int getMeasuredSpeeds()
+    {
+        int measured = 0;
+        for (int speed = MIN_SPEED; speed <= MAX_SPEED; ++speed)
+        {
+            if (m_stepsPerDrive[speed] > 0)
+                ++measured;
+        }
+        return measured;
+    }
+
+    public float getStepsPerDrive(int speed)
+    {
+        return m_stepsPerDrive[speed];
+    }
+
+    public void setStepsPerDrive(int speed, float steps)
+    {
+        m_stepsPerDrive[speed] = Math.max(0, steps);
+    }
+
+    /*
+        Step of a speed that hasn't been measured, from the measured ones: interpolated between the nearest
+        slower and faster ones, or scaled down from the slowest. 0 if no faster speed has been measured, a
+        step larger than any seen so far can't be guessed safely.
+     */
+    private float getExpectedStep(int speed)
+    {
+        if (m_stepsPerDrive[speed] > 0)
+            return m_stepsPerDrive[speed];
+        int faster = speed + 1;
+        while (faster <= MAX_SPEED && m_stepsPerDrive[faster] <= 0)
+            ++faster;
+        if (faster > MAX_SPEED)
+            return 0;
+        int slower = speed - 1;
+        while (slower >= MIN_SPEED && m_stepsPerDrive[slower] <= 0)
+            --slower;
+        if (slower < MIN_SPEED)
+            return m_stepsPerDrive[faster] * speed / faster;
+        return m_stepsPerDrive[slower] + (m_stepsPerDrive[faster] - m_stepsPerDrive[slower]) * (speed - slower) / (faster - slower);
+    }
+
+    public float getBacklash()
+    {
+        return m_backlash;
+    }
+
+    public void setBacklash(float backlash)
+    {
+        m_backlash = Math.max(0, backlash);
+    }
+
+    /*
+        How far behind a target a one-way approach starts: past the slack, plus one slow drive to arrive with
+     */
+    public int getApproachOffset()
+    {
+        return (int)Math.ceil(m_backlash) + Math.max(1, Math.round(m_stepsPerDrive[MIN_SPEED])) + m_tolerance;
+    }
+
+    public void reset()
+    {
+        for (int speed = MIN_SPEED; speed <= MAX_SPEED; ++speed)
+        {
+            m_stepsPerDrive[speed] = 0;
+            m_stepDeviation[speed] = 0;
+        }
+        m_backlash = 0;
+        m_direction = 0;
+        m_takingUpSlack = false;
+    }
+
+    /*
+        Speed for the next drive from currentFocus towards targetFocus: the fastest speed whose step
+        still lands inside the tolerance window, or the slowest one if every step is too large.
+     */
+    public int chooseSpeed(int currentFocus, int targetFocus)
+    {
+        return chooseSpeed(currentFocus, targetFocus, false);
+    }
+
+    /*
+        As above; a cautious choice also leaves room for a step running long by its usual deviation, for
+        approaches that must not overshoot
+     */
+    public int chooseSpeed(int currentFocus, int targetFocus, boolean cautious)
+    {
+        final int absDiff = Math.abs(targetFocus - currentFocus);
+        // Nothing measured yet: the speeds the app always used, whose steps are learned from these drives
+        if (getMeasuredSpeeds() == 0)
+            return absDiff > 4 ? 7 : 4;
+        // A drive against the last direction starts by taking up the slack
+        final int direction = targetFocus > currentFocus ? 1 : -1;
+        return chooseSpeed(absDiff, m_direction != 0 && direction != m_direction ? m_backlash : 0, cautious);
+    }
+
+    private int chooseSpeed(int absDiff, float lost, boolean cautious)
+    {
+        int bestSpeed = MIN_SPEED;
+        float bestStep = 0;
+        for (int speed = MIN_SPEED; speed <= MAX_SPEED; ++speed)
+        {
+            final float expected = getExpectedStep(speed);
+            if (expected <= 0)
+                continue;
+            final float step = expected - lost + (cautious ? m_stepDeviation[speed] : 0);
+            if (step <= absDiff + m_tolerance && step > bestStep)
+            {
+                bestSpeed = speed;
+                bestStep = step;
+            }
+        }
+        return bestSpeed;
+    }
+
+    /*
+        Number of drives chooseSpeed will need to cover the given distance, assuming the lens moves
+        exactly as measured or estimated; -1 before any speed has been measured
+     */
+    public int plannedDrives(int distance)
+    {
+        if (getMeasuredSpeeds() == 0)
+            return -1;
+        int drives = 0;
+        float remaining = Math.abs(distance);
+        while (remaining > m_tolerance)
+        {
+            final float step = getExpectedStep(chooseSpeed(Math.round(remaining), 0, false));
+            if (step <= 0)
+                break;
+            remaining = Math.abs(remaining - step);
+            if (++drives > 1000)
+                break;
+        }
+        return drives;
+    }
+
+    /*
+        Feeds back how far a drive at the given speed and direction actually moved the lens
+     */
+    public void onDriveResult(int speed, boolean far, int delta)
+    {
+        if (speed < MIN_SPEED || speed > MAX_SPEED)
+            return;
+        final float expected = m_stepsPerDrive[speed];
+        final float step = Math.abs(delta);
+        if (onDirection(far) && expected > 0)
+        {
+            m_takingUpSlack = true;
+            m_slackLoss = 0;
+        }
+        if (m_takingUpSlack)
+        {
+            // Noise makes single losses negative at times, only the average has to be positive
+            m_slackLoss += expected - step;
+            if (step > 0)
+            {
+                m_takingUpSlack = false;
+                if (m_backlash <= 0)
+                    m_backlash = Math.max(0, m_slackLoss);
+                else
+                    m_backlash = Math.max(0, m_backlash + (m_slackLoss - m_backlash) * LEARNING_RATE);
+            }
+            return;
+        }
+        if (delta == 0)
+            return;
+        if (expected <= 0)
+            m_stepsPerDrive[speed] = step;
+        else
+        {
+            m_stepDeviation[speed] += (Math.abs(step - expected) - m_stepDeviation[speed]) * LEARNING_RATE;
+            m_stepsPerDrive[speed] += (step - expected) * LEARNING_RATE;
+        }
+    }
+
+    /*
+        The motor was driven in a direction without feedback through onDriveResult (calibration, a range sweep,
+        the focus ring), which takes up the slack on that side
+     */
+    public void onDrive(boolean far)
+    {
+        onDirection(far);
+        m_takingUpSlack = false;
+    }
+
+    /*
+        Returns whether the direction is a reversal of a known previous one
+     */
+    private boolean onDirection(boolean far)
+    {
+        final int direction = far ? 1 : -1;
+        final boolean reversed = m_direction != 0 && direction != m_direction;
+        m_direction = direction;
+        return reversed;
+    }
+
+    /*
+        Characterization sweep: drives the lens a few times at every speed and records the average
+        step and its deviation. Reverses direction whenever the lens stops moving at either end of its range.
+        The drive that runs into an end stop moves the lens only part of its step, so every step is held back
+        until the next drive shows the lens kept going.
+     */
+    public class Calibration
+    {
+        private static final int SAMPLES_PER_SPEED = 4;
+
+        private int m_speed = MIN_SPEED;
+        private int m_samples;
+        private final int[] m_sampleSteps = new int[SAMPLES_PER_SPEED];
+        private boolean m_directionFar = true;
+        // The first drive after turning around loses part of its travel to the backlash
+        private boolean m_reversed;
+        // Step of the last drive, not a sample until the next one moves the lens too; 0 = none
+        private int m_pendingStep;
+        private final float[] m_measured = new float[MAX_SPEED + 1];
+        private final float[] m_deviation = new float[MAX_SPEED + 1];
+
+        public int getSpeed()
+        {
+            return m_speed;
+        }
+
+        public boolean isDirectionFar()
+        {
+            return m_directionFar;
+        }
+
+        public boolean isDone()
+        {
+            return m_speed > MAX_SPEED;
+        }
+
+        /*
+            Records a completed drive. Returns true once every speed has been measured, at which point
+            the results have been applied to the controller.
+         */
+        public boolean onDriveResult(int delta)
+        {
+            if (isDone())
+                return true;
+            if (delta == 0)
+            {
+                // Right after turning around the motor is still taking up the slack
+                if (m_reversed)
+                    return false;
+                // Hit the end of the focus range, the pending drive may have stopped short at it
+                m_pendingStep = 0;
+                m_directionFar = !m_directionFar;
+                m_reversed = true;
+                return false;
+            }
+            if (m_reversed)
+            {
+                m_reversed = false;
+                return false;
+            }
+
+            final int pendingStep = m_pendingStep;
+            m_pendingStep = Math.abs(delta);
+            if (pendingStep == 0)
+                return false;
+
+            m_sampleSteps[m_samples] = pendingStep;
+            if (++m_samples >= SAMPLES_PER_SPEED)
+            {
+                float mean = 0;
+                for (int step : m_sampleSteps)
+                    mean += step;
+                mean /= SAMPLES_PER_SPEED;
+                float deviation = 0;
+                for (int step : m_sampleSteps)
+                    deviation += Math.abs(step - mean);
+                m_measured[m_speed] = mean;
+                m_deviation[m_speed] = deviation / SAMPLES_PER_SPEED;
+                m_samples = 0;
+                // Measured at this speed, it can't be a sample of the next one
+                m_pendingStep = 0;
+                if (++m_speed > MAX_SPEED)
+                {
+                    for (int speed = MIN_SPEED; speed <= MAX_SPEED; ++speed)
+                    {
+                        setStepsPerDrive(speed, m_measured[speed]);
+                        m_stepDeviation[speed] = m_deviation[speed];
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.obsidium.focusbracket.core;
+
+/*
+    Generates the fewest focus points covering everything between a near and a far mark, each point's depth of
+    field overlapping the next one by a chosen fraction
+ */
+public class FocusPointPlanner
+{
+    // Circle of confusion for APS-C sensors
+    public static final float DEFAULT_COC_MM = 0.02f;
+    // Hard limit, in case the optics are reported wrongly
+    public static final int MAX_POINTS = 500;
+
+    private final FocusDistanceModel m_model;
+    private float   m_focalLengthMm = 50;
+    private float   m_aperture = 8;
+    private float   m_cocMm = DEFAULT_COC_MM;
+    private float   m_overlap = 0.2f;
+
+    public FocusPointPlanner(FocusDistanceModel model)
+    {
+        m_model = model;
+    }
+
+    public void setOptics(float focalLengthMm, float aperture)
+    {
+        m_focalLengthMm = focalLengthMm;
+        m_aperture = aperture;
+    }
+
+    public void setCircleOfConfusion(float cocMm)
+    {
+        m_cocMm = cocMm;
+    }
+
+    /*
+        overlap: fraction of each point's depth of field shared with the next point, 0 to 0.9
+     */
+    public void setOverlap(float overlap)
+    {
+        m_overlap = Math.max(0, Math.min(0.9f, overlap));
+    }
+
+    public float getHyperfocalMm()
+    {
+        return m_focalLengthMm * m_focalLengthMm / (m_aperture * m_cocMm) + m_focalLengthMm;
+    }
+
+    /*
+        Near/far limits of the depth of field when focused at s (all distances in mm), returned in diopters
+     */
+    private float nearLimitDiopters(float s, float h)
+    {
+        final float f = m_focalLengthMm;
+        return 1000.0f * (h + s - 2 * f) / (s * (h - f));
+    }
+
+    private float farLimitDiopters(float s, float h)
+    {
+        final float f = m_focalLengthMm;
+        return s >= h ? 0 : 1000.0f * (h - s) / (s * (h - f));
+    }
+
+    /*
+        Focus distance (mm) whose depth of field starts at nearDiopters, infinity if even that doesn't reach
+     */
+    private float focusForNearLimit(float nearDiopters, float h)
+    {
+        final float f = m_focalLengthMm;
+        final float n = 1000.0f / nearDiopters;
+        if (n >= h - f)
+            return Float.POSITIVE_INFINITY;
+        return n * (h - 2 * f) / (h - f - n);
+    }
+
+    /*
+        Focus points between the two marks
+     */
+    public FocusPointSet plan(int nearMark, int farMark)
+    {
+        final FocusPointSet points = new FocusPointSet();
+        final float h = getHyperfocalMm();
+        final float nearDiopters = Math.max(m_model.toDiopters(nearMark), m_model.toDiopters(farMark));
+        final float farDiopters = Math.min(m_model.toDiopters(nearMark), m_model.toDiopters(farMark));
+        final int minPosition = Math.min(nearMark, farMark);
+        final int maxPosition = Math.max(nearMark, farMark);
+
+        float limit = nearDiopters;
+        while (points.size() < MAX_POINTS)
+        {
+            final float s = limit > 0 ? focusForNearLimit(limit, h) : Float.POSITIVE_INFINITY;
+            final float focusDiopters = Float.isInfinite(s) ? 0 : 1000.0f / s;
+            final int position = Math.max(minPosition, Math.min(maxPosition, Math.round(m_model.toPosition(Math.max(focusDiopters, farDiopters)))));
+            points.add(position);
+
+            final float far = Float.isInfinite(s) ? 0 : farLimitDiopters(s, h);
+            if (far <= farDiopters)
+                break;
+            // Start the next depth of field inside this one
+            final float next = far + m_overlap * (nearLimitDiopters(s, h) - far);
+            if (next >= limit)
+                break;
+            limit = next;
+        }
+        return points;
+    }
+}
@@ -0,0 +1,114 @@
+package com.obsidium.focusbracket.core;
+
+import java.util.Arrays;
+
+/*
+    Focus positions to shoot, kept sorted and free of duplicates in a primitive array
+ */
+public class FocusPointSet
+{
+    private int[] m_points = new int[16];
+    private int m_size;
+
+    public int size()
+    {
+        return m_size;
+    }
+
+    public boolean isEmpty()
+    {
+        return m_size == 0;
+    }
+
+    public int get(int index)
+    {
+        if (index < 0 || index >= m_size)
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + m_size);
+        return m_points[index];
+    }
+
+    public boolean contains(int point)
+    {
+        return Arrays.binarySearch(m_points, 0, m_size, point) >= 0;
+    }
+
+    /*
+        Returns false if the point was already in the set
+     */
+    public boolean add(int point)
+    {
+        int index = Arrays.binarySearch(m_points, 0, m_size, point);
+        if (index >= 0)
+            return false;
+        index = -index - 1;
+        if (m_size == m_points.length)
+            m_points = Arrays.copyOf(m_points, m_size * 2);
+        System.arraycopy(m_points, index, m_points, index + 1, m_size - index);
+        m_points[index] = point;
+        ++m_size;
+        return true;
+    }
+
+    public boolean remove(int point)
+    {
+        final int index = Arrays.binarySearch(m_points, 0, m_size, point);
+        if (index < 0)
+            return false;
+        System.arraycopy(m_points, index + 1, m_points, index, m_size - index - 1);
+        --m_size;
+        return true;
+    }
+
+    /*
+        Point closest to the given position, ties going to the lower one. The set must not be empty.
+     */
+    public int nearest(int position)
+    {
+        int index = Arrays.binarySearch(m_points, 0, m_size, position);
+        if (index >= 0)
+            return position;
+        index = -index - 1;
+        if (index == 0)
+            return m_points[0];
+        if (index == m_size)
+            return m_points[m_size - 1];
+        final int below = m_points[index - 1];
+        final int above = m_points[index];
+        return position - below <= above - position ? below : above;
+    }
+
+    public void clear()
+    {
+        m_size = 0;
+    }
+
+    public int[] toArray()
+    {
+        return Arrays.copyOf(m_points, m_size);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hash = 1;
+        for (int i = 0; i < m_size; ++i)
+            hash = 31 * hash + m_points[i];
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        if (!(other instanceof FocusPointSet))
+            return false;
+        final FocusPointSet set = (FocusPointSet)other;
+        if (set.m_size != m_size)
+            return false;
+        for (int i = 0; i < m_size; ++i)
+        {
+            if (set.m_points[i] != m_points[i])
+                return false;
+        }
+        return true;
+    }
+}
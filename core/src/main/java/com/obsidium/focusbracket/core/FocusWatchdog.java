@@ -0,0 +1,113 @@
+package com.obsidium.focusbracket.core;
+
+import java.util.Arrays;
+
+/*
+    startOneShotFocusDrive won't always trigger the FocusDriveListener, so every drive is guarded by a
+    timeout. The timeout for each speed follows the observed callback latency instead of a fixed guess:
+    a little above the 95th percentile of the most recent samples.
+
+    No sample can be longer than the timeout that was armed for it, so a lens that became slower would be
+    re-driven before it answers, every time. A timeout therefore sets a floor of twice the learned timeout.
+    The slow callbacks then come in and raise the percentile, and the floor only decays, by an eighth, on
+    callbacks the learned timeout would have let through, so a lost callback only costs a few longer waits.
+ */
+public class FocusWatchdog
+{
+    public static final int DEFAULT_TIMEOUT_MS = 50;
+    private static final int MIN_TIMEOUT_MS = 15;
+    private static final int MAX_TIMEOUT_MS = 1000;
+    private static final int MARGIN_MS = 5;
+
+    private static final int HISTORY = 32;
+    private static final int MIN_SAMPLES = 4;
+
+    private final int[][] m_latencies = new int[FocusDriveController.MAX_SPEED + 1][HISTORY];
+    private final int[] m_sampleCount = new int[FocusDriveController.MAX_SPEED + 1];
+    // Learned from the samples
+    private final int[] m_timeouts = new int[FocusDriveController.MAX_SPEED + 1];
+    // Least timeout per speed after timeouts, 0 = none
+    private final int[] m_floors = new int[FocusDriveController.MAX_SPEED + 1];
+    private final int[] m_scratch = new int[HISTORY];
+
+    private int m_drives;
+    private int m_fired;
+
+    public FocusWatchdog()
+    {
+        Arrays.fill(m_timeouts, DEFAULT_TIMEOUT_MS);
+    }
+
+    private static boolean isValidSpeed(int speed)
+    {
+        return speed >= FocusDriveController.MIN_SPEED && speed <= FocusDriveController.MAX_SPEED;
+    }
+
+    /*
+        Called whenever a drive is started; returns the timeout to arm for it
+     */
+    public int onDriveStarted(int speed)
+    {
+        ++m_drives;
+        return getTimeout(speed);
+    }
+
+    /*
+        The listener reported back after latencyMs for a drive at the given speed
+     */
+    public void onCallback(int speed, long latencyMs)
+    {
+        if (!isValidSpeed(speed) || latencyMs < 0)
+            return;
+        final int[] samples = m_latencies[speed];
+        samples[m_sampleCount[speed] % HISTORY] = (int)Math.min(latencyMs, MAX_TIMEOUT_MS);
+        ++m_sampleCount[speed];
+        // Only callbacks the learned timeout lets through show the floor isn't needed any more
+        if (latencyMs < m_timeouts[speed])
+            m_floors[speed] -= m_floors[speed] / 8;
+        updateTimeout(speed);
+    }
+
+    /*
+        The timeout expired without a listener callback. Drives that may get no callback at all, such as ones
+        into an end stop, pass lensMustMove false and are only counted.
+     */
+    public void onTimeout(int speed, boolean lensMustMove)
+    {
+        ++m_fired;
+        if (lensMustMove && isValidSpeed(speed))
+            m_floors[speed] = Math.min(MAX_TIMEOUT_MS, 2 * m_timeouts[speed]);
+    }
+
+    private void updateTimeout(int speed)
+    {
+        final int count = Math.min(m_sampleCount[speed], HISTORY);
+        if (count < MIN_SAMPLES)
+            return;
+        System.arraycopy(m_latencies[speed], 0, m_scratch, 0, count);
+        Arrays.sort(m_scratch, 0, count);
+        final int p95 = m_scratch[Math.min(count - 1, (count * 95) / 100)];
+        m_timeouts[speed] = Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, p95 + p95 / 4 + MARGIN_MS));
+    }
+
+    public int getTimeout(int speed)
+    {
+        return isValidSpeed(speed) ? Math.max(m_timeouts[speed], m_floors[speed]) : DEFAULT_TIMEOUT_MS;
+    }
+
+    public int getDriveCount()
+    {
+        return m_drives;
+    }
+
+    public int getFireCount()
+    {
+        return m_fired;
+    }
+
+    public void resetCounters()
+    {
+        m_drives = 0;
+        m_fired = 0;
+    }
+}
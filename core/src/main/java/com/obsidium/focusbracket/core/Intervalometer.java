@@ -0,0 +1,186 @@
+package com.obsidium.focusbracket.core;
+
+/*
+    Time-lapse of stacks. Stack k is due to be finished at the absolute deadline origin + k * interval on the
+    EventLoop clock, where the origin is the end of the first stack, so callback latency and the varying
+    length of the stacks never add up over hundreds of runs. Each stack is started ahead of its deadline by
+    the longest of the recent stack durations plus a margin as wide as their spread.
+
+    A deadline is missed when its stack finishes after it, or when it passes while the previous stack is
+    still running; that stack is skipped and the next deadline on the grid is aimed for instead.
+    All methods must be called on the EventLoop's thread.
+ */
+public class Intervalometer
+{
+    public interface Listener
+    {
+        // Start stack number `stack` now, and report its end with onStackFinished()
+        void onStackDue(int stack);
+
+        // The deadline of stack number `stack` passed lateMs ago before the stack finished or could start
+        void onDeadlineMissed(int stack, long lateMs);
+    }
+
+    // Least margin ahead of the expected duration, on top of the spread of the recent durations
+    private static final long MIN_START_MARGIN_MS = 500;
+    // Durations the start time is planned from
+    private static final int HISTORY = 4;
+
+    private final EventLoop m_loop;
+    private Listener        m_listener;
+
+    private long            m_intervalMs;
+    private boolean         m_active;
+    // Stack that is running or waiting to start, numbered by its deadline
+    private int             m_stack;
+    private boolean         m_stackRunning;
+    private long            m_stackStart;
+    // Deadline of stack 0, -1 until the first stack has finished
+    private long            m_origin;
+    private long            m_nextStart;
+
+    private final long[]    m_durations = new long[HISTORY];
+    private int             m_durationCount;
+    private int             m_completed;
+    private int             m_missed;
+
+    private final Runnable  m_startRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            m_stackRunning = true;
+            m_stackStart = m_loop.now();
+            if (m_listener != null)
+                m_listener.onStackDue(m_stack);
+        }
+    };
+
+    public Intervalometer(EventLoop loop)
+    {
+        m_loop = loop;
+    }
+
+    public void setListener(Listener listener)
+    {
+        m_listener = listener;
+    }
+
+    /*
+        Starts the first stack right away and one every intervalMs after it
+     */
+    public void start(long intervalMs)
+    {
+        if (intervalMs <= 0)
+            throw new IllegalArgumentException("Interval must be positive");
+        stop();
+        m_intervalMs = intervalMs;
+        m_active = true;
+        m_stack = 0;
+        m_origin = -1;
+        m_durationCount = 0;
+        m_completed = 0;
+        m_missed = 0;
+        m_nextStart = m_loop.now();
+        m_loop.postAtTime(m_startRunnable, m_nextStart);
+    }
+
+    public void stop()
+    {
+        m_loop.removeCallbacks(m_startRunnable);
+        m_active = false;
+        m_stackRunning = false;
+    }
+
+    public boolean isActive()
+    {
+        return m_active;
+    }
+
+    // Between two stacks
+    public boolean isWaiting()
+    {
+        return m_active && !m_stackRunning;
+    }
+
+    public long getMsUntilNextStart()
+    {
+        return Math.max(0, m_nextStart - m_loop.now());
+    }
+
+    public int getCompletedCount()
+    {
+        return m_completed;
+    }
+
+    public int getMissedCount()
+    {
+        return m_missed;
+    }
+
+    /*
+        The running stack is over; an aborted stack ends the time-lapse
+     */
+    public void onStackFinished(boolean completed)
+    {
+        if (!m_active || !m_stackRunning)
+            return;
+        m_stackRunning = false;
+        if (!completed)
+        {
+            stop();
+            return;
+        }
+        final long now = m_loop.now();
+        m_durations[m_durationCount++ % HISTORY] = now - m_stackStart;
+        ++m_completed;
+        if (m_origin < 0)
+            m_origin = now;
+        else if (now > deadline(m_stack))
+            miss(m_stack, now - deadline(m_stack));
+
+        // Deadlines that have passed already can't be made any more
+        ++m_stack;
+        while (deadline(m_stack) <= now)
+        {
+            miss(m_stack, now - deadline(m_stack));
+            ++m_stack;
+        }
+        m_nextStart = Math.max(now, deadline(m_stack) - getExpectedDurationMs() - getStartMarginMs());
+        m_loop.postAtTime(m_startRunnable, m_nextStart);
+    }
+
+    /*
+        Longest of the recent stack durations
+     */
+    public long getExpectedDurationMs()
+    {
+        long longest = 0;
+        for (int i = 0; i < Math.min(m_durationCount, HISTORY); ++i)
+            longest = Math.max(longest, m_durations[i]);
+        return longest;
+    }
+
+    /*
+        Extra lead for stacks running longer than any of the recent ones: the spread of the recent durations
+     */
+    private long getStartMarginMs()
+    {
+        long shortest = Long.MAX_VALUE;
+        for (int i = 0; i < Math.min(m_durationCount, HISTORY); ++i)
+            shortest = Math.min(shortest, m_durations[i]);
+        return MIN_START_MARGIN_MS + (m_durationCount > 0 ? getExpectedDurationMs() - shortest : 0);
+    }
+
+    private long deadline(int stack)
+    {
+        return m_origin + stack * m_intervalMs;
+    }
+
+    private void miss(int stack, long lateMs)
+    {
+        ++m_missed;
+        if (m_listener != null)
+            m_listener.onDeadlineMissed(stack, lateMs);
+    }
+}
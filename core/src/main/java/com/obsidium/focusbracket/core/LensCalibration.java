@@ -0,0 +1,151 @@
+package com.obsidium.focusbracket.core;
+
+import java.util.Arrays;
+
+/*
+    Everything measured or entered for one lens: the focus drive steps per speed and backlash, the focus position
+    range and how positions map to subject distance
+ */
+public class LensCalibration
+{
+    public static final int DEFAULT_MIN_FOCUS_DISTANCE_MM = 250;
+
+    private final float[] m_stepsPerDrive = new float[FocusDriveController.MAX_SPEED + 1];
+    // Focus motor slack in position units, 0 = not measured yet
+    private float m_backlash;
+    // Infinity end of the focus range, 0 = not seen yet
+    private int m_maxPosition;
+    private int m_minFocusDistanceMm = DEFAULT_MIN_FOCUS_DISTANCE_MM;
+    // Measured distance anchors, null to derive a linear model from the range and minimum focus distance
+    private FocusDistanceModel m_distanceModel;
+
+    public float getStepsPerDrive(int speed)
+    {
+        return m_stepsPerDrive[speed];
+    }
+
+    public void setStepsPerDrive(int speed, float steps)
+    {
+        m_stepsPerDrive[speed] = Math.max(0, steps);
+    }
+
+    public float getBacklash()
+    {
+        return m_backlash;
+    }
+
+    public void setBacklash(float backlash)
+    {
+        m_backlash = Math.max(0, backlash);
+    }
+
+    public void captureFrom(FocusDriveController controller)
+    {
+        for (int speed = FocusDriveController.MIN_SPEED; speed <= FocusDriveController.MAX_SPEED; ++speed)
+            m_stepsPerDrive[speed] = controller.getStepsPerDrive(speed);
+        m_backlash = controller.getBacklash();
+    }
+
+    /*
+        Loads the drive steps and backlash into the controller, returns whether every speed has been measured
+     */
+    public boolean applyTo(FocusDriveController controller)
+    {
+        controller.reset();
+        for (int speed = FocusDriveController.MIN_SPEED; speed <= FocusDriveController.MAX_SPEED; ++speed)
+            controller.setStepsPerDrive(speed, m_stepsPerDrive[speed]);
+        controller.setBacklash(m_backlash);
+        return controller.isCalibrated();
+    }
+
+    public int getMaxPosition()
+    {
+        return m_maxPosition;
+    }
+
+    public void setMaxPosition(int maxPosition)
+    {
+        m_maxPosition = Math.max(0, maxPosition);
+    }
+
+    public int getMinFocusDistance()
+    {
+        return m_minFocusDistanceMm;
+    }
+
+    public void setMinFocusDistance(int minFocusDistanceMm)
+    {
+        m_minFocusDistanceMm = Math.max(1, minFocusDistanceMm);
+    }
+
+    public void setDistanceModel(FocusDistanceModel model)
+    {
+        m_distanceModel = model;
+    }
+
+    /*
+        Records the subject distance at a focus position, replacing any anchor at that position. A single anchor is
+        paired with infinity at the end of the range. Returns false if the anchor contradicts the others.
+     */
+    public boolean addDistanceAnchor(int position, float distanceMm)
+    {
+        final int count = m_distanceModel != null ? m_distanceModel.getAnchorCount() : 0;
+        final int[] positions = new int[count + 2];
+        final float[] diopters = new float[count + 2];
+        int n = 0;
+        boolean added = false;
+        for (int i = 0; i < count; ++i)
+        {
+            final int anchor = m_distanceModel.getAnchorPosition(i);
+            if (anchor == position)
+                continue;
+            if (!added && anchor > position)
+            {
+                positions[n] = position;
+                diopters[n++] = 1000.0f / distanceMm;
+                added = true;
+            }
+            positions[n] = anchor;
+            diopters[n++] = m_distanceModel.getAnchorDiopters(i);
+        }
+        if (!added)
+        {
+            positions[n] = position;
+            diopters[n++] = 1000.0f / distanceMm;
+        }
+        if (n < 2)
+        {
+            if (m_maxPosition <= 0 || position >= m_maxPosition)
+                return false;
+            positions[n] = m_maxPosition;
+            diopters[n++] = 0;
+        }
+        try
+        {
+            m_distanceModel = new FocusDistanceModel(Arrays.copyOf(positions, n), Arrays.copyOf(diopters, n));
+            return true;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return false;
+        }
+    }
+
+    public boolean hasMeasuredDistanceModel()
+    {
+        return m_distanceModel != null;
+    }
+
+    /*
+        Position to distance mapping, null while the focus range is unknown. Without measured anchors, positions
+        are assumed to run from the minimum focus distance at 0 to infinity at the end of the range.
+     */
+    public FocusDistanceModel getDistanceModel()
+    {
+        if (m_distanceModel != null)
+            return m_distanceModel;
+        if (m_maxPosition <= 0)
+            return null;
+        return FocusDistanceModel.linear(0, m_minFocusDistanceMm, m_maxPosition);
+    }
+}
@@ -0,0 +1,91 @@
+package com.obsidium.focusbracket.core;
+
+/*
+    Finds the focus range of the subject from frames taken while sweeping the focus: every tile whose contrast
+    clearly peaks inside the sweep is part of the subject. A tile usually spans some depth, so it is in focus over
+    the frames around its peak that stay close to the peak score; the nearest and farthest of those frames over
+    all subject tiles bound the stack.
+ */
+public class RangeFinder
+{
+    // A tile is in focus inside the sweep if its best score is at least this many times its score at both ends...
+    private static final int PEAK_RATIO = 2;
+    // ...and above this absolute level (mean squared difference of 4, with SCORE_SHIFT fractional bits)
+    static final int MIN_PEAK_SCORE = 4 << SharpnessGrid.SCORE_SHIFT;
+    // Frames next to the peak scoring at least this percentage of it are still in focus for the tile
+    private static final int IN_FOCUS_PERCENT = 70;
+
+    private int m_near = -1;
+    private int m_far = -1;
+    private int m_subjectTiles;
+
+    /*
+        Evaluates a series of frames in sweep order. Returns false if no tile shows a clear focus peak inside
+        the sweep.
+     */
+    public boolean findRange(SharpnessSeries series)
+    {
+        final int tiles = series.getTileCount();
+        final int frames = series.getFrameCount();
+        m_near = -1;
+        m_far = -1;
+        m_subjectTiles = 0;
+        if (frames < 3)
+            return false;
+        for (int tile = 0; tile < tiles; ++tile)
+        {
+            int best = -1;
+            int peak = 0;
+            for (int frame = 0; frame < frames; ++frame)
+            {
+                final int score = series.getScore(frame, tile);
+                if (score > best)
+                {
+                    best = score;
+                    peak = frame;
+                }
+            }
+            // A peak at either end of the sweep is background, or a subject the sweep didn't get past
+            final int ends = Math.max(series.getScore(0, tile), series.getScore(frames - 1, tile));
+            if (best < MIN_PEAK_SCORE || best < ends * PEAK_RATIO)
+                continue;
+            final long inFocus = (long)best * IN_FOCUS_PERCENT;
+            int first = peak;
+            while (first > 0 && series.getScore(first - 1, tile) * 100L >= inFocus)
+                --first;
+            int last = peak;
+            while (last < frames - 1 && series.getScore(last + 1, tile) * 100L >= inFocus)
+                ++last;
+            // The sweep may run either way
+            final int from = Math.min(series.getPosition(first), series.getPosition(last));
+            final int to = Math.max(series.getPosition(first), series.getPosition(last));
+            if (m_subjectTiles++ == 0)
+            {
+                m_near = from;
+                m_far = to;
+            }
+            else
+            {
+                m_near = Math.min(m_near, from);
+                m_far = Math.max(m_far, to);
+            }
+        }
+        return m_subjectTiles > 0;
+    }
+
+    // Results of the last findRange(): lowest and highest focus position at which a subject tile is in focus
+    public int getNear()
+    {
+        return m_near;
+    }
+
+    public int getFar()
+    {
+        return m_far;
+    }
+
+    public int getSubjectTiles()
+    {
+        return m_subjectTiles;
+    }
+}
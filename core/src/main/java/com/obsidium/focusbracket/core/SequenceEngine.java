@@ -0,0 +1,761 @@
+package com.obsidium.focusbracket.core;
+
+/*
+    Focus / exposure / shutter state machine for one sequence, independent of the actual camera.
+    All methods and CameraDriver callbacks must be called on the EventLoop's thread.
+ */
+public class SequenceEngine implements CameraDriver.Listener
+{
+    public interface Listener
+    {
+        // Something shown on screen may have changed
+        void onEngineChanged();
+
+        // completed is false if the sequence was aborted
+        void onSequenceFinished(ShotTrace trace, boolean completed);
+
+        // Shutter callback for a shot of the sequence, result as in CameraDriver.Listener.onShutter
+        void onShot(int focus, int exposure, int result);
+
+        void onCalibrationFinished();
+
+        // completed is false if the sweep was aborted before the lens reached the end of its travel
+        void onRangeSweepFinished(boolean completed);
+
+        // The lens reached a point of the probe, call probeDone() to move on to the next one
+        void onProbePoint(int focus);
+
+        // completed is false if the probe was aborted
+        void onProbeFinished(boolean completed);
+    }
+
+    private static final int CALIBRATION_CHECK_DELAY_MS = 500;
+    private static final int BRACKET_FRAMES = 3;
+    private static final int BURST_FRAME_TIMEOUT_MS = 3000;
+    // Drives in a row that don't move the lens before a range sweep or the calibration counts it as stopped
+    // at the end
+    private static final int END_STALLS = 2;
+    // One-way approach: times a shot may overshoot and back off before it settles for either direction
+    private static final int MAX_APPROACH_PASSES = 2;
+
+    private final CameraDriver  m_camera;
+    private final EventLoop     m_loop;
+    private final EngineLog     m_log;
+    private Listener            m_listener;
+
+    private final FocusDriveController m_driveController = new FocusDriveController();
+    private final FocusWatchdog m_watchdog = new FocusWatchdog();
+    private final ShotTrace     m_trace = new ShotTrace();
+    private final ShotPacer     m_pacer = new ShotPacer();
+
+    private ShootSettings       m_settings = new ShootSettings();
+
+    private int                 m_curFocus;
+    private int                 m_focusBeforeDrive;
+    private int                 m_driveSpeed;
+    private boolean             m_driveFar;
+    private long                m_driveStartTime;
+    // The watchdog gave up on the drive before the current one, whose callback may still come
+    private boolean             m_lateCallbackPending;
+    // Drives in a row towards the current shot that the lens didn't answer, and the motor travel they asked for
+    private int                 m_focusStalls;
+    private float               m_focusStallTravel;
+    // Direction every shot is approached from, the one the plan runs in
+    private boolean             m_approachFar = true;
+    // One-way approach of the current shot: backing off behind the target, drives in a row the lens didn't
+    // answer while doing so, and how often it did
+    private boolean             m_backingOff;
+    private int                 m_backOffStalls;
+    private int                 m_approachPasses;
+
+    // Plan of the running sequence, null when not shooting
+    private ShotPlan            m_plan;
+    private boolean             m_waitingForFocus;
+    // m_plan visits focus points without taking pictures
+    private boolean             m_probing;
+    // Between takePicture and cancelTakePicture
+    private boolean             m_pictureOpen;
+    // Since when the next picture has been held back by the pacing, -1 if it isn't
+    private long                m_pacingStart = -1;
+
+    private FocusDriveController.Calibration m_calibration;
+    private int                 m_calibrationStalls;
+
+    // Range sweep: drive speed, 0 when not sweeping, direction and drives in a row that didn't move the lens
+    private int                 m_rangeSweepSpeed;
+    private boolean             m_rangeSweepFar;
+    private int                 m_rangeSweepStalls;
+
+    // Native exposure bracketing: frames still expected from the running burst, and whether the body
+    // turned out to support it at all
+    private int                 m_burstRemaining;
+    // Plan index of the burst's first frame
+    private int                 m_burstStart;
+    private boolean             m_nativeBracketAvailable = true;
+
+    private final Runnable      m_checkFocusRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (m_focusBeforeDrive != m_curFocus)
+                return;
+            // Only focusing drives are sure to move the lens, the others may be silent at an end stop
+            m_watchdog.onTimeout(m_driveSpeed, m_waitingForFocus);
+            if (m_waitingForFocus)
+            {
+                trace(ShotTrace.WATCHDOG, m_driveSpeed);
+                // The callback may only be late. Anything older would have come by now.
+                m_lateCallbackPending = true;
+                ++m_focusStalls;
+                m_focusStallTravel += Math.max(1, m_driveController.getStepsPerDrive(m_driveSpeed));
+                focus();
+            }
+            else if (m_calibration != null)
+            {
+                // The lens stays silent at the end of its travel, but one timeout may just be a lost callback
+                if (++m_calibrationStalls < END_STALLS)
+                    calibrationDrive();
+                else
+                {
+                    m_calibrationStalls = 0;
+                    onCalibrationDrive(0);
+                }
+            }
+            else if (m_rangeSweepSpeed > 0)
+                onRangeSweepDrive(0);
+        }
+    };
+
+    // Takes the picture the pacing held back, or retries a failed one
+    private final Runnable      m_shotRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (m_plan != null && !m_probing)
+                startFocusing();
+        }
+    };
+
+    private final Runnable      m_burstTimeoutRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (m_burstRemaining <= 0)
+                return;
+            // The body took fewer frames than a bracket should have. Which variants it did take isn't known
+            // for sure, so the whole point is shot again one by one.
+            m_log.error("Bracket burst incomplete (" + m_burstRemaining + " frames missing), disabling native bracketing");
+            m_nativeBracketAvailable = false;
+            m_burstRemaining = 0;
+            m_plan.rewindTo(m_burstStart);
+            cancelPicture();
+            restoreSingleDrive();
+            startFocusing();
+        }
+    };
+
+    public SequenceEngine(CameraDriver camera, EventLoop loop, EngineLog log)
+    {
+        m_camera = camera;
+        m_loop = loop;
+        m_log = log;
+        m_camera.setListener(this);
+    }
+
+    public void setListener(Listener listener)
+    {
+        m_listener = listener;
+    }
+
+    private void notifyChanged()
+    {
+        if (m_listener != null)
+            m_listener.onEngineChanged();
+    }
+
+    public void setSettings(ShootSettings settings)
+    {
+        m_settings = settings;
+        m_driveController.setTolerance(settings.focusTolerance);
+    }
+
+    public FocusDriveController getDriveController()
+    {
+        return m_driveController;
+    }
+
+    public FocusWatchdog getWatchdog()
+    {
+        return m_watchdog;
+    }
+
+    public ShotPacer getPacer()
+    {
+        return m_pacer;
+    }
+
+    public int getCurrentFocus()
+    {
+        return m_curFocus;
+    }
+
+    public boolean isShooting()
+    {
+        return m_plan != null && !m_probing;
+    }
+
+    public boolean isProbing()
+    {
+        return m_probing;
+    }
+
+    public boolean isCalibrating()
+    {
+        return m_calibration != null;
+    }
+
+    public int getCalibrationSpeed()
+    {
+        return m_calibration != null ? m_calibration.getSpeed() : 0;
+    }
+
+    public boolean isRangeSweeping()
+    {
+        return m_rangeSweepSpeed > 0;
+    }
+
+    public int getShotsRemaining()
+    {
+        return m_plan != null ? m_plan.getRemaining() : 0;
+    }
+
+    public boolean isNativeBracketAvailable()
+    {
+        return m_nativeBracketAvailable;
+    }
+
+    private void trace(int event, int value)
+    {
+        m_trace.record(m_loop.now(), event, value);
+    }
+
+    /*
+        Plans the sequence from the current lens position and starts shooting. Returns false if there is
+        nothing to shoot.
+     */
+    public boolean start()
+    {
+        return start(null);
+    }
+
+    /*
+        Same as start(), skipping the shots the journal of an interrupted sequence shows as taken
+     */
+    public boolean start(ShotJournal journal)
+    {
+        abort();
+        final ShotScheduler scheduler = m_settings.shotOrder.createScheduler();
+        m_plan = scheduler.schedule(m_settings, m_curFocus);
+        if (journal != null)
+            m_plan = journal.removeCompleted(m_plan);
+        m_log.info("Shot order " + m_settings.shotOrder.name() + ": " + m_plan.size() + " shots, focus travel " + m_plan.travel(m_curFocus));
+        if (m_plan.isDone())
+        {
+            m_plan = null;
+            return false;
+        }
+
+        // A single point is approached far like a sweep would
+        m_approachFar = m_plan.getFocus(m_plan.size() - 1) >= m_plan.getFocus(m_plan.getCursor());
+        m_watchdog.resetCounters();
+        m_pacer.reset();
+        m_trace.clear();
+        trace(ShotTrace.SEQUENCE_START, m_plan.size());
+        startFocusing();
+        return true;
+    }
+
+    public void abort()
+    {
+        final boolean wasProbing = m_probing;
+        final boolean wasShooting = m_plan != null && !wasProbing;
+        final boolean wasCalibrating = m_calibration != null;
+        final boolean wasSweeping = m_rangeSweepSpeed > 0;
+        m_waitingForFocus = false;
+        m_probing = false;
+        m_calibration = null;
+        m_rangeSweepSpeed = 0;
+        m_driveSpeed = 0;
+        m_lateCallbackPending = false;
+        m_burstRemaining = 0;
+        m_pictureOpen = false;
+        m_pacingStart = -1;
+        m_loop.removeCallbacks(m_checkFocusRunnable);
+        m_loop.removeCallbacks(m_burstTimeoutRunnable);
+        m_loop.removeCallbacks(m_shotRunnable);
+        if (wasShooting)
+            finishSequence(false);
+        if (wasShooting || wasCalibrating)
+            restoreSingleDrive();
+        if (wasSweeping && m_listener != null)
+            m_listener.onRangeSweepFinished(false);
+        if (wasProbing)
+            finishProbe(false);
+    }
+
+    private void finishSequence(boolean completed)
+    {
+        trace(ShotTrace.SEQUENCE_END, m_plan.getRemaining());
+        m_plan = null;
+        m_log.info("Focus watchdog fired on " + m_watchdog.getFireCount() + " of " + m_watchdog.getDriveCount() + " drives");
+        m_log.info("Focus backlash estimate " + m_driveController.getBacklash());
+        m_log.info(m_pacer.getSummary());
+        m_watchdog.resetCounters();
+        m_trace.computeSummary();
+        if (m_listener != null)
+            m_listener.onSequenceFinished(m_trace, completed);
+    }
+
+    /*
+        Measures how far each drive speed moves the lens; the running sequence, if any, is aborted
+     */
+    public void startCalibration()
+    {
+        abort();
+        m_calibration = m_driveController.new Calibration();
+        m_calibrationStalls = 0;
+        calibrationDrive();
+        notifyChanged();
+    }
+
+    /*
+        Visits the focus points in sweep order, handing each one to the listener instead of taking a picture.
+        Returns false if there are no points. The running sequence, if any, is aborted.
+     */
+    public boolean startProbe(FocusPointSet points)
+    {
+        abort();
+        final ShootSettings probe = new ShootSettings();
+        probe.focusPoints = points;
+        probe.exposureBracket = 0;
+        m_plan = new ShotScheduler.Sweep(true).schedule(probe, m_curFocus);
+        if (m_plan.isDone())
+        {
+            m_plan = null;
+            return false;
+        }
+        m_probing = true;
+        startFocusing();
+        return true;
+    }
+
+    /*
+        The listener is done with the current probe point
+     */
+    public void probeDone()
+    {
+        if (!m_probing || m_waitingForFocus)
+            return;
+        m_plan.advance();
+        if (m_plan.isDone())
+        {
+            m_probing = false;
+            finishProbe(true);
+        }
+        else
+            startFocusing();
+        notifyChanged();
+    }
+
+    private void finishProbe(boolean completed)
+    {
+        m_plan = null;
+        if (m_listener != null)
+            m_listener.onProbeFinished(completed);
+    }
+
+    /*
+        Drives the lens to the end of its travel in one direction, one drive after the other, so the caller can
+        watch the preview along the way. The running sequence, if any, is aborted.
+     */
+    public void startRangeSweep(boolean far, int speed)
+    {
+        abort();
+        m_rangeSweepSpeed = speed;
+        m_rangeSweepFar = far;
+        m_rangeSweepStalls = 0;
+        rangeSweepDrive();
+        notifyChanged();
+    }
+
+    // CameraDriver.Listener
+    @Override
+    public void onFocusChanged(int position)
+    {
+        if (m_lateCallbackPending && m_waitingForFocus && m_driveSpeed > 0)
+        {
+            // Late callback of the drive the watchdog gave up on, the current drive is still under way and its
+            // step now starts from here. Not a latency sample: if that callback was lost after all, this is
+            // the current drive's and would read as one timeout too long.
+            m_lateCallbackPending = false;
+            m_curFocus = position;
+            m_focusBeforeDrive = position;
+            trace(ShotTrace.FOCUS_CHANGED, position);
+            notifyChanged();
+            return;
+        }
+        m_loop.removeCallbacks(m_checkFocusRunnable);
+        final int previousFocus = m_curFocus;
+        m_curFocus = position;
+        final int driveSpeed = m_driveSpeed;
+        m_driveSpeed = 0;
+        if (driveSpeed == 0 && position != previousFocus)
+        {
+            // Turned by hand
+            m_driveController.onDrive(position > previousFocus);
+        }
+        if (driveSpeed > 0)
+            m_watchdog.onCallback(driveSpeed, m_loop.now() - m_driveStartTime);
+        if (m_calibration != null)
+        {
+            if (driveSpeed > 0)
+            {
+                m_calibrationStalls = 0;
+                onCalibrationDrive(m_curFocus - m_focusBeforeDrive);
+            }
+        }
+        else if (m_rangeSweepSpeed > 0)
+        {
+            if (driveSpeed > 0)
+                onRangeSweepDrive(m_curFocus - m_focusBeforeDrive);
+        }
+        else if (m_waitingForFocus)
+        {
+            trace(ShotTrace.FOCUS_CHANGED, m_curFocus);
+            m_focusStalls = 0;
+            m_focusStallTravel = 0;
+            m_driveController.onDriveResult(driveSpeed, m_driveFar, m_curFocus - m_focusBeforeDrive);
+            if (!m_backingOff && m_driveController.isOnTarget(m_curFocus, m_plan.getFocus()))
+            {
+                // Focused, take picture
+                takePicture();
+            }
+            else
+                focus();
+        }
+        notifyChanged();
+    }
+
+    // CameraDriver.Listener
+    @Override
+    public void onShutter(int result)
+    {
+        // result: 0 = success, 1 = canceled, 2 = error
+        if (m_plan == null || m_probing)
+            return;
+        if (result == 0)
+        {
+            // Lets the stacker tools tell the frames on the card apart, retaken ones included
+            trace(ShotTrace.FRAME_FOCUS, m_plan.getFocus());
+            trace(ShotTrace.FRAME_EXPOSURE, m_plan.getExposure());
+        }
+        trace(ShotTrace.SHUTTER, result);
+        // A picture that was already closed can still report its cancellation
+        if (result != 0 && !m_pictureOpen)
+            return;
+        m_loop.removeCallbacks(m_burstTimeoutRunnable);
+        if (m_listener != null)
+            m_listener.onShot(m_plan.getFocus(), m_plan.getExposure(), result);
+        if (result != 0)
+        {
+            // Mostly the card's write buffer being full: back off, then take the same shot again
+            final long backoff = m_pacer.onShotFailed(m_loop.now(),
+                m_burstRemaining > 0 && m_burstRemaining < BRACKET_FRAMES);
+            // A burst is retried as a whole, its frames are only labelled right in the body's order
+            if (m_burstRemaining > 0)
+                m_plan.rewindTo(m_burstStart);
+            m_burstRemaining = 0;
+            cancelPicture();
+            if (backoff < 0)
+            {
+                m_log.error("Shot " + (m_plan.getCursor() + 1) + " failed " + (ShotPacer.MAX_RETRIES + 1) + " times, giving up");
+                restoreSingleDrive();
+                finishSequence(false);
+            }
+            else
+            {
+                trace(ShotTrace.SHOT_RETRY, (int)backoff);
+                m_loop.postDelayed(m_shotRunnable, backoff);
+            }
+            notifyChanged();
+            return;
+        }
+        if (m_burstRemaining == 0 || m_burstRemaining == BRACKET_FRAMES)
+            m_pacer.onShotExposed(m_loop.now());
+        if (m_burstRemaining > 1)
+        {
+            // More frames of the bracket burst to come
+            --m_burstRemaining;
+            m_plan.advance();
+            m_loop.postDelayed(m_burstTimeoutRunnable, BURST_FRAME_TIMEOUT_MS);
+            notifyChanged();
+            return;
+        }
+        m_burstRemaining = 0;
+        if (m_settings.pipelined && m_plan.getRemaining() > 1 &&
+            !m_driveController.isOnTarget(m_curFocus, m_plan.getFocus(m_plan.getCursor() + 1)))
+        {
+            // Get the motor moving first, then finish off the picture and set up the next exposure
+            // while the lens travels
+            m_plan.advance();
+            startFocusing();
+            cancelPicture();
+            prepareExposure();
+            notifyChanged();
+            return;
+        }
+        cancelPicture();
+        m_plan.advance();
+        if (m_plan.isDone())
+        {
+            restoreSingleDrive();
+            finishSequence(true);
+        }
+        else
+        {
+            // Move to next focus position
+            startFocusing();
+        }
+        notifyChanged();
+    }
+
+    /*
+        Applies pending parameter changes, returns false if the body rejected them
+     */
+    private boolean applyParameters()
+    {
+        if (!m_camera.hasPendingParameters())
+            return true;
+        final boolean applied = m_camera.applyParameters();
+        trace(ShotTrace.PARAM_WRITE, (int)m_camera.getLastApplyMicros());
+        return applied;
+    }
+
+    private void restoreSingleDrive()
+    {
+        m_camera.setSingleDrive();
+        applyParameters();
+    }
+
+    private void cancelPicture()
+    {
+        m_camera.cancelTakePicture();
+        m_pictureOpen = false;
+    }
+
+    private boolean useNativeBracket()
+    {
+        return m_settings.nativeBracket && m_nativeBracketAvailable &&
+            ShotScheduler.getBracketPeriod(m_settings.exposureBracket) > 0 && m_plan.getRunLength() == BRACKET_FRAMES;
+    }
+
+    private void setExposureParameters(boolean bracket, int exposure)
+    {
+        if (bracket)
+        {
+            m_camera.setExposureBracket(ShotScheduler.getBracketPeriod(m_settings.exposureBracket));
+            // The bracket is centered on 0 EV and covers every variant at this point in one burst
+            m_camera.setExposureCompensation(0);
+        }
+        else
+        {
+            m_camera.setSingleDrive();
+            m_camera.setExposureCompensation(exposure);
+        }
+    }
+
+    /*
+        Pipelined mode: applies the parameters of the next picture ahead of time, so takePicture finds
+        nothing left to write
+     */
+    private void prepareExposure()
+    {
+        if (m_plan == null || m_pictureOpen)
+            return;
+        setExposureParameters(useNativeBracket(), m_plan.getExposure());
+        applyParameters();
+    }
+
+    private void takePicture()
+    {
+        if (m_probing)
+        {
+            m_waitingForFocus = false;
+            if (m_listener != null)
+                m_listener.onProbePoint(m_plan.getFocus());
+            notifyChanged();
+            return;
+        }
+
+        final long now = m_loop.now();
+        final long delay = m_pacer.getDelayMs(now);
+        if (delay > 0)
+        {
+            // The card is falling behind, let its buffer drain before the next picture
+            m_waitingForFocus = false;
+            if (m_pacingStart < 0)
+                m_pacingStart = now;
+            trace(ShotTrace.PACE_WAIT, (int)delay);
+            m_loop.postDelayed(m_shotRunnable, delay);
+            notifyChanged();
+            return;
+        }
+        m_pacer.onShotStarted(now, m_pacingStart >= 0 ? now - m_pacingStart : 0);
+        m_pacingStart = -1;
+
+        if (useNativeBracket())
+        {
+            setExposureParameters(true, 0);
+            if (applyParameters())
+            {
+                m_burstRemaining = BRACKET_FRAMES;
+                m_burstStart = m_plan.getCursor();
+                m_waitingForFocus = false;
+                m_pictureOpen = true;
+                trace(ShotTrace.TAKE_PICTURE, 0);
+                m_camera.takePicture();
+                m_loop.postDelayed(m_burstTimeoutRunnable, BURST_FRAME_TIMEOUT_MS);
+                notifyChanged();
+                return;
+            }
+            m_nativeBracketAvailable = false;
+        }
+
+        final int exposure = m_plan.getExposure();
+        setExposureParameters(false, exposure);
+        applyParameters();
+
+        m_waitingForFocus = false;
+        m_pictureOpen = true;
+        trace(ShotTrace.TAKE_PICTURE, exposure);
+        m_camera.takePicture();
+        notifyChanged();
+    }
+
+    private void focus()
+    {
+        final int nextFocus = m_plan.getFocus();
+        // One-way approach: a target the lens has overshot is passed by the approach offset, then reached
+        // moving in the plan's direction like every other one, with the slack on the same side each time
+        final int offset = m_driveController.getApproachOffset();
+        final int approachStart = m_approachFar ? Math.max(0, nextFocus - offset) : nextFocus + offset;
+        final boolean overshot = m_approachFar ? m_curFocus > nextFocus : m_curFocus < nextFocus;
+        if (m_settings.oneWayApproach && !m_backingOff && overshot && !m_driveController.isOnTarget(m_curFocus, nextFocus) &&
+            m_approachPasses < MAX_APPROACH_PASSES)
+        {
+            m_backingOff = true;
+            m_backOffStalls = 0;
+            ++m_approachPasses;
+        }
+        else if (m_backingOff)
+        {
+            // Done once behind the target, or stuck at an end of the range
+            if (m_curFocus == m_focusBeforeDrive)
+                ++m_backOffStalls;
+            final boolean behind = m_approachFar ? m_curFocus < approachStart : m_curFocus > approachStart;
+            if (behind || m_driveController.isOnTarget(m_curFocus, approachStart) || m_backOffStalls >= END_STALLS)
+                m_backingOff = false;
+        }
+        m_focusBeforeDrive = m_curFocus;
+        // Silent drives past the slack mean the lens is at the end of its travel, as close as it gets
+        final boolean stuck = m_focusStalls >= END_STALLS && m_focusStallTravel > m_driveController.getBacklash();
+        if (stuck && !m_backingOff)
+            m_log.info("Lens stopped at " + m_curFocus + " short of " + nextFocus + ", shooting there");
+        if (!m_backingOff && (stuck || m_driveController.isOnTarget(m_curFocus, nextFocus)))
+            takePicture();
+        else
+        {
+            final int driveTarget = m_backingOff ? approachStart : nextFocus;
+            final int speed = m_driveController.chooseSpeed(m_curFocus, driveTarget, m_settings.oneWayApproach && !m_backingOff);
+            m_driveSpeed = speed;
+            m_driveFar = m_curFocus < driveTarget;
+            m_driveStartTime = m_loop.now();
+            trace(ShotTrace.DRIVE_START, speed);
+            m_camera.startFocusDrive(m_driveFar, speed);
+            // A focus drive won't always trigger the focus listener
+            m_loop.postDelayed(m_checkFocusRunnable, m_watchdog.onDriveStarted(speed));
+            if (m_settings.pipelined && !m_probing)
+                prepareExposure();
+        }
+        notifyChanged();
+    }
+
+    private void calibrationDrive()
+    {
+        m_focusBeforeDrive = m_curFocus;
+        m_driveSpeed = m_calibration.getSpeed();
+        m_driveStartTime = m_loop.now();
+        m_driveController.onDrive(m_calibration.isDirectionFar());
+        m_watchdog.onDriveStarted(m_driveSpeed);
+        m_camera.startFocusDrive(m_calibration.isDirectionFar(), m_driveSpeed);
+        // Slow speeds must be given time to finish, a premature re-drive would spoil the measurement
+        m_loop.postDelayed(m_checkFocusRunnable, CALIBRATION_CHECK_DELAY_MS);
+    }
+
+    private void onCalibrationDrive(int delta)
+    {
+        if (m_calibration.onDriveResult(delta))
+        {
+            m_calibration = null;
+            for (int speed = FocusDriveController.MIN_SPEED; speed <= FocusDriveController.MAX_SPEED; ++speed)
+                m_log.info("Speed " + speed + ": " + m_driveController.getStepsPerDrive(speed) + " per drive");
+            if (m_listener != null)
+                m_listener.onCalibrationFinished();
+        }
+        else
+            calibrationDrive();
+    }
+
+    private void rangeSweepDrive()
+    {
+        m_focusBeforeDrive = m_curFocus;
+        m_driveSpeed = m_rangeSweepSpeed;
+        m_driveStartTime = m_loop.now();
+        m_driveController.onDrive(m_rangeSweepFar);
+        m_camera.startFocusDrive(m_rangeSweepFar, m_driveSpeed);
+        // At the end of the travel the lens doesn't move and the listener stays quiet
+        m_loop.postDelayed(m_checkFocusRunnable, m_watchdog.onDriveStarted(m_driveSpeed));
+    }
+
+    private void onRangeSweepDrive(int delta)
+    {
+        if (delta == 0 || (delta > 0) != m_rangeSweepFar)
+            ++m_rangeSweepStalls;
+        else
+            m_rangeSweepStalls = 0;
+        if (m_rangeSweepStalls < END_STALLS)
+        {
+            rangeSweepDrive();
+            return;
+        }
+        m_rangeSweepSpeed = 0;
+        m_driveSpeed = 0;
+        if (m_listener != null)
+            m_listener.onRangeSweepFinished(true);
+        notifyChanged();
+    }
+
+    private void startFocusing()
+    {
+        m_waitingForFocus = true;
+        m_backingOff = false;
+        m_approachPasses = 0;
+        m_focusStalls = 0;
+        m_focusStallTravel = 0;
+        m_lateCallbackPending = false;
+        focus();
+    }
+}
@@ -0,0 +1,72 @@
+package com.obsidium.focusbracket.core;
+
+/*
+    Contrast measure of a luma frame over a grid of tiles: the mean squared difference between pixels two
+    apart, horizontally and vertically, sampled on every other row and column. Integer arithmetic only and
+    no allocation, so it can run on every preview frame.
+ */
+public class SharpnessGrid
+{
+    // Scores carry this many fractional bits
+    public static final int SCORE_SHIFT = 4;
+
+    private final int m_columns;
+    private final int m_rows;
+
+    public SharpnessGrid(int columns, int rows)
+    {
+        m_columns = columns;
+        m_rows = rows;
+    }
+
+    public int getColumns()
+    {
+        return m_columns;
+    }
+
+    public int getRows()
+    {
+        return m_rows;
+    }
+
+    public int getTileCount()
+    {
+        return m_columns * m_rows;
+    }
+
+    /*
+        luma: width * height 8 bit samples, row by row (the Y plane at the start of an NV21 preview frame).
+        Writes one score per tile, row by row, into scores starting at offset.
+     */
+    public void measure(byte[] luma, int width, int height, int[] scores, int offset)
+    {
+        final int tileWidth = width / m_columns;
+        final int tileHeight = height / m_rows;
+        for (int row = 0; row < m_rows; ++row)
+        {
+            // Stay two pixels clear of the far edges for the differences
+            final int y0 = row * tileHeight;
+            final int y1 = Math.min(y0 + tileHeight, height - 2);
+            for (int column = 0; column < m_columns; ++column)
+            {
+                final int x0 = column * tileWidth;
+                final int x1 = Math.min(x0 + tileWidth, width - 2);
+                long sum = 0;
+                int samples = 0;
+                for (int y = y0; y < y1; y += 2)
+                {
+                    int index = y * width + x0;
+                    for (int x = x0; x < x1; x += 2, index += 2)
+                    {
+                        final int p = luma[index] & 0xff;
+                        final int dx = (luma[index + 2] & 0xff) - p;
+                        final int dy = (luma[index + 2 * width] & 0xff) - p;
+                        sum += dx * dx + dy * dy;
+                        ++samples;
+                    }
+                }
+                scores[offset + row * m_columns + column] = samples > 0 ? (int)((sum << SCORE_SHIFT) / samples) : 0;
+            }
+        }
+    }
+}
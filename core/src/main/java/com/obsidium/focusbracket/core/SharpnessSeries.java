@@ -0,0 +1,65 @@
+package com.obsidium.focusbracket.core;
+
+/*
+    SharpnessGrid scores of a series of frames, each tagged with the focus position it was taken at. Storage
+    for maxFrames frames is allocated up front, adding a frame allocates nothing.
+ */
+public class SharpnessSeries
+{
+    private final SharpnessGrid m_grid;
+    private final int m_maxFrames;
+    private final int[] m_positions;
+    // m_maxFrames rows of one score per tile
+    private final int[] m_scores;
+    private int m_frames;
+
+    public SharpnessSeries(SharpnessGrid grid, int maxFrames)
+    {
+        m_grid = grid;
+        m_maxFrames = maxFrames;
+        m_positions = new int[maxFrames];
+        m_scores = new int[maxFrames * grid.getTileCount()];
+    }
+
+    public SharpnessGrid getGrid()
+    {
+        return m_grid;
+    }
+
+    public int getTileCount()
+    {
+        return m_grid.getTileCount();
+    }
+
+    public void reset()
+    {
+        m_frames = 0;
+    }
+
+    public int getFrameCount()
+    {
+        return m_frames;
+    }
+
+    /*
+        Measures a frame taken at the given focus position. Returns false once the storage is full.
+     */
+    public boolean add(int position, byte[] luma, int width, int height)
+    {
+        if (m_frames >= m_maxFrames)
+            return false;
+        m_grid.measure(luma, width, height, m_scores, m_frames * m_grid.getTileCount());
+        m_positions[m_frames++] = position;
+        return true;
+    }
+
+    public int getPosition(int frame)
+    {
+        return m_positions[frame];
+    }
+
+    public int getScore(int frame, int tile)
+    {
+        return m_scores[frame * m_grid.getTileCount() + tile];
+    }
+}
@@ -0,0 +1,32 @@
+package com.obsidium.focusbracket.core;
+
+public class ShootSettings {
+    public enum ShotOrder {
+        sweep, monotonic;
+
+        public ShotScheduler createScheduler() {
+            return new ShotScheduler.Sweep(this == sweep);
+        }
+    }
+
+    public FocusPointSet focusPoints = new FocusPointSet();
+    public int exposureBracket = 9;
+    public ShotOrder shotOrder = ShotOrder.sweep;
+    public int focusTolerance = 0;
+    public boolean nativeBracket = true;
+    // Overlap parameter writes and focus drives with the end of the previous picture
+    public boolean pipelined = false;
+    // Finish every focus move in the plan's direction, so gear backlash sits on the same side for every shot.
+    // Off by default, it trades speed for repeatability: the back-off passes make a stack slower
+    public boolean oneWayApproach = false;
+    // Throttle live view and redraw only a progress line while a sequence runs
+    public boolean headlessShoot = false;
+    // Depth of field planning: near/far marks (-1 = not set), overlap in percent
+    public int planNear = -1;
+    public int planFar = -1;
+    public int dofOverlap = 20;
+    // Coverage pruning: points are dropped while at most this percentage of in-focus area is lost in total
+    public int pruneThreshold = 2;
+    // Time-lapse: seconds from one stack's deadline to the next, 0 shoots a single stack
+    public int intervalSeconds = 0;
+}
@@ -0,0 +1,184 @@
+package com.obsidium.focusbracket.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+    Append-only record of the shots a sequence has taken, so an interrupted sequence can be continued.
+    Binary layout: a header (magic, version, settings signature, planned shots) followed by one fixed size
+    record per shutter callback (focus, exposure, wall clock ms, shutter result). A record cut short by a
+    crash is ignored when reading.
+ */
+public class ShotJournal
+{
+    private static final int MAGIC = 0x464a4e4c;   // "FJNL"
+    private static final int VERSION = 1;
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 17;
+
+    private final int m_signature;
+    private final int m_plannedShots;
+    private int[] m_focus = new int[INITIAL_CAPACITY];
+    private int[] m_exposure = new int[INITIAL_CAPACITY];
+    private long[] m_times = new long[INITIAL_CAPACITY];
+    private byte[] m_results = new byte[INITIAL_CAPACITY];
+    private int m_count;
+
+    public ShotJournal(int signature, int plannedShots)
+    {
+        m_signature = signature;
+        m_plannedShots = plannedShots;
+    }
+
+    /*
+        Identifies the set of shots the settings produce; the shot order doesn't matter for resuming
+     */
+    public static int signature(ShootSettings settings)
+    {
+        return 31 * settings.focusPoints.hashCode() + settings.exposureBracket;
+    }
+
+    public boolean matches(ShootSettings settings)
+    {
+        return m_signature == signature(settings);
+    }
+
+    public int getPlannedShots()
+    {
+        return m_plannedShots;
+    }
+
+    public int size()
+    {
+        return m_count;
+    }
+
+    /*
+        Length of the journal when written out, anything past it is a partial record
+     */
+    public long getByteLength()
+    {
+        return HEADER_SIZE + (long)RECORD_SIZE * m_count;
+    }
+
+    public int getCompletedShots()
+    {
+        int completed = 0;
+        for (int i = 0; i < m_count; ++i)
+        {
+            if (m_results[i] == 0)
+                ++completed;
+        }
+        return completed;
+    }
+
+    /*
+        Wall clock time of the last shutter callback, 0 if none
+     */
+    public long getLastTime()
+    {
+        return m_count > 0 ? m_times[m_count - 1] : 0;
+    }
+
+    public boolean isFinished()
+    {
+        return getCompletedShots() >= m_plannedShots;
+    }
+
+    public void add(int focus, int exposure, long timeMs, int result)
+    {
+        if (m_count == m_focus.length)
+        {
+            final int capacity = m_count * 2;
+            m_focus = Arrays.copyOf(m_focus, capacity);
+            m_exposure = Arrays.copyOf(m_exposure, capacity);
+            m_times = Arrays.copyOf(m_times, capacity);
+            m_results = Arrays.copyOf(m_results, capacity);
+        }
+        m_focus[m_count] = focus;
+        m_exposure[m_count] = exposure;
+        m_times[m_count] = timeMs;
+        m_results[m_count] = (byte)result;
+        ++m_count;
+    }
+
+    /*
+        Plan of the shots still to take: one planned shot is dropped per successful shot in the journal
+     */
+    public ShotPlan removeCompleted(ShotPlan plan)
+    {
+        final boolean[] taken = new boolean[plan.size()];
+        for (int i = 0; i < m_count; ++i)
+        {
+            if (m_results[i] != 0)
+                continue;
+            for (int j = 0; j < plan.size(); ++j)
+            {
+                if (!taken[j] && plan.getFocus(j) == m_focus[i] && plan.getExposure(j) == m_exposure[i])
+                {
+                    taken[j] = true;
+                    break;
+                }
+            }
+        }
+
+        final int[] focus = new int[plan.size()];
+        final int[] exposure = new int[plan.size()];
+        int count = 0;
+        for (int j = 0; j < plan.size(); ++j)
+        {
+            if (!taken[j])
+            {
+                focus[count] = plan.getFocus(j);
+                exposure[count++] = plan.getExposure(j);
+            }
+        }
+        return new ShotPlan(focus, exposure, count);
+    }
+
+    public void writeHeader(DataOutput out) throws IOException
+    {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(m_signature);
+        out.writeInt(m_plannedShots);
+    }
+
+    public static void writeRecord(DataOutput out, int focus, int exposure, long timeMs, int result) throws IOException
+    {
+        out.writeInt(focus);
+        out.writeInt(exposure);
+        out.writeLong(timeMs);
+        out.writeByte(result);
+    }
+
+    /*
+        Returns null if the data isn't a journal
+     */
+    public static ShotJournal read(DataInput in) throws IOException
+    {
+        ShotJournal journal = null;
+        try
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            journal = new ShotJournal(in.readInt(), in.readInt());
+            while (true)
+            {
+                final int focus = in.readInt();
+                final int exposure = in.readInt();
+                final long timeMs = in.readLong();
+                final int result = in.readByte();
+                journal.add(focus, exposure, timeMs, result);
+            }
+        }
+        catch (EOFException e)
+        {
+            return journal;
+        }
+    }
+}
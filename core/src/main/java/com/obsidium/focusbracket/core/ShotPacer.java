@@ -0,0 +1,140 @@
+package com.obsidium.focusbracket.core;
+
+/*
+    Paces pictures to the rate the card can sustain. While the camera's write buffer has room, a picture
+    exposes its first frame after the plain shutter latency; once it fills, the shutter waits for a slot
+    to be written out first, and long bursts end in canceled or failed shots. The fastest first frame seen
+    is taken as the unloaded latency, anything well above it means the buffer is saturating.
+
+    The minimum time between the starts of two pictures is raised to the gap that saturated a picture plus
+    its excess latency, or to twice that gap when a picture first fails after a saturated wait, and shrinks
+    by a fraction on every picture that is exposed unloaded, so it settles just below the card's sustainable
+    interval. Failed pictures are retried after an exponential backoff, which takes the place of the pacing
+    for the retry.
+ */
+public class ShotPacer
+{
+    // Latency above the unloaded one that still counts as unloaded, relative and absolute
+    private static final float SATURATION_RATIO = 1.5f;
+    private static final int SATURATION_MARGIN_MS = 50;
+    // Share of the interval dropped after each unloaded picture
+    private static final float RELEASE_RATE = 0.1f;
+    private static final int MAX_INTERVAL_MS = 10000;
+
+    public static final int MAX_RETRIES = 5;
+    private static final int RETRY_BASE_MS = 250;
+    private static final int MAX_RETRY_MS = 8000;
+
+    // Fastest first frame of the sequence, -1 until the first one
+    private long m_unloadedLatencyMs = -1;
+    private long m_intervalMs;
+    // Start of the picture taken last, -1 before the first one and after a failure
+    private long m_shotStart = -1;
+    // Time between the starts of the last two pictures, 0 for the first
+    private long m_gapMs;
+    private int m_retries;
+
+    private int m_saturatedCount;
+    private int m_failureCount;
+    private long m_totalWaitMs;
+
+    public void reset()
+    {
+        m_unloadedLatencyMs = -1;
+        m_intervalMs = 0;
+        m_shotStart = -1;
+        m_gapMs = 0;
+        m_retries = 0;
+        m_saturatedCount = 0;
+        m_failureCount = 0;
+        m_totalWaitMs = 0;
+    }
+
+    /*
+        Time to hold the next picture back by at now, 0 to take it right away
+     */
+    public long getDelayMs(long now)
+    {
+        if (m_shotStart < 0 || m_intervalMs <= 0)
+            return 0;
+        return Math.max(0, m_shotStart + m_intervalMs - now);
+    }
+
+    /*
+        The next picture is taken now after waiting waitedMs for the pacing
+     */
+    public void onShotStarted(long now, long waitedMs)
+    {
+        m_gapMs = m_shotStart >= 0 ? now - m_shotStart : 0;
+        m_shotStart = now;
+        m_totalWaitMs += waitedMs;
+    }
+
+    /*
+        The first frame of the picture started last was exposed at now
+     */
+    public void onShotExposed(long now)
+    {
+        if (m_shotStart < 0)
+            return;
+        m_retries = 0;
+        final long latency = now - m_shotStart;
+        if (m_unloadedLatencyMs < 0 || latency < m_unloadedLatencyMs)
+            m_unloadedLatencyMs = latency;
+        if (isSaturated(latency))
+        {
+            ++m_saturatedCount;
+            m_intervalMs = Math.min(MAX_INTERVAL_MS, Math.max(m_intervalMs, m_gapMs + latency - m_unloadedLatencyMs));
+        }
+        else
+            m_intervalMs -= (long)(m_intervalMs * RELEASE_RATE);
+    }
+
+    /*
+        The picture started last was canceled or failed at now, after frames of it had been exposed if
+        midBurst. Returns the delay before retrying it, or -1 when it has failed too often.
+     */
+    public long onShotFailed(long now, boolean midBurst)
+    {
+        ++m_failureCount;
+        // A failure at the plain shutter latency is not the buffer's doing, one in a burst can't be timed,
+        // and the gaps before retries are the backoffs, which say nothing about the card
+        if (m_retries == 0 && !midBurst && m_shotStart >= 0 && m_gapMs > 0 && isSaturated(now - m_shotStart))
+            m_intervalMs = Math.min(MAX_INTERVAL_MS, Math.max(m_intervalMs, 2 * m_gapMs));
+        m_shotStart = -1;
+        if (m_retries >= MAX_RETRIES)
+            return -1;
+        return Math.min(MAX_RETRY_MS, (long)RETRY_BASE_MS << m_retries++);
+    }
+
+    private boolean isSaturated(long latency)
+    {
+        return m_unloadedLatencyMs >= 0 && latency > m_unloadedLatencyMs * SATURATION_RATIO + SATURATION_MARGIN_MS;
+    }
+
+    public long getIntervalMs()
+    {
+        return m_intervalMs;
+    }
+
+    public int getSaturatedCount()
+    {
+        return m_saturatedCount;
+    }
+
+    public int getFailureCount()
+    {
+        return m_failureCount;
+    }
+
+    public long getTotalWaitMs()
+    {
+        return m_totalWaitMs;
+    }
+
+    public String getSummary()
+    {
+        return "Shot pacing: " + m_saturatedCount + " saturated, " + m_failureCount + " failed, " + m_totalWaitMs +
+            " ms held back, interval " + m_intervalMs + " ms, unloaded latency " + m_unloadedLatencyMs + " ms";
+    }
+}
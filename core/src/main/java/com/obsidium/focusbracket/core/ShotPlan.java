@@ -0,0 +1,114 @@
+package com.obsidium.focusbracket.core;
+
+/*
+    Compiled sequence: focus target and exposure compensation of every shot in primitive arrays, walked
+    with a cursor. The shots never change once built, so the capture loop only reads.
+ */
+public class ShotPlan
+{
+    private final int[] m_focus;
+    private final int[] m_exposure;
+    // Number of shots from each index on that share its focus target
+    private final int[] m_run;
+    private final int m_size;
+    private int m_cursor;
+
+    /*
+        Takes ownership of the arrays; only the first size entries are used
+     */
+    public ShotPlan(int[] focus, int[] exposure, int size)
+    {
+        if (focus.length < size || exposure.length < size)
+            throw new IllegalArgumentException("Plan arrays shorter than " + size);
+        m_focus = focus;
+        m_exposure = exposure;
+        m_size = size;
+        m_run = new int[size];
+        for (int i = size - 1; i >= 0; --i)
+            m_run[i] = (i + 1 < size && focus[i + 1] == focus[i]) ? m_run[i + 1] + 1 : 1;
+    }
+
+    public int size()
+    {
+        return m_size;
+    }
+
+    public int getCursor()
+    {
+        return m_cursor;
+    }
+
+    public int getRemaining()
+    {
+        return m_size - m_cursor;
+    }
+
+    public boolean isDone()
+    {
+        return m_cursor >= m_size;
+    }
+
+    public void advance()
+    {
+        if (m_cursor < m_size)
+            ++m_cursor;
+    }
+
+    public void rewind()
+    {
+        m_cursor = 0;
+    }
+
+    /*
+        Moves the cursor back to an earlier shot, to take it and the ones after it again
+     */
+    public void rewindTo(int index)
+    {
+        if (index >= 0 && index < m_cursor)
+            m_cursor = index;
+    }
+
+    public int getFocus(int index)
+    {
+        return m_focus[index];
+    }
+
+    public int getExposure(int index)
+    {
+        return m_exposure[index];
+    }
+
+    // Current shot
+    public int getFocus()
+    {
+        return m_focus[m_cursor];
+    }
+
+    public int getExposure()
+    {
+        return m_exposure[m_cursor];
+    }
+
+    /*
+        Shots left at the current focus target, the current one included
+     */
+    public int getRunLength()
+    {
+        return m_run[m_cursor];
+    }
+
+    /*
+        Total focus motor travel from startFocus through every shot, in focus position units
+     */
+    public int travel(int startFocus)
+    {
+        int travel = 0;
+        int focus = startFocus;
+        for (int i = 0; i < m_size; ++i)
+        {
+            travel += Math.abs(m_focus[i] - focus);
+            focus = m_focus[i];
+        }
+        return travel;
+    }
+}
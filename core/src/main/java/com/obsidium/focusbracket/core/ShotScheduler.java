@@ -0,0 +1,156 @@
+package com.obsidium.focusbracket.core;
+
+import java.util.Arrays;
+
+/*
+    Turns the focus points and exposure bracket into the order in which shots are taken
+ */
+public abstract class ShotScheduler
+{
+    // Exposure bracket periods the body accepts, in tenths of an EV
+    private static final int[] BRACKET_PERIODS = { 3, 5, 7, 10, 20, 30 };
+
+    public abstract ShotPlan schedule(ShootSettings settings, int currentFocus);
+
+    /*
+        Exposure compensation values taken at every focus point, ascending
+     */
+    protected static int[] exposureVariants(ShootSettings settings)
+    {
+        if (settings.exposureBracket > 0)
+            return new int[] { -settings.exposureBracket, 0, settings.exposureBracket };
+        else
+            return new int[] { 0 };
+    }
+
+    /*
+        Exposure compensation values in the order the body fires a continuous bracket centered on 0 EV: the
+        center, then under, then over
+     */
+    protected static int[] bracketVariants(ShootSettings settings)
+    {
+        return new int[] { 0, -settings.exposureBracket, settings.exposureBracket };
+    }
+
+    /*
+        Whether every focus point is meant to go out as one native bracket burst, whose frames must be
+        planned in the body's order
+     */
+    protected static boolean usesNativeBracket(ShootSettings settings)
+    {
+        return settings.nativeBracket && getBracketPeriod(settings.exposureBracket) > 0;
+    }
+
+    /*
+        Native bracket period for an exposure bracket in thirds of an EV, or 0 if the body has none for it.
+        Only 1/3, 2/3, 1, 2 and 3 EV exist: 4/3, 5/3, 7/3 and 8/3 EV have to be bracketed in software.
+     */
+    public static int getBracketPeriod(int exposureBracket)
+    {
+        final int period = Math.round(exposureBracket * 10 / 3.0f);
+        return exposureBracket > 0 && Arrays.binarySearch(BRACKET_PERIODS, period) >= 0 ? period : 0;
+    }
+
+    /*
+        Appends one shot per exposure variant at the given focus point, starting at index count. The first
+        variant is the one closest to the last applied compensation, so each point costs one parameter write
+        less. Returns the new shot count.
+     */
+    protected static int addVariants(int[] focus, int[] exposure, int count, int point, int[] variants)
+    {
+        final int lastExposure = count > 0 ? exposure[count - 1] : 0;
+        final int first = variants[0];
+        final int last = variants[variants.length - 1];
+        if (Math.abs(lastExposure - last) < Math.abs(lastExposure - first))
+        {
+            // Descending
+            for (int i = variants.length - 1; i >= 0; --i)
+            {
+                focus[count] = point;
+                exposure[count++] = variants[i];
+            }
+        }
+        else if (lastExposure == first || Math.abs(lastExposure - first) < Math.abs(lastExposure - last))
+        {
+            // Ascending
+            for (int variant : variants)
+            {
+                focus[count] = point;
+                exposure[count++] = variant;
+            }
+        }
+        else
+        {
+            // Starting in the middle: keep the current value, then sweep up and come back down
+            focus[count] = point;
+            exposure[count++] = lastExposure;
+            for (int variant : variants)
+            {
+                if (variant > lastExposure)
+                {
+                    focus[count] = point;
+                    exposure[count++] = variant;
+                }
+            }
+            for (int i = variants.length - 1; i >= 0; --i)
+            {
+                if (variants[i] < lastExposure)
+                {
+                    focus[count] = point;
+                    exposure[count++] = variants[i];
+                }
+            }
+        }
+        return count;
+    }
+
+    /*
+        Visits focus points in position order. With startNearest the sweep starts at whichever end of the
+        range is closer to the current lens position (so consecutive runs alternate direction), otherwise
+        it always runs near to far. With oneWayApproach it always runs near to far as well, as every point
+        of a far to near sweep would be passed and approached again.
+     */
+    public static class Sweep extends ShotScheduler
+    {
+        private final boolean m_startNearest;
+
+        public Sweep(boolean startNearest)
+        {
+            m_startNearest = startNearest;
+        }
+
+        @Override
+        public ShotPlan schedule(ShootSettings settings, int currentFocus)
+        {
+            final FocusPointSet points = settings.focusPoints;
+            final boolean burst = usesNativeBracket(settings);
+            final int[] variants = burst ? bracketVariants(settings) : exposureVariants(settings);
+            final int size = points.size() * variants.length;
+            final int[] focus = new int[size];
+            final int[] exposure = new int[size];
+            if (points.isEmpty())
+                return new ShotPlan(focus, exposure, 0);
+
+            final int near = points.get(0);
+            final int far = points.get(points.size() - 1);
+            final boolean reverse = m_startNearest && !settings.oneWayApproach &&
+                Math.abs(currentFocus - far) < Math.abs(currentFocus - near);
+            int count = 0;
+            for (int i = 0; i < points.size(); ++i)
+            {
+                final int point = points.get(reverse ? points.size() - 1 - i : i);
+                if (burst)
+                {
+                    for (int variant : variants)
+                    {
+                        focus[count] = point;
+                        exposure[count++] = variant;
+                    }
+                }
+                else
+                    count = addVariants(focus, exposure, count, point, variants);
+            }
+            return new ShotPlan(focus, exposure, count);
+        }
+    }
+}
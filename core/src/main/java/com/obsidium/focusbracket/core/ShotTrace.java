@@ -0,0 +1,202 @@
+package com.obsidium.focusbracket.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/*
+    Timeline of one sequence: every phase of every shot is recorded with a monotonic timestamp into
+    preallocated arrays, so recording does not allocate while shooting.
+ */
+public class ShotTrace
+{
+    public static final int SEQUENCE_START = 0;     // value: planned shots
+    public static final int DRIVE_START = 1;        // value: drive speed
+    public static final int FOCUS_CHANGED = 2;      // value: focus position
+    public static final int WATCHDOG = 3;           // value: drive speed
+    public static final int PARAM_WRITE = 4;        // value: write duration in us
+    public static final int TAKE_PICTURE = 5;       // value: exposure compensation
+    public static final int SHUTTER = 6;            // value: shutter result
+    public static final int SEQUENCE_END = 7;       // value: shots remaining
+    public static final int PACE_WAIT = 8;          // value: delay in ms
+    public static final int SHOT_RETRY = 9;         // value: backoff in ms
+    // Which shot of the plan each frame on the card is, recorded before its successful shutter event
+    public static final int FRAME_FOCUS = 10;       // value: focus target
+    public static final int FRAME_EXPOSURE = 11;    // value: exposure compensation
+
+    private static final String[] EVENT_NAMES = { "sequence_start", "drive_start", "focus_changed", "watchdog",
+        "param_write", "take_picture", "shutter", "sequence_end", "pace_wait", "shot_retry", "frame_focus", "frame_exposure" };
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private long[] m_times = new long[INITIAL_CAPACITY];
+    private int[] m_events = new int[INITIAL_CAPACITY];
+    private int[] m_values = new int[INITIAL_CAPACITY];
+    private int[] m_shots = new int[INITIAL_CAPACITY];
+    private int m_count;
+    private int m_shot;
+
+    // Summary of the last computeSummary() call
+    private int m_shotCount;
+    private long m_p50ShotMs;
+    private long m_p95ShotMs;
+    private float m_drivesPerShot;
+    private int m_watchdogCount;
+    private long m_totalMs;
+
+    public void clear()
+    {
+        m_count = 0;
+        m_shot = 0;
+    }
+
+    public int size()
+    {
+        return m_count;
+    }
+
+    public void record(long timeMs, int event, int value)
+    {
+        if (m_count == m_times.length)
+        {
+            final int capacity = m_count * 2;
+            m_times = Arrays.copyOf(m_times, capacity);
+            m_events = Arrays.copyOf(m_events, capacity);
+            m_values = Arrays.copyOf(m_values, capacity);
+            m_shots = Arrays.copyOf(m_shots, capacity);
+        }
+        m_times[m_count] = timeMs;
+        m_events[m_count] = event;
+        m_values[m_count] = value;
+        m_shots[m_count] = m_shot;
+        ++m_count;
+        if (event == SHUTTER && value == 0)
+            ++m_shot;
+    }
+
+    public long getTime(int index)
+    {
+        return m_times[index];
+    }
+
+    public int getEvent(int index)
+    {
+        return m_events[index];
+    }
+
+    public int getValue(int index)
+    {
+        return m_values[index];
+    }
+
+    public int getShot(int index)
+    {
+        return m_shots[index];
+    }
+
+    public static String getEventName(int event)
+    {
+        return EVENT_NAMES[event];
+    }
+
+    /*
+        Computes shot-to-shot latency percentiles (between successful shutter callbacks, the first shot
+        measured from the sequence start) and drive iterations per shot
+     */
+    public void computeSummary()
+    {
+        final long[] intervals = new long[m_count];
+        int intervalCount = 0;
+        int drives = 0;
+        m_watchdogCount = 0;
+        long last = -1;
+        long first = -1;
+        for (int i = 0; i < m_count; ++i)
+        {
+            final int event = m_events[i];
+            if (first < 0)
+                first = m_times[i];
+            if (event == SEQUENCE_START)
+                last = m_times[i];
+            else if (event == DRIVE_START)
+                ++drives;
+            else if (event == WATCHDOG)
+                ++m_watchdogCount;
+            else if (event == SHUTTER && m_values[i] == 0)
+            {
+                if (last >= 0)
+                    intervals[intervalCount++] = m_times[i] - last;
+                last = m_times[i];
+            }
+        }
+        Arrays.sort(intervals, 0, intervalCount);
+        m_shotCount = intervalCount;
+        m_p50ShotMs = intervalCount > 0 ? intervals[(intervalCount - 1) / 2] : 0;
+        m_p95ShotMs = intervalCount > 0 ? intervals[Math.min(intervalCount - 1, (intervalCount * 95) / 100)] : 0;
+        m_drivesPerShot = intervalCount > 0 ? (float)drives / intervalCount : 0;
+        m_totalMs = m_count > 0 ? m_times[m_count - 1] - first : 0;
+    }
+
+    public int getShotCount()
+    {
+        return m_shotCount;
+    }
+
+    public long getP50ShotMs()
+    {
+        return m_p50ShotMs;
+    }
+
+    public long getP95ShotMs()
+    {
+        return m_p95ShotMs;
+    }
+
+    public float getDrivesPerShot()
+    {
+        return m_drivesPerShot;
+    }
+
+    public int getWatchdogCount()
+    {
+        return m_watchdogCount;
+    }
+
+    public String getSummary()
+    {
+        return String.format("%d shots in %.1f s\nShot-to-shot p50 %d ms, p95 %d ms\n%.1f drives/shot, %d watchdog",
+            m_shotCount, m_totalMs / 1000.0, m_p50ShotMs, m_p95ShotMs, m_drivesPerShot, m_watchdogCount);
+    }
+
+    public void writeCsv(Writer writer) throws IOException
+    {
+        writer.write("time_ms,shot,event,value\n");
+        final long start = m_count > 0 ? m_times[0] : 0;
+        for (int i = 0; i < m_count; ++i)
+        {
+            writer.write(Long.toString(m_times[i] - start));
+            writer.write(',');
+            writer.write(Integer.toString(m_shots[i]));
+            writer.write(',');
+            writer.write(EVENT_NAMES[m_events[i]]);
+            writer.write(',');
+            writer.write(Integer.toString(m_values[i]));
+            writer.write('\n');
+        }
+    }
+
+    /*
+        Independent copy, e.g. to export while the original keeps recording
+     */
+    public ShotTrace copy()
+    {
+        final ShotTrace copy = new ShotTrace();
+        copy.m_times = Arrays.copyOf(m_times, Math.max(1, m_count));
+        copy.m_events = Arrays.copyOf(m_events, Math.max(1, m_count));
+        copy.m_values = Arrays.copyOf(m_values, Math.max(1, m_count));
+        copy.m_shots = Arrays.copyOf(m_shots, Math.max(1, m_count));
+        copy.m_count = m_count;
+        copy.m_shot = m_shot;
+        return copy;
+    }
+}
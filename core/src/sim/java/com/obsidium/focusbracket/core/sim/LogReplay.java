@@ -0,0 +1,290 @@
+package com.obsidium.focusbracket.core.sim;
+
+import com.obsidium.focusbracket.core.FocusDriveController;
+import com.obsidium.focusbracket.core.ShotTrace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+    Extracts drive latencies and steps per speed, shutter latencies and failure rates from the sequence
+    traces the app saves to ULTRABRK/TRACE, so the simulation can reproduce the timing of a real camera and
+    lens. Traces are written in every build with the engine's own timestamps. The debug lines of a LOG.TXT
+    are still understood, but only debug builds write them, and their times include the handler's queue.
+ */
+public class LogReplay
+{
+    private static final Pattern LINE = Pattern.compile("^(\\d+) \\[\\w+\\] (.*)$");
+    private static final Pattern DRIVE_START = Pattern.compile("^Starting focus drive \\(speed (\\d+)");
+    private static final Pattern FOCUS_CHANGED = Pattern.compile("^FocusDriveListener: currentPosition (-?\\d+)");
+    private static final Pattern SHUTTER = Pattern.compile("^onShutter \\(i (\\d+)\\)");
+    private static final String TRACE_HEADER = "time_ms,shot,event,value";
+
+    private final List<List<Integer>> m_driveLatencies = new ArrayList<List<Integer>>();
+    private final List<List<Integer>> m_steps = new ArrayList<List<Integer>>();
+    private final List<Integer> m_shutterLatencies = new ArrayList<Integer>();
+    private int m_drives;
+    private int m_missedCallbacks;
+    private int m_shutters;
+    private int m_shutterErrors;
+
+    public LogReplay()
+    {
+        for (int speed = 0; speed <= FocusDriveController.MAX_SPEED; ++speed)
+        {
+            m_driveLatencies.add(new ArrayList<Integer>());
+            m_steps.add(new ArrayList<Integer>());
+        }
+    }
+
+    /*
+        Reads a trace or log file, or every SEQnnnnn.CSV trace in a directory
+     */
+    public static LogReplay read(String fileName) throws IOException
+    {
+        final LogReplay replay = new LogReplay();
+        final File file = new File(fileName);
+        if (file.isDirectory())
+        {
+            final File[] traces = file.listFiles(new FilenameFilter()
+            {
+                @Override
+                public boolean accept(File dir, String name)
+                {
+                    return name.toUpperCase(Locale.US).endsWith(".CSV");
+                }
+            });
+            if (traces == null)
+                throw new IOException("Cannot list " + fileName);
+            Arrays.sort(traces);
+            for (File trace : traces)
+                replay.readFile(trace);
+        }
+        else
+            replay.readFile(file);
+        return replay;
+    }
+
+    private void readFile(File file) throws IOException
+    {
+        final Reader reader = new FileReader(file);
+        try
+        {
+            read(reader);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /*
+        Reads a trace if the input starts with the trace header, LOG.TXT lines otherwise
+     */
+    public void read(Reader input) throws IOException
+    {
+        final BufferedReader reader = new BufferedReader(input);
+        final String first = reader.readLine();
+        if (first != null && first.trim().equals(TRACE_HEADER))
+            readTrace(reader);
+        else
+            readLog(reader, first);
+    }
+
+    /*
+        Follows the engine: after the watchdog gives up on a drive and drives again, the next callback is
+        taken as the late one of the earlier drive. Only drives that ran on their own are sampled, and drives
+        that never got a callback count as missed.
+     */
+    private void readTrace(BufferedReader reader) throws IOException
+    {
+        long driveStart = -1;
+        int driveSpeed = 0;
+        // Whether the current drive started without a late callback to come, and the lens position before
+        // it (-1 = unknown)
+        boolean driveAlone = false;
+        int driveFrom = -1;
+        boolean latePending = false;
+        int position = -1;
+        int drives = 0;
+        int callbacks = 0;
+        long pictureStart = -1;
+
+        String line = reader.readLine();
+        while (line != null)
+        {
+            final String[] fields = line.trim().split(",");
+            if (fields.length == 4)
+            {
+                final long time;
+                final int value;
+                try
+                {
+                    time = Long.parseLong(fields[0]);
+                    value = Integer.parseInt(fields[3]);
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IOException("Bad trace line: " + line);
+                }
+
+                final String event = fields[2];
+                if (event.equals(ShotTrace.getEventName(ShotTrace.DRIVE_START)))
+                {
+                    ++drives;
+                    driveSpeed = value;
+                    driveStart = time;
+                    driveAlone = !latePending;
+                    driveFrom = position;
+                }
+                else if (event.equals(ShotTrace.getEventName(ShotTrace.WATCHDOG)))
+                    latePending = driveStart >= 0;
+                else if (event.equals(ShotTrace.getEventName(ShotTrace.FOCUS_CHANGED)))
+                {
+                    ++callbacks;
+                    position = value;
+                    if (latePending && driveStart >= 0)
+                    {
+                        latePending = false;
+                        driveAlone = false;
+                        driveFrom = position;
+                    }
+                    else
+                    {
+                        if (driveAlone && driveStart >= 0 && driveSpeed >= FocusDriveController.MIN_SPEED &&
+                            driveSpeed <= FocusDriveController.MAX_SPEED)
+                        {
+                            m_driveLatencies.get(driveSpeed).add((int)(time - driveStart));
+                            if (driveFrom >= 0 && position != driveFrom)
+                                m_steps.get(driveSpeed).add(Math.abs(position - driveFrom));
+                        }
+                        driveStart = -1;
+                    }
+                }
+                else if (event.equals(ShotTrace.getEventName(ShotTrace.TAKE_PICTURE)))
+                {
+                    pictureStart = time;
+                    driveStart = -1;
+                    latePending = false;
+                }
+                else if (event.equals(ShotTrace.getEventName(ShotTrace.SHUTTER)))
+                {
+                    ++m_shutters;
+                    if (value != 0)
+                        ++m_shutterErrors;
+                    // Only the first frame of a bracket burst measures the shutter latency
+                    if (pictureStart >= 0)
+                        m_shutterLatencies.add((int)(time - pictureStart));
+                    pictureStart = -1;
+                }
+            }
+            line = reader.readLine();
+        }
+        m_drives += drives;
+        m_missedCallbacks += Math.max(0, drives - callbacks);
+    }
+
+    private void readLog(BufferedReader reader, String first) throws IOException
+    {
+        long driveStart = -1;
+        int driveSpeed = 0;
+        int driveFrom = 0;
+        int position = 0;
+        long pictureStart = -1;
+
+        String line = first;
+        while (line != null)
+        {
+            final Matcher lineMatcher = LINE.matcher(line);
+            if (lineMatcher.matches())
+            {
+                final long time = Long.parseLong(lineMatcher.group(1));
+                final String msg = lineMatcher.group(2);
+                Matcher matcher;
+                if ((matcher = DRIVE_START.matcher(msg)).find())
+                {
+                    // A new drive before the listener reported back means the watchdog gave up on the last one
+                    if (driveStart >= 0)
+                        ++m_missedCallbacks;
+                    ++m_drives;
+                    driveSpeed = Integer.parseInt(matcher.group(1));
+                    driveStart = time;
+                    driveFrom = position;
+                }
+                else if ((matcher = FOCUS_CHANGED.matcher(msg)).find())
+                {
+                    position = Integer.parseInt(matcher.group(1));
+                    if (driveStart >= 0 && driveSpeed >= FocusDriveController.MIN_SPEED && driveSpeed <= FocusDriveController.MAX_SPEED)
+                    {
+                        m_driveLatencies.get(driveSpeed).add((int)(time - driveStart));
+                        if (position != driveFrom)
+                            m_steps.get(driveSpeed).add(Math.abs(position - driveFrom));
+                    }
+                    driveStart = -1;
+                }
+                else if (msg.startsWith("Taking picture"))
+                    pictureStart = time;
+                else if ((matcher = SHUTTER.matcher(msg)).find())
+                {
+                    ++m_shutters;
+                    if (Integer.parseInt(matcher.group(1)) != 0)
+                        ++m_shutterErrors;
+                    if (pictureStart >= 0)
+                        m_shutterLatencies.add((int)(time - pictureStart));
+                    pictureStart = -1;
+                }
+            }
+            line = reader.readLine();
+        }
+    }
+
+    private static int[] toArray(List<Integer> values)
+    {
+        final int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; ++i)
+            array[i] = values.get(i);
+        return array;
+    }
+
+    /*
+        Copies the replayed samples into the given configuration; speeds without samples keep their defaults
+     */
+    public void apply(SimulationConfig config)
+    {
+        config.driveLatencySamples = new int[FocusDriveController.MAX_SPEED + 1][];
+        config.stepSamples = new int[FocusDriveController.MAX_SPEED + 1][];
+        for (int speed = FocusDriveController.MIN_SPEED; speed <= FocusDriveController.MAX_SPEED; ++speed)
+        {
+            config.driveLatencySamples[speed] = toArray(m_driveLatencies.get(speed));
+            config.stepSamples[speed] = toArray(m_steps.get(speed));
+        }
+        config.shutterLatencySamples = toArray(m_shutterLatencies);
+        if (m_drives > 0)
+            config.missedCallbackProbability = (float)m_missedCallbacks / m_drives;
+        if (m_shutters > 0)
+            config.shutterErrorProbability = (float)m_shutterErrors / m_shutters;
+    }
+
+    public String getSummary()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(m_drives).append(" drives, ").append(m_missedCallbacks).append(" missed callbacks, ");
+        builder.append(m_shutters).append(" shutter callbacks, ").append(m_shutterErrors).append(" failed\n");
+        for (int speed = FocusDriveController.MIN_SPEED; speed <= FocusDriveController.MAX_SPEED; ++speed)
+        {
+            builder.append("speed ").append(speed).append(": ").append(m_driveLatencies.get(speed).size())
+                .append(" latency samples, ").append(m_steps.get(speed).size()).append(" step samples\n");
+        }
+        return builder.toString();
+    }
+}
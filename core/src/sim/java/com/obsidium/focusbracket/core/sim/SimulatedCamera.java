@@ -0,0 +1,340 @@
+package com.obsidium.focusbracket.core.sim;
+
+import com.obsidium.focusbracket.core.CameraDriver;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+    Lens, focus motor and shutter driven by a SimulatedEventLoop. Drives move the lens after a latency and
+    may miss their listener callback, and after a reversal they take up the gear backlash before the lens
+    moves; pictures complete after the shutter latency and may fail, and bracket bursts may stop early. With
+    a limited write buffer, frames wait for the card to write out earlier ones, and fail when that takes too
+    long.
+ */
+public class SimulatedCamera implements CameraDriver
+{
+    private static final int MAX_DRIVES_IN_FLIGHT = 16;
+    // Exposure bracket periods the body accepts, in tenths of an EV
+    private static final int[] BRACKET_PERIODS = { 3, 5, 7, 10, 20, 30 };
+
+    private final SimulationConfig m_config;
+    private final SimulatedEventLoop m_loop;
+    private final Random m_random;
+    private Listener m_listener;
+
+    private int m_position;
+    // Direction of the last drive and motor travel still needed to take up the slack after a reversal
+    private boolean m_lastFar = true;
+    private int m_slack;
+
+    private boolean m_pendingExposure;
+    private int m_pendingExposureSteps;
+    private boolean m_pendingDrive;
+    private boolean m_pendingBracket;
+    private int m_pendingBracketPeriod;
+    private int m_exposureSteps;
+    private boolean m_bracket;
+
+    private int m_drives;
+    private int m_missedCallbacks;
+    private int m_frames;
+    private int m_paramWrites;
+    private long m_lastApplyMicros;
+    private int m_cycles;
+    private int m_failedFrames;
+    // When the card will have written every buffered frame
+    private long m_writesDoneAt;
+    private int m_reversals;
+
+    private class DriveCompletion implements Runnable
+    {
+        int delta;
+        boolean missed;
+        boolean busy;
+
+        @Override
+        public void run()
+        {
+            busy = false;
+            final int position = Math.max(m_config.minFocus, Math.min(m_config.maxFocus, m_position + delta));
+            // Like the body, stays silent when the lens didn't move: at the end of the travel, or taking up slack
+            if (position == m_position)
+                return;
+            m_position = position;
+            if (missed)
+                ++m_missedCallbacks;
+            else if (m_listener != null)
+                m_listener.onFocusChanged(m_position);
+        }
+    }
+
+    private final DriveCompletion[] m_driveCompletions = new DriveCompletion[MAX_DRIVES_IN_FLIGHT];
+
+    private final Runnable m_frameRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            final int result = m_random.nextFloat() < m_config.shutterErrorProbability ? 2 : 0;
+            if (result == 0)
+                ++m_frames;
+            else
+                ++m_failedFrames;
+            if (m_listener != null)
+                m_listener.onShutter(result);
+        }
+    };
+
+    private final Runnable m_bufferFullRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            ++m_failedFrames;
+            if (m_listener != null)
+                m_listener.onShutter(2);
+        }
+    };
+
+    public SimulatedCamera(SimulationConfig config, SimulatedEventLoop loop)
+    {
+        m_config = config;
+        m_loop = loop;
+        m_random = new Random(config.seed);
+        m_position = config.startFocus;
+        for (int i = 0; i < MAX_DRIVES_IN_FLIGHT; ++i)
+            m_driveCompletions[i] = new DriveCompletion();
+    }
+
+    public void reset()
+    {
+        m_random.setSeed(m_config.seed);
+        m_position = m_config.startFocus;
+        m_lastFar = true;
+        m_slack = 0;
+        m_reversals = 0;
+        m_pendingExposure = false;
+        m_pendingDrive = false;
+        m_bracket = false;
+        m_exposureSteps = 0;
+        m_drives = 0;
+        m_missedCallbacks = 0;
+        m_frames = 0;
+        m_paramWrites = 0;
+        m_lastApplyMicros = 0;
+        m_cycles = 0;
+        m_failedFrames = 0;
+        m_writesDoneAt = 0;
+        for (DriveCompletion completion : m_driveCompletions)
+            completion.busy = false;
+    }
+
+    private int jitter(float mean)
+    {
+        final float factor = 1 + m_config.jitter * (2 * m_random.nextFloat() - 1);
+        return Math.max(0, Math.round(mean * factor));
+    }
+
+    private int sample(int[] samples)
+    {
+        return samples[m_random.nextInt(samples.length)];
+    }
+
+    private int driveStep(int speed)
+    {
+        if (m_config.stepSamples != null && m_config.stepSamples[speed] != null && m_config.stepSamples[speed].length > 0)
+            return sample(m_config.stepSamples[speed]);
+        return Math.max(1, jitter(m_config.stepsPerDrive[speed]));
+    }
+
+    private int driveLatency(int speed)
+    {
+        if (m_config.driveLatencySamples != null && m_config.driveLatencySamples[speed] != null && m_config.driveLatencySamples[speed].length > 0)
+            return sample(m_config.driveLatencySamples[speed]);
+        return jitter(m_config.driveLatencyMs[speed]);
+    }
+
+    private int shutterLatency()
+    {
+        if (m_config.shutterLatencySamples != null && m_config.shutterLatencySamples.length > 0)
+            return sample(m_config.shutterLatencySamples);
+        return jitter(m_config.shutterLatencyMs);
+    }
+
+    @Override
+    public void setListener(Listener listener)
+    {
+        m_listener = listener;
+    }
+
+    @Override
+    public void startFocusDrive(boolean far, int speed)
+    {
+        ++m_drives;
+        DriveCompletion completion = null;
+        for (DriveCompletion candidate : m_driveCompletions)
+        {
+            if (!candidate.busy)
+            {
+                completion = candidate;
+                break;
+            }
+        }
+        if (completion == null)
+            return;
+        if (far != m_lastFar)
+        {
+            m_lastFar = far;
+            m_slack = m_config.backlash;
+            ++m_reversals;
+        }
+        final int travel = driveStep(speed);
+        final int step = Math.max(0, travel - m_slack);
+        m_slack = Math.max(0, m_slack - travel);
+        completion.delta = far ? step : -step;
+        completion.missed = m_random.nextFloat() < m_config.missedCallbackProbability;
+        completion.busy = true;
+        m_loop.postDelayed(completion, driveLatency(speed));
+    }
+
+    @Override
+    public void setExposureCompensation(int steps)
+    {
+        m_pendingExposure = steps != m_exposureSteps;
+        m_pendingExposureSteps = steps;
+    }
+
+    @Override
+    public void setSingleDrive()
+    {
+        m_pendingDrive = m_bracket;
+        m_pendingBracket = false;
+    }
+
+    @Override
+    public void setExposureBracket(int period)
+    {
+        m_pendingDrive = !m_bracket;
+        m_pendingBracket = true;
+        m_pendingBracketPeriod = period;
+    }
+
+    @Override
+    public boolean hasPendingParameters()
+    {
+        return m_pendingExposure || m_pendingDrive;
+    }
+
+    @Override
+    public boolean applyParameters()
+    {
+        if (!hasPendingParameters())
+            return true;
+        ++m_paramWrites;
+        m_loop.advance(m_config.paramWriteMs);
+        m_lastApplyMicros = m_config.paramWriteMs * 1000L;
+        final boolean rejected = m_pendingDrive && m_pendingBracket &&
+            (!m_config.bracketSupported || Arrays.binarySearch(BRACKET_PERIODS, m_pendingBracketPeriod) < 0);
+        if (!rejected)
+        {
+            if (m_pendingExposure)
+                m_exposureSteps = m_pendingExposureSteps;
+            if (m_pendingDrive)
+                m_bracket = m_pendingBracket;
+        }
+        m_pendingExposure = false;
+        m_pendingDrive = false;
+        return !rejected;
+    }
+
+    @Override
+    public long getLastApplyMicros()
+    {
+        return m_lastApplyMicros;
+    }
+
+    @Override
+    public void takePicture()
+    {
+        ++m_cycles;
+        final long now = m_loop.now();
+        long frameTime = now + shutterLatency();
+        int frames = m_bracket ? 3 : 1;
+        if (m_bracket && m_config.partialBurstProbability > 0 && m_random.nextFloat() < m_config.partialBurstProbability)
+            frames = 1;
+        for (int frame = 0; frame < frames; ++frame)
+        {
+            if (frame > 0)
+                frameTime += m_config.burstFrameMs;
+            if (m_config.bufferFrames > 0)
+            {
+                // A frame needs a free slot, one frees up every time the card finishes writing one
+                final long slotFree = m_writesDoneAt - (long)(m_config.bufferFrames - 1) * m_config.cardWriteMs;
+                if (slotFree - frameTime > m_config.bufferWaitMs)
+                {
+                    m_loop.postDelayed(m_bufferFullRunnable, frameTime + m_config.bufferWaitMs - now);
+                    return;
+                }
+                frameTime = Math.max(frameTime, slotFree);
+                m_writesDoneAt = Math.max(m_writesDoneAt, frameTime) + m_config.cardWriteMs;
+            }
+            m_loop.postDelayed(m_frameRunnable, frameTime - now);
+        }
+    }
+
+    @Override
+    public void cancelTakePicture()
+    {
+        m_loop.removeCallbacks(m_frameRunnable);
+        m_loop.removeCallbacks(m_bufferFullRunnable);
+    }
+
+    /*
+        Puts the lens at a position, as if it had been turned there by hand
+     */
+    public void setPosition(int position)
+    {
+        m_position = Math.max(m_config.minFocus, Math.min(m_config.maxFocus, position));
+    }
+
+    public int getPosition()
+    {
+        return m_position;
+    }
+
+    public int getReversalCount()
+    {
+        return m_reversals;
+    }
+
+    public int getDriveCount()
+    {
+        return m_drives;
+    }
+
+    public int getMissedCallbackCount()
+    {
+        return m_missedCallbacks;
+    }
+
+    public int getFrameCount()
+    {
+        return m_frames;
+    }
+
+    public int getFailedFrameCount()
+    {
+        return m_failedFrames;
+    }
+
+    public int getShutterCycleCount()
+    {
+        return m_cycles;
+    }
+
+    public int getParamWriteCount()
+    {
+        return m_paramWrites;
+    }
+}
@@ -0,0 +1,163 @@
+package com.obsidium.focusbracket.core.sim;
+
+import com.obsidium.focusbracket.core.EventLoop;
+
+import java.util.Arrays;
+
+/*
+    Discrete event loop on a simulated millisecond clock. Pending callbacks are kept in a binary heap over
+    preallocated arrays, so posting does not allocate once the heap has grown to its working size.
+ */
+public class SimulatedEventLoop implements EventLoop
+{
+    private long m_now;
+    private long m_sequence;
+
+    private long[] m_times = new long[64];
+    private long[] m_order = new long[64];
+    private Runnable[] m_runnables = new Runnable[64];
+    private int m_size;
+
+    @Override
+    public long now()
+    {
+        return m_now;
+    }
+
+    /*
+        Moves the clock forward without running callbacks, for calls that block the caller
+     */
+    public void advance(long ms)
+    {
+        m_now += ms;
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delayMs)
+    {
+        postAtTime(runnable, m_now + Math.max(0, delayMs));
+    }
+
+    @Override
+    public void postAtTime(Runnable runnable, long time)
+    {
+        if (m_size == m_times.length)
+        {
+            final int capacity = m_size * 2;
+            m_times = Arrays.copyOf(m_times, capacity);
+            m_order = Arrays.copyOf(m_order, capacity);
+            m_runnables = Arrays.copyOf(m_runnables, capacity);
+        }
+        int i = m_size++;
+        m_times[i] = Math.max(m_now, time);
+        m_order[i] = m_sequence++;
+        m_runnables[i] = runnable;
+        siftUp(i);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable runnable)
+    {
+        for (int i = m_size - 1; i >= 0; --i)
+        {
+            if (m_runnables[i] == runnable)
+                removeAt(i);
+        }
+    }
+
+    public boolean isIdle()
+    {
+        return m_size == 0;
+    }
+
+    /*
+        Runs the next pending callback, advancing the clock to its time. Returns false if none is pending.
+     */
+    public boolean runNext()
+    {
+        if (m_size == 0)
+            return false;
+        final Runnable runnable = m_runnables[0];
+        m_now = Math.max(m_now, m_times[0]);
+        removeAt(0);
+        runnable.run();
+        return true;
+    }
+
+    /*
+        Runs callbacks until none are left or the clock passes the given time
+     */
+    public void runUntil(long time)
+    {
+        while (m_size > 0 && m_times[0] <= time)
+            runNext();
+    }
+
+    public void clear()
+    {
+        for (int i = 0; i < m_size; ++i)
+            m_runnables[i] = null;
+        m_size = 0;
+    }
+
+    private boolean before(int a, int b)
+    {
+        return m_times[a] < m_times[b] || (m_times[a] == m_times[b] && m_order[a] < m_order[b]);
+    }
+
+    private void swap(int a, int b)
+    {
+        final long time = m_times[a];
+        m_times[a] = m_times[b];
+        m_times[b] = time;
+        final long order = m_order[a];
+        m_order[a] = m_order[b];
+        m_order[b] = order;
+        final Runnable runnable = m_runnables[a];
+        m_runnables[a] = m_runnables[b];
+        m_runnables[b] = runnable;
+    }
+
+    private void siftUp(int i)
+    {
+        while (i > 0)
+        {
+            final int parent = (i - 1) / 2;
+            if (!before(i, parent))
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i)
+    {
+        while (true)
+        {
+            final int left = 2 * i + 1;
+            if (left >= m_size)
+                break;
+            int child = left;
+            if (left + 1 < m_size && before(left + 1, left))
+                child = left + 1;
+            if (!before(child, i))
+                break;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void removeAt(int i)
+    {
+        final int last = --m_size;
+        if (i != last)
+        {
+            swap(i, last);
+            m_runnables[last] = null;
+            siftDown(i);
+            siftUp(i);
+        }
+        else
+            m_runnables[last] = null;
+    }
+}
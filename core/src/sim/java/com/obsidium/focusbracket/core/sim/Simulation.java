@@ -0,0 +1,329 @@
+package com.obsidium.focusbracket.core.sim;
+
+import com.obsidium.focusbracket.core.EngineLog;
+import com.obsidium.focusbracket.core.Intervalometer;
+import com.obsidium.focusbracket.core.SequenceEngine;
+import com.obsidium.focusbracket.core.ShootSettings;
+import com.obsidium.focusbracket.core.ShotTrace;
+
+import java.io.IOException;
+
+/*
+    Runs SequenceEngine against a SimulatedCamera. main() compares shot orders on a generated stack:
+
+        Simulation [--points N] [--bracket STEPS] [--tolerance N] [--pipelined] [--no-native-bracket] [--uncalibrated] [--replay TRACE]
+                   [--interval SECONDS --stacks N] [--backlash N] [--one-way] [--buffer FRAMES] [--card-write MS]
+
+    --replay takes a sequence trace (ULTRABRK/TRACE/SEQnnnnn.CSV), a directory of them, or a debug LOG.TXT.
+
+    With --interval, every shot order also runs as a time-lapse of that many stacks, reporting how close
+    the stacks finished to their deadlines.
+ */
+public class Simulation implements SequenceEngine.Listener
+{
+    // Gives up on a sequence that has not finished after this much simulated time
+    private static final long MAX_SEQUENCE_MS = 6 * 60 * 60 * 1000L;
+
+    private static final EngineLog QUIET_LOG = new EngineLog()
+    {
+        @Override
+        public void info(String msg) {}
+
+        @Override
+        public void error(String msg) {}
+    };
+
+    public static class Result
+    {
+        public boolean completed;
+        public long durationMs;
+        public int frames;
+        public int failedFrames;
+        public int shutterCycles;
+        public int drives;
+        public int reversals;
+        public int missedCallbacks;
+        public int paramWrites;
+        public long p50ShotMs;
+        public long p95ShotMs;
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s %.1f s, %d frames (%d failed) in %d shutter cycles, %d drives (%d reversals, %d callbacks missed), %d parameter writes, shot-to-shot p50 %d ms p95 %d ms",
+                completed ? "completed" : "STALLED", durationMs / 1000.0, frames, failedFrames, shutterCycles, drives, reversals, missedCallbacks, paramWrites, p50ShotMs, p95ShotMs);
+        }
+    }
+
+    private final SimulationConfig m_config;
+    private final SimulatedEventLoop m_loop = new SimulatedEventLoop();
+    private final SimulatedCamera m_camera;
+    private final SequenceEngine m_engine;
+    private final Result m_result = new Result();
+    private boolean m_finished;
+    private boolean m_completed;
+    // Time-lapse runs: the intervalometer driving them and the stack in progress
+    private Intervalometer m_intervalometer;
+    private int m_lapseStack;
+
+    public Simulation(SimulationConfig config)
+    {
+        this(config, QUIET_LOG);
+    }
+
+    public Simulation(SimulationConfig config, EngineLog log)
+    {
+        m_config = config;
+        m_camera = new SimulatedCamera(config, m_loop);
+        m_engine = new SequenceEngine(m_camera, m_loop, log);
+        m_engine.setListener(this);
+    }
+
+    public SequenceEngine getEngine()
+    {
+        return m_engine;
+    }
+
+    public SimulatedCamera getCamera()
+    {
+        return m_camera;
+    }
+
+    public SimulatedEventLoop getLoop()
+    {
+        return m_loop;
+    }
+
+    private void runUntilFinished()
+    {
+        final long deadline = m_loop.now() + MAX_SEQUENCE_MS;
+        while (!m_finished && m_loop.now() < deadline && m_loop.runNext())
+        {
+        }
+    }
+
+    /*
+        Runs the focus drive calibration sweep from the far end of the range, so it has to turn around at the
+        end stop, and leaves the lens where the sweep ended. Returns false if the sweep never finished.
+     */
+    public boolean calibrate()
+    {
+        m_finished = false;
+        m_camera.setPosition(m_config.maxFocus);
+        m_engine.onFocusChanged(m_camera.getPosition());
+        m_engine.startCalibration();
+        runUntilFinished();
+        final boolean finished = m_finished;
+        m_engine.abort();
+        m_loop.clear();
+        return finished;
+    }
+
+    /*
+        Shoots one stack starting from the configured lens position. The returned Result is reused by the
+        next call.
+     */
+    public Result run(ShootSettings settings)
+    {
+        m_loop.clear();
+        m_camera.reset();
+        m_engine.setSettings(settings);
+        m_engine.onFocusChanged(m_config.startFocus);
+
+        m_finished = false;
+        m_completed = false;
+        final long start = m_loop.now();
+        m_engine.start();
+        runUntilFinished();
+        if (!m_finished)
+            m_engine.abort();
+
+        m_result.completed = m_completed;
+        m_result.durationMs = m_loop.now() - start;
+        m_result.frames = m_camera.getFrameCount();
+        m_result.failedFrames = m_camera.getFailedFrameCount();
+        m_result.shutterCycles = m_camera.getShutterCycleCount();
+        m_result.drives = m_camera.getDriveCount();
+        m_result.reversals = m_camera.getReversalCount();
+        m_result.missedCallbacks = m_camera.getMissedCallbackCount();
+        m_result.paramWrites = m_camera.getParamWriteCount();
+        return m_result;
+    }
+
+    /*
+        Shoots stacks every intervalMs until the given number of deadlines have passed, and summarises how far
+        from its deadline each stack finished
+     */
+    public String runTimeLapse(ShootSettings settings, long intervalMs, int stacks)
+    {
+        m_loop.clear();
+        m_camera.reset();
+        m_engine.setSettings(settings);
+        m_engine.onFocusChanged(m_config.startFocus);
+
+        final long[] finishes = new long[stacks];
+        final int[] missed = new int[1];
+        m_intervalometer = new Intervalometer(m_loop);
+        m_intervalometer.setListener(new Intervalometer.Listener()
+        {
+            @Override
+            public void onStackDue(int stack)
+            {
+                m_lapseStack = stack;
+                m_finished = false;
+                if (!m_engine.start())
+                    m_intervalometer.stop();
+            }
+
+            @Override
+            public void onDeadlineMissed(int stack, long lateMs)
+            {
+                ++missed[0];
+            }
+        });
+        m_intervalometer.start(intervalMs);
+        final long end = m_loop.now() + (stacks + 1) * intervalMs + MAX_SEQUENCE_MS;
+        while (m_intervalometer.isActive() && m_lapseStack < stacks && finishes[stacks - 1] == 0 && m_loop.now() < end &&
+            m_loop.runNext())
+        {
+            if (m_finished && finishes[m_lapseStack] == 0)
+                finishes[m_lapseStack] = m_loop.now();
+        }
+        final long expectedMs = m_intervalometer.getExpectedDurationMs();
+        m_intervalometer.stop();
+        m_intervalometer = null;
+        m_engine.abort();
+
+        // Deadlines run from the end of the first stack
+        long worstLate = 0;
+        long worstEarly = 0;
+        int taken = 0;
+        for (int i = 0; i < stacks; ++i)
+        {
+            if (finishes[i] == 0)
+                continue;
+            ++taken;
+            final long error = finishes[i] - (finishes[0] + i * intervalMs);
+            worstLate = Math.max(worstLate, error);
+            worstEarly = Math.max(worstEarly, -error);
+        }
+        return String.format("%d of %d stacks every %.0f s, %d deadlines missed, finished up to %.1f s early and %.1f s late, expected stack %.1f s",
+            taken, stacks, intervalMs / 1000.0, missed[0], worstEarly / 1000.0, worstLate / 1000.0, expectedMs / 1000.0);
+    }
+
+    @Override
+    public void onEngineChanged() {}
+
+    @Override
+    public void onSequenceFinished(ShotTrace trace, boolean completed)
+    {
+        m_finished = true;
+        m_completed = completed;
+        m_result.p50ShotMs = trace.getP50ShotMs();
+        m_result.p95ShotMs = trace.getP95ShotMs();
+        if (m_intervalometer != null)
+            m_intervalometer.onStackFinished(completed);
+    }
+
+    @Override
+    public void onShot(int focus, int exposure, int result) {}
+
+    @Override
+    public void onCalibrationFinished()
+    {
+        m_finished = true;
+    }
+
+    @Override
+    public void onRangeSweepFinished(boolean completed) {}
+
+    @Override
+    public void onProbePoint(int focus) {}
+
+    @Override
+    public void onProbeFinished(boolean completed) {}
+
+    /*
+        Stack of evenly spaced focus points across the simulated range
+     */
+    public static ShootSettings createStack(SimulationConfig config, int points, int exposureBracket)
+    {
+        final ShootSettings settings = new ShootSettings();
+        settings.exposureBracket = exposureBracket;
+        final int range = config.maxFocus - config.minFocus;
+        for (int i = 0; i < points; ++i)
+            settings.focusPoints.add(config.minFocus + (points > 1 ? (int)((long)range * i / (points - 1)) : range / 2));
+        return settings;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        final SimulationConfig config = new SimulationConfig();
+        int points = 60;
+        int bracket = 0;
+        int tolerance = 0;
+        boolean calibrated = true;
+        boolean pipelined = false;
+        boolean nativeBracket = true;
+        boolean oneWay = false;
+        long intervalMs = 0;
+        int stacks = 10;
+        for (int i = 0; i < args.length; ++i)
+        {
+            if (args[i].equals("--points"))
+                points = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--bracket"))
+                bracket = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--tolerance"))
+                tolerance = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--pipelined"))
+                pipelined = true;
+            else if (args[i].equals("--no-native-bracket"))
+                nativeBracket = false;
+            else if (args[i].equals("--interval"))
+                intervalMs = Long.parseLong(args[++i]) * 1000;
+            else if (args[i].equals("--stacks"))
+                stacks = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--backlash"))
+                config.backlash = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--one-way"))
+                oneWay = true;
+            else if (args[i].equals("--buffer"))
+                config.bufferFrames = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--card-write"))
+                config.cardWriteMs = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--uncalibrated"))
+                calibrated = false;
+            else if (args[i].equals("--replay"))
+            {
+                final LogReplay replay = LogReplay.read(args[++i]);
+                replay.apply(config);
+                System.out.print(replay.getSummary());
+            }
+            else
+            {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        for (ShootSettings.ShotOrder shotOrder : ShootSettings.ShotOrder.values())
+        {
+            final Simulation simulation = new Simulation(config);
+            if (calibrated && !simulation.calibrate())
+            {
+                System.err.println("Calibration did not finish");
+                System.exit(1);
+            }
+            final ShootSettings settings = createStack(config, points, bracket);
+            settings.shotOrder = shotOrder;
+            settings.focusTolerance = tolerance;
+            settings.pipelined = pipelined;
+            settings.nativeBracket = nativeBracket;
+            settings.oneWayApproach = oneWay;
+            System.out.println(shotOrder.name() + ": " + simulation.run(settings));
+            if (intervalMs > 0)
+                System.out.println(shotOrder.name() + " time-lapse: " + simulation.runTimeLapse(settings, intervalMs, stacks));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.obsidium.focusbracket.core.sim;
+
+/*
+    Behaviour of the simulated lens, focus motor and shutter. Latencies and steps are drawn from the sample
+    arrays when present (e.g. replayed from a LOG.TXT), otherwise from the mean +/- jitter values.
+ */
+public class SimulationConfig
+{
+    public int minFocus = 0;
+    public int maxFocus = 600;
+    public int startFocus = 0;
+
+    // Mean focus position units per one-shot drive and mean time until the focus listener fires, indexed
+    // by speed 1..FocusDriveController.MAX_SPEED
+    public float[] stepsPerDrive = { 0, 1, 2, 3, 5, 8, 13, 21 };
+    public int[] driveLatencyMs = { 0, 40, 40, 45, 45, 50, 55, 60 };
+    // Relative jitter applied to steps and latencies
+    public float jitter = 0.15f;
+    // Gear slack: motor travel in position units that doesn't move the lens after the motor reverses
+    public int backlash = 0;
+
+    // Drive still moves the lens, but the focus listener is not called
+    public float missedCallbackProbability = 0.05f;
+
+    public int paramWriteMs = 30;
+    public int shutterLatencyMs = 350;
+    public int burstFrameMs = 120;
+    public float shutterErrorProbability = 0;
+    public boolean bracketSupported = true;
+    // Native bracket bursts that stop after their first frame, like a body that loses the burst
+    public float partialBurstProbability = 0;
+    // Card write buffer in frames, 0 = unlimited, time the card takes to write out one frame, and how long
+    // the shutter waits for a free slot before the picture fails
+    public int bufferFrames = 0;
+    public int cardWriteMs = 500;
+    public int bufferWaitMs = 1500;
+
+    // Replayed samples, indexed by speed where applicable; null = use the values above
+    public int[][] driveLatencySamples;
+    public int[][] stepSamples;
+    public int[] shutterLatencySamples;
+
+    public long seed = 1;
+}
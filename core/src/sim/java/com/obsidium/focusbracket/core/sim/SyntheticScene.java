@@ -0,0 +1,189 @@
+package com.obsidium.focusbracket.core.sim;
+
+import com.obsidium.focusbracket.core.CoveragePruner;
+import com.obsidium.focusbracket.core.FocusPointSet;
+import com.obsidium.focusbracket.core.RangeFinder;
+import com.obsidium.focusbracket.core.SharpnessGrid;
+import com.obsidium.focusbracket.core.SharpnessSeries;
+
+import java.util.Random;
+
+/*
+    Renders luma preview frames of a textured subject in front of a faint background as the lens would see
+    them at a given focus position: every pixel is box blurred in proportion to its distance from the focus
+    plane. The subject is a plane tilted from subjectNear (left edge) to subjectFar (right edge), covering the
+    middle half of the frame.
+ */
+public class SyntheticScene
+{
+    private static final int MAX_BLUR_RADIUS = 8;
+    private static final int BACKGROUND_CONTRAST = 6;
+
+    private final int m_width;
+    private final int m_height;
+    private final int[] m_depth;
+    // Summed area table of the sharp scene, (width + 1) * (height + 1)
+    private final int[] m_integral;
+    // Focus position units per pixel of blur radius
+    private int m_blurStep = 12;
+
+    public SyntheticScene(int width, int height, int subjectNear, int subjectFar, int backgroundDepth, long seed)
+    {
+        m_width = width;
+        m_height = height;
+        m_depth = new int[width * height];
+        final Random random = new Random(seed);
+        final int[] sharp = new int[width * height];
+        final int x0 = width / 4;
+        final int x1 = width - width / 4;
+        final int y0 = height / 4;
+        final int y1 = height - height / 4;
+        for (int y = 0; y < height; ++y)
+        {
+            for (int x = 0; x < width; ++x)
+            {
+                final int i = y * width + x;
+                if (x >= x0 && x < x1 && y >= y0 && y < y1)
+                {
+                    m_depth[i] = subjectNear + (subjectFar - subjectNear) * (x - x0) / Math.max(1, x1 - x0 - 1);
+                    sharp[i] = random.nextInt(256);
+                }
+                else
+                {
+                    m_depth[i] = backgroundDepth;
+                    sharp[i] = 128 + random.nextInt(BACKGROUND_CONTRAST);
+                }
+            }
+        }
+
+        m_integral = new int[(width + 1) * (height + 1)];
+        for (int y = 0; y < height; ++y)
+        {
+            int row = 0;
+            for (int x = 0; x < width; ++x)
+            {
+                row += sharp[y * width + x];
+                m_integral[(y + 1) * (width + 1) + x + 1] = m_integral[y * (width + 1) + x + 1] + row;
+            }
+        }
+    }
+
+    public void setBlurStep(int blurStep)
+    {
+        m_blurStep = Math.max(1, blurStep);
+    }
+
+    public int getWidth()
+    {
+        return m_width;
+    }
+
+    public int getHeight()
+    {
+        return m_height;
+    }
+
+    /*
+        Writes the frame seen with the lens at the given focus position into luma (width * height)
+     */
+    public void render(int position, byte[] luma)
+    {
+        render(position, false, luma);
+    }
+
+    /*
+        Writes the scene with every pixel in focus, what a perfect stack would produce
+     */
+    public void renderInFocus(byte[] luma)
+    {
+        render(0, true, luma);
+    }
+
+    private void render(int position, boolean inFocus, byte[] luma)
+    {
+        final int stride = m_width + 1;
+        for (int y = 0; y < m_height; ++y)
+        {
+            for (int x = 0; x < m_width; ++x)
+            {
+                final int i = y * m_width + x;
+                final int r = inFocus ? 0 : Math.min(MAX_BLUR_RADIUS, Math.abs(position - m_depth[i]) / m_blurStep);
+                final int left = Math.max(0, x - r);
+                final int right = Math.min(m_width, x + r + 1);
+                final int top = Math.max(0, y - r);
+                final int bottom = Math.min(m_height, y + r + 1);
+                final int sum = m_integral[bottom * stride + right] - m_integral[top * stride + right]
+                    - m_integral[bottom * stride + left] + m_integral[top * stride + left];
+                luma[i] = (byte)(sum / ((right - left) * (bottom - top)));
+            }
+        }
+    }
+
+    /*
+        SyntheticScene [--near N] [--far N] [--step N] [--max N] [--prune PERCENT]
+        Sweeps a synthetic scene and compares the range found with the real one, then prunes focus points
+        taken every step across the real range.
+     */
+    public static void main(String[] args)
+    {
+        int near = 180;
+        int far = 320;
+        int step = 10;
+        int max = 600;
+        int prune = 2;
+        for (int i = 0; i < args.length; ++i)
+        {
+            if (args[i].equals("--near"))
+                near = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--far"))
+                far = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--step"))
+                step = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--max"))
+                max = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--prune"))
+                prune = Integer.parseInt(args[++i]);
+            else
+            {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        final SyntheticScene scene = new SyntheticScene(640, 480, near, far, max, 1);
+        final byte[] frame = new byte[scene.getWidth() * scene.getHeight()];
+        final SharpnessSeries sweep = new SharpnessSeries(new SharpnessGrid(8, 6), max / step + 1);
+        final long start = System.nanoTime();
+        long measureNanos = 0;
+        for (int position = 0; position <= max; position += step)
+        {
+            scene.render(position, frame);
+            final long measureStart = System.nanoTime();
+            sweep.add(position, frame, scene.getWidth(), scene.getHeight());
+            measureNanos += System.nanoTime() - measureStart;
+        }
+        final RangeFinder finder = new RangeFinder();
+        final boolean found = finder.findRange(sweep);
+        System.out.println(String.format("%d frames in %d ms (%.2f ms per frame measured)", sweep.getFrameCount(),
+            (System.nanoTime() - start) / 1000000, measureNanos / 1e6 / sweep.getFrameCount()));
+        if (found)
+            System.out.println("Range " + finder.getNear() + " - " + finder.getFar() + " from " + finder.getSubjectTiles() +
+                " tiles, subject spans " + near + " - " + far);
+        else
+            System.out.println("No subject found, subject spans " + near + " - " + far);
+
+        final SharpnessSeries probe = new SharpnessSeries(new SharpnessGrid(16, 12), (far - near) / step + 1);
+        for (int position = near; position <= far; position += step)
+        {
+            scene.render(position, frame);
+            probe.add(position, frame, scene.getWidth(), scene.getHeight());
+        }
+        final CoveragePruner pruner = new CoveragePruner();
+        final FocusPointSet kept = pruner.prune(probe, prune);
+        final StringBuilder points = new StringBuilder();
+        for (int i = 0; i < kept.size(); ++i)
+            points.append(' ').append(kept.get(i));
+        System.out.println("Pruned " + pruner.getPrunedCount() + " of " + probe.getFrameCount() + " points at " + prune +
+            "% loss, " + pruner.getUncoveredTiles() + " of " + pruner.getSubjectTiles() + " tiles uncovered, kept" + points);
+    }
+}
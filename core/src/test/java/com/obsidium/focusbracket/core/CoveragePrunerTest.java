@@ -0,0 +1,89 @@
+package com.obsidium.focusbracket.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CoveragePrunerTest
+{
+    private static final int COLUMNS = 8;
+    private static final int ROWS = 6;
+    private static final int TILE_SIZE = 8;
+    private static final int WIDTH = COLUMNS * TILE_SIZE;
+    private static final int HEIGHT = ROWS * TILE_SIZE;
+
+    /*
+        Frame that is sharp on the given tiles and flat elsewhere. The texture leaves a flat margin on the top
+        and left of its tile, so it doesn't show in the differences the neighbouring tiles sample across.
+     */
+    private static byte[] frame(int... sharpTiles)
+    {
+        final byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < luma.length; ++i)
+            luma[i] = (byte)128;
+        for (int tile : sharpTiles)
+        {
+            final int x0 = (tile % COLUMNS) * TILE_SIZE;
+            final int y0 = (tile / COLUMNS) * TILE_SIZE;
+            for (int y = 2; y < TILE_SIZE; ++y)
+            {
+                for (int x = 2; x < TILE_SIZE; ++x)
+                    luma[(y0 + y) * WIDTH + x0 + x] = (byte)(((x / 2 + y / 2) % 2 == 0) ? 228 : 28);
+            }
+        }
+        return luma;
+    }
+
+    private static SharpnessSeries series(byte[]... frames)
+    {
+        final SharpnessSeries series = new SharpnessSeries(new SharpnessGrid(COLUMNS, ROWS), frames.length);
+        for (int i = 0; i < frames.length; ++i)
+            series.add(i * 10, frames[i], WIDTH, HEIGHT);
+        return series;
+    }
+
+    @Test
+    public void dropsOneOfTwoPointsCoveringTheSameTiles()
+    {
+        final CoveragePruner pruner = new CoveragePruner();
+        final FocusPointSet kept = pruner.prune(series(frame(0, 1, 2), frame(0, 1, 2), frame(10, 11)), 0);
+        assertEquals(5, pruner.getSubjectTiles());
+        assertEquals(1, pruner.getPrunedCount());
+        assertEquals(0, pruner.getUncoveredTiles());
+        assertArrayEquals(new int[] { 10, 20 }, kept.toArray());
+    }
+
+    @Test
+    public void keepsPointsAddingMoreThanTheThreshold()
+    {
+        final CoveragePruner pruner = new CoveragePruner();
+        final FocusPointSet kept = pruner.prune(series(frame(0, 1), frame(2, 3), frame(4, 5)), 20);
+        assertEquals(0, pruner.getPrunedCount());
+        assertEquals(3, kept.size());
+    }
+
+    @Test
+    public void totalLossStaysWithinTheThreshold()
+    {
+        // Every point alone covers a tenth of the subject, so each one is below the threshold on its own
+        final byte[][] frames = new byte[10][];
+        for (int i = 0; i < frames.length; ++i)
+            frames[i] = frame(i);
+        final CoveragePruner pruner = new CoveragePruner();
+        final FocusPointSet kept = pruner.prune(series(frames), 25);
+        assertEquals(10, pruner.getSubjectTiles());
+        assertEquals(2, pruner.getPrunedCount());
+        assertEquals(2, pruner.getUncoveredTiles());
+        assertEquals(8, kept.size());
+    }
+
+    @Test
+    public void keepsEverythingWithoutSubject()
+    {
+        final CoveragePruner pruner = new CoveragePruner();
+        final FocusPointSet kept = pruner.prune(series(frame(), frame(), frame()), 100);
+        assertEquals(0, pruner.getSubjectTiles());
+        assertEquals(3, kept.size());
+    }
+}
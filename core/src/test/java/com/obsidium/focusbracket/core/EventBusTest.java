@@ -0,0 +1,145 @@
+package com.obsidium.focusbracket.core;
+
+import com.obsidium.focusbracket.core.sim.SimulatedEventLoop;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EventBusTest
+{
+    // Records every event as "name:event:arg1:arg2"
+    private static class Recorder implements EventBus.Listener
+    {
+        private final String m_name;
+        private final List<String> m_log;
+
+        Recorder(String name, List<String> log)
+        {
+            m_name = name;
+            m_log = log;
+        }
+
+        @Override
+        public void onEvent(int event, int arg1, int arg2)
+        {
+            m_log.add(m_name + ":" + event + ":" + arg1 + ":" + arg2);
+        }
+    }
+
+    @Test
+    public void listenersAreCalledInSubscriptionOrder()
+    {
+        final EventBus bus = new EventBus();
+        final List<String> log = new ArrayList<String>();
+        bus.subscribe(EventBus.FOCUS_CHANGED, new Recorder("a", log));
+        bus.subscribe(EventBus.FOCUS_CHANGED, new Recorder("b", log));
+        bus.subscribe(EventBus.SHUTTER, new Recorder("c", log));
+
+        bus.post(EventBus.FOCUS_CHANGED, 12, 34);
+        assertEquals(2, log.size());
+        assertEquals("a:0:12:34", log.get(0));
+        assertEquals("b:0:12:34", log.get(1));
+        assertFalse(bus.hasListeners(EventBus.LENS_ATTACHED));
+    }
+
+    @Test
+    public void loopSubscriptionIsDeliveredOnTheLoop()
+    {
+        final EventBus bus = new EventBus();
+        final SimulatedEventLoop loop = new SimulatedEventLoop();
+        final List<String> log = new ArrayList<String>();
+        bus.subscribe(EventBus.SHUTTER, new Recorder("a", log), loop);
+
+        bus.post(EventBus.SHUTTER, 0, 0);
+        bus.post(EventBus.SHUTTER, 2, 0);
+        assertTrue(log.isEmpty());
+        loop.runUntil(0);
+        assertEquals(2, log.size());
+        assertEquals("a:1:0:0", log.get(0));
+        assertEquals("a:1:2:0", log.get(1));
+        assertTrue(loop.isIdle());
+    }
+
+    @Test
+    public void fullQueueDropsTheOldest()
+    {
+        final EventBus bus = new EventBus();
+        final SimulatedEventLoop loop = new SimulatedEventLoop();
+        final List<String> log = new ArrayList<String>();
+        final Recorder recorder = new Recorder("a", log);
+        bus.subscribe(EventBus.FOCUS_CHANGED, recorder, loop);
+
+        for (int i = 0; i < 70; ++i)
+            bus.post(EventBus.FOCUS_CHANGED, i, 0);
+        loop.runUntil(0);
+        assertEquals(64, log.size());
+        assertEquals("a:0:6:0", log.get(0));
+        assertEquals("a:0:69:0", log.get(63));
+        assertEquals(6, bus.getDroppedCount(recorder));
+    }
+
+    @Test
+    public void unsubscribeDropsQueuedEvents()
+    {
+        final EventBus bus = new EventBus();
+        final SimulatedEventLoop loop = new SimulatedEventLoop();
+        final List<String> log = new ArrayList<String>();
+        final Recorder recorder = new Recorder("a", log);
+        bus.subscribe(EventBus.FOCUS_CHANGED, recorder, loop);
+        bus.subscribe(EventBus.SHUTTER, recorder, loop);
+
+        bus.post(EventBus.FOCUS_CHANGED, 1, 0);
+        bus.unsubscribeAll(recorder);
+        bus.post(EventBus.SHUTTER, 0, 0);
+        loop.runUntil(0);
+        assertTrue(log.isEmpty());
+        assertFalse(bus.hasListeners(EventBus.FOCUS_CHANGED));
+    }
+
+    @Test
+    public void listenerMayUnsubscribeWhileCalled()
+    {
+        final EventBus bus = new EventBus();
+        final List<String> log = new ArrayList<String>();
+        final Recorder second = new Recorder("b", log);
+        bus.subscribe(EventBus.LENS_DETACHED, new EventBus.Listener()
+        {
+            @Override
+            public void onEvent(int event, int arg1, int arg2)
+            {
+                log.add("a");
+                bus.unsubscribe(EventBus.LENS_DETACHED, this);
+                bus.unsubscribe(EventBus.LENS_DETACHED, second);
+            }
+        });
+        bus.subscribe(EventBus.LENS_DETACHED, second);
+
+        // The post running walks the subscriptions it started with
+        bus.post(EventBus.LENS_DETACHED);
+        bus.post(EventBus.LENS_DETACHED);
+        assertEquals(2, log.size());
+        assertEquals("a", log.get(0));
+        assertEquals("b:3:0:0", log.get(1));
+    }
+
+    @Test
+    public void unknownEventIsRejected()
+    {
+        final EventBus bus = new EventBus();
+        try
+        {
+            bus.post(EventBus.EVENT_COUNT);
+            fail("Posted an unknown event");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+    }
+}
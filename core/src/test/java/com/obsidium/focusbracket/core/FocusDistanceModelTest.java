@@ -0,0 +1,48 @@
+package com.obsidium.focusbracket.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FocusDistanceModelTest
+{
+    @Test
+    public void linearModelGoesFromTheMinimumDistanceToInfinity()
+    {
+        final FocusDistanceModel model = FocusDistanceModel.linear(0, 250, 600);
+        assertEquals(250, model.toDistanceMm(0), 0.01f);
+        assertEquals(500, model.toDistanceMm(300), 0.01f);
+        assertTrue(Float.isInfinite(model.toDistanceMm(600)));
+        // Never beyond infinity
+        assertEquals(0, model.toDiopters(700), 0);
+        assertEquals(150, model.toPosition(3), 0.01f);
+    }
+
+    @Test
+    public void reversedLensMapsTheSameWay()
+    {
+        final FocusDistanceModel model = FocusDistanceModel.linear(600, 250, 0);
+        assertEquals(0, model.getMinPosition());
+        assertEquals(250, model.toDistanceMm(600), 0.01f);
+        assertEquals(450, model.toPosition(3), 0.01f);
+    }
+
+    @Test
+    public void anchorsInterpolatePiecewise()
+    {
+        final FocusDistanceModel model = new FocusDistanceModel(new int[] { 0, 100, 600 }, new float[] { 4, 1, 0 });
+        assertEquals(2.5f, model.toDiopters(50), 0.001f);
+        assertEquals(0.5f, model.toDiopters(350), 0.001f);
+        assertEquals(350, model.toPosition(0.5f), 0.01f);
+        assertEquals(50, model.toPosition(2.5f), 0.01f);
+        for (int position = 0; position <= 600; position += 25)
+            assertEquals(position, model.toPosition(model.toDiopters(position)), 0.01f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anchorsMustBeMonotonic()
+    {
+        new FocusDistanceModel(new int[] { 0, 100, 600 }, new float[] { 4, 1, 2 });
+    }
+}
@@ -0,0 +1,142 @@
+package com.obsidium.focusbracket.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FocusDriveControllerTest
+{
+    private static final float DELTA = 0.001f;
+
+    // Speed s moves the lens 2 * s
+    private static FocusDriveController calibrated()
+    {
+        final FocusDriveController controller = new FocusDriveController();
+        for (int speed = FocusDriveController.MIN_SPEED; speed <= FocusDriveController.MAX_SPEED; ++speed)
+            controller.setStepsPerDrive(speed, 2 * speed);
+        return controller;
+    }
+
+    @Test
+    public void unmeasuredControllerUsesTheDefaultSpeeds()
+    {
+        final FocusDriveController controller = new FocusDriveController();
+        assertEquals(7, controller.chooseSpeed(0, 100));
+        assertEquals(4, controller.chooseSpeed(100, 97));
+        assertEquals(-1, controller.plannedDrives(100));
+    }
+
+    @Test
+    public void choosesTheFastestStepThatDoesNotOvershoot()
+    {
+        final FocusDriveController controller = calibrated();
+        assertTrue(controller.isCalibrated());
+        assertEquals(7, controller.chooseSpeed(0, 100));
+        assertEquals(4, controller.chooseSpeed(0, 9));
+        assertEquals(4, controller.chooseSpeed(9, 0));
+        assertEquals(1, controller.chooseSpeed(0, 1));
+        controller.setTolerance(1);
+        assertEquals(5, controller.chooseSpeed(0, 9));
+    }
+
+    @Test
+    public void cautiousChoiceLeavesRoomForTheDeviation()
+    {
+        final FocusDriveController controller = calibrated();
+        // Speed 4 alternates between 6 and 10, averaging about 8 with a deviation of about 2
+        for (int i = 0; i < 20; ++i)
+        {
+            controller.onDriveResult(4, true, 6);
+            controller.onDriveResult(4, true, 10);
+        }
+        assertEquals(4, controller.chooseSpeed(0, 9, false));
+        assertEquals(3, controller.chooseSpeed(0, 9, true));
+    }
+
+    @Test
+    public void unmeasuredSpeedsAreEstimatedFromMeasuredOnes()
+    {
+        final FocusDriveController controller = new FocusDriveController();
+        controller.setStepsPerDrive(4, 5);
+        controller.setStepsPerDrive(7, 21);
+        assertFalse(controller.isCalibrated());
+        assertEquals(2, controller.getMeasuredSpeeds());
+        // Speed 5 is expected to move about 10, speed 6 about 16
+        assertEquals(5, controller.chooseSpeed(0, 12));
+        assertEquals(6, controller.chooseSpeed(0, 17));
+        // Below speed 4 the steps are scaled down from it
+        assertEquals(2, controller.chooseSpeed(0, 3));
+        assertTrue(controller.plannedDrives(100) > 0);
+    }
+
+    @Test
+    public void speedsFasterThanAnyMeasuredAreNotGuessed()
+    {
+        final FocusDriveController controller = new FocusDriveController();
+        controller.setStepsPerDrive(2, 3);
+        assertEquals(2, controller.chooseSpeed(0, 100));
+    }
+
+    @Test
+    public void drivesTeachUnmeasuredSpeeds()
+    {
+        final FocusDriveController controller = new FocusDriveController();
+        controller.onDriveResult(7, true, 21);
+        assertEquals(21, controller.getStepsPerDrive(7), DELTA);
+        controller.onDriveResult(7, true, 26);
+        assertEquals(22, controller.getStepsPerDrive(7), DELTA);
+        controller.onDriveResult(3, true, 0);
+        assertEquals(0, controller.getStepsPerDrive(3), DELTA);
+        assertEquals(1, controller.getMeasuredSpeeds());
+    }
+
+    @Test
+    public void reversalFeedsTheBacklash()
+    {
+        final FocusDriveController controller = calibrated();
+        controller.onDriveResult(4, true, 8);
+        // Turning around, the first drive only takes up slack and the second loses part of its step
+        controller.onDriveResult(4, false, 0);
+        controller.onDriveResult(4, false, -5);
+        assertEquals(11, controller.getBacklash(), DELTA);
+        // Neither counted as a step of speed 4
+        assertEquals(8, controller.getStepsPerDrive(4), DELTA);
+        // The next reversal is expected to lose the backlash
+        assertEquals(7, controller.chooseSpeed(0, 3));
+    }
+
+    @Test
+    public void calibrationTurnsAroundAtTheEndStop()
+    {
+        final FocusDriveController controller = new FocusDriveController();
+        final FocusDriveController.Calibration calibration = controller.new Calibration();
+        // Lens with speed s moving 2 * s, starting close to its far end
+        final int max = 100;
+        int position = 95;
+        int drives = 0;
+        boolean done = false;
+        while (!done && ++drives < 1000)
+        {
+            final int step = 2 * calibration.getSpeed();
+            final int next = Math.max(0, Math.min(max, position + (calibration.isDirectionFar() ? step : -step)));
+            final int delta = next - position;
+            position = next;
+            done = calibration.onDriveResult(delta);
+        }
+        assertTrue(done);
+        assertTrue(controller.isCalibrated());
+        for (int speed = FocusDriveController.MIN_SPEED; speed <= FocusDriveController.MAX_SPEED; ++speed)
+            assertEquals(2 * speed, controller.getStepsPerDrive(speed), DELTA);
+    }
+
+    @Test
+    public void approachOffsetClearsTheSlack()
+    {
+        final FocusDriveController controller = calibrated();
+        controller.setBacklash(3.5f);
+        controller.setTolerance(1);
+        assertEquals(4 + 2 + 1, controller.getApproachOffset());
+    }
+}
@@ -0,0 +1,92 @@
+package com.obsidium.focusbracket.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FocusPointPlannerTest
+{
+    // 0.25 m at position 0 to infinity at 600, 1/150 diopter per position
+    private static final FocusDistanceModel MODEL = FocusDistanceModel.linear(0, 250, 600);
+    private static final float POSITION_DIOPTERS = 4.0f / 600;
+
+    private static FocusPointPlanner planner(float focalLengthMm, float aperture, float overlap)
+    {
+        final FocusPointPlanner planner = new FocusPointPlanner(MODEL);
+        planner.setOptics(focalLengthMm, aperture);
+        planner.setOverlap(overlap);
+        return planner;
+    }
+
+    // Depth of field limits in diopters when focused at a position
+    private static float nearLimit(FocusPointPlanner planner, float f, int position)
+    {
+        final float s = MODEL.toDistanceMm(position);
+        final float h = planner.getHyperfocalMm();
+        return Float.isInfinite(s) ? 1000.0f / (h - f) : 1000.0f * (h + s - 2 * f) / (s * (h - f));
+    }
+
+    private static float farLimit(FocusPointPlanner planner, float f, int position)
+    {
+        final float s = MODEL.toDistanceMm(position);
+        final float h = planner.getHyperfocalMm();
+        return s >= h ? 0 : 1000.0f * (h - s) / (s * (h - f));
+    }
+
+    @Test
+    public void depthsOfFieldLeaveNoGaps()
+    {
+        final FocusPointPlanner planner = planner(50, 8, 0.2f);
+        final FocusPointSet points = planner.plan(60, 450);
+        assertTrue(points.size() > 3);
+        assertTrue(points.get(0) >= 60 && points.get(points.size() - 1) <= 450);
+        // The first depth of field starts at the near mark, the last one reaches the far mark
+        assertEquals(MODEL.toDiopters(60), nearLimit(planner, 50, points.get(0)), POSITION_DIOPTERS);
+        assertTrue(farLimit(planner, 50, points.get(points.size() - 1)) <= MODEL.toDiopters(450) + POSITION_DIOPTERS);
+        for (int i = 1; i < points.size(); ++i)
+            assertTrue("gap after point " + i, nearLimit(planner, 50, points.get(i)) >= farLimit(planner, 50, points.get(i - 1)) - POSITION_DIOPTERS);
+    }
+
+    @Test
+    public void marksMayComeInEitherOrder()
+    {
+        final FocusPointPlanner planner = planner(50, 8, 0.2f);
+        assertArrayEquals(planner.plan(60, 450).toArray(), planner.plan(450, 60).toArray());
+    }
+
+    @Test
+    public void shallowerFocusNeedsMorePoints()
+    {
+        final int f8 = planner(50, 8, 0.2f).plan(0, 600).size();
+        assertTrue(planner(50, 2.8f, 0.2f).plan(0, 600).size() > f8);
+        assertTrue(planner(100, 8, 0.2f).plan(0, 600).size() > f8);
+        assertTrue(planner(50, 8, 0.6f).plan(0, 600).size() > f8);
+        assertTrue(planner(24, 8, 0.2f).plan(0, 600).size() < f8);
+    }
+
+    @Test
+    public void infinityEndsAtTheHyperfocalDistance()
+    {
+        final FocusPointPlanner planner = planner(50, 8, 0.2f);
+        final FocusPointSet points = planner.plan(300, 600);
+        // The last point's depth of field reaches infinity without going past the far mark
+        assertEquals(0, farLimit(planner, 50, points.get(points.size() - 1)), 0);
+        assertTrue(points.size() < FocusPointPlanner.MAX_POINTS);
+    }
+
+    @Test
+    public void shortRangeIsOnePoint()
+    {
+        assertEquals(1, planner(24, 11, 0.2f).plan(500, 520).size());
+    }
+
+    @Test
+    public void overlapIsClamped()
+    {
+        // 0.9 is the most overlap there can be, higher values would never advance
+        assertArrayEquals(planner(50, 8, 0.9f).plan(0, 600).toArray(), planner(50, 8, 5).plan(0, 600).toArray());
+        assertArrayEquals(planner(50, 8, 0).plan(0, 600).toArray(), planner(50, 8, -1).plan(0, 600).toArray());
+    }
+}
@@ -0,0 +1,100 @@
+package com.obsidium.focusbracket.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FocusWatchdogTest
+{
+    private static FocusWatchdog learned(int speed, int latencyMs)
+    {
+        final FocusWatchdog watchdog = new FocusWatchdog();
+        for (int i = 0; i < 32; ++i)
+            watchdog.onCallback(speed, latencyMs);
+        return watchdog;
+    }
+
+    @Test
+    public void startsWithTheDefaultTimeout()
+    {
+        final FocusWatchdog watchdog = new FocusWatchdog();
+        assertEquals(FocusWatchdog.DEFAULT_TIMEOUT_MS, watchdog.onDriveStarted(4));
+        // Too few samples to go by
+        watchdog.onCallback(4, 200);
+        assertEquals(FocusWatchdog.DEFAULT_TIMEOUT_MS, watchdog.getTimeout(4));
+        assertEquals(FocusWatchdog.DEFAULT_TIMEOUT_MS, watchdog.getTimeout(0));
+    }
+
+    @Test
+    public void timeoutFollowsTheLatency()
+    {
+        final FocusWatchdog watchdog = learned(4, 40);
+        assertEquals(40 + 10 + 5, watchdog.getTimeout(4));
+        // Other speeds learn on their own
+        assertEquals(FocusWatchdog.DEFAULT_TIMEOUT_MS, watchdog.getTimeout(5));
+        // An occasional slow callback is above the 95th percentile
+        watchdog.onCallback(4, 300);
+        assertEquals(55, watchdog.getTimeout(4));
+        watchdog.onCallback(4, 300);
+        assertEquals(300 + 75 + 5, watchdog.getTimeout(4));
+    }
+
+    @Test
+    public void timeoutIsBounded()
+    {
+        assertEquals(15, learned(1, 1).getTimeout(1));
+        assertEquals(1000, learned(1, 5000).getTimeout(1));
+    }
+
+    @Test
+    public void slowerLensWidensTheTimeout()
+    {
+        final FocusWatchdog watchdog = learned(4, 40);
+        watchdog.onDriveStarted(4);
+        watchdog.onTimeout(4, true);
+        assertEquals(110, watchdog.getTimeout(4));
+        // The lens now answers after 100 ms, which the doubled timeout lets through
+        for (int i = 0; i < 4; ++i)
+            watchdog.onCallback(4, 100);
+        assertEquals(130, watchdog.getTimeout(4));
+    }
+
+    @Test
+    public void floorHoldsWhileCallbacksNeedIt()
+    {
+        final FocusWatchdog watchdog = learned(4, 40);
+        watchdog.onTimeout(4, true);
+        // Only got through because of the floor
+        watchdog.onCallback(4, 100);
+        assertEquals(110, watchdog.getTimeout(4));
+        watchdog.onCallback(4, 40);
+        assertEquals(97, watchdog.getTimeout(4));
+    }
+
+    @Test
+    public void lostCallbackWidensOnlyForAWhile()
+    {
+        final FocusWatchdog watchdog = learned(4, 40);
+        watchdog.onTimeout(4, true);
+        watchdog.onTimeout(4, true);
+        assertEquals(110, watchdog.getTimeout(4));
+        for (int i = 0; i < 16; ++i)
+            watchdog.onCallback(4, 40);
+        assertEquals(55, watchdog.getTimeout(4));
+    }
+
+    @Test
+    public void silentDriveOnlyCounts()
+    {
+        final FocusWatchdog watchdog = learned(7, 40);
+        watchdog.onDriveStarted(7);
+        watchdog.onTimeout(7, false);
+        assertEquals(55, watchdog.getTimeout(7));
+        assertEquals(1, watchdog.getDriveCount());
+        assertEquals(1, watchdog.getFireCount());
+        watchdog.resetCounters();
+        assertEquals(0, watchdog.getFireCount());
+        assertTrue(watchdog.getTimeout(7) > 0);
+    }
+}
@@ -0,0 +1,139 @@
+package com.obsidium.focusbracket.core;
+
+import com.obsidium.focusbracket.core.sim.SimulatedEventLoop;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IntervalometerTest
+{
+    private static final long INTERVAL_MS = 10000;
+
+    private SimulatedEventLoop m_loop;
+    private Intervalometer m_intervalometer;
+    // Duration of each stack by number, the last one for any stack past the end
+    private long[] m_durations;
+    private boolean m_abort;
+    private final List<Long> m_starts = new ArrayList<Long>();
+    private final List<Integer> m_stacks = new ArrayList<Integer>();
+    private final List<Integer> m_missedStacks = new ArrayList<Integer>();
+    private final List<Long> m_lateMs = new ArrayList<Long>();
+
+    @Before
+    public void setUp()
+    {
+        m_loop = new SimulatedEventLoop();
+        m_intervalometer = new Intervalometer(m_loop);
+        m_intervalometer.setListener(new Intervalometer.Listener()
+        {
+            @Override
+            public void onStackDue(int stack)
+            {
+                m_starts.add(m_loop.now());
+                m_stacks.add(stack);
+                m_loop.postDelayed(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        m_intervalometer.onStackFinished(!m_abort);
+                    }
+                }, m_durations[Math.min(m_starts.size() - 1, m_durations.length - 1)]);
+            }
+
+            @Override
+            public void onDeadlineMissed(int stack, long lateMs)
+            {
+                m_missedStacks.add(stack);
+                m_lateMs.add(lateMs);
+            }
+        });
+    }
+
+    @Test
+    public void stacksFinishOnTheGrid()
+    {
+        m_durations = new long[] { 3000 };
+        m_intervalometer.start(INTERVAL_MS);
+        m_loop.runUntil(45000);
+
+        // The first stack ends at 3000, every later one is started to end by 3000 + k * 10000
+        assertEquals(Long.valueOf(0), m_starts.get(0));
+        for (int k = 1; k < m_starts.size(); ++k)
+        {
+            assertEquals(Integer.valueOf(k), m_stacks.get(k));
+            assertTrue(m_starts.get(k) + 3000 <= 3000 + k * INTERVAL_MS);
+            assertTrue(m_starts.get(k) + 3000 > 3000 + k * INTERVAL_MS - 1000);
+        }
+        assertEquals(5, m_starts.size());
+        assertEquals(0, m_intervalometer.getMissedCount());
+        assertTrue(m_intervalometer.isWaiting());
+    }
+
+    @Test
+    public void longerStacksStartEarlier()
+    {
+        m_durations = new long[] { 3000, 3000, 5000, 5000 };
+        m_intervalometer.start(INTERVAL_MS);
+        m_loop.runUntil(45000);
+
+        // Stack 2 runs over its deadline; from then on the start allows for the longer duration and the spread
+        assertEquals(1, m_intervalometer.getMissedCount());
+        assertEquals(Integer.valueOf(2), m_missedStacks.get(0));
+        assertEquals(Long.valueOf(1500), m_lateMs.get(0));
+        assertEquals(Long.valueOf(33000 - 5000 - 500 - 2000), m_starts.get(3));
+    }
+
+    @Test
+    public void passedDeadlinesAreSkipped()
+    {
+        m_durations = new long[] { 3000, 25000, 3000 };
+        m_intervalometer.start(INTERVAL_MS);
+        m_loop.runUntil(34500);
+
+        // Stack 1 starts at 9500 and ends at 34500, after the deadlines of stacks 1, 2 and 3; stack 4 is
+        // started right away since its deadline is too close for the expected duration
+        assertEquals(3, m_intervalometer.getMissedCount());
+        assertEquals(Integer.valueOf(1), m_missedStacks.get(0));
+        assertEquals(Long.valueOf(21500), m_lateMs.get(0));
+        assertEquals(Integer.valueOf(2), m_missedStacks.get(1));
+        assertEquals(Integer.valueOf(3), m_missedStacks.get(2));
+        assertEquals(Long.valueOf(1500), m_lateMs.get(2));
+        assertEquals(Integer.valueOf(4), m_stacks.get(2));
+        assertEquals(Long.valueOf(34500), m_starts.get(2));
+        assertEquals(2, m_intervalometer.getCompletedCount());
+    }
+
+    @Test
+    public void abortedStackEndsTheTimeLapse()
+    {
+        m_durations = new long[] { 3000 };
+        m_abort = true;
+        m_intervalometer.start(INTERVAL_MS);
+        m_loop.runUntil(45000);
+
+        assertEquals(1, m_starts.size());
+        assertFalse(m_intervalometer.isActive());
+        assertTrue(m_loop.isIdle());
+    }
+
+    @Test
+    public void stopCancelsTheNextStart()
+    {
+        m_durations = new long[] { 3000 };
+        m_intervalometer.start(INTERVAL_MS);
+        m_loop.runUntil(5000);
+        m_intervalometer.stop();
+        m_loop.runUntil(45000);
+
+        assertEquals(1, m_starts.size());
+        assertTrue(m_loop.isIdle());
+    }
+}
@@ -0,0 +1,71 @@
+package com.obsidium.focusbracket.core;
+
+import com.obsidium.focusbracket.core.sim.SyntheticScene;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RangeFinderTest
+{
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int MAX_POSITION = 600;
+    private static final int STEP = 10;
+
+    private static SharpnessSeries sweep(SyntheticScene scene, boolean towardsNear)
+    {
+        final byte[] frame = new byte[WIDTH * HEIGHT];
+        final SharpnessSeries series = new SharpnessSeries(new SharpnessGrid(8, 6), MAX_POSITION / STEP + 1);
+        for (int i = 0; i <= MAX_POSITION / STEP; ++i)
+        {
+            final int position = towardsNear ? MAX_POSITION - i * STEP : i * STEP;
+            scene.render(position, frame);
+            series.add(position, frame, WIDTH, HEIGHT);
+        }
+        return series;
+    }
+
+    private static void assertRange(int near, int far, boolean towardsNear)
+    {
+        final RangeFinder finder = new RangeFinder();
+        assertTrue(finder.findRange(sweep(new SyntheticScene(WIDTH, HEIGHT, near, far, MAX_POSITION, 1), towardsNear)));
+        assertTrue("near " + finder.getNear() + " for " + near, Math.abs(finder.getNear() - near) <= STEP);
+        assertTrue("far " + finder.getFar() + " for " + far, Math.abs(finder.getFar() - far) <= STEP);
+    }
+
+    @Test
+    public void findsDeepSubjectWithinOneStep()
+    {
+        assertRange(50, 500, false);
+    }
+
+    @Test
+    public void findsShallowSubjectWithinOneStep()
+    {
+        assertRange(180, 320, false);
+        assertRange(250, 260, false);
+    }
+
+    @Test
+    public void sweepDirectionDoesNotMatter()
+    {
+        assertRange(50, 500, true);
+    }
+
+    @Test
+    public void featurelessFramesHaveNoSubject()
+    {
+        final byte[] frame = new byte[WIDTH * HEIGHT];
+        final SharpnessSeries series = new SharpnessSeries(new SharpnessGrid(8, 6), 10);
+        for (int position = 0; position < 100; position += STEP)
+            series.add(position, frame, WIDTH, HEIGHT);
+        final RangeFinder finder = new RangeFinder();
+        assertFalse(finder.findRange(series));
+        assertEquals(0, finder.getSubjectTiles());
+        assertEquals(-1, finder.getNear());
+        assertEquals(-1, finder.getFar());
+    }
+}
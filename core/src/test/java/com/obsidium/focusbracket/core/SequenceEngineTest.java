@@ -0,0 +1,278 @@
+package com.obsidium.focusbracket.core;
+
+import com.obsidium.focusbracket.core.sim.SimulatedCamera;
+import com.obsidium.focusbracket.core.sim.SimulatedEventLoop;
+import com.obsidium.focusbracket.core.sim.SimulationConfig;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SequenceEngineTest
+{
+    private static final EngineLog QUIET_LOG = new EngineLog()
+    {
+        @Override
+        public void info(String msg) {}
+
+        @Override
+        public void error(String msg) {}
+    };
+
+    /*
+        Shoots a stack on the simulated camera and records every successful shot as (focus, exposure)
+     */
+    private static class Run implements SequenceEngine.Listener
+    {
+        final SimulationConfig config = new SimulationConfig();
+        final SimulatedEventLoop loop = new SimulatedEventLoop();
+        final List<int[]> shots = new ArrayList<int[]>();
+        SimulatedCamera camera;
+        SequenceEngine engine;
+        boolean finished;
+        boolean completed;
+        int watchdogCount;
+
+        Run()
+        {
+            config.missedCallbackProbability = 0;
+        }
+
+        void shoot(ShootSettings settings)
+        {
+            if (camera == null)
+                camera = new SimulatedCamera(config, loop);
+            engine = new SequenceEngine(camera, loop, QUIET_LOG);
+            engine.setListener(this);
+            // As calibrated
+            for (int speed = FocusDriveController.MIN_SPEED; speed <= FocusDriveController.MAX_SPEED; ++speed)
+                engine.getDriveController().setStepsPerDrive(speed, config.stepsPerDrive[speed]);
+            engine.getDriveController().setBacklash(config.backlash);
+            engine.setSettings(settings);
+            engine.onFocusChanged(config.startFocus);
+            assertTrue(engine.start());
+            while (!finished && loop.runNext())
+            {
+            }
+        }
+
+        int count(int focus, int exposure)
+        {
+            int count = 0;
+            for (int[] shot : shots)
+            {
+                if (shot[0] == focus && shot[1] == exposure)
+                    ++count;
+            }
+            return count;
+        }
+
+        @Override
+        public void onEngineChanged() {}
+
+        @Override
+        public void onSequenceFinished(ShotTrace trace, boolean completed)
+        {
+            finished = true;
+            this.completed = completed;
+            watchdogCount = trace.getWatchdogCount();
+        }
+
+        @Override
+        public void onShot(int focus, int exposure, int result)
+        {
+            if (result == 0)
+                shots.add(new int[] { focus, exposure });
+        }
+
+        @Override
+        public void onCalibrationFinished() {}
+
+        @Override
+        public void onRangeSweepFinished(boolean completed) {}
+
+        @Override
+        public void onProbePoint(int focus) {}
+
+        @Override
+        public void onProbeFinished(boolean completed) {}
+    }
+
+    private static ShootSettings stack(int exposureBracket, int... points)
+    {
+        final ShootSettings settings = new ShootSettings();
+        settings.exposureBracket = exposureBracket;
+        for (int point : points)
+            settings.focusPoints.add(point);
+        return settings;
+    }
+
+    @Test
+    public void lateCallbacksDontPutDrivesOutOfStep()
+    {
+        final Run fast = new Run();
+        fast.config.jitter = 0;
+        fast.shoot(stack(0, 100, 200, 300, 400, 500));
+        // Slower than the watchdog's first guess: the first callbacks of every speed come after it fired
+        final Run slow = new Run();
+        slow.config.jitter = 0;
+        slow.config.driveLatencyMs = new int[] { 0, 90, 90, 90, 90, 90, 90, 90 };
+        slow.shoot(stack(0, 100, 200, 300, 400, 500));
+        assertTrue(slow.completed);
+        assertEquals(5, slow.shots.size());
+        // At most the first drive of each speed times out, once the watchdog has widened it isn't late again
+        assertTrue(slow.watchdogCount <= FocusDriveController.MAX_SPEED);
+        assertTrue(slow.camera.getDriveCount() <= fast.camera.getDriveCount() + 2 * slow.watchdogCount);
+    }
+
+    /*
+        Counts focus drives started while a picture is still open, and pictures whose last drive moved the lens
+        towards the near end
+     */
+    private static class OrderCamera extends SimulatedCamera
+    {
+        boolean pictureOpen;
+        int drivesWhileOpen;
+        boolean lastDriveFar = true;
+        int nearArrivals;
+
+        OrderCamera(SimulationConfig config, SimulatedEventLoop loop)
+        {
+            super(config, loop);
+        }
+
+        @Override
+        public void takePicture()
+        {
+            if (!lastDriveFar)
+                ++nearArrivals;
+            pictureOpen = true;
+            super.takePicture();
+        }
+
+        @Override
+        public void cancelTakePicture()
+        {
+            pictureOpen = false;
+            super.cancelTakePicture();
+        }
+
+        @Override
+        public void startFocusDrive(boolean far, int speed)
+        {
+            if (pictureOpen)
+                ++drivesWhileOpen;
+            lastDriveFar = far;
+            super.startFocusDrive(far, speed);
+        }
+    }
+
+    @Test
+    public void pipelinedModeDrivesBeforeThePictureCloses()
+    {
+        final Run serial = new Run();
+        final OrderCamera serialCamera = new OrderCamera(serial.config, serial.loop);
+        serial.camera = serialCamera;
+        serial.shoot(stack(0, 100, 200, 300, 400, 500));
+        assertEquals(0, serialCamera.drivesWhileOpen);
+
+        final Run pipelined = new Run();
+        final OrderCamera pipelinedCamera = new OrderCamera(pipelined.config, pipelined.loop);
+        pipelined.camera = pipelinedCamera;
+        final ShootSettings settings = stack(0, 100, 200, 300, 400, 500);
+        settings.pipelined = true;
+        pipelined.shoot(settings);
+        assertTrue(pipelined.completed);
+        assertEquals(5, pipelined.shots.size());
+        // Every move to the next point starts from the shutter callback
+        assertEquals(4, pipelinedCamera.drivesWhileOpen);
+    }
+
+    @Test
+    public void oneWayApproachReachesEveryPointFromThePlansDirection()
+    {
+        final ShootSettings settings = stack(0, 60, 120, 180, 240, 300, 360, 420, 480, 540);
+        final Run twoWay = new Run();
+        final OrderCamera twoWayCamera = new OrderCamera(twoWay.config, twoWay.loop);
+        twoWay.config.backlash = 6;
+        twoWay.camera = twoWayCamera;
+        twoWay.shoot(settings);
+        assertTrue(twoWay.completed);
+        // A step running long overshoots a point, which is then reached driving back
+        assertTrue(twoWayCamera.nearArrivals > 0);
+
+        final Run oneWay = new Run();
+        final OrderCamera oneWayCamera = new OrderCamera(oneWay.config, oneWay.loop);
+        oneWay.config.backlash = 6;
+        oneWay.camera = oneWayCamera;
+        settings.oneWayApproach = true;
+        oneWay.shoot(settings);
+        assertTrue(oneWay.completed);
+        assertEquals(9, oneWay.shots.size());
+        // Unless both approach passes overshoot, which steps this regular don't
+        assertEquals(0, oneWayCamera.nearArrivals);
+    }
+
+    @Test
+    public void nativeBracketShootsOneBurstPerPoint()
+    {
+        final Run run = new Run();
+        run.shoot(stack(3, 100, 200, 300));
+        assertTrue(run.completed);
+        assertEquals(9, run.shots.size());
+        assertEquals(3, run.camera.getShutterCycleCount());
+        assertTrue(run.engine.isNativeBracketAvailable());
+    }
+
+    @Test
+    public void stepWithoutNativePeriodKeepsNativeBracketAvailable()
+    {
+        final Run run = new Run();
+        run.shoot(stack(4, 100, 200, 300));
+        assertTrue(run.completed);
+        assertEquals(9, run.shots.size());
+        assertEquals(9, run.camera.getShutterCycleCount());
+        // Nothing was rejected by the body, so a supported step still goes out natively
+        assertTrue(run.engine.isNativeBracketAvailable());
+    }
+
+    @Test
+    public void partialBurstRewindsToTheStartOfThePoint()
+    {
+        final Run run = new Run();
+        run.config.partialBurstProbability = 1;
+        run.shoot(stack(3, 100, 200, 300));
+        assertTrue(run.completed);
+        // The first point's burst only gave its center frame, then the point was shot again frame by frame
+        assertEquals(2, run.count(100, 0));
+        assertEquals(1, run.count(100, -3));
+        assertEquals(1, run.count(100, 3));
+        for (int point = 200; point <= 300; point += 100)
+        {
+            for (int exposure = -3; exposure <= 3; exposure += 3)
+                assertEquals(1, run.count(point, exposure));
+        }
+        assertEquals(10, run.shots.size());
+        assertTrue(!run.engine.isNativeBracketAvailable());
+    }
+
+    @Test
+    public void failedBurstFrameRetriesTheWholeBurst()
+    {
+        final Run run = new Run();
+        run.config.shutterErrorProbability = 0.2f;
+        run.shoot(stack(3, 100, 200, 300, 400, 500));
+        assertTrue(run.completed);
+        // Every variant of every point made it at least once, and the plan ended in order
+        for (int point = 100; point <= 500; point += 100)
+        {
+            for (int exposure = -3; exposure <= 3; exposure += 3)
+                assertTrue(run.count(point, exposure) >= 1);
+        }
+        assertTrue(run.engine.isNativeBracketAvailable());
+    }
+}
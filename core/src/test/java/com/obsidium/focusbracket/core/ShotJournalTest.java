@@ -0,0 +1,121 @@
+package com.obsidium.focusbracket.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShotJournalTest
+{
+    private static ShootSettings settings()
+    {
+        final ShootSettings settings = new ShootSettings();
+        settings.focusPoints.add(100);
+        settings.focusPoints.add(200);
+        settings.exposureBracket = 3;
+        return settings;
+    }
+
+    private static byte[] write(ShotJournal journal, int[][] records) throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        journal.writeHeader(out);
+        for (int[] record : records)
+            ShotJournal.writeRecord(out, record[0], record[1], record[2], record[3]);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static ShotJournal read(byte[] bytes) throws IOException
+    {
+        return ShotJournal.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void roundTrip() throws IOException
+    {
+        final ShootSettings settings = settings();
+        final ShotJournal journal = new ShotJournal(ShotJournal.signature(settings), 4);
+        final byte[] bytes = write(journal, new int[][] { { 100, 0, 1000, 0 }, { 100, 3, 1500, 2 }, { 200, 0, 2000, 0 } });
+
+        final ShotJournal read = read(bytes);
+        assertNotNull(read);
+        assertTrue(read.matches(settings));
+        assertEquals(4, read.getPlannedShots());
+        assertEquals(3, read.size());
+        assertEquals(2, read.getCompletedShots());
+        assertEquals(2000, read.getLastTime());
+        assertEquals(bytes.length, read.getByteLength());
+        assertFalse(read.isFinished());
+    }
+
+    @Test
+    public void partialRecordIsIgnored() throws IOException
+    {
+        final ShotJournal journal = new ShotJournal(ShotJournal.signature(settings()), 4);
+        final byte[] bytes = write(journal, new int[][] { { 100, 0, 1000, 0 }, { 200, 0, 2000, 0 } });
+
+        final ShotJournal read = read(Arrays.copyOf(bytes, bytes.length - 3));
+        assertEquals(1, read.size());
+        assertEquals(1000, read.getLastTime());
+        assertTrue(read.getByteLength() < bytes.length);
+    }
+
+    @Test
+    public void otherDataIsNoJournal() throws IOException
+    {
+        assertNull(read("not a journal at all".getBytes("US-ASCII")));
+    }
+
+    @Test
+    public void otherSettingsDontMatch()
+    {
+        final ShootSettings settings = settings();
+        final ShotJournal journal = new ShotJournal(ShotJournal.signature(settings), 4);
+        settings.shotOrder = ShootSettings.ShotOrder.monotonic;
+        assertTrue(journal.matches(settings));
+        settings.focusPoints.add(300);
+        assertFalse(journal.matches(settings));
+    }
+
+    @Test
+    public void removeCompletedDropsOnlySuccessfulShots()
+    {
+        final ShotPlan plan = new ShotPlan(new int[] { 100, 100, 200, 200 }, new int[] { 0, 3, 0, 3 }, 4);
+        final ShotJournal journal = new ShotJournal(0, 4);
+        journal.add(100, 0, 1000, 0);
+        journal.add(200, 3, 1500, 2);
+        journal.add(100, 3, 2000, 0);
+
+        final ShotPlan remaining = journal.removeCompleted(plan);
+        assertEquals(2, remaining.size());
+        assertEquals(200, remaining.getFocus(0));
+        assertEquals(0, remaining.getExposure(0));
+        assertEquals(200, remaining.getFocus(1));
+        assertEquals(3, remaining.getExposure(1));
+    }
+
+    @Test
+    public void repeatedShotRemovesOnePlannedShotEach()
+    {
+        final ShotPlan plan = new ShotPlan(new int[] { 100, 100 }, new int[] { 0, 0 }, 2);
+        final ShotJournal journal = new ShotJournal(0, 2);
+        journal.add(100, 0, 1000, 0);
+
+        assertEquals(1, journal.removeCompleted(plan).size());
+        journal.add(100, 0, 2000, 0);
+        journal.add(100, 0, 3000, 0);
+        assertEquals(0, journal.removeCompleted(plan).size());
+    }
+}
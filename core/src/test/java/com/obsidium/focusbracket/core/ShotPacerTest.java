@@ -0,0 +1,114 @@
+package com.obsidium.focusbracket.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShotPacerTest
+{
+    // Starts a picture at start whose first frame is exposed latency later
+    private static void shoot(ShotPacer pacer, long start, long latency)
+    {
+        pacer.onShotStarted(start, pacer.getDelayMs(start));
+        pacer.onShotExposed(start + latency);
+    }
+
+    @Test
+    public void unloadedPicturesAreNotHeldBack()
+    {
+        final ShotPacer pacer = new ShotPacer();
+        assertEquals(0, pacer.getDelayMs(0));
+        for (int i = 0; i < 5; ++i)
+            shoot(pacer, i * 500, 100);
+        assertEquals(0, pacer.getIntervalMs());
+        assertEquals(0, pacer.getDelayMs(2100));
+        assertEquals(0, pacer.getSaturatedCount());
+    }
+
+    @Test
+    public void saturationRaisesTheInterval()
+    {
+        final ShotPacer pacer = new ShotPacer();
+        shoot(pacer, 0, 100);
+        shoot(pacer, 500, 100);
+        // 300 ms above the unloaded latency after a 500 ms gap
+        shoot(pacer, 1000, 400);
+        assertEquals(1, pacer.getSaturatedCount());
+        assertEquals(800, pacer.getIntervalMs());
+        assertEquals(600, pacer.getDelayMs(1200));
+        assertEquals(0, pacer.getDelayMs(1800));
+    }
+
+    @Test
+    public void unloadedPicturesReleaseTheInterval()
+    {
+        final ShotPacer pacer = new ShotPacer();
+        shoot(pacer, 0, 100);
+        shoot(pacer, 500, 100);
+        shoot(pacer, 1000, 400);
+        shoot(pacer, 1800, 100);
+        assertEquals(720, pacer.getIntervalMs());
+        long last = 1800;
+        for (int i = 0; i < 50; ++i)
+        {
+            last += Math.max(500, pacer.getIntervalMs());
+            shoot(pacer, last, 100);
+        }
+        assertTrue(pacer.getIntervalMs() < 500);
+    }
+
+    @Test
+    public void retriesBackOffExponentially()
+    {
+        final ShotPacer pacer = new ShotPacer();
+        shoot(pacer, 0, 100);
+        long now = 500;
+        long expected = 250;
+        for (int i = 0; i < ShotPacer.MAX_RETRIES; ++i)
+        {
+            pacer.onShotStarted(now, 0);
+            final long delay = pacer.onShotFailed(now + 100, false);
+            assertEquals(expected, delay);
+            now += 100 + delay;
+            expected *= 2;
+        }
+        pacer.onShotStarted(now, 0);
+        assertEquals(-1, pacer.onShotFailed(now + 100, false));
+        assertEquals(ShotPacer.MAX_RETRIES + 1, pacer.getFailureCount());
+    }
+
+    @Test
+    public void exposedPictureResetsTheBackoff()
+    {
+        final ShotPacer pacer = new ShotPacer();
+        shoot(pacer, 0, 100);
+        pacer.onShotStarted(500, 0);
+        assertEquals(250, pacer.onShotFailed(600, false));
+        pacer.onShotStarted(850, 0);
+        assertEquals(500, pacer.onShotFailed(950, false));
+        shoot(pacer, 1450, 100);
+        pacer.onShotStarted(2000, 0);
+        assertEquals(250, pacer.onShotFailed(2100, false));
+    }
+
+    @Test
+    public void failureAtPlainLatencyLeavesTheInterval()
+    {
+        final ShotPacer pacer = new ShotPacer();
+        shoot(pacer, 0, 100);
+        pacer.onShotStarted(500, 0);
+        pacer.onShotFailed(600, false);
+        assertEquals(0, pacer.getIntervalMs());
+    }
+
+    @Test
+    public void saturatedFailureDoublesTheGap()
+    {
+        final ShotPacer pacer = new ShotPacer();
+        shoot(pacer, 0, 100);
+        pacer.onShotStarted(500, 0);
+        pacer.onShotFailed(1500, false);
+        assertEquals(1000, pacer.getIntervalMs());
+    }
+}
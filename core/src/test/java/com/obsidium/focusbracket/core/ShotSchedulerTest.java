@@ -0,0 +1,104 @@
+package com.obsidium.focusbracket.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShotSchedulerTest
+{
+    private static ShootSettings stack(int exposureBracket, int... points)
+    {
+        final ShootSettings settings = new ShootSettings();
+        settings.exposureBracket = exposureBracket;
+        for (int point : points)
+            settings.focusPoints.add(point);
+        return settings;
+    }
+
+    private static int[] focus(ShotPlan plan)
+    {
+        final int[] focus = new int[plan.size()];
+        for (int i = 0; i < focus.length; ++i)
+            focus[i] = plan.getFocus(i);
+        return focus;
+    }
+
+    private static int[] exposure(ShotPlan plan)
+    {
+        final int[] exposure = new int[plan.size()];
+        for (int i = 0; i < exposure.length; ++i)
+            exposure[i] = plan.getExposure(i);
+        return exposure;
+    }
+
+    @Test
+    public void bracketPeriodsAreTheBodys()
+    {
+        final int[] periods = { 0, 3, 7, 10, 0, 0, 20, 0, 0, 30 };
+        for (int step = 0; step < periods.length; ++step)
+            assertEquals("step " + step, periods[step], ShotScheduler.getBracketPeriod(step));
+    }
+
+    @Test
+    public void nativeBracketGoesOutInTheBodysOrder()
+    {
+        final ShotPlan plan = new ShotScheduler.Sweep(false).schedule(stack(3, 100, 200), 0);
+        assertArrayEquals(new int[] { 100, 100, 100, 200, 200, 200 }, focus(plan));
+        assertArrayEquals(new int[] { 0, -3, 3, 0, -3, 3 }, exposure(plan));
+        assertEquals(3, plan.getRunLength());
+    }
+
+    @Test
+    public void stepWithoutNativePeriodIsBracketedInSoftware()
+    {
+        final ShotPlan plan = new ShotScheduler.Sweep(false).schedule(stack(4, 100, 200), 0);
+        // Ordered for the fewest compensation changes instead of the body's burst order
+        assertArrayEquals(new int[] { 0, 4, -4, -4, 0, 4 }, exposure(plan));
+    }
+
+    @Test
+    public void sweepStartsAtTheNearerEnd()
+    {
+        final ShootSettings settings = stack(0, 100, 200, 300);
+        assertArrayEquals(new int[] { 300, 200, 100 }, focus(new ShotScheduler.Sweep(true).schedule(settings, 290)));
+        assertArrayEquals(new int[] { 100, 200, 300 }, focus(new ShotScheduler.Sweep(true).schedule(settings, 110)));
+        assertArrayEquals(new int[] { 100, 200, 300 }, focus(new ShotScheduler.Sweep(false).schedule(settings, 290)));
+        settings.oneWayApproach = true;
+        assertArrayEquals(new int[] { 100, 200, 300 }, focus(new ShotScheduler.Sweep(true).schedule(settings, 290)));
+    }
+
+    @Test
+    public void emptyStackPlansNothing()
+    {
+        final ShotPlan plan = new ShotScheduler.Sweep(true).schedule(stack(3), 0);
+        assertEquals(0, plan.size());
+        assertTrue(plan.isDone());
+    }
+
+    @Test
+    public void planCursorOnlyRewindsBackwards()
+    {
+        final ShotPlan plan = new ShotScheduler.Sweep(false).schedule(stack(3, 100, 200), 0);
+        plan.advance();
+        plan.advance();
+        plan.advance();
+        plan.advance();
+        assertEquals(4, plan.getCursor());
+        assertEquals(2, plan.getRunLength());
+        plan.rewindTo(5);
+        assertEquals(4, plan.getCursor());
+        plan.rewindTo(3);
+        assertEquals(3, plan.getCursor());
+        assertEquals(3, plan.getRemaining());
+        for (int i = 0; i < 10; ++i)
+            plan.advance();
+        assertTrue(plan.isDone());
+        assertEquals(6, plan.getCursor());
+        plan.rewind();
+        assertFalse(plan.isDone());
+        assertEquals(50 + 100, plan.travel(50));
+    }
+}
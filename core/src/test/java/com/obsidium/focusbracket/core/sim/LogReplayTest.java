@@ -0,0 +1,127 @@
+package com.obsidium.focusbracket.core.sim;
+
+import com.obsidium.focusbracket.core.EngineLog;
+import com.obsidium.focusbracket.core.FocusDriveController;
+import com.obsidium.focusbracket.core.SequenceEngine;
+import com.obsidium.focusbracket.core.ShootSettings;
+import com.obsidium.focusbracket.core.ShotTrace;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogReplayTest
+{
+    private static final EngineLog QUIET_LOG = new EngineLog()
+    {
+        @Override
+        public void info(String msg) {}
+
+        @Override
+        public void error(String msg) {}
+    };
+
+    private static int count(int[] samples, int value)
+    {
+        int count = 0;
+        for (int sample : samples)
+        {
+            if (sample == value)
+                ++count;
+        }
+        return count;
+    }
+
+    /*
+        Shoots a stack without jitter and returns the saved trace
+     */
+    private static String shoot(SimulationConfig config) throws IOException
+    {
+        final SimulatedEventLoop loop = new SimulatedEventLoop();
+        final SimulatedCamera camera = new SimulatedCamera(config, loop);
+        final SequenceEngine engine = new SequenceEngine(camera, loop, QUIET_LOG);
+        final StringWriter csv = new StringWriter();
+        final IOException[] error = new IOException[1];
+        engine.setListener(new Simulation(config)
+        {
+            @Override
+            public void onSequenceFinished(ShotTrace trace, boolean completed)
+            {
+                try
+                {
+                    trace.writeCsv(csv);
+                }
+                catch (IOException e)
+                {
+                    error[0] = e;
+                }
+            }
+        });
+        for (int speed = FocusDriveController.MIN_SPEED; speed <= FocusDriveController.MAX_SPEED; ++speed)
+            engine.getDriveController().setStepsPerDrive(speed, config.stepsPerDrive[speed]);
+        engine.setSettings(Simulation.createStack(config, 20, 0));
+        engine.onFocusChanged(config.startFocus);
+        assertTrue(engine.start());
+        while (csv.getBuffer().length() == 0 && loop.runNext())
+        {
+        }
+        if (error[0] != null)
+            throw error[0];
+        return csv.toString();
+    }
+
+    @Test
+    public void traceReplaysTheCameraTiming() throws IOException
+    {
+        final SimulationConfig config = new SimulationConfig();
+        config.jitter = 0;
+        config.missedCallbackProbability = 0;
+        config.driveLatencyMs = new int[] { 0, 70, 70, 80, 80, 90, 90, 100 };
+        config.shutterLatencyMs = 420;
+
+        final LogReplay replay = new LogReplay();
+        replay.read(new StringReader(shoot(config)));
+        final SimulationConfig replayed = new SimulationConfig();
+        replay.apply(replayed);
+
+        int latencies = 0;
+        for (int speed = FocusDriveController.MIN_SPEED; speed <= FocusDriveController.MAX_SPEED; ++speed)
+        {
+            final int[] samples = replayed.driveLatencySamples[speed];
+            assertEquals(samples.length, count(samples, config.driveLatencyMs[speed]));
+            latencies += samples.length;
+            final int[] steps = replayed.stepSamples[speed];
+            assertEquals(steps.length, count(steps, Math.round(config.stepsPerDrive[speed])));
+        }
+        assertTrue(latencies > 20);
+        assertEquals(20, replayed.shutterLatencySamples.length);
+        assertEquals(20, count(replayed.shutterLatencySamples, 420));
+        assertEquals(0, replayed.missedCallbackProbability, 0);
+        assertEquals(0, replayed.shutterErrorProbability, 0);
+    }
+
+    @Test
+    public void logLinesStillReplay() throws IOException
+    {
+        final String log = "1000 [DEBUG] Starting focus drive (speed 4, far)\n" +
+            "1045 [DEBUG] FocusDriveListener: currentPosition 5\n" +
+            "1100 [DEBUG] Starting focus drive (speed 4, far)\n" +
+            "1600 [DEBUG] Starting focus drive (speed 4, far)\n" +
+            "1650 [DEBUG] FocusDriveListener: currentPosition 15\n" +
+            "1700 [DEBUG] Taking picture\n" +
+            "2050 [DEBUG] onShutter (i 0)\n";
+        final LogReplay replay = new LogReplay();
+        replay.read(new StringReader(log));
+        final SimulationConfig replayed = new SimulationConfig();
+        replay.apply(replayed);
+        assertEquals(2, replayed.driveLatencySamples[4].length);
+        assertEquals(45, replayed.driveLatencySamples[4][0]);
+        assertEquals(1 / 3.0f, replayed.missedCallbackProbability, 0.001f);
+        assertEquals(350, replayed.shutterLatencySamples[0]);
+    }
+}
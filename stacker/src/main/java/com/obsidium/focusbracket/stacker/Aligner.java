@@ -0,0 +1,349 @@
+package com.obsidium.focusbracket.stacker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Alignment pre-pass: estimates each frame's FrameTransform against a reference frame, coarse to fine over
+    Pyramids with Gauss-Newton steps on scale and translation, and writes a transform file for
+    Stacker --transforms.
+
+    Frames are estimated in parallel. The capture order is the prior: breathing changes smoothly with the
+    focus position, so every frame is seeded from a line fitted through the frames finished so far, and
+    frames that end up far off the line fitted through all of them are estimated again from it.
+
+    Aligner [--threads N] [--reference N] -o TRANSFORMS.TXT INPUT...
+ */
+public class Aligner
+{
+    private static final int MAX_ITERATIONS = 30;
+    // Steps below this many level pixels end the iterations on a level
+    private static final double CONVERGED_PX = 0.01;
+    // Frames further than this many full resolution pixels (at the image corner) from the fitted line are re-run
+    private static final double OUTLIER_PX = 3;
+
+    /*
+        Estimated transform and the RMS residual of the normalised luma at the finest level
+     */
+    public static final class Result
+    {
+        public final FrameTransform transform;
+        public final double residual;
+
+        Result(FrameTransform transform, double residual)
+        {
+            this.transform = transform;
+            this.residual = residual;
+        }
+    }
+
+    /*
+        Least squares line through (index, transform) samples, per parameter
+     */
+    private static final class Prior
+    {
+        private final List<Integer> m_indices = new ArrayList<Integer>();
+        private final List<FrameTransform> m_samples = new ArrayList<FrameTransform>();
+
+        synchronized void add(int index, FrameTransform transform)
+        {
+            m_indices.add(index);
+            m_samples.add(transform);
+        }
+
+        synchronized FrameTransform predict(int index)
+        {
+            final int n = m_samples.size();
+            if (n == 0)
+                return FrameTransform.IDENTITY;
+            if (n == 1)
+                return m_samples.get(0);
+            double sx = 0, sxx = 0;
+            final double[] sy = new double[3];
+            final double[] sxy = new double[3];
+            for (int i = 0; i < n; ++i)
+            {
+                final double x = m_indices.get(i);
+                final FrameTransform t = m_samples.get(i);
+                final double[] values = { t.scale, t.dx, t.dy };
+                sx += x;
+                sxx += x * x;
+                for (int p = 0; p < 3; ++p)
+                {
+                    sy[p] += values[p];
+                    sxy[p] += x * values[p];
+                }
+            }
+            final double det = n * sxx - sx * sx;
+            final double[] predicted = new double[3];
+            for (int p = 0; p < 3; ++p)
+            {
+                if (det == 0)
+                    predicted[p] = sy[p] / n;
+                else
+                {
+                    final double slope = (n * sxy[p] - sx * sy[p]) / det;
+                    predicted[p] = (sy[p] - slope * sx) / n + slope * index;
+                }
+            }
+            return new FrameTransform(predicted[0], predicted[1], predicted[2]);
+        }
+    }
+
+    /*
+        Aligns frame to reference starting from seed
+     */
+    public static Result estimate(Pyramid reference, Pyramid frame, FrameTransform seed)
+    {
+        if (reference.getFullWidth() != frame.getFullWidth() || reference.getFullHeight() != frame.getFullHeight())
+            throw new IllegalArgumentException("Frame size differs from the reference");
+        double scale = seed.scale;
+        double dx = seed.dx;
+        double dy = seed.dy;
+        double residual = 0;
+        final double cx = (reference.getFullWidth() - 1) / 2.0;
+        final double cy = (reference.getFullHeight() - 1) / 2.0;
+        final int levels = Math.min(reference.getLevelCount(), frame.getLevelCount());
+        for (int level = levels - 1; level >= 0; --level)
+        {
+            final int w = reference.getWidth(level);
+            final int h = reference.getHeight(level);
+            final float[] t = reference.getLevel(level);
+            final float[] img = frame.getLevel(level);
+            final double pixel = reference.getPixelSize(level);
+            // Image centre and translation in this level's pixels
+            final double cu = (cx - (pixel - 1) / 2) / pixel;
+            final double cv = (cy - (pixel - 1) / 2) / pixel;
+            double tu = dx / pixel;
+            double tv = dy / pixel;
+            // Every pixel on the small levels, every other one on the large ones
+            final int step = w > 256 ? 2 : 1;
+            for (int iteration = 0; iteration < MAX_ITERATIONS; ++iteration)
+            {
+                double h00 = 0, h01 = 0, h02 = 0, h11 = 0, h12 = 0, h22 = 0;
+                double b0 = 0, b1 = 0, b2 = 0;
+                double squares = 0;
+                int samples = 0;
+                for (int v = 1; v < h - 1; v += step)
+                {
+                    final double y = scale * (v - cv) + cv + tv;
+                    if (y < 1 || y >= h - 2)
+                        continue;
+                    for (int u = 1; u < w - 1; u += step)
+                    {
+                        final double x = scale * (u - cu) + cu + tu;
+                        if (x < 1 || x >= w - 2)
+                            continue;
+                        final double r = sample(img, w, x, y) - t[v * w + u];
+                        final double gx = 0.5 * (sample(img, w, x + 1, y) - sample(img, w, x - 1, y));
+                        final double gy = 0.5 * (sample(img, w, x, y + 1) - sample(img, w, x, y - 1));
+                        final double js = gx * (u - cu) + gy * (v - cv);
+                        h00 += js * js;
+                        h01 += js * gx;
+                        h02 += js * gy;
+                        h11 += gx * gx;
+                        h12 += gx * gy;
+                        h22 += gy * gy;
+                        b0 -= js * r;
+                        b1 -= gx * r;
+                        b2 -= gy * r;
+                        squares += r * r;
+                        ++samples;
+                    }
+                }
+                if (samples == 0)
+                    break;
+                residual = Math.sqrt(squares / samples);
+                // Solve the 3x3 normal equations by Cramer's rule
+                final double det = h00 * (h11 * h22 - h12 * h12) - h01 * (h01 * h22 - h12 * h02) + h02 * (h01 * h12 - h11 * h02);
+                if (Math.abs(det) < 1e-12)
+                    break;
+                final double ds = (b0 * (h11 * h22 - h12 * h12) - h01 * (b1 * h22 - h12 * b2) + h02 * (b1 * h12 - h11 * b2)) / det;
+                final double du = (h00 * (b1 * h22 - h12 * b2) - b0 * (h01 * h22 - h12 * h02) + h02 * (h01 * b2 - b1 * h02)) / det;
+                final double dv = (h00 * (h11 * b2 - b1 * h12) - h01 * (h01 * b2 - b1 * h02) + b0 * (h01 * h12 - h11 * h02)) / det;
+                scale += ds;
+                tu += du;
+                tv += dv;
+                if (Math.abs(ds) * Math.max(cu, cv) < CONVERGED_PX && Math.abs(du) < CONVERGED_PX && Math.abs(dv) < CONVERGED_PX)
+                    break;
+            }
+            dx = tu * pixel;
+            dy = tv * pixel;
+        }
+        return new Result(new FrameTransform(scale, dx, dy), residual);
+    }
+
+    private static double sample(float[] img, int w, double x, double y)
+    {
+        final int x0 = (int)x;
+        final int y0 = (int)y;
+        final double fx = x - x0;
+        final double fy = y - y0;
+        final int i = y0 * w + x0;
+        final double top = img[i] + fx * (img[i + 1] - img[i]);
+        final double bottom = img[i + w] + fx * (img[i + w + 1] - img[i + w]);
+        return top + fy * (bottom - top);
+    }
+
+    /*
+        Distance between two transforms in full resolution pixels at the image corner
+     */
+    private static double distance(FrameTransform a, FrameTransform b, double cx, double cy)
+    {
+        final double ex = Math.abs(a.scale - b.scale) * cx + Math.abs(a.dx - b.dx);
+        final double ey = Math.abs(a.scale - b.scale) * cy + Math.abs(a.dy - b.dy);
+        return Math.max(ex, ey);
+    }
+
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+        int threads = Runtime.getRuntime().availableProcessors();
+        int reference = -1;
+        File output = null;
+        final List<File> files = new ArrayList<File>();
+        try
+        {
+            for (int i = 0; i < args.length; ++i)
+            {
+                final String arg = args[i];
+                if (arg.startsWith("-") && i + 1 >= args.length)
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                if (arg.equals("--threads"))
+                    threads = Integer.parseInt(args[++i]);
+                else if (arg.equals("--reference"))
+                    reference = Integer.parseInt(args[++i]);
+                else if (arg.equals("-o"))
+                    output = new File(args[++i]);
+                else if (arg.startsWith("-"))
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                else
+                    FrameReader.collect(new File(arg), files);
+            }
+            if (output == null)
+                throw new IllegalArgumentException("No output file");
+            if (files.isEmpty())
+                throw new IllegalArgumentException("No input frames");
+            if (reference >= files.size())
+                throw new IllegalArgumentException("Reference " + reference + " out of range");
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: Aligner [--threads N] [--reference N] -o TRANSFORMS.TXT INPUT...");
+            System.exit(1);
+        }
+        // The middle frame keeps the largest breathing difference smallest
+        if (reference < 0)
+            reference = files.size() / 2;
+        try
+        {
+            align(files, reference, Math.max(1, threads), output);
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            System.err.println("Alignment failed: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    private static void align(final List<File> files, int referenceIndex, int threads, File output) throws IOException
+    {
+        final long start = System.nanoTime();
+        final Pyramid reference = new Pyramid(Frame.read(files.get(referenceIndex), referenceIndex));
+        final Result[] results = new Result[files.size()];
+        final Prior prior = new Prior();
+        prior.add(referenceIndex, FrameTransform.IDENTITY);
+        final IOException[] failure = new IOException[1];
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // Frames decoded or being estimated, each holds a decoded frame until its pyramid is built
+        final Semaphore inFlight = new Semaphore(threads);
+        long pixels = 0;
+        try (FrameReader reader = new FrameReader(files, threads, threads))
+        {
+            while (reader.hasNext())
+            {
+                final Frame frame = reader.next();
+                pixels += frame.getPixelCount();
+                inFlight.acquireUninterruptibly();
+                pool.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            final Pyramid pyramid = new Pyramid(frame);
+                            final Result result = estimate(reference, pyramid, prior.predict(frame.index));
+                            results[frame.index] = result;
+                            prior.add(frame.index, result.transform);
+                        }
+                        catch (IllegalArgumentException e)
+                        {
+                            synchronized (failure)
+                            {
+                                failure[0] = new IOException(frame.file + ": " + e.getMessage());
+                            }
+                        }
+                        finally
+                        {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        if (failure[0] != null)
+            throw failure[0];
+
+        // Second look at frames that disagree with the capture order trend
+        final Prior fit = new Prior();
+        for (int i = 0; i < results.length; ++i)
+            fit.add(i, results[i].transform);
+        final double cx = (reference.getFullWidth() - 1) / 2.0;
+        final double cy = (reference.getFullHeight() - 1) / 2.0;
+        int rerun = 0;
+        for (int i = 0; i < results.length; ++i)
+        {
+            final FrameTransform predicted = fit.predict(i);
+            if (i == referenceIndex || distance(results[i].transform, predicted, cx, cy) <= OUTLIER_PX)
+                continue;
+            final Result retry = estimate(reference, new Pyramid(Frame.read(files.get(i), i)), predicted);
+            if (retry.residual < results[i].residual)
+                results[i] = retry;
+            ++rerun;
+        }
+
+        final Map<String, FrameTransform> transforms = new LinkedHashMap<String, FrameTransform>();
+        for (int i = 0; i < results.length; ++i)
+        {
+            transforms.put(files.get(i).getName(), i == referenceIndex ? FrameTransform.IDENTITY : results[i].transform);
+            System.out.println(String.format(Locale.US, "%4d %s %s residual %.3f", i + 1, files.get(i).getName(),
+                transforms.get(files.get(i).getName()), results[i].residual));
+        }
+        FrameTransform.write(output, transforms, "Reference " + files.get(referenceIndex).getName());
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.US, "Aligned %d frames in %.1f s: %.1f frames/s, %.1f MP/s, %d re-run from the fitted trend",
+            results.length, seconds, results.length / seconds, pixels / 1e6 / seconds, rerun));
+    }
+}
@@ -0,0 +1,378 @@
+package com.obsidium.focusbracket.stacker;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+    Fuses differently exposed frames of the same scene into one, after Mertens et al.: every pixel of every
+    frame gets a weight for how well exposed, contrasty and saturated it is, and the frames' Laplacian
+    pyramids are blended with Gaussian pyramids of the normalised weights.
+
+    The image is fused as independent tiles on a fork/join pool. Each tile builds its pyramids over itself
+    plus a halo wide enough for the coarsest level, so the heap holds the input frames, the output and
+    per-thread tile scratch, never full resolution pyramids. Stopping at LEVELS rather than at a 1 pixel
+    level keeps the blend local, which is what lets the tiles be independent.
+ */
+public class ExposureFusion
+{
+    public static final int DEFAULT_TILE_SIZE = 512;
+    public static final int MAX_TILE_SIZE = 2048;
+
+    // The coarsest level is 1 / 2^(LEVELS - 1) of the frame
+    private static final int LEVELS = 6;
+    // Pixels around a tile that reach it through LEVELS - 1 reduce and expand passes of the 5 tap kernel
+    private static final int HALO = 128;
+    // Well-exposedness: Gaussian around mid grey, sigma in 0..1 units
+    private static final double EXPOSURE_SIGMA = 0.2;
+    // Keep flat or grey areas from getting no weight at all, in 0..1 units
+    private static final float CONTRAST_FLOOR = 0.02f;
+    private static final float SATURATION_FLOOR = 0.02f;
+
+    private static final float[] s_wellExposed = new float[256];
+
+    static
+    {
+        for (int i = 0; i < 256; ++i)
+        {
+            final double d = i / 255.0 - 0.5;
+            s_wellExposed[i] = (float)Math.exp(-d * d / (2 * EXPOSURE_SIGMA * EXPOSURE_SIGMA));
+        }
+    }
+
+    private final int m_width;
+    private final int m_height;
+    private final int m_tileSize;
+    private final int m_tilesX;
+    private final int m_tilesY;
+    private final ForkJoinPool m_pool;
+
+    private final ThreadLocal<Scratch> m_scratch = new ThreadLocal<Scratch>()
+    {
+        @Override
+        protected Scratch initialValue()
+        {
+            // A tile plus halo never extends past the frame
+            return new Scratch(Math.min(m_tileSize + 2 * HALO, m_width), Math.min(m_tileSize + 2 * HALO, m_height));
+        }
+    };
+
+    /*
+        Per-thread work buffers for one tile plus halo. Pyramids are stored level after level in one array.
+     */
+    private static final class Scratch
+    {
+        final int area;
+        final int[] levelWidth = new int[LEVELS];
+        final int[] levelHeight = new int[LEVELS];
+        final int[] levelOffset = new int[LEVELS];
+        float[][] weights = new float[0][];
+        final float[] plane;
+        final float[] temp;
+        final float[] weightPyramid;
+        final float[] gauss;
+        final float[][] result;
+
+        Scratch(int width, int height)
+        {
+            area = width * height;
+            int capacity = 0;
+            for (int level = 0, w = width, h = height; level < LEVELS; ++level, w = (w + 1) / 2, h = (h + 1) / 2)
+                capacity += w * h;
+            plane = new float[area];
+            temp = new float[area];
+            weightPyramid = new float[capacity];
+            gauss = new float[capacity];
+            result = new float[3][capacity];
+        }
+
+        float[] weights(int frame)
+        {
+            if (weights.length <= frame)
+            {
+                final float[][] grown = new float[frame + 1][];
+                System.arraycopy(weights, 0, grown, 0, weights.length);
+                for (int i = weights.length; i < grown.length; ++i)
+                    grown[i] = new float[area];
+                weights = grown;
+            }
+            return weights[frame];
+        }
+    }
+
+    private final class TileTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Frame[] m_frames;
+        private final byte[] m_out;
+        private final int m_first;
+        private final int m_count;
+
+        TileTask(Frame[] frames, byte[] out, int first, int count)
+        {
+            m_frames = frames;
+            m_out = out;
+            m_first = first;
+            m_count = count;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (m_count == 1)
+            {
+                fuseTile(m_frames, m_out, m_first % m_tilesX, m_first / m_tilesX, m_scratch.get());
+                return;
+            }
+            final int half = m_count / 2;
+            invokeAll(new TileTask(m_frames, m_out, m_first, half),
+                new TileTask(m_frames, m_out, m_first + half, m_count - half));
+        }
+    }
+
+    public ExposureFusion(int width, int height, int tileSize, ForkJoinPool pool)
+    {
+        if (tileSize < 16 || tileSize > MAX_TILE_SIZE)
+            throw new IllegalArgumentException("Tile size must be between 16 and " + MAX_TILE_SIZE);
+        m_width = width;
+        m_height = height;
+        m_tileSize = tileSize;
+        m_tilesX = (width + tileSize - 1) / tileSize;
+        m_tilesY = (height + tileSize - 1) / tileSize;
+        m_pool = pool;
+    }
+
+    /*
+        Fuses the frames into out, packed B, G, R like Frame.bgr. The order of the frames doesn't matter.
+     */
+    public void fuse(Frame[] frames, byte[] out)
+    {
+        for (Frame frame : frames)
+        {
+            if (frame.width != m_width || frame.height != m_height)
+            {
+                throw new IllegalArgumentException(frame.file + " is " + frame.width + "x" + frame.height + ", expected " +
+                    m_width + "x" + m_height);
+            }
+        }
+        if (out.length < m_width * m_height * 3)
+            throw new IllegalArgumentException("Output buffer too small");
+        m_pool.invoke(new TileTask(frames, out, 0, m_tilesX * m_tilesY));
+    }
+
+    private void fuseTile(Frame[] frames, byte[] out, int tileX, int tileY, Scratch scratch)
+    {
+        final int x0 = tileX * m_tileSize;
+        final int y0 = tileY * m_tileSize;
+        final int x1 = Math.min(x0 + m_tileSize, m_width);
+        final int y1 = Math.min(y0 + m_tileSize, m_height);
+        // Tile plus halo, clipped to the frame
+        final int ex0 = Math.max(0, x0 - HALO);
+        final int ey0 = Math.max(0, y0 - HALO);
+        final int ex1 = Math.min(m_width, x1 + HALO);
+        final int ey1 = Math.min(m_height, y1 + HALO);
+        final int lw = ex1 - ex0;
+        final int lh = ey1 - ey0;
+
+        int offset = 0;
+        for (int level = 0, w = lw, h = lh; level < LEVELS; ++level, w = (w + 1) / 2, h = (h + 1) / 2)
+        {
+            scratch.levelWidth[level] = w;
+            scratch.levelHeight[level] = h;
+            scratch.levelOffset[level] = offset;
+            offset += w * h;
+        }
+        final int pyramidSize = offset;
+
+        // Weights, normalised over the frames per pixel
+        for (int k = 0; k < frames.length; ++k)
+            computeWeights(frames[k].bgr, ex0, ey0, lw, lh, scratch.plane, scratch.weights(k));
+        for (int i = 0; i < lw * lh; ++i)
+        {
+            float sum = 0;
+            for (int k = 0; k < frames.length; ++k)
+                sum += scratch.weights[k][i];
+            final float scale = 1 / sum;
+            for (int k = 0; k < frames.length; ++k)
+                scratch.weights[k][i] *= scale;
+        }
+
+        for (int c = 0; c < 3; ++c)
+        {
+            final float[] result = scratch.result[c];
+            for (int i = 0; i < pyramidSize; ++i)
+                result[i] = 0;
+        }
+        for (int k = 0; k < frames.length; ++k)
+        {
+            System.arraycopy(scratch.weights[k], 0, scratch.weightPyramid, 0, lw * lh);
+            buildGaussian(scratch.weightPyramid, scratch);
+            for (int c = 0; c < 3; ++c)
+            {
+                final byte[] bgr = frames[k].bgr;
+                final float[] gauss = scratch.gauss;
+                for (int y = 0; y < lh; ++y)
+                {
+                    for (int x = 0, src = ((ey0 + y) * m_width + ex0) * 3 + c, dst = y * lw; x < lw; ++x, src += 3, ++dst)
+                        gauss[dst] = bgr[src] & 0xff;
+                }
+                buildGaussian(gauss, scratch);
+                // Laplacian level = Gaussian level - expanded next level, blended as it is formed
+                final float[] result = scratch.result[c];
+                final float[] weight = scratch.weightPyramid;
+                for (int level = 0; level < LEVELS; ++level)
+                {
+                    final int start = scratch.levelOffset[level];
+                    final int count = scratch.levelWidth[level] * scratch.levelHeight[level];
+                    if (level < LEVELS - 1)
+                    {
+                        expand(gauss, scratch.levelOffset[level + 1], scratch.levelWidth[level + 1], scratch.levelHeight[level + 1],
+                            scratch.temp, 0, scratch.levelWidth[level], scratch.levelHeight[level], scratch.plane);
+                        for (int i = 0; i < count; ++i)
+                            result[start + i] += weight[start + i] * (gauss[start + i] - scratch.temp[i]);
+                    }
+                    else
+                    {
+                        for (int i = 0; i < count; ++i)
+                            result[start + i] += weight[start + i] * gauss[start + i];
+                    }
+                }
+            }
+        }
+
+        // Collapse and keep the tile without its halo
+        for (int c = 0; c < 3; ++c)
+        {
+            final float[] result = scratch.result[c];
+            for (int level = LEVELS - 2; level >= 0; --level)
+            {
+                expand(result, scratch.levelOffset[level + 1], scratch.levelWidth[level + 1], scratch.levelHeight[level + 1],
+                    scratch.temp, 0, scratch.levelWidth[level], scratch.levelHeight[level], scratch.plane);
+                final int start = scratch.levelOffset[level];
+                final int count = scratch.levelWidth[level] * scratch.levelHeight[level];
+                for (int i = 0; i < count; ++i)
+                    result[start + i] += scratch.temp[i];
+            }
+            for (int y = y0; y < y1; ++y)
+            {
+                for (int x = x0, src = (y - ey0) * lw + x0 - ex0, dst = (y * m_width + x0) * 3 + c; x < x1; ++x, ++src, dst += 3)
+                {
+                    final int value = Math.round(result[src]);
+                    out[dst] = (byte)(value < 0 ? 0 : value > 255 ? 255 : value);
+                }
+            }
+        }
+    }
+
+    /*
+        Mertens weights of the region at (x0, y0): contrast (absolute Laplacian of the luma), saturation
+        (standard deviation of B, G, R) and well-exposedness, multiplied. luma is scratch.
+     */
+    private void computeWeights(byte[] bgr, int x0, int y0, int w, int h, float[] luma, float[] weights)
+    {
+        for (int y = 0; y < h; ++y)
+        {
+            for (int x = 0, src = ((y0 + y) * m_width + x0) * 3, dst = y * w; x < w; ++x, src += 3, ++dst)
+                luma[dst] = ((bgr[src] & 0xff) * 29 + (bgr[src + 1] & 0xff) * 150 + (bgr[src + 2] & 0xff) * 77) * (1 / (256f * 255));
+        }
+        for (int y = 0; y < h; ++y)
+        {
+            for (int x = 0, src = ((y0 + y) * m_width + x0) * 3, i = y * w; x < w; ++x, src += 3, ++i)
+            {
+                final int b = bgr[src] & 0xff;
+                final int g = bgr[src + 1] & 0xff;
+                final int r = bgr[src + 2] & 0xff;
+                // Zero on the outermost ring where it has no neighbours
+                final float contrast = x == 0 || y == 0 || x == w - 1 || y == h - 1 ? 0 :
+                    Math.abs(4 * luma[i] - luma[i - 1] - luma[i + 1] - luma[i - w] - luma[i + w]);
+                final float mean = (b + g + r) * (1 / 3f);
+                final float saturation = (float)Math.sqrt(((b - mean) * (b - mean) + (g - mean) * (g - mean) +
+                    (r - mean) * (r - mean)) * (1 / 3f)) * (1 / 255f);
+                weights[i] = s_wellExposed[b] * s_wellExposed[g] * s_wellExposed[r] *
+                    (contrast + CONTRAST_FLOOR) * (saturation + SATURATION_FLOOR) + 1e-12f;
+            }
+        }
+    }
+
+    /*
+        Fills levels 1.. of a pyramid whose level 0 is already in place
+     */
+    private static void buildGaussian(float[] pyramid, Scratch scratch)
+    {
+        for (int level = 1; level < LEVELS; ++level)
+        {
+            reduce(pyramid, scratch.levelOffset[level - 1], scratch.levelWidth[level - 1], scratch.levelHeight[level - 1],
+                pyramid, scratch.levelOffset[level], scratch.temp);
+        }
+    }
+
+    /*
+        Blurs with the 5 tap binomial kernel and halves, (w + 1) / 2 by (h + 1) / 2 out; edges are clamped
+     */
+    private static void reduce(float[] src, int srcOffset, int w, int h, float[] dst, int dstOffset, float[] temp)
+    {
+        final int nw = (w + 1) / 2;
+        final int nh = (h + 1) / 2;
+        for (int y = 0; y < h; ++y)
+        {
+            final int row = srcOffset + y * w;
+            for (int x = 0; x < nw; ++x)
+            {
+                final int c = 2 * x;
+                temp[y * nw + x] = (src[row + Math.max(c - 2, 0)] + src[row + Math.min(c + 2, w - 1)]
+                    + 4 * (src[row + Math.max(c - 1, 0)] + src[row + Math.min(c + 1, w - 1)]) + 6 * src[row + c]) * (1 / 16f);
+            }
+        }
+        for (int y = 0; y < nh; ++y)
+        {
+            final int c = 2 * y;
+            final int r0 = Math.max(c - 2, 0) * nw;
+            final int r1 = Math.max(c - 1, 0) * nw;
+            final int r2 = c * nw;
+            final int r3 = Math.min(c + 1, h - 1) * nw;
+            final int r4 = Math.min(c + 2, h - 1) * nw;
+            final int out = dstOffset + y * nw;
+            for (int x = 0; x < nw; ++x)
+                dst[out + x] = (temp[r0 + x] + temp[r4 + x] + 4 * (temp[r1 + x] + temp[r3 + x]) + 6 * temp[r2 + x]) * (1 / 16f);
+        }
+    }
+
+    /*
+        Upsamples a sw by sh level to w by h with the same kernel, the inverse of reduce
+     */
+    private static void expand(float[] src, int srcOffset, int sw, int sh, float[] dst, int dstOffset, int w, int h, float[] temp)
+    {
+        for (int y = 0; y < sh; ++y)
+        {
+            final int row = srcOffset + y * sw;
+            for (int x = 0; x < w; ++x)
+            {
+                final int j = x >> 1;
+                if ((x & 1) == 0)
+                    temp[y * w + x] = (src[row + Math.max(j - 1, 0)] + 6 * src[row + j] + src[row + Math.min(j + 1, sw - 1)]) * (1 / 8f);
+                else
+                    temp[y * w + x] = (src[row + j] + src[row + Math.min(j + 1, sw - 1)]) * 0.5f;
+            }
+        }
+        for (int y = 0; y < h; ++y)
+        {
+            final int j = y >> 1;
+            final int out = dstOffset + y * w;
+            if ((y & 1) == 0)
+            {
+                final int r0 = Math.max(j - 1, 0) * w;
+                final int r1 = j * w;
+                final int r2 = Math.min(j + 1, sh - 1) * w;
+                for (int x = 0; x < w; ++x)
+                    dst[out + x] = (temp[r0 + x] + 6 * temp[r1 + x] + temp[r2 + x]) * (1 / 8f);
+            }
+            else
+            {
+                final int r0 = j * w;
+                final int r1 = Math.min(j + 1, sh - 1) * w;
+                for (int x = 0; x < w; ++x)
+                    dst[out + x] = (temp[r0 + x] + temp[r1 + x]) * 0.5f;
+            }
+        }
+    }
+}
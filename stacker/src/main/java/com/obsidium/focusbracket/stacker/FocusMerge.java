@@ -0,0 +1,295 @@
+package com.obsidium.focusbracket.stacker;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+    Merges frames into an all-in-focus image one frame at a time: every output pixel comes from the frame
+    that is sharpest around it so far. The sharpness and the colour picked so far per pixel live in
+    memory-mapped planes, so the heap only ever holds the frame being merged plus per-thread tile scratch.
+    Each frame is processed as fixed-size tiles on a fork/join pool; tiles don't share output pixels.
+ */
+public class FocusMerge implements AutoCloseable
+{
+    public static final int DEFAULT_TILE_SIZE = 256;
+    public static final int MAX_TILE_SIZE = 1024;
+
+    // Focus measure: absolute Laplacian of the luma, summed over a (2 * RADIUS + 1)^2 window
+    private static final int RADIUS = 2;
+    // Input pixels needed around a tile for the Laplacian and the window
+    private static final int HALO = RADIUS + 1;
+
+    private final int m_width;
+    private final int m_height;
+    private final int m_tileSize;
+    private final int m_tilesX;
+    private final int m_tilesY;
+    private final ForkJoinPool m_pool;
+    private final MappedPlane m_score;
+    private final MappedPlane m_color;
+    private int m_frames;
+
+    private final ThreadLocal<Scratch> m_scratch = new ThreadLocal<Scratch>()
+    {
+        @Override
+        protected Scratch initialValue()
+        {
+            return new Scratch(m_tileSize + 2 * HALO);
+        }
+    };
+
+    /*
+        Per-thread work buffers for one tile plus halo
+     */
+    private static final class Scratch
+    {
+        final byte[] bgr;
+        final int[] luma;
+        final int[] laplacian;
+        final int[] integral;
+        final int[] scoreRow;
+        final int[] colorRow;
+
+        Scratch(int size)
+        {
+            bgr = new byte[size * size * 3];
+            luma = new int[size * size];
+            laplacian = new int[size * size];
+            integral = new int[(size + 1) * (size + 1)];
+            scoreRow = new int[size];
+            colorRow = new int[size];
+        }
+    }
+
+    private final class TileTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Frame m_frame;
+        private final FrameTransform m_transform;
+        private final int m_first;
+        private final int m_count;
+
+        TileTask(Frame frame, FrameTransform transform, int first, int count)
+        {
+            m_frame = frame;
+            m_transform = transform;
+            m_first = first;
+            m_count = count;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (m_count == 1)
+            {
+                mergeTile(m_frame, m_transform, m_first % m_tilesX, m_first / m_tilesX, m_scratch.get());
+                return;
+            }
+            final int half = m_count / 2;
+            invokeAll(new TileTask(m_frame, m_transform, m_first, half),
+                new TileTask(m_frame, m_transform, m_first + half, m_count - half));
+        }
+    }
+
+    /*
+        workDir: where the mapped planes go, it needs room for 8 bytes per pixel
+     */
+    public FocusMerge(int width, int height, int tileSize, File workDir, ForkJoinPool pool) throws IOException
+    {
+        if (tileSize < 16 || tileSize > MAX_TILE_SIZE)
+            throw new IllegalArgumentException("Tile size must be between 16 and " + MAX_TILE_SIZE);
+        m_width = width;
+        m_height = height;
+        m_tileSize = tileSize;
+        m_tilesX = (width + tileSize - 1) / tileSize;
+        m_tilesY = (height + tileSize - 1) / tileSize;
+        m_pool = pool;
+        m_score = MappedPlane.createTemp(workDir, "score", width, height, tileSize);
+        try
+        {
+            m_color = MappedPlane.createTemp(workDir, "color", width, height, tileSize);
+        }
+        catch (IOException e)
+        {
+            m_score.close();
+            throw e;
+        }
+    }
+
+    public int getFrameCount()
+    {
+        return m_frames;
+    }
+
+    /*
+        Merges a frame; transform maps the output, which is the reference frame's geometry, into the frame
+     */
+    public void add(Frame frame, FrameTransform transform)
+    {
+        if (frame.width != m_width || frame.height != m_height)
+        {
+            throw new IllegalArgumentException(frame.file + " is " + frame.width + "x" + frame.height + ", expected " +
+                m_width + "x" + m_height);
+        }
+        m_pool.invoke(new TileTask(frame, transform, 0, m_tilesX * m_tilesY));
+        ++m_frames;
+    }
+
+    /*
+        The merged image so far
+     */
+    public BufferedImage toImage()
+    {
+        final BufferedImage image = new BufferedImage(m_width, m_height, BufferedImage.TYPE_INT_RGB);
+        final int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < m_height; ++y)
+            m_color.readRow(y, 0, pixels, y * m_width, m_width);
+        return image;
+    }
+
+    private void mergeTile(Frame frame, FrameTransform transform, int tileX, int tileY, Scratch scratch)
+    {
+        final int x0 = tileX * m_tileSize;
+        final int y0 = tileY * m_tileSize;
+        final int x1 = Math.min(x0 + m_tileSize, m_width);
+        final int y1 = Math.min(y0 + m_tileSize, m_height);
+        // Tile plus halo, clipped to the frame
+        final int ex0 = Math.max(0, x0 - HALO);
+        final int ey0 = Math.max(0, y0 - HALO);
+        final int ex1 = Math.min(m_width, x1 + HALO);
+        final int ey1 = Math.min(m_height, y1 + HALO);
+        final int lw = ex1 - ex0;
+        final int lh = ey1 - ey0;
+
+        final byte[] bgr = scratch.bgr;
+        if (transform.isIdentity())
+        {
+            for (int y = ey0; y < ey1; ++y)
+                System.arraycopy(frame.bgr, (y * m_width + ex0) * 3, bgr, (y - ey0) * lw * 3, lw * 3);
+        }
+        else
+            warp(frame, transform, ex0, ey0, lw, lh, bgr);
+
+        final int[] luma = scratch.luma;
+        for (int i = 0, src = 0; i < lw * lh; ++i, src += 3)
+            luma[i] = ((bgr[src] & 0xff) * 29 + (bgr[src + 1] & 0xff) * 150 + (bgr[src + 2] & 0xff) * 77) >> 8;
+
+        // Laplacian, zero on the outermost ring where it has no neighbours
+        final int[] laplacian = scratch.laplacian;
+        for (int y = 0; y < lh; ++y)
+        {
+            final int row = y * lw;
+            for (int x = 0; x < lw; ++x)
+            {
+                final int i = row + x;
+                if (x == 0 || y == 0 || x == lw - 1 || y == lh - 1)
+                    laplacian[i] = 0;
+                else
+                    laplacian[i] = Math.abs(4 * luma[i] - luma[i - 1] - luma[i + 1] - luma[i - lw] - luma[i + lw]);
+            }
+        }
+
+        // Summed area table for the window sums; at most 1020 per pixel, fits an int for any allowed tile size
+        final int[] integral = scratch.integral;
+        final int stride = lw + 1;
+        for (int x = 0; x <= lw; ++x)
+            integral[x] = 0;
+        for (int y = 0; y < lh; ++y)
+        {
+            int rowSum = 0;
+            integral[(y + 1) * stride] = 0;
+            for (int x = 0; x < lw; ++x)
+            {
+                rowSum += laplacian[y * lw + x];
+                integral[(y + 1) * stride + x + 1] = integral[y * stride + x + 1] + rowSum;
+            }
+        }
+
+        final boolean first = m_frames == 0;
+        final int[] scoreRow = scratch.scoreRow;
+        final int[] colorRow = scratch.colorRow;
+        final int tw = x1 - x0;
+        for (int y = y0; y < y1; ++y)
+        {
+            if (!first)
+            {
+                m_score.readRow(y, x0, scoreRow, 0, tw);
+                m_color.readRow(y, x0, colorRow, 0, tw);
+            }
+            final int ly = y - ey0;
+            final int top = Math.max(0, ly - RADIUS);
+            final int bottom = Math.min(lh, ly + RADIUS + 1);
+            boolean changed = first;
+            for (int x = x0; x < x1; ++x)
+            {
+                final int lx = x - ex0;
+                final int left = Math.max(0, lx - RADIUS);
+                final int right = Math.min(lw, lx + RADIUS + 1);
+                final int score = integral[bottom * stride + right] - integral[top * stride + right]
+                    - integral[bottom * stride + left] + integral[top * stride + left];
+                // The first frame fills everything, later ones only where they are sharper
+                if (first || score > scoreRow[x - x0])
+                {
+                    final int src = (ly * lw + lx) * 3;
+                    scoreRow[x - x0] = score;
+                    colorRow[x - x0] = (bgr[src + 2] & 0xff) << 16 | (bgr[src + 1] & 0xff) << 8 | (bgr[src] & 0xff);
+                    changed = true;
+                }
+            }
+            if (changed)
+            {
+                m_score.writeRow(y, x0, scoreRow, 0, tw);
+                m_color.writeRow(y, x0, colorRow, 0, tw);
+            }
+        }
+    }
+
+    /*
+        Bilinear resampling of the region at (x0, y0) of the output into dst, edge pixels extend outwards
+     */
+    private void warp(Frame frame, FrameTransform transform, int x0, int y0, int w, int h, byte[] dst)
+    {
+        final byte[] src = frame.bgr;
+        final double cx = (m_width - 1) / 2.0;
+        final double cy = (m_height - 1) / 2.0;
+        int out = 0;
+        for (int y = y0; y < y0 + h; ++y)
+        {
+            final double fy = Math.min(Math.max(transform.mapY(y, cy), 0), m_height - 1);
+            final int iy = Math.min((int)fy, m_height - 2);
+            final int wy = (int)((fy - iy) * 256);
+            for (int x = x0; x < x0 + w; ++x)
+            {
+                final double fx = Math.min(Math.max(transform.mapX(x, cx), 0), m_width - 1);
+                final int ix = Math.min((int)fx, m_width - 2);
+                final int wx = (int)((fx - ix) * 256);
+                final int i = (iy * m_width + ix) * 3;
+                final int j = i + m_width * 3;
+                for (int c = 0; c < 3; ++c)
+                {
+                    final int top = (src[i + c] & 0xff) * (256 - wx) + (src[i + 3 + c] & 0xff) * wx;
+                    final int bottom = (src[j + c] & 0xff) * (256 - wx) + (src[j + 3 + c] & 0xff) * wx;
+                    dst[out++] = (byte)((top * (256 - wy) + bottom * wy + (1 << 15)) >> 16);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            m_score.close();
+        }
+        finally
+        {
+            m_color.close();
+        }
+    }
+}
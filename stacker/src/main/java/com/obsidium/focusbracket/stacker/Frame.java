@@ -0,0 +1,64 @@
+package com.obsidium.focusbracket.stacker;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/*
+    One decoded image of the stack as packed 8 bit B, G, R samples, row by row without padding
+ */
+public final class Frame
+{
+    public final File   file;
+    // Position in the stack, frames are numbered in capture order
+    public final int    index;
+    public final int    width;
+    public final int    height;
+    public final byte[] bgr;
+
+    public Frame(File file, int index, int width, int height, byte[] bgr)
+    {
+        this.file = file;
+        this.index = index;
+        this.width = width;
+        this.height = height;
+        this.bgr = bgr;
+    }
+
+    public long getPixelCount()
+    {
+        return (long)width * height;
+    }
+
+    public static Frame read(File file, int index) throws IOException
+    {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null)
+            throw new IOException("No decoder for " + file);
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY)
+        {
+            // Copy the samples as they are, drawing a gray image into an RGB one would apply a gamma curve
+            final byte[] gray = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+            final byte[] bgr = new byte[gray.length * 3];
+            for (int i = 0, j = 0; i < gray.length; ++i, j += 3)
+            {
+                bgr[j] = gray[i];
+                bgr[j + 1] = gray[i];
+                bgr[j + 2] = gray[i];
+            }
+            return new Frame(file, index, image.getWidth(), image.getHeight(), bgr);
+        }
+        if (image.getType() != BufferedImage.TYPE_3BYTE_BGR || image.getRaster().getDataBuffer().getNumBanks() != 1)
+        {
+            // CMYK, indexed or 16 bit input: redraw into the one layout the merge reads
+            final BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+            converted.getGraphics().drawImage(image, 0, 0, null);
+            image = converted;
+        }
+        final byte[] bgr = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        return new Frame(file, index, image.getWidth(), image.getHeight(), bgr);
+    }
+}
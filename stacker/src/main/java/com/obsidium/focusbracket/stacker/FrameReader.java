@@ -0,0 +1,141 @@
+package com.obsidium.focusbracket.stacker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/*
+    Decodes the frames of a stack ahead of the consumer, in order. At most `prefetch` frames are being decoded
+    or waiting at any time, which bounds the heap no matter how many frames the stack has.
+ */
+public class FrameReader implements AutoCloseable
+{
+    private final List<File> m_files;
+    private final int m_prefetch;
+    private final ExecutorService m_decoders;
+    private final ArrayDeque<Future<Frame>> m_pending = new ArrayDeque<Future<Frame>>();
+    private int m_submitted;
+    private long m_waitNanos;
+
+    public FrameReader(List<File> files, int decoders, int prefetch)
+    {
+        m_files = files;
+        m_prefetch = Math.max(1, prefetch);
+        m_decoders = Executors.newFixedThreadPool(Math.max(1, decoders), new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable, "FrameReader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /*
+        Adds input to files: a JPEG as it is, a directory as the JPEGs in it in file name order
+     */
+    public static void collect(File input, List<File> files)
+    {
+        if (!input.isDirectory())
+        {
+            files.add(input);
+            return;
+        }
+        final File[] entries = input.listFiles();
+        if (entries == null)
+            return;
+        Arrays.sort(entries);
+        for (File file : entries)
+        {
+            final String name = file.getName().toLowerCase(Locale.US);
+            if (file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg")))
+                files.add(file);
+        }
+    }
+
+    public int size()
+    {
+        return m_files.size();
+    }
+
+    public boolean hasNext()
+    {
+        return m_submitted < m_files.size() || !m_pending.isEmpty();
+    }
+
+    /*
+        Returns the next frame, waiting for its decoder if needed
+     */
+    public Frame next() throws IOException
+    {
+        fill();
+        final Future<Frame> future = m_pending.poll();
+        final long start = System.nanoTime();
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+        finally
+        {
+            m_waitNanos += System.nanoTime() - start;
+            // Keep the decoders busy while the caller works on this frame
+            fill();
+        }
+    }
+
+    /*
+        Time next() spent waiting for decoders, the part of decoding the merge didn't hide
+     */
+    public long getWaitNanos()
+    {
+        return m_waitNanos;
+    }
+
+    private void fill()
+    {
+        while (m_pending.size() < m_prefetch && m_submitted < m_files.size())
+        {
+            final File file = m_files.get(m_submitted);
+            final int index = m_submitted++;
+            m_pending.add(m_decoders.submit(new Callable<Frame>()
+            {
+                @Override
+                public Frame call() throws IOException
+                {
+                    return Frame.read(file, index);
+                }
+            }));
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        for (Future<Frame> future : m_pending)
+            future.cancel(true);
+        m_pending.clear();
+        m_decoders.shutdownNow();
+    }
+}
@@ -0,0 +1,100 @@
+package com.obsidium.focusbracket.stacker;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+    Where a frame's pixels lie relative to the reference frame: reference pixel (x, y) shows up in the frame at
+    (scale * (x - cx) + cx + dx, scale * (y - cy) + cy + dy), with (cx, cy) the image centre and dx, dy in full
+    resolution pixels. Focus breathing is a change of scale about the optical axis, the translation takes up
+    whatever the lens or the tripod add.
+ */
+public final class FrameTransform
+{
+    public static final FrameTransform IDENTITY = new FrameTransform(1, 0, 0);
+
+    public final double scale;
+    public final double dx;
+    public final double dy;
+
+    public FrameTransform(double scale, double dx, double dy)
+    {
+        this.scale = scale;
+        this.dx = dx;
+        this.dy = dy;
+    }
+
+    public boolean isIdentity()
+    {
+        return scale == 1 && dx == 0 && dy == 0;
+    }
+
+    public double mapX(double x, double cx)
+    {
+        return scale * (x - cx) + cx + dx;
+    }
+
+    public double mapY(double y, double cy)
+    {
+        return scale * (y - cy) + cy + dy;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.US, "scale %.5f dx %.2f dy %.2f", scale, dx, dy);
+    }
+
+    /*
+        Transform file: one "name scale dx dy" line per frame, '#' starts a comment
+     */
+    public static void write(File file, Map<String, FrameTransform> transforms, String comment) throws IOException
+    {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file)))
+        {
+            writer.write("# " + comment + "\n");
+            writer.write("# name scale dx dy\n");
+            for (Map.Entry<String, FrameTransform> entry : transforms.entrySet())
+            {
+                final FrameTransform t = entry.getValue();
+                writer.write(String.format(Locale.US, "%s %.7f %.3f %.3f\n", entry.getKey(), t.scale, t.dx, t.dy));
+            }
+        }
+    }
+
+    public static Map<String, FrameTransform> read(File file) throws IOException
+    {
+        final Map<String, FrameTransform> transforms = new LinkedHashMap<String, FrameTransform>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file)))
+        {
+            int lineNumber = 0;
+            for (String line = reader.readLine(); line != null; line = reader.readLine())
+            {
+                ++lineNumber;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                final String[] fields = line.split("\\s+");
+                if (fields.length != 4)
+                    throw new IOException(file + ":" + lineNumber + ": expected name scale dx dy");
+                try
+                {
+                    transforms.put(fields[0], new FrameTransform(Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+                        Double.parseDouble(fields[3])));
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+        return transforms;
+    }
+}
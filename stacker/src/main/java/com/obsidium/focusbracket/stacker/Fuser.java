@@ -0,0 +1,273 @@
+package com.obsidium.focusbracket.stacker;
+
+import com.obsidium.focusbracket.core.ShotTrace;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/*
+    Exposure fusion for bracketed sequences: turns the -EV / 0 / +EV frames of every focus point into one
+    frame, so a sequence of 3N frames stacks as N.
+
+    Fuser [--trace SEQnnnnn.CSV | --group N] [--tile N] [--threads N] [--decoders N] [--quality Q] -o OUTDIR INPUT...
+
+    With --trace, the sequence's trace from ULTRABRK/TRACE says which focus point and exposure every input frame
+    is, the inputs being that sequence's frames in file name order. Frames are grouped by focus point, and a
+    frame the camera took again, after a bracket burst stopped early or a frame failed, replaces the earlier
+    one. Without it, every shot order the app has takes all variants of a focus point back to back, as does the
+    camera's own bracket burst, so the frames are grouped by count in file name order. That goes wrong as soon
+    as a burst was retaken. The order within a group doesn't matter to the fusion. Each output is named after
+    the first frame of its group, so OUTDIR stacks in capture order. Decoding the next group and encoding the
+    last output overlap with the fusion.
+ */
+public class Fuser
+{
+    private int m_group = 3;
+    private File m_trace;
+    private int m_tileSize = ExposureFusion.DEFAULT_TILE_SIZE;
+    private int m_threads = Runtime.getRuntime().availableProcessors();
+    private int m_decoders = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private float m_quality = 0.95f;
+    private File m_outputDir;
+    private final List<File> m_inputs = new ArrayList<File>();
+
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+        final Fuser fuser = new Fuser();
+        try
+        {
+            fuser.parseArgs(args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: Fuser [--trace SEQnnnnn.CSV | --group N] [--tile N] [--threads N] [--decoders N] [--quality Q] -o OUTDIR INPUT...");
+            System.exit(1);
+        }
+        try
+        {
+            fuser.run();
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            System.err.println("Fusion failed: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    private void parseArgs(String[] args)
+    {
+        for (int i = 0; i < args.length; ++i)
+        {
+            final String arg = args[i];
+            if (arg.startsWith("-") && i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + arg);
+            if (arg.equals("--group"))
+                m_group = Integer.parseInt(args[++i]);
+            else if (arg.equals("--trace"))
+                m_trace = new File(args[++i]);
+            else if (arg.equals("--tile"))
+                m_tileSize = Integer.parseInt(args[++i]);
+            else if (arg.equals("--threads"))
+                m_threads = Integer.parseInt(args[++i]);
+            else if (arg.equals("--decoders"))
+                m_decoders = Integer.parseInt(args[++i]);
+            else if (arg.equals("--quality"))
+                m_quality = Float.parseFloat(args[++i]);
+            else if (arg.equals("-o"))
+                m_outputDir = new File(args[++i]);
+            else if (arg.startsWith("-"))
+                throw new IllegalArgumentException("Unknown option " + arg);
+            else
+                FrameReader.collect(new File(arg), m_inputs);
+        }
+        if (m_outputDir == null)
+            throw new IllegalArgumentException("No output directory");
+        if (m_inputs.isEmpty())
+            throw new IllegalArgumentException("No input frames");
+        if (m_group < 2)
+            throw new IllegalArgumentException("Groups need at least 2 frames");
+        for (File input : m_inputs)
+        {
+            if (input.getAbsoluteFile().getParentFile().equals(m_outputDir.getAbsoluteFile()))
+                throw new IllegalArgumentException("The output directory holds the input frames");
+        }
+    }
+
+    /*
+        Splits the frames into groups of size in order
+     */
+    static List<List<File>> groupByCount(List<File> frames, int size)
+    {
+        if (frames.size() % size != 0)
+            throw new IllegalArgumentException(frames.size() + " frames don't make groups of " + size);
+        final List<List<File>> groups = new ArrayList<List<File>>();
+        for (int i = 0; i < frames.size(); i += size)
+            groups.add(new ArrayList<File>(frames.subList(i, i + size)));
+        return groups;
+    }
+
+    /*
+        Groups the frames by the focus target the sequence trace gives for each, keeping the last frame of every
+        exposure. Groups and the frames in them are in capture order.
+     */
+    static List<List<File>> groupByTrace(List<File> frames, Reader trace) throws IOException
+    {
+        final String focusEvent = ShotTrace.getEventName(ShotTrace.FRAME_FOCUS);
+        final String exposureEvent = ShotTrace.getEventName(ShotTrace.FRAME_EXPOSURE);
+        // Focus target -> exposure -> frame
+        final LinkedHashMap<Integer, LinkedHashMap<Integer, File>> targets = new LinkedHashMap<Integer, LinkedHashMap<Integer, File>>();
+        final BufferedReader reader = new BufferedReader(trace);
+        int frame = 0;
+        int focus = 0;
+        for (String line = reader.readLine(); line != null; line = reader.readLine())
+        {
+            // time_ms,shot,event,value
+            final String[] fields = line.split(",");
+            if (fields.length < 4)
+                continue;
+            if (fields[2].equals(focusEvent))
+                focus = Integer.parseInt(fields[3]);
+            else if (fields[2].equals(exposureEvent))
+            {
+                if (frame == frames.size())
+                    throw new IllegalArgumentException("The trace has more frames than the " + frames.size() + " inputs");
+                LinkedHashMap<Integer, File> target = targets.get(focus);
+                if (target == null)
+                {
+                    target = new LinkedHashMap<Integer, File>();
+                    targets.put(focus, target);
+                }
+                // A retaken frame goes after the ones taken with it
+                final Integer exposure = Integer.valueOf(fields[3]);
+                target.remove(exposure);
+                target.put(exposure, frames.get(frame++));
+            }
+        }
+        if (frame != frames.size())
+            throw new IllegalArgumentException("The trace has " + frame + " frames, not " + frames.size());
+        final List<List<File>> groups = new ArrayList<List<File>>();
+        for (LinkedHashMap<Integer, File> target : targets.values())
+            groups.add(new ArrayList<File>(target.values()));
+        return groups;
+    }
+
+    private List<List<File>> readGroups() throws IOException
+    {
+        if (m_trace == null)
+            return groupByCount(m_inputs, m_group);
+        try (FileReader trace = new FileReader(m_trace))
+        {
+            return groupByTrace(m_inputs, trace);
+        }
+    }
+
+    private void run() throws IOException
+    {
+        final List<List<File>> groups = readGroups();
+        final List<File> files = new ArrayList<File>();
+        int largestGroup = 0;
+        for (List<File> group : groups)
+        {
+            files.addAll(group);
+            largestGroup = Math.max(largestGroup, group.size());
+        }
+        if (files.size() < m_inputs.size())
+            System.out.println((m_inputs.size() - files.size()) + " retaken frames left out");
+        if (!m_outputDir.isDirectory() && !m_outputDir.mkdirs())
+            throw new IOException("Can't create " + m_outputDir);
+        final long start = System.nanoTime();
+        long fuseNanos = 0;
+        long pixels = 0;
+        final ForkJoinPool pool = new ForkJoinPool(Math.max(1, m_threads));
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+        Future<Void> pendingWrite = null;
+        // Two groups in flight: the one being fused and the next one decoding
+        try (FrameReader reader = new FrameReader(files, m_decoders, 2 * largestGroup))
+        {
+            ExposureFusion fusion = null;
+            for (int groupIndex = 0; groupIndex < groups.size(); ++groupIndex)
+            {
+                final Frame[] group = new Frame[groups.get(groupIndex).size()];
+                for (int i = 0; i < group.length; ++i)
+                    group[i] = reader.next();
+                final Frame first = group[0];
+                if (fusion == null)
+                    fusion = new ExposureFusion(first.width, first.height, m_tileSize, pool);
+
+                final BufferedImage image = new BufferedImage(first.width, first.height, BufferedImage.TYPE_3BYTE_BGR);
+                final long fuseStart = System.nanoTime();
+                fusion.fuse(group, ((DataBufferByte)image.getRaster().getDataBuffer()).getData());
+                fuseNanos += System.nanoTime() - fuseStart;
+                for (Frame frame : group)
+                    pixels += frame.getPixelCount();
+                System.out.println(String.format(Locale.US, "%4d/%d %s", groupIndex + 1, groups.size(), first.file.getName()));
+                // Drop the inputs so they can go while the output is encoded and the next group decodes
+                for (int i = 0; i < group.length; ++i)
+                    group[i] = null;
+
+                // At most one output waits for the encoder, which bounds the heap like the prefetch does
+                waitFor(pendingWrite);
+                final File output = new File(m_outputDir, first.file.getName());
+                pendingWrite = writer.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws IOException
+                    {
+                        Stacker.write(image, output, m_quality);
+                        return null;
+                    }
+                });
+            }
+            waitFor(pendingWrite);
+            final long end = System.nanoTime();
+            final double megapixels = pixels / 1e6;
+            System.out.println(String.format(Locale.US,
+                "Fused %d frames (%.1f MP) into %d in %.1f s: %.1f MP/s overall, fusion %.1f MP/s on %d threads, %.1f s waiting for decoders",
+                reader.size(), megapixels, groups.size(), (end - start) / 1e9, megapixels * 1e9 / (end - start),
+                megapixels * 1e9 / Math.max(1, fuseNanos), pool.getParallelism(), reader.getWaitNanos() / 1e9));
+        }
+        finally
+        {
+            writer.shutdownNow();
+            pool.shutdown();
+        }
+    }
+
+    private static void waitFor(Future<Void> write) throws IOException
+    {
+        if (write == null)
+            return;
+        try
+        {
+            write.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+}
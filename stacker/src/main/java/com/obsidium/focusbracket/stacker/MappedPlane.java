@@ -0,0 +1,92 @@
+package com.obsidium.focusbracket.stacker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+    width * height ints in a memory-mapped scratch file, so intermediates of any size live in the page cache
+    instead of the heap. The file is mapped in bands of whole rows; a band never splits a row, so row access
+    never crosses a mapping. Concurrent access to different rows is safe: every access works on its own view.
+ */
+public class MappedPlane implements AutoCloseable
+{
+    // Keep each mapping well below the 2 GB limit of a single MappedByteBuffer
+    private static final long MAX_BAND_BYTES = 1L << 30;
+
+    private final File m_file;
+    private final RandomAccessFile m_raf;
+    private final int m_width;
+    private final int m_height;
+    private final int m_bandRows;
+    private final IntBuffer[] m_bands;
+
+    /*
+        bandAlign: band heights are a multiple of it, so tiles of that height stay within one band
+     */
+    public MappedPlane(File file, int width, int height, int bandAlign) throws IOException
+    {
+        m_file = file;
+        m_width = width;
+        m_height = height;
+        final long rowBytes = 4L * width;
+        int bandRows = (int)Math.max(1, MAX_BAND_BYTES / rowBytes);
+        if (bandRows >= bandAlign)
+            bandRows -= bandRows % bandAlign;
+        m_bandRows = Math.min(bandRows, height);
+        m_raf = new RandomAccessFile(file, "rw");
+        m_raf.setLength(rowBytes * height);
+        final FileChannel channel = m_raf.getChannel();
+        m_bands = new IntBuffer[(height + m_bandRows - 1) / m_bandRows];
+        for (int band = 0; band < m_bands.length; ++band)
+        {
+            final int rows = Math.min(m_bandRows, height - band * m_bandRows);
+            m_bands[band] = channel.map(FileChannel.MapMode.READ_WRITE, rowBytes * band * m_bandRows, rowBytes * rows)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+    }
+
+    /*
+        Scratch plane in dir, deleted on close
+     */
+    public static MappedPlane createTemp(File dir, String name, int width, int height, int bandAlign) throws IOException
+    {
+        final File file = File.createTempFile(name, ".plane", dir);
+        file.deleteOnExit();
+        return new MappedPlane(file, width, height, bandAlign);
+    }
+
+    public int getWidth()
+    {
+        return m_width;
+    }
+
+    public int getHeight()
+    {
+        return m_height;
+    }
+
+    public void readRow(int y, int x, int[] dst, int offset, int count)
+    {
+        final IntBuffer view = m_bands[y / m_bandRows].duplicate();
+        view.position((y % m_bandRows) * m_width + x);
+        view.get(dst, offset, count);
+    }
+
+    public void writeRow(int y, int x, int[] src, int offset, int count)
+    {
+        final IntBuffer view = m_bands[y / m_bandRows].duplicate();
+        view.position((y % m_bandRows) * m_width + x);
+        view.put(src, offset, count);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        m_raf.close();
+        m_file.delete();
+    }
+}
@@ -0,0 +1,139 @@
+package com.obsidium.focusbracket.stacker;
+
+/*
+    Luma pyramid of a frame for alignment. Level 0 is the frame box-filtered down to at most WORK_SIZE pixels
+    on the long side, every further level halves the previous one until the short side would drop below
+    MIN_SIZE. Each level is normalised to zero mean and unit variance, so frames of a bracket compare as
+    well as frames of one exposure. Built once per frame; the frame itself isn't needed afterwards.
+ */
+public final class Pyramid
+{
+    public static final int WORK_SIZE = 1024;
+    private static final int MIN_SIZE = 32;
+
+    // Full resolution pixels per level 0 pixel
+    private final int m_factor;
+    private final int m_fullWidth;
+    private final int m_fullHeight;
+    private final int[] m_widths;
+    private final int[] m_heights;
+    private final float[][] m_levels;
+
+    public Pyramid(Frame frame)
+    {
+        m_fullWidth = frame.width;
+        m_fullHeight = frame.height;
+        m_factor = Math.max(1, (Math.max(frame.width, frame.height) + WORK_SIZE - 1) / WORK_SIZE);
+
+        int count = 1;
+        for (int w = frame.width / m_factor, h = frame.height / m_factor; Math.min(w, h) / 2 >= MIN_SIZE; w /= 2, h /= 2)
+            ++count;
+        m_widths = new int[count];
+        m_heights = new int[count];
+        m_levels = new float[count][];
+
+        m_widths[0] = frame.width / m_factor;
+        m_heights[0] = frame.height / m_factor;
+        m_levels[0] = downsample(frame);
+        for (int level = 1; level < count; ++level)
+        {
+            m_widths[level] = m_widths[level - 1] / 2;
+            m_heights[level] = m_heights[level - 1] / 2;
+            m_levels[level] = halve(m_levels[level - 1], m_widths[level - 1], m_widths[level], m_heights[level]);
+        }
+        for (float[] level : m_levels)
+            normalise(level);
+    }
+
+    public int getLevelCount()
+    {
+        return m_levels.length;
+    }
+
+    public int getWidth(int level)
+    {
+        return m_widths[level];
+    }
+
+    public int getHeight(int level)
+    {
+        return m_heights[level];
+    }
+
+    public float[] getLevel(int level)
+    {
+        return m_levels[level];
+    }
+
+    public int getFullWidth()
+    {
+        return m_fullWidth;
+    }
+
+    public int getFullHeight()
+    {
+        return m_fullHeight;
+    }
+
+    /*
+        Full resolution pixels per pixel of the given level
+     */
+    public int getPixelSize(int level)
+    {
+        return m_factor << level;
+    }
+
+    private float[] downsample(Frame frame)
+    {
+        final int w = m_widths[0];
+        final int h = m_heights[0];
+        final int k = m_factor;
+        final float[] out = new float[w * h];
+        final byte[] bgr = frame.bgr;
+        final float norm = 1.0f / (k * k * 256);
+        for (int y = 0; y < h; ++y)
+        {
+            for (int x = 0; x < w; ++x)
+            {
+                int sum = 0;
+                for (int yy = y * k; yy < y * k + k; ++yy)
+                {
+                    int src = (yy * frame.width + x * k) * 3;
+                    for (int xx = 0; xx < k; ++xx, src += 3)
+                        sum += (bgr[src] & 0xff) * 29 + (bgr[src + 1] & 0xff) * 150 + (bgr[src + 2] & 0xff) * 77;
+                }
+                out[y * w + x] = sum * norm;
+            }
+        }
+        return out;
+    }
+
+    private static float[] halve(float[] src, int srcWidth, int w, int h)
+    {
+        final float[] out = new float[w * h];
+        for (int y = 0; y < h; ++y)
+        {
+            for (int x = 0; x < w; ++x)
+            {
+                final int i = 2 * y * srcWidth + 2 * x;
+                out[y * w + x] = 0.25f * (src[i] + src[i + 1] + src[i + srcWidth] + src[i + srcWidth + 1]);
+            }
+        }
+        return out;
+    }
+
+    private static void normalise(float[] level)
+    {
+        double sum = 0;
+        double sumSquares = 0;
+        for (float v : level)
+        {
+            sum += v;
+            sumSquares += v * v;
+        }
+        final double mean = sum / level.length;
+        final double deviation = Math.sqrt(Math.max(1e-12, sumSquares / level.length - mean * mean));
+        for (int i = 0; i < level.length; ++i)
+            level[i] = (float)((level[i] - mean) / deviation);
+    }
+}
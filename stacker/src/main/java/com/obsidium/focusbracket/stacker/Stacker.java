@@ -0,0 +1,172 @@
+package com.obsidium.focusbracket.stacker;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/*
+    Command line focus stacker for the JPEGs a FocusBracket sequence leaves on the card.
+
+    Stacker [--tile N] [--threads N] [--decoders N] [--work DIR] [--quality Q] [--transforms FILE] -o OUT INPUT...
+
+    INPUT is a JPEG or a directory of them, frames are stacked in file name order. With --transforms, every
+    frame is warped onto the reference frame of an Aligner run as its tiles are merged. The heap holds a few
+    decoded frames and the final image; everything else is memory-mapped under --work.
+ */
+public class Stacker
+{
+    private int m_tileSize = FocusMerge.DEFAULT_TILE_SIZE;
+    private int m_threads = Runtime.getRuntime().availableProcessors();
+    private int m_decoders = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private File m_workDir = new File(System.getProperty("java.io.tmpdir"));
+    private float m_quality = 0.95f;
+    private File m_output;
+    // Alignment from Aligner, frames not listed are merged as they are
+    private File m_transformFile;
+    private final List<File> m_inputs = new ArrayList<File>();
+
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+        final Stacker stacker = new Stacker();
+        try
+        {
+            stacker.parseArgs(args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: Stacker [--tile N] [--threads N] [--decoders N] [--work DIR] [--quality Q] [--transforms FILE] -o OUT INPUT...");
+            System.exit(1);
+        }
+        try
+        {
+            stacker.run();
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            System.err.println("Stacking failed: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    private void parseArgs(String[] args)
+    {
+        for (int i = 0; i < args.length; ++i)
+        {
+            final String arg = args[i];
+            if (arg.startsWith("-") && i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + arg);
+            if (arg.equals("--tile"))
+                m_tileSize = Integer.parseInt(args[++i]);
+            else if (arg.equals("--threads"))
+                m_threads = Integer.parseInt(args[++i]);
+            else if (arg.equals("--decoders"))
+                m_decoders = Integer.parseInt(args[++i]);
+            else if (arg.equals("--work"))
+                m_workDir = new File(args[++i]);
+            else if (arg.equals("--transforms"))
+                m_transformFile = new File(args[++i]);
+            else if (arg.equals("--quality"))
+                m_quality = Float.parseFloat(args[++i]);
+            else if (arg.equals("-o"))
+                m_output = new File(args[++i]);
+            else if (arg.startsWith("-"))
+                throw new IllegalArgumentException("Unknown option " + arg);
+            else
+                FrameReader.collect(new File(arg), m_inputs);
+        }
+        if (m_output == null)
+            throw new IllegalArgumentException("No output file");
+        if (m_inputs.isEmpty())
+            throw new IllegalArgumentException("No input frames");
+    }
+
+    private void run() throws IOException
+    {
+        final long start = System.nanoTime();
+        long mergeNanos = 0;
+        long pixels = 0;
+        final Map<String, FrameTransform> transforms = m_transformFile != null ? FrameTransform.read(m_transformFile) :
+            Collections.<String, FrameTransform>emptyMap();
+        final ForkJoinPool pool = new ForkJoinPool(Math.max(1, m_threads));
+        try (FrameReader reader = new FrameReader(m_inputs, m_decoders, m_decoders + 1))
+        {
+            Frame frame = reader.next();
+            try (FocusMerge merge = new FocusMerge(frame.width, frame.height, m_tileSize, m_workDir, pool))
+            {
+                while (true)
+                {
+                    final long mergeStart = System.nanoTime();
+                    final FrameTransform transform = transforms.get(frame.file.getName());
+                    merge.add(frame, transform != null ? transform : FrameTransform.IDENTITY);
+                    mergeNanos += System.nanoTime() - mergeStart;
+                    pixels += frame.getPixelCount();
+                    System.out.println(String.format(Locale.US, "%4d/%d %s", frame.index + 1, reader.size(), frame.file.getName()));
+                    if (!reader.hasNext())
+                        break;
+                    // Drop the reference before waiting, so the decoded frame can go while the next one loads
+                    frame = null;
+                    frame = reader.next();
+                }
+
+                final long writeStart = System.nanoTime();
+                write(merge.toImage(), m_output, m_quality);
+                final long end = System.nanoTime();
+                final double megapixels = pixels / 1e6;
+                System.out.println(String.format(Locale.US,
+                    "Stacked %d frames (%.1f MP) in %.1f s: %.1f MP/s overall, merge %.1f MP/s on %d threads, %.1f s waiting for decoders, %.1f s writing",
+                    merge.getFrameCount(), megapixels, (end - start) / 1e9, megapixels * 1e9 / (end - start),
+                    megapixels * 1e9 / Math.max(1, mergeNanos), pool.getParallelism(), reader.getWaitNanos() / 1e9,
+                    (end - writeStart) / 1e9));
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /*
+        Writes JPEG at the given quality, anything else ImageIO knows by the file extension
+     */
+    static void write(BufferedImage image, File file, float quality) throws IOException
+    {
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+        final String format = dot >= 0 ? name.substring(dot + 1).toLowerCase(Locale.US) : "jpg";
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(format);
+        if (!writers.hasNext())
+            throw new IOException("No encoder for ." + format);
+        final ImageWriter writer = writers.next();
+        final ImageWriteParam param = writer.getDefaultWriteParam();
+        if (format.equals("jpg") || format.equals("jpeg"))
+        {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+        }
+        file.delete();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file))
+        {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        finally
+        {
+            writer.dispose();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.obsidium.focusbracket.stacker;
+
+import com.obsidium.focusbracket.core.sim.SyntheticScene;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+
+/*
+    Writes a focus stack of a synthetic scene for trying the stacker without a camera:
+    FRAME_000.JPG... swept from the near to the far end, and INFOCUS.PNG, the result a perfect merge would give.
+    --breathing magnifies the frames progressively by up to that many percent from first to last, centred on
+    the middle frame, like a lens whose focal length changes with the focus distance. --bracket writes every
+    frame three times, at -EV, +EV and 0, for trying Fuser.
+
+    SyntheticStack [--frames N] [--width N] [--height N] [--near N] [--far N] [--breathing PERCENT] [--bracket EV] OUTDIR
+ */
+public class SyntheticStack
+{
+    private static final int MAX_POSITION = 600;
+
+    public static void main(String[] args) throws IOException
+    {
+        int frames = 20;
+        int width = 1600;
+        int height = 1200;
+        int near = 150;
+        int far = 450;
+        double breathing = 0;
+        double bracket = 0;
+        File outDir = null;
+        for (int i = 0; i < args.length; ++i)
+        {
+            if (args[i].equals("--frames"))
+                frames = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--width"))
+                width = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--height"))
+                height = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--near"))
+                near = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--far"))
+                far = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--breathing"))
+                breathing = Double.parseDouble(args[++i]);
+            else if (args[i].equals("--bracket"))
+                bracket = Double.parseDouble(args[++i]);
+            else
+                outDir = new File(args[i]);
+        }
+        if (outDir == null || frames < 2)
+        {
+            System.err.println("Usage: SyntheticStack [--frames N] [--width N] [--height N] [--near N] [--far N] [--breathing PERCENT] [--bracket EV] OUTDIR");
+            System.exit(1);
+        }
+        outDir.mkdirs();
+
+        final SyntheticScene scene = new SyntheticScene(width, height, near, far, MAX_POSITION, 1);
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        final byte[] luma = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        final byte[] unscaled = breathing != 0 ? new byte[luma.length] : luma;
+        final BufferedImage exposedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        final byte[] exposed = ((DataBufferByte)exposedImage.getRaster().getDataBuffer()).getData();
+        final double[] exposures = bracket != 0 ? new double[] { -bracket, bracket, 0 } : new double[] { 0 };
+        int written = 0;
+        for (int frame = 0; frame < frames; ++frame)
+        {
+            final int position = near + (far - near) * frame / (frames - 1);
+            scene.render(position, unscaled);
+            if (breathing != 0)
+                magnify(unscaled, width, height, 1 + breathing / 100 * (frame - (frames - 1) / 2.0) / (frames - 1), luma);
+            for (double exposure : exposures)
+            {
+                final File file = new File(outDir, String.format(Locale.US, "FRAME_%03d.JPG", written++));
+                if (exposure == 0)
+                    ImageIO.write(image, "jpg", file);
+                else
+                {
+                    expose(luma, Math.pow(2, exposure), exposed);
+                    ImageIO.write(exposedImage, "jpg", file);
+                }
+            }
+        }
+        scene.renderInFocus(luma);
+        ImageIO.write(image, "png", new File(outDir, "INFOCUS.PNG"));
+        if (breathing != 0)
+            System.out.println("Scale of frame i relative to the middle one: 1 + " + breathing / 100 + " * (i - " + (frames - 1) / 2.0 + ") / " + (frames - 1));
+        System.out.println("Wrote " + frames * exposures.length + " frames of " + width + "x" + height + " to " + outDir);
+    }
+
+    /*
+        Writes src multiplied by gain into dst, clipping like a sensor would
+     */
+    private static void expose(byte[] src, double gain, byte[] dst)
+    {
+        for (int i = 0; i < src.length; ++i)
+            dst[i] = (byte)Math.min(255, (int)Math.round((src[i] & 0xff) * gain));
+    }
+
+    /*
+        Writes src magnified by scale about the centre into dst: reference pixel (x, y) lands on
+        (scale * (x - cx) + cx, scale * (y - cy) + cy), as in FrameTransform
+     */
+    private static void magnify(byte[] src, int width, int height, double scale, byte[] dst)
+    {
+        final double cx = (width - 1) / 2.0;
+        final double cy = (height - 1) / 2.0;
+        for (int y = 0; y < height; ++y)
+        {
+            final double fy = Math.min(Math.max((y - cy) / scale + cy, 0), height - 1.001);
+            final int iy = (int)fy;
+            final double wy = fy - iy;
+            for (int x = 0; x < width; ++x)
+            {
+                final double fx = Math.min(Math.max((x - cx) / scale + cx, 0), width - 1.001);
+                final int ix = (int)fx;
+                final double wx = fx - ix;
+                final int i = iy * width + ix;
+                final double top = (src[i] & 0xff) * (1 - wx) + (src[i + 1] & 0xff) * wx;
+                final double bottom = (src[i + width] & 0xff) * (1 - wx) + (src[i + width + 1] & 0xff) * wx;
+                dst[y * width + x] = (byte)Math.round(top * (1 - wy) + bottom * wy);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.obsidium.focusbracket.stacker;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AlignerTest
+{
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    /*
+        Smooth texture with detail at several scales, defined everywhere so magnified frames have no edges
+     */
+    private static double scene(double x, double y)
+    {
+        return 128 + 50 * Math.sin(x / 7.0) * Math.cos(y / 9.0) + 30 * Math.sin((x + 2 * y) / 23.0) +
+            20 * Math.cos((3 * x - y) / 41.0);
+    }
+
+    /*
+        Frame showing the scene through the transform: reference pixel (x, y) lands on the frame where the
+        transform maps it
+     */
+    private static Frame frame(FrameTransform transform)
+    {
+        final double cx = (WIDTH - 1) / 2.0;
+        final double cy = (HEIGHT - 1) / 2.0;
+        final byte[] bgr = new byte[WIDTH * HEIGHT * 3];
+        for (int y = 0; y < HEIGHT; ++y)
+        {
+            for (int x = 0; x < WIDTH; ++x)
+            {
+                final double sx = (x - cx - transform.dx) / transform.scale + cx;
+                final double sy = (y - cy - transform.dy) / transform.scale + cy;
+                final int value = (int)Math.round(Math.max(0, Math.min(255, scene(sx, sy))));
+                final int i = (y * WIDTH + x) * 3;
+                bgr[i] = (byte)value;
+                bgr[i + 1] = (byte)value;
+                bgr[i + 2] = (byte)value;
+            }
+        }
+        return new Frame(new File("FRAME.JPG"), 0, WIDTH, HEIGHT, bgr);
+    }
+
+    @Test
+    public void identicalFramesNeedNoTransform()
+    {
+        final Pyramid reference = new Pyramid(frame(FrameTransform.IDENTITY));
+        final Aligner.Result result = Aligner.estimate(reference, reference, FrameTransform.IDENTITY);
+        assertEquals(1, result.transform.scale, 1e-6);
+        assertEquals(0, result.transform.dx, 1e-3);
+        assertEquals(0, result.transform.dy, 1e-3);
+        assertEquals(0, result.residual, 1e-6);
+    }
+
+    @Test
+    public void recoversBreathingAndShift()
+    {
+        final FrameTransform truth = new FrameTransform(1.02, 3.5, -2.0);
+        final Pyramid reference = new Pyramid(frame(FrameTransform.IDENTITY));
+        final Aligner.Result result = Aligner.estimate(reference, new Pyramid(frame(truth)), FrameTransform.IDENTITY);
+        assertEquals(truth.scale, result.transform.scale, 1e-3);
+        assertEquals(truth.dx, result.transform.dx, 0.25);
+        assertEquals(truth.dy, result.transform.dy, 0.25);
+    }
+
+    @Test
+    public void transformFileRoundTrips() throws IOException
+    {
+        final Map<String, FrameTransform> transforms = new LinkedHashMap<String, FrameTransform>();
+        transforms.put("DSC00001.JPG", FrameTransform.IDENTITY);
+        transforms.put("DSC00002.JPG", new FrameTransform(1.0123456, -1.25, 0.5));
+        final File file = File.createTempFile("transforms", ".txt");
+        try
+        {
+            FrameTransform.write(file, transforms, "test");
+            final Map<String, FrameTransform> read = FrameTransform.read(file);
+            assertEquals(2, read.size());
+            final FrameTransform second = read.get("DSC00002.JPG");
+            assertEquals(1.0123456, second.scale, 1e-7);
+            assertEquals(-1.25, second.dx, 1e-3);
+            assertEquals(0.5, second.dy, 1e-3);
+            assertTrue(read.get("DSC00001.JPG").isIdentity());
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
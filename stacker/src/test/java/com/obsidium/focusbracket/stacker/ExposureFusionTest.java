@@ -0,0 +1,116 @@
+package com.obsidium.focusbracket.stacker;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExposureFusionTest
+{
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+
+    /*
+        Left to right ramp from shadows to highlights with a fine texture on top, in 0..255 before exposure
+     */
+    private static double scene(int x, int y)
+    {
+        return 30 + 190.0 * x / (WIDTH - 1) + 12 * (((x / 2 + y / 2) & 1) == 0 ? 1 : -1);
+    }
+
+    /*
+        The scene at an exposure factor, clipped like the camera clips it
+     */
+    private static Frame frame(int index, double exposure)
+    {
+        final byte[] bgr = new byte[WIDTH * HEIGHT * 3];
+        for (int y = 0; y < HEIGHT; ++y)
+        {
+            for (int x = 0; x < WIDTH; ++x)
+            {
+                final int value = (int)Math.round(Math.min(255, scene(x, y) * exposure));
+                final int i = (y * WIDTH + x) * 3;
+                // A slight tint, so saturation isn't zero everywhere
+                bgr[i] = (byte)Math.max(0, value - 6);
+                bgr[i + 1] = (byte)value;
+                bgr[i + 2] = (byte)Math.min(255, value + 6);
+            }
+        }
+        return new Frame(new File("FRAME_" + index + ".JPG"), index, WIDTH, HEIGHT, bgr);
+    }
+
+    private static byte[] fuse(int tileSize, Frame... frames)
+    {
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        try
+        {
+            final byte[] out = new byte[WIDTH * HEIGHT * 3];
+            new ExposureFusion(WIDTH, HEIGHT, tileSize, pool).fuse(frames, out);
+            return out;
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    private static int maxDifference(byte[] a, byte[] b)
+    {
+        int max = 0;
+        for (int i = 0; i < a.length; ++i)
+            max = Math.max(max, Math.abs((a[i] & 0xff) - (b[i] & 0xff)));
+        return max;
+    }
+
+    @Test
+    public void identicalFramesFuseToThemselves()
+    {
+        final Frame frame = frame(0, 1);
+        assertTrue(maxDifference(frame.bgr, fuse(32, frame, frame(1, 1), frame(2, 1))) <= 2);
+    }
+
+    @Test
+    public void frameOrderAndTilingDontChangeTheResult()
+    {
+        final Frame dark = frame(0, 0.5);
+        final Frame normal = frame(1, 1);
+        final Frame bright = frame(2, 2);
+        final byte[] fused = fuse(32, dark, normal, bright);
+        assertTrue(maxDifference(fused, fuse(32, bright, dark, normal)) <= 1);
+        assertTrue(maxDifference(fused, fuse(128, dark, normal, bright)) <= 1);
+    }
+
+    @Test
+    public void highlightsComeFromTheDarkerFrames()
+    {
+        final Frame bright = frame(2, 2);
+        final byte[] fused = fuse(32, frame(0, 0.5), frame(1, 1), bright);
+        // The right quarter, where the bright frame is clipped flat
+        int clipped = 0;
+        int textured = 0;
+        for (int y = 1; y < HEIGHT - 1; ++y)
+        {
+            for (int x = WIDTH * 3 / 4; x < WIDTH - 1; ++x)
+            {
+                final int i = (y * WIDTH + x) * 3 + 1;
+                assertEquals(255, bright.bgr[i] & 0xff);
+                if ((fused[i] & 0xff) == 255)
+                    ++clipped;
+                if (Math.abs((fused[i] & 0xff) - (fused[i + 3] & 0xff)) > 4)
+                    ++textured;
+            }
+        }
+        assertEquals(0, clipped);
+        // The checkerboard flips every two pixels, so half the neighbour pairs straddle an edge
+        assertTrue(textured > (HEIGHT - 2) * (WIDTH / 4 - 1) / 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void framesMustMatchTheFusionSize()
+    {
+        fuse(32, frame(0, 1), new Frame(new File("SMALL.JPG"), 1, WIDTH / 2, HEIGHT, new byte[WIDTH / 2 * HEIGHT * 3]));
+    }
+}
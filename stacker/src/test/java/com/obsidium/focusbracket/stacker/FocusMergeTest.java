@@ -0,0 +1,105 @@
+package com.obsidium.focusbracket.stacker;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FocusMergeTest
+{
+    private static final int WIDTH = 96;
+    private static final int HEIGHT = 64;
+    private static final int GRAY = 128;
+
+    /*
+        Fine checkerboard, sharp detail, in the columns from x0 to x1 and flat gray, all blur, elsewhere
+     */
+    private static Frame frame(int index, int x0, int x1)
+    {
+        final byte[] bgr = new byte[WIDTH * HEIGHT * 3];
+        for (int y = 0; y < HEIGHT; ++y)
+        {
+            for (int x = 0; x < WIDTH; ++x)
+            {
+                final int value = x >= x0 && x < x1 ? checker(x, y) : GRAY;
+                final int i = (y * WIDTH + x) * 3;
+                bgr[i] = (byte)value;
+                bgr[i + 1] = (byte)value;
+                bgr[i + 2] = (byte)value;
+            }
+        }
+        return new Frame(new File("FRAME_" + index + ".JPG"), index, WIDTH, HEIGHT, bgr);
+    }
+
+    private static int checker(int x, int y)
+    {
+        return ((x / 2 + y / 2) & 1) == 0 ? 40 : 220;
+    }
+
+    private static int[] merge(int tileSize, Frame... frames) throws IOException
+    {
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        try (FocusMerge merge = new FocusMerge(WIDTH, HEIGHT, tileSize, new File(System.getProperty("java.io.tmpdir")), pool))
+        {
+            for (Frame frame : frames)
+                merge.add(frame, FrameTransform.IDENTITY);
+            assertEquals(frames.length, merge.getFrameCount());
+            return merge.toImage().getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    private static int gray(int rgb)
+    {
+        return rgb & 0xff;
+    }
+
+    @Test
+    public void sharpestFrameWinsEachRegion() throws IOException
+    {
+        final int[] merged = merge(16, frame(0, 0, WIDTH / 2), frame(1, WIDTH / 2, WIDTH));
+        // Away from the seam, where both frames' focus windows see detail
+        for (int y = 0; y < HEIGHT; ++y)
+        {
+            for (int x = 0; x < WIDTH; ++x)
+            {
+                if (Math.abs(x - WIDTH / 2) >= 4)
+                    assertEquals(checker(x, y), gray(merged[y * WIDTH + x]));
+            }
+        }
+    }
+
+    @Test
+    public void tilingAndFrameOrderDontChangeTheResult() throws IOException
+    {
+        final Frame near = frame(0, 0, 40);
+        final Frame middle = frame(1, 40, 70);
+        final Frame far = frame(2, 70, WIDTH);
+        final int[] merged = merge(16, near, middle, far);
+        assertTrue(Arrays.equals(merged, merge(64, near, middle, far)));
+        assertTrue(Arrays.equals(merged, merge(16, far, near, middle)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void framesMustMatchTheStackSize() throws IOException
+    {
+        final ForkJoinPool pool = new ForkJoinPool(1);
+        try (FocusMerge merge = new FocusMerge(WIDTH, HEIGHT, 16, new File(System.getProperty("java.io.tmpdir")), pool))
+        {
+            merge.add(new Frame(new File("SMALL.JPG"), 0, WIDTH / 2, HEIGHT, new byte[WIDTH / 2 * HEIGHT * 3]),
+                FrameTransform.IDENTITY);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.obsidium.focusbracket.stacker;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameReaderTest
+{
+    /*
+        Directory of small JPEGs whose names sort in the opposite order to their creation, plus a text file
+     */
+    private static File writeStack(int frames) throws IOException
+    {
+        final File dir = Files.createTempDirectory("framereader").toFile();
+        for (int i = frames - 1; i >= 0; --i)
+        {
+            final BufferedImage image = new BufferedImage(32, 24, BufferedImage.TYPE_3BYTE_BGR);
+            // Frame i is a flat gray of 10 * (i + 1), which survives JPEG compression within a few levels
+            final int value = 10 * (i + 1);
+            for (int y = 0; y < image.getHeight(); ++y)
+            {
+                for (int x = 0; x < image.getWidth(); ++x)
+                    image.setRGB(x, y, value << 16 | value << 8 | value);
+            }
+            ImageIO.write(image, "jpg", new File(dir, String.format("DSC%05d.JPG", i)));
+        }
+        Files.write(new File(dir, "NOTES.TXT").toPath(), new byte[] { 'x' });
+        return dir;
+    }
+
+    private static void delete(File dir)
+    {
+        final File[] files = dir.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+                file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void readsTheJpegsInNameOrder() throws IOException
+    {
+        final File dir = writeStack(6);
+        try
+        {
+            final List<File> files = new ArrayList<File>();
+            FrameReader.collect(dir, files);
+            assertEquals(6, files.size());
+            // Two frames in flight at most, fewer than the stack has
+            try (FrameReader reader = new FrameReader(files, 2, 2))
+            {
+                assertEquals(6, reader.size());
+                for (int i = 0; i < 6; ++i)
+                {
+                    assertTrue(reader.hasNext());
+                    final Frame frame = reader.next();
+                    assertEquals(i, frame.index);
+                    assertEquals(String.format("DSC%05d.JPG", i), frame.file.getName());
+                    assertEquals(32, frame.width);
+                    assertEquals(24, frame.height);
+                    assertTrue(Math.abs((frame.bgr[0] & 0xff) - 10 * (i + 1)) <= 3);
+                }
+                assertTrue(!reader.hasNext());
+            }
+        }
+        finally
+        {
+            delete(dir);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void undecodableFrameFailsTheRead() throws IOException
+    {
+        final File dir = Files.createTempDirectory("framereader").toFile();
+        try
+        {
+            final File broken = new File(dir, "DSC00000.JPG");
+            Files.write(broken.toPath(), new byte[] { 1, 2, 3 });
+            final List<File> files = new ArrayList<File>();
+            FrameReader.collect(dir, files);
+            try (FrameReader reader = new FrameReader(files, 1, 1))
+            {
+                reader.next();
+            }
+        }
+        finally
+        {
+            delete(dir);
+        }
+    }
+}
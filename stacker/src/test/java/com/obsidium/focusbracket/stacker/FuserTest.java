@@ -0,0 +1,172 @@
+package com.obsidium.focusbracket.stacker;
+
+import com.obsidium.focusbracket.core.EngineLog;
+import com.obsidium.focusbracket.core.FocusDriveController;
+import com.obsidium.focusbracket.core.SequenceEngine;
+import com.obsidium.focusbracket.core.ShootSettings;
+import com.obsidium.focusbracket.core.ShotTrace;
+import com.obsidium.focusbracket.core.sim.SimulatedCamera;
+import com.obsidium.focusbracket.core.sim.SimulatedEventLoop;
+import com.obsidium.focusbracket.core.sim.Simulation;
+import com.obsidium.focusbracket.core.sim.SimulationConfig;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class FuserTest
+{
+    private static final EngineLog QUIET_LOG = new EngineLog()
+    {
+        @Override
+        public void info(String msg) {}
+
+        @Override
+        public void error(String msg) {}
+    };
+
+    private static List<File> frames(int count)
+    {
+        final List<File> frames = new ArrayList<File>();
+        for (int i = 0; i < count; ++i)
+            frames.add(new File(String.format("DSC%05d.JPG", i)));
+        return frames;
+    }
+
+    /*
+        Shoots a bracketed stack whose every native burst stops after its first frame, and returns the trace
+     */
+    private static String shootPartialBursts(SimulationConfig config, ShootSettings settings) throws IOException
+    {
+        final SimulatedEventLoop loop = new SimulatedEventLoop();
+        final SimulatedCamera camera = new SimulatedCamera(config, loop);
+        final SequenceEngine engine = new SequenceEngine(camera, loop, QUIET_LOG);
+        final StringWriter csv = new StringWriter();
+        final IOException[] error = new IOException[1];
+        engine.setListener(new Simulation(config)
+        {
+            @Override
+            public void onSequenceFinished(ShotTrace trace, boolean completed)
+            {
+                try
+                {
+                    trace.writeCsv(csv);
+                }
+                catch (IOException e)
+                {
+                    error[0] = e;
+                }
+            }
+        });
+        for (int speed = FocusDriveController.MIN_SPEED; speed <= FocusDriveController.MAX_SPEED; ++speed)
+            engine.getDriveController().setStepsPerDrive(speed, config.stepsPerDrive[speed]);
+        engine.setSettings(settings);
+        engine.onFocusChanged(config.startFocus);
+        engine.start();
+        while (csv.getBuffer().length() == 0 && loop.runNext())
+        {
+        }
+        if (error[0] != null)
+            throw error[0];
+        assertEquals(10, camera.getFrameCount());
+        return csv.toString();
+    }
+
+    @Test
+    public void groupsByCountInOrder()
+    {
+        final List<File> frames = frames(6);
+        final List<List<File>> groups = Fuser.groupByCount(frames, 3);
+        assertEquals(2, groups.size());
+        assertEquals(frames.subList(0, 3), groups.get(0));
+        assertEquals(frames.subList(3, 6), groups.get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void countNeedsWholeGroups()
+    {
+        Fuser.groupByCount(frames(7), 3);
+    }
+
+    @Test
+    public void retakenBurstReplacesItsPartialFrame() throws IOException
+    {
+        // The first burst at 100 stopped after its center frame, the point was then shot again frame by frame
+        final String trace = "time_ms,shot,event,value\n" +
+            "0,0,sequence_start,6\n" +
+            "10,0,take_picture,0\n" +
+            "400,0,frame_focus,100\n" +
+            "400,0,frame_exposure,0\n" +
+            "400,0,shutter,0\n" +
+            "1400,1,take_picture,0\n" +
+            "1800,1,frame_focus,100\n" +
+            "1800,1,frame_exposure,0\n" +
+            "1800,1,shutter,0\n" +
+            "1900,2,take_picture,-3\n" +
+            "2300,2,frame_focus,100\n" +
+            "2300,2,frame_exposure,-3\n" +
+            "2300,2,shutter,0\n" +
+            "2400,3,take_picture,3\n" +
+            "2800,3,frame_focus,100\n" +
+            "2800,3,frame_exposure,3\n" +
+            "2800,3,shutter,0\n" +
+            "2900,4,drive_start,7\n" +
+            "3000,4,focus_changed,200\n" +
+            "3000,4,take_picture,0\n" +
+            "3400,4,frame_focus,200\n" +
+            "3400,4,frame_exposure,0\n" +
+            "3400,4,shutter,0\n" +
+            "3500,5,frame_focus,200\n" +
+            "3500,5,frame_exposure,-3\n" +
+            "3500,5,shutter,0\n" +
+            "3600,6,frame_focus,200\n" +
+            "3600,6,frame_exposure,3\n" +
+            "3600,6,shutter,0\n" +
+            "3600,7,sequence_end,0\n";
+        final List<File> frames = frames(7);
+        final List<List<File>> groups = Fuser.groupByTrace(frames, new StringReader(trace));
+        assertEquals(2, groups.size());
+        assertEquals(Arrays.asList(frames.get(1), frames.get(2), frames.get(3)), groups.get(0));
+        assertEquals(frames.subList(4, 7), groups.get(1));
+        // Grouping by count would have fused the partial frame with the first two of the retake
+        assertEquals(Arrays.asList(frames.get(0), frames.get(1), frames.get(2)), Fuser.groupByCount(frames.subList(0, 6), 3).get(0));
+    }
+
+    @Test
+    public void groupsTheFramesOfARetakenSequence() throws IOException
+    {
+        final SimulationConfig config = new SimulationConfig();
+        config.missedCallbackProbability = 0;
+        config.partialBurstProbability = 1;
+        final ShootSettings settings = new ShootSettings();
+        settings.exposureBracket = 3;
+        settings.focusPoints.add(100);
+        settings.focusPoints.add(200);
+        settings.focusPoints.add(300);
+        // Three points of three frames, and the lone frame of the burst that stopped early
+        final List<File> frames = frames(10);
+        final List<List<File>> groups = Fuser.groupByTrace(frames, new StringReader(shootPartialBursts(config, settings)));
+        assertEquals(3, groups.size());
+        assertEquals(frames.subList(1, 4), groups.get(0));
+        assertEquals(frames.subList(4, 7), groups.get(1));
+        assertEquals(frames.subList(7, 10), groups.get(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void traceMustCoverEveryInput() throws IOException
+    {
+        final String trace = "time_ms,shot,event,value\n" +
+            "400,0,frame_focus,100\n" +
+            "400,0,frame_exposure,0\n" +
+            "400,0,shutter,0\n";
+        Fuser.groupByTrace(frames(2), new StringReader(trace));
+    }
+}